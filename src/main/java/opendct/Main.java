@@ -20,6 +20,7 @@ import opendct.channel.ChannelManager;
 import opendct.config.CommandLine;
 import opendct.config.Config;
 import opendct.config.ExitCode;
+import opendct.consumer.upload.NIOSageTVUploadPool;
 import opendct.power.NetworkPowerEventManger;
 import opendct.power.PowerMessageManager;
 import opendct.sagetv.SageTVManager;
@@ -143,6 +144,7 @@ public class Main {
                 logger.info("Stopping all SageTV socket servers...");
                 SageTVManager.stopAllSocketServers();
                 SageTVManager.stopAndClearAllCaptureDevices();
+                NIOSageTVUploadPool.closeAllConnections();
             }
         });
 
@@ -183,9 +185,8 @@ public class Main {
         // a capture device that doesn't use UPnP so we would want it disabled if we don't need it.
         boolean useUPnP = Config.getBoolean("upnp.enabled", true);
 
-        // If this is enabled, this will discover for HDHomeRun devices. At the moment this won't
-        // actually create any devices based on discovery, but it will find devices and prevent
-        // duplicates.
+        // If this is enabled, this will discover HDHomeRun devices and create a capture device
+        // for every tuner using the native protocol instead of UPnP.
         boolean useHDHR = Config.getBoolean("hdhr.enabled", false);
 
         Config.saveConfig();
@@ -23,7 +23,9 @@ import opendct.producer.RTPProducer;
 import opendct.sagetv.SageTVManager;
 import opendct.tuning.hdhomerun.GetSetException;
 import opendct.tuning.hdhomerun.HDHomeRunDevice;
+import opendct.tuning.hdhomerun.HDHomeRunManager;
 import opendct.tuning.hdhomerun.HDHomeRunTuner;
+import opendct.tuning.hdhomerun.HDHomeRunTuning;
 import opendct.tuning.hdhomerun.returns.HDHomeRunStatus;
 import opendct.tuning.hdhomerun.returns.HDHomeRunVStatus;
 import opendct.tuning.http.InfiniTVStatus;
@@ -40,8 +42,11 @@ import opendct.tuning.upnp.services.connectionmanager.ConnectionManagerSubscript
 import opendct.tuning.upnp.services.connectionmanager.returns.GetProtocolInfo;
 import opendct.tuning.upnp.services.connectionmanager.returns.PrepareForConnection;
 import opendct.tuning.upnp.services.mux.MuxAction;
+import opendct.tuning.upnp.services.shared.ServiceSubscription;
+import opendct.tuning.upnp.services.shared.UpnpDeviceState;
 import opendct.tuning.upnp.services.tuner.TunerAction;
 import opendct.tuning.upnp.services.tuner.TunerSubscription;
+import opendct.util.ReadinessPoller;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -58,7 +63,16 @@ import java.net.SocketException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDevice {
@@ -80,6 +94,14 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
     private final AVTransportSubscription avTransportSubscription;
     private final TunerSubscription tunerSubscription;
 
+    // The last known values from the subscriptions and actions of this device.
+    private final UpnpDeviceState deviceState;
+
+    // When this is enabled, subscriptions stay open after tuning so values can be read from events
+    // instead of asking the device.
+    private boolean persistentSubscriptions =
+            Config.getBoolean("upnp.dct.persistent_subscriptions", true);
+
     // DCT service action classes.
     private final ConnectionManagerAction connectionManagerAction;
     private final CASAction casAction;
@@ -97,6 +119,8 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             Config.getInteger("upnp.dct.wait_for_offline_detection_s", 8);
     private long offlineDetectionMinBytes =
             Config.getLong("upnp.dct.offline_detection_min_bytes", 18800);
+    private long offlineDetectionPoll =
+            Math.max(Config.getLong("upnp.dct.offline_detection_poll_ms", 250), 10);
 
     private boolean offlineScan = false;
 
@@ -113,20 +137,51 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             Config.getBoolean("upnp.qam.automap_reference_lookup", true);
     private boolean autoMapTuning =
             Config.getBoolean("upnp.qam.automap_tuning_lookup", false);
+    private boolean tuningCacheDirectTune =
+            Config.getBoolean("channel.tuning_cache.direct_tune", true);
     private HDHomeRunTuner hdhrTuner = null;
     private boolean forceExternalUnlock =
             Config.getBoolean(propertiesDeviceRoot + "always_force_external_unlock", false);
 
-    private Thread monitorThread = null;
     private volatile Thread tuningThread = null;
-    private AtomicBoolean locked = new AtomicBoolean(false);
-    private final Object exclusiveLock = new Object();
 
     // When this is enabled, the DCT is put into a state that is only waiting for a channel to be
     // requested.
     private boolean fastTune = Config.getBoolean("upnp.dct.fast_tuning", false);
     private boolean hdhrLock = Config.getBoolean("hdhr.locking", true);
 
+    // Used to run tuning steps that don't depend on each other at the same time. None of the
+    // steps wait on another step, so steps can queue when every thread is busy.
+    private static final int tuningThreads =
+            Math.max(Config.getInteger("upnp.dct.tuning_threads", 8), 1);
+
+    private static final ThreadPoolExecutor tuningExecutor = new ThreadPoolExecutor(
+            tuningThreads, tuningThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setName("TuningWorker-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        tuningExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // This is how long to wait in milliseconds for the device to report the program and PIDs.
+    private static final long PROGRAM_READY_TIMEOUT = 5000;
+
+    // This is the channel currently streaming to a consumer discarding everything while waiting
+    // for SageTV to request it.
+    private volatile String hotStandbyChannel = null;
+
+    // This is the capture device this capture device is sharing a stream with instead of tuning.
+    private volatile DCTCaptureDeviceImpl sharedSource = null;
+    private final Semaphore sharedStreamEnded = new Semaphore(0);
+
     /**
      * Create a new DCT capture device.
      *
@@ -140,13 +195,14 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
 
         //this.dctDevice = dctDevice;
         UpnpService upnpService = UpnpManager.getUpnpService();
+        deviceState = new UpnpDeviceState(encoderName);
 
         // Connection to ConnectionManager service.
         if ((connectionManagerService = dctDevice.findService(new UDAServiceType("ConnectionManager", 1))) == null) {
             logger.error("Could not find ConnectionManager service. It is unlikely this device is a tuner.");
             throw new InitializationException("The ConnectionManager service does not exist.");
         }
-        connectionManagerSubscription = new ConnectionManagerSubscription(upnpService, connectionManagerService);
+        connectionManagerSubscription = new ConnectionManagerSubscription(upnpService, connectionManagerService, deviceState);
         connectionManagerAction = new ConnectionManagerAction(upnpService, connectionManagerService);
         logger.debug("Initialized ConnectionManager service.");
 
@@ -171,7 +227,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             logger.error("Could not find AVTransport service.");
             throw new InitializationException("The AVTransport service does not exist.");
         }
-        avTransportSubscription = new AVTransportSubscription(upnpService, avTransportService);
+        avTransportSubscription = new AVTransportSubscription(upnpService, avTransportService, deviceState);
         avTransportAction = new AVTransportAction(upnpService, avTransportService);
         logger.debug("Initialized AVTransport service.");
 
@@ -180,7 +236,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             logger.error("Could not find CAS service.");
             throw new InitializationException("The CAS service does not exist.");
         }
-        casSubscription = new CASSubscription(upnpService, casService);
+        casSubscription = new CASSubscription(upnpService, casService, deviceState);
         casAction = new CASAction(upnpService, casService);
         logger.debug("Initialized CAS service.");
 
@@ -189,7 +245,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             logger.error("Could not find Tuner service.");
             throw new InitializationException("The Tuner service does not exist.");
         }
-        tunerSubscription = new TunerSubscription(upnpService, tunerService);
+        tunerSubscription = new TunerSubscription(upnpService, tunerService, deviceState);
         tunerAction = new TunerAction(upnpService, tunerService);
         logger.debug("Initialized Tuner service.");
 
@@ -285,6 +341,11 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 logger.info("Using UPnP tuning for this device.");
             }
         } else if (manufacturer.equals("Silicondust")) {
+            // The same tuner might also be found by HDHomeRun native discovery.
+            if (!HDHomeRunManager.claimUpnpDevice(rtpStreamRemoteIP)) {
+                throw new CaptureDeviceIgnoredException("The HDHomeRun device at " + rtpStreamRemoteIP + " already has capture devices using the native protocol.");
+            }
+
 
             if (cableCardPresent) {
                 encoderDeviceType = CaptureDeviceType.DCT_PRIME;
@@ -342,27 +403,14 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
         logger.exit();
     }
 
-    public boolean isLocked() {
-        return locked.get();
-    }
-
+    @Override
     public boolean setLocked(boolean locked) {
-        boolean messageLock = this.locked.get();
-
-        // This means the lock was already set
-        if (this.locked.getAndSet(locked) == locked) {
-            logger.info("Capture device is was already {}.", (locked ? "locked" : "unlocked"));
+        if (!super.setLocked(locked)) {
             return false;
         }
 
-        synchronized (exclusiveLock) {
-            this.locked.set(locked);
-
-            if (messageLock != locked) {
-                logger.info("Capture device is now {}.", (locked ? "locked" : "unlocked"));
-            } else {
-                logger.debug("Capture device is now re-{}.", (locked ? "locked" : "unlocked"));
-            }
+        if (!locked) {
+            HotStandbyManager.deviceIdle(this);
         }
 
         return true;
@@ -529,131 +577,69 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
         return null;
     }
 
-    /**
-     * Tunes a channel outside of any requests from the SageTV server and updates information about
-     * the channel.
-     *
-     * @param tvChannel A TVChannel object with at the very least a defined channel or frequency and
-     *                  program. Otherwise there is nothing to tune.
-     * @return <i>true</i> if the test was complete and successful. <i>false</i> if we should try
-     *         again on a different capture device since this one is currently locked.
-     */
-    public boolean getChannelInfoOffline(TVChannel tvChannel) {
-        logger.entry();
-
-        if (isLocked() || isExternalLocked()) {
-            return logger.exit(false);
-        }
-
-        synchronized (exclusiveLock) {
-            // Return immediately if an exclusive lock was set between here and the first check if
-            // there is an exclusive lock set.
-            if (isLocked()) {
-                return logger.exit(false);
-            }
-
-            if (!startEncoding(tvChannel.getChannel(), null, "", 0)) {
-                return logger.exit(false);
-            }
-
-            int timeout = offlineDetectionWait;
-            if (!isHDHRTune()) {
-                while (sageTVConsumerRunnable != null && sageTVConsumerRunnable.getIsRunning() &&
-                        getRecordedBytes() < offlineDetectionMinBytes && timeout-- > 0) {
-
-                    if (isLocked()) {
-                        stopEncoding();
-                        return logger.exit(false);
-                    }
-
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        return logger.exit(false);
-                    }
-                }
-            }
-
-            CopyProtection copyProtection = getCopyProtection();
-            while ((copyProtection == CopyProtection.NONE ||
-                    copyProtection == CopyProtection.UNKNOWN) &&
-                    timeout-- > 0) {
+    @Override
+    protected boolean updateChannelInfoOffline(TVChannel tvChannel) {
+        // Most channels are ready well before the full wait, so this checks often instead of
+        // waiting a full second between checks.
+        long deadline = System.currentTimeMillis() + offlineDetectionWait * 1000L;
+        if (!isHDHRTune()) {
+            while (sageTVConsumerRunnable != null && sageTVConsumerRunnable.getIsRunning() &&
+                    getRecordedBytes() < offlineDetectionMinBytes &&
+                    System.currentTimeMillis() < deadline) {
 
                 if (isLocked()) {
-                    stopEncoding();
-                    return logger.exit(false);
+                    return false;
                 }
 
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(offlineDetectionPoll);
                 } catch (InterruptedException e) {
-                    return logger.exit(false);
+                    return false;
                 }
-                copyProtection = getCopyProtection();
-            }
-
-            tvChannel.setCci(copyProtection);
-            tvChannel.setSignalStrength(getSignalStrength());
-            if (copyProtection == CopyProtection.COPY_FREELY || copyProtection == CopyProtection.NONE) {
-                tvChannel.setTunable(getRecordedBytes() > offlineDetectionMinBytes);
-            } else {
-                tvChannel.setTunable(false);
             }
+        }
 
-            if (isHDHRTune()) {
-                try {
-                    String frequency = hdhrTuner.getChannel();
-                    if (frequency != null) {
-                        String split[] = frequency.split(":");
-                        if (split.length > 1 && split[split.length - 1].length() > 3) {
-                            tvChannel.setModulation(split[0].toUpperCase());
-
-                            tvChannel.setFrequency(split[split.length - 1].substring(0, split.length - 3));
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.error("Unable to get frequency from capture device => ", e);
-                }
+        CopyProtection copyProtection = waitForCopyProtection(deadline, offlineDetectionPoll);
+        if (copyProtection == null) {
+            return false;
+        }
 
-                try {
-                    tvChannel.setProgram(String.valueOf(hdhrTuner.getProgram()));
-                } catch (Exception e) {
-                    logger.error("Unable to get program from HDHomeRun => ", e);
-                }
+        tvChannel.setCci(copyProtection);
+        tvChannel.setSignalStrength(getSignalStrength());
+        if (copyProtection == CopyProtection.COPY_FREELY || copyProtection == CopyProtection.NONE) {
+            tvChannel.setTunable(getRecordedBytes() > offlineDetectionMinBytes);
+        } else {
+            tvChannel.setTunable(false);
+        }
 
-                if (encoderDeviceType == CaptureDeviceType.DCT_PRIME) {
-                    try {
-                        HDHomeRunVStatus status = hdhrTuner.getVirtualChannelStatus();
-                        tvChannel.setTunable(!status.NOT_AVAILABLE && !status.COPY_PROTECTED && !status.NOT_SUBSCRIBED);
-                    } catch (Exception e) {
-                        logger.error("Unable to get status from HDHomeRun => ", e);
+        if (isHDHRTune()) {
+            HDHomeRunTuning.updateChannelInfo(hdhrTuner, tvChannel);
 
-                        // Try one more time to see if anything actually recorded.
-                        tvChannel.setTunable(getRecordedBytes() > offlineDetectionMinBytes);
-                    }
-                }
-            } else if (encoderDeviceType == CaptureDeviceType.DCT_PRIME) {
+            if (encoderDeviceType == CaptureDeviceType.DCT_PRIME) {
+                Boolean tunable = HDHomeRunTuning.isVirtualChannelTunable(hdhrTuner);
 
-                String modulation = tunerAction.SERVICE_ACTIONS.queryActionVariable("Modulation");
-                if (modulation != null) {
-                    tvChannel.setModulation(modulation);
-                }
+                // Try one more time to see if anything actually recorded.
+                tvChannel.setTunable(tunable != null ? tunable : getRecordedBytes() > offlineDetectionMinBytes);
+            }
+        } else if (encoderDeviceType == CaptureDeviceType.DCT_PRIME) {
 
-                String frequency = tunerAction.SERVICE_ACTIONS.queryActionVariable("Frequency");
-                if (frequency != null) {
-                    tvChannel.setFrequency(frequency);
-                }
+            String modulation = deviceState.getValue(tunerAction.SERVICE_ACTIONS, "Modulation");
+            if (modulation != null) {
+                tvChannel.setModulation(modulation);
+            }
 
-                String program = muxAction.SERVICE_ACTIONS.queryActionVariable("ProgramNumber");
-                if (program != null) {
-                    tvChannel.setProgram(program);
-                }
+            String frequency = deviceState.getValue(tunerAction.SERVICE_ACTIONS, "Frequency");
+            if (frequency != null) {
+                tvChannel.setFrequency(frequency);
             }
 
-            stopEncoding();
+            String program = deviceState.getValue(muxAction.SERVICE_ACTIONS, "ProgramNumber");
+            if (program != null) {
+                tvChannel.setProgram(program);
+            }
         }
 
-        return logger.exit(true);
+        return true;
     }
 
     public InetAddress getEncoderIpAddress() {
@@ -662,7 +648,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
 
     private boolean startEncodingHDHR(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
         logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
-        long startTime = System.currentTimeMillis();
+        TuningPhaseTimer timer = new TuningPhaseTimer(encoderDeviceType);
         boolean scanOnly = false;
 
         if (remoteAddress != null) {
@@ -674,7 +660,9 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             scanOnly = true;
         }
 
+        long phaseTime = timer.now();
         setHDHRLock(true);
+        timer.record("LOCK", phaseTime);
 
         // The producer and consumer methods are requested to not block. If they don't shut down in
         // time, it will be caught and handled later. This gives us a small gain in speed.
@@ -699,97 +687,35 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             newConsumer = getNewSageTVConsumer();
         }
 
-        switch (encoderDeviceType) {
-            case DCT_PRIME:
-                try {
-                    hdhrTuner.setVirtualChannel(channel);
-                } catch (IOException e) {
-                    logger.error("Unable to tune into channel '{}' => ", channel, e);
-                    return logger.exit(false);
-                } catch (GetSetException e) {
-                    logger.error("Unable to tune into channel '{}' => ", channel, e);
-                    return logger.exit(false);
-                }
-                break;
-            case QAM_PRIME:
-                TVChannel tvChannel = ChannelManager.getChannel(encoderLineup, channel);
-                if (tvChannel == null) {
-                    logger.error("The channel '{}' does not exist on the lineup '{}'.", channel, encoderLineup);
-                    return logger.exit(false);
-                }
-
-                try {
-                    String modulation = tvChannel.getModulation();
-                    if (modulation == null) {
-                        logger.warn("The channel '{}' does not have a modulation on the lineup '{}'. Using QAM256.", channel, encoderLineup);
-                        modulation = "qam256";
-                    }
-
-                    String frequency = tvChannel.getFrequency();
-                    if (frequency == null) {
-                        logger.error("The channel '{}' does not have a frequency on the lineup '{}'.", channel, encoderLineup);
-                        return logger.exit(false);
-                    }
-
-                    String program = tvChannel.getProgram();
-                    if (program == null) {
-                        logger.error("The channel '{}' does not have a program on the lineup '{}'.", channel, encoderLineup);
-                        return logger.exit(false);
-                    }
-
-                    hdhrTuner.setChannel(modulation, frequency, false);
-
-                    boolean foundProgram = false;
-
-                    for (int i = 0; i < 20; i++) {
-                        try {
-                            hdhrTuner.setProgram(program);
-                            foundProgram = true;
-                        } catch (GetSetException e) {
-                            logger.debug("HDHomeRun device returned an error => ", e);
-                        }
-
-                        if (foundProgram) {
-                            break;
-                        }
+        // The RTP port doesn't depend on the channel, so it's opened while the channel is tuned.
+        Future<Boolean> producerStarted = startProducingAsync(newRTPProducer, newConsumer, rtpStreamRemoteIP, rtpLocalPort, timer);
 
-                        Thread.sleep(50);
-                    }
+        TuningCache.TuningInfo cached = getCachedTuning(channel);
 
-                    if (!foundProgram) {
-                        logger.error("The frequency '{}' does not have the program on the lineup '{}'.", frequency, encoderLineup);
-                        return logger.exit(false);
-                    }
-                } catch (IOException e) {
-                    logger.error("Unable to tune into channel => ", e);
-                    return logger.exit(false);
-                } catch (GetSetException e) {
-                    logger.error("Unable to tune into channel => ", e);
-                    return logger.exit(false);
-                } catch (InterruptedException e) {
-                    logger.debug("Interrupted while trying to tune into channel => ", e);
-                    return logger.exit(false);
-                }
+        phaseTime = timer.now();
+        boolean tuned = tuneHDHR(channel, cached);
+        timer.record("TUNE", phaseTime);
 
-                break;
-            default:
-                logger.error("This device has been assigned an " +
-                        "unsupported capture device type: {}", encoderDeviceType);
-                return logger.exit(false);
+        // The cached values are removed if they could not be tuned directly.
+        if (cached != null) {
+            cached = TuningCache.getFresh(encoderLineup, channel);
         }
 
-        logger.info("Configuring and starting the new RTP producer...");
-
-        if (!startProducing(newRTPProducer, newConsumer, rtpStreamRemoteIP, rtpLocalPort)) {
+        if (!getProducerStarted(producerStarted)) {
             logger.error("The producer thread using the implementation '{}' failed to start.",
                     newRTPProducer.getClass().getSimpleName());
 
             return logger.exit(false);
         }
 
+        if (!tuned) {
+            stopProducing(false);
+            return logger.exit(false);
+        }
+
         rtpLocalPort = newRTPProducer.getLocalPort();
 
-        long rtspTime = System.currentTimeMillis();
+        phaseTime = timer.now();
 
         try {
             hdhrTuner.setTarget("rtp://" + localIPAddress.getHostAddress() + ":" + rtpLocalPort);
@@ -801,71 +727,66 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             return logger.exit(false);
         }
 
+        timer.record("TARGET", phaseTime);
+
         // If we are trying to restart the stream, we don't need to stop the consumer.
         if (monitorThread == null || monitorThread != Thread.currentThread()) {
             // If we are buffering this can create too much backlog and overruns the file based buffer.
-            if (bufferSize == 0) {
-                try {
-                    newConsumer.setProgram(hdhrTuner.getProgram());
-
-                    int timeout = 50;
-
-                    while (newConsumer.getProgram() == -1) {
-                        Thread.sleep(100);
-                        newConsumer.setProgram(hdhrTuner.getProgram());
-
-                        if (timeout-- < 0) {
-                            logger.error("Unable to get program after 5 seconds.");
-                            newConsumer.setProgram(-1);
-                            break;
-                        }
-
-                        if (tuningThread != Thread.currentThread()) {
-                            stopProducing(false);
-                            return logger.exit(false);
-                        }
+            if (bufferSize == 0 && cached != null) {
+                // The cached values are checked after the consumer has started.
+                newConsumer.setProgram(cached.PROGRAM);
+                newConsumer.setPids(cached.PIDS);
+            } else if (bufferSize == 0) {
+                final Thread currentTuningThread = Thread.currentThread();
+
+                // The program and PIDs are independent of each other, so we wait for both at the
+                // same time.
+                Future<Integer> programReady = tuningExecutor.submit(new ReadinessPoller<Integer>(PROGRAM_READY_TIMEOUT) {
+                    @Override
+                    protected Integer poll() throws Exception {
+                        int program = hdhrTuner.getProgram();
+                        return program == -1 ? null : program;
                     }
-                } catch (IOException e) {
-                    logger.error("Unable to get program => ", e);
-                } catch (GetSetException e) {
-                    logger.error("Unable to get program => ", e);
-                } catch (InterruptedException e) {
-                    logger.debug("Unable to get program => ", e);
-                    return logger.exit(false);
-                }
 
-                try {
-                    newConsumer.setPids(hdhrTuner.getFilter());
+                    @Override
+                    protected boolean isAbandoned() {
+                        return tuningThread != currentTuningThread;
+                    }
+                });
 
-                    int timeout = 50;
+                Future<int[]> pidsReady = tuningExecutor.submit(new ReadinessPoller<int[]>(PROGRAM_READY_TIMEOUT) {
+                    @Override
+                    protected int[] poll() throws Exception {
+                        int pids[] = hdhrTuner.getFilter();
+                        return pids.length <= 1 ? null : pids;
+                    }
 
-                    while (newConsumer.getPids().length <= 1) {
-                        Thread.sleep(100);
-                        newConsumer.setPids(hdhrTuner.getFilter());
+                    @Override
+                    protected boolean isAbandoned() {
+                        return tuningThread != currentTuningThread;
+                    }
+                });
 
-                        if (timeout-- < 0) {
-                            logger.error("Unable to get PIDs after 5 seconds.");
-                            newConsumer.setPids(new int[0]);
-                            break;
-                        }
+                phaseTime = timer.now();
+                Integer program = getReadyValue(programReady, "program", PROGRAM_READY_TIMEOUT, -1, -1);
+                int pids[] = getReadyValue(pidsReady, "PIDs", PROGRAM_READY_TIMEOUT, new int[0], new int[0]);
+                timer.record("PROGRAM_PIDS", phaseTime);
 
-                        if (tuningThread != Thread.currentThread()) {
-                            stopProducing(false);
-                            return logger.exit(false);
-                        }
-                    }
-                } catch (IOException e) {
-                    logger.error("Unable to get PIDs => ", e);
-                } catch (GetSetException e) {
-                    logger.error("Unable to get PIDs => ", e);
-                } catch (InterruptedException e) {
-                    logger.debug("Unable to get PIDs => ", e);
+                if (program == null || pids == null) {
+                    cancelFutures(programReady, pidsReady);
+                    stopProducing(false);
                     return logger.exit(false);
                 }
+
+                newConsumer.setProgram(program);
+                newConsumer.setPids(pids);
+                rememberTuning(channel, program, pids);
             }
 
             logger.info("Configuring and starting the new SageTV consumer...");
 
+            phaseTime = timer.now();
+
             if (uploadID > 0 && remoteAddress != null) {
                 newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
             } else if (!scanOnly) {
@@ -873,14 +794,17 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             }
 
             startConsuming(newConsumer, encodingQuality, bufferSize);
+            timer.record("CONSUMER", phaseTime);
+
+            if (bufferSize == 0 && cached != null) {
+                verifyCachedTuning(channel, cached, newConsumer);
+            }
         } else {
             logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
         }
 
-        if (logger.isDebugEnabled()) {
-            long endTime = System.currentTimeMillis();
-            logger.debug("Time to RTSP: {}ms, Total tuning time: {}ms", rtspTime - startTime, endTime - startTime);
-        }
+        String phases = timer.finish();
+        logger.debug("Tuning phases: {}", phases);
 
         // If we are trying to restart the stream, we only need one monitoring thread.
         if (monitorThread == null || monitorThread != Thread.currentThread()) {
@@ -893,153 +817,406 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
         return logger.exit(true);
     }
 
-    // This only supports InfiniTV devices.
-    private boolean startEncodingHttp(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
-        logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+    /**
+     * Tune a channel on an HDHomeRun using the native protocol.
+     * <p/>
+     * If there are cached values for the channel and no CableCARD is present, the frequency and
+     * program are tuned directly instead of using the virtual channel. If that doesn't work, the
+     * cached values are removed and the virtual channel is tuned.
+     *
+     * @param channel The channel to tune.
+     * @param cached The cached values for the channel or <i>null</i> if there aren't any.
+     * @return <i>false</i> if the channel could not be tuned.
+     */
+    private boolean tuneHDHR(String channel, TuningCache.TuningInfo cached) {
+        switch (encoderDeviceType) {
+            case DCT_PRIME:
+                if (canDirectTune(cached)) {
+                    if (HDHomeRunTuning.tuneFrequencyProgram(hdhrTuner, cached.MODULATION, cached.FREQUENCY, String.valueOf(cached.PROGRAM))) {
+                        break;
+                    }
 
-        long startTime = System.currentTimeMillis();
-        boolean scanOnly = false;
+                    logger.info("Unable to tune the cached frequency and program for the channel" +
+                            " '{}'. Tuning the virtual channel.", channel);
 
-        if (remoteAddress != null) {
-            logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' via the upload id '{}'...", channel, encoderName, filename, uploadID);
-        } else if (filename != null) {
-            logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}'...", channel, encoderName, filename);
-        } else {
-            logger.info("Starting a channel scan for the channel '{}' from the device '{}'...", channel, encoderName);
-            scanOnly = true;
-        }
+                    TuningCache.invalidate(encoderLineup, channel);
+                }
 
-        // The producer and consumer methods are requested to not block. If they don't shut down in
-        // time, it will be caught and handled later. This gives us a small gain in speed.
-        stopProducing(false);
+                try {
+                    hdhrTuner.setVirtualChannel(channel);
+                } catch (IOException e) {
+                    logger.error("Unable to tune into channel '{}' => ", channel, e);
+                    return false;
+                } catch (GetSetException e) {
+                    logger.error("Unable to tune into channel '{}' => ", channel, e);
+                    return false;
+                }
+                break;
+            case QAM_PRIME:
+                TVChannel tvChannel = ChannelManager.getChannel(encoderLineup, channel);
+                if (tvChannel == null) {
+                    logger.error("The channel '{}' does not exist on the lineup '{}'.", channel, encoderLineup);
+                    return false;
+                }
 
-        // If we are trying to restart the stream, we don't need to stop the consumer.
-        if (monitorThread == null || monitorThread != Thread.currentThread()) {
-            stopConsuming(false);
-        }
+                String modulation = tvChannel.getModulation();
+                if (modulation == null) {
+                    logger.warn("The channel '{}' does not have a modulation on the lineup '{}'. Using QAM256.", channel, encoderLineup);
+                    modulation = "qam256";
+                }
 
-        // Get a new producer and consumer.
-        RTPProducer newRTPProducer = getNewRTPProducer();
-        SageTVConsumer newConsumer;
+                String frequency = tvChannel.getFrequency();
+                if (frequency == null) {
+                    logger.error("The channel '{}' does not have a frequency on the lineup '{}'.", channel, encoderLineup);
+                    return false;
+                }
 
-        // If we are trying to restart the stream, we don't need to create a new consumer.
-        if (monitorThread != null && monitorThread == Thread.currentThread()) {
-            newConsumer = sageTVConsumerRunnable;
-        } else if (scanOnly) {
-            newConsumer = getNewChannelScanSageTVConsumer();
-            newConsumer.consumeToNull(true);
-        } else {
-            newConsumer = getNewSageTVConsumer();
-        }
+                String program = tvChannel.getProgram();
+                if (program == null) {
+                    logger.error("The channel '{}' does not have a program on the lineup '{}'.", channel, encoderLineup);
+                    return false;
+                }
 
-        // Selects what method to use to get the channel tuned in.
-        try {
-            switch (encoderDeviceType) {
-                case DCT_INFINITV:
-                case QAM_INFINITV:
-                    InfiniTVTuning.tuneChannel(
-                            encoderLineup,
-                            channel,
-                            encoderIPAddress,
-                            encoderNumber,
-                            cableCardPresent,
-                            5);
-                    break;
-                default:
-                    logger.error("This device has been assigned an " +
-                            "unsupported capture device type: {}", encoderDeviceType);
-                    return logger.exit(false);
-            }
-        } catch (InterruptedException e) {
-            logger.debug("Tuning was interrupted => ", e);
-            return logger.exit(false);
+                if (!HDHomeRunTuning.tuneFrequencyProgram(hdhrTuner, modulation, frequency, program)) {
+                    logger.error("The frequency '{}' does not have the program on the lineup '{}'.", frequency, encoderLineup);
+                    return false;
+                }
+
+                break;
+            default:
+                logger.error("This device has been assigned an " +
+                        "unsupported capture device type: {}", encoderDeviceType);
+                return false;
         }
 
-        logger.info("Configuring and starting the new RTP producer...");
+        return true;
+    }
+
+    // Cached values can only be tuned directly when there isn't a CableCARD. With a CableCARD the
+    // virtual channel must be tuned so the card authorizes and decrypts the program.
+    private boolean canDirectTune(TuningCache.TuningInfo cached) {
+        return cached != null && tuningCacheDirectTune && !cableCardPresent && cached.isDirectTunable();
+    }
 
-        if (!startProducing(newRTPProducer, newConsumer, rtpStreamRemoteIP, rtpLocalPort)) {
-            logger.error("The producer thread using the implementation '{}' failed to start.",
-                    newRTPProducer.getClass().getSimpleName());
+    // Gets the cached tuning values for a channel if they are fresh and the lineup doesn't have
+    // different values.
+    private TuningCache.TuningInfo getCachedTuning(String channel) {
+        TuningCache.TuningInfo cached = TuningCache.getFresh(encoderLineup, channel);
 
-            return logger.exit(false);
+        if (cached != null && !cached.isConsistent(ChannelManager.getChannel(encoderLineup, channel))) {
+            logger.debug("The cached tuning values for the channel '{}' don't match the lineup '{}'.",
+                    channel, encoderLineup);
+
+            TuningCache.invalidate(encoderLineup, channel);
+            return null;
         }
 
-        rtpLocalPort = newRTPProducer.getLocalPort();
+        return cached;
+    }
 
-        long rtspTime = System.currentTimeMillis();
+    private int getDeviceProgram() throws Exception {
+        if (isHDHRTune()) {
+            return hdhrTuner.getProgram();
+        }
 
-        // Even though it takes another 100ms to perform this step, if it is already configured, we
-        // are actually already receiving data while this is checking to be sure that we should be
-        // receiving data.
-        InfiniTVTuning.startRTSP(localIPAddress.getHostAddress(), rtpLocalPort, encoderIPAddress, encoderNumber);
+        return InfiniTVStatus.GetProgram(encoderIPAddress, encoderNumber, 5);
+    }
 
-        // If we are buffering this can create too much backlog and overruns the file based buffer.
-        if (bufferSize == 0) {
-            // If we are trying to restart the stream, we don't need to change anything on the
-            // consumer.
-            if (monitorThread == null || monitorThread != Thread.currentThread()) {
-                try {
-                    int getProgram = InfiniTVStatus.GetProgram(encoderIPAddress, encoderNumber, 5);
-                    newConsumer.setProgram(getProgram);
+    private int[] getDevicePids() throws Exception {
+        if (isHDHRTune()) {
+            return hdhrTuner.getFilter();
+        }
+
+        return InfiniTVStatus.GetPids(encoderIPAddress, encoderNumber, 5);
+    }
 
-                    int timeout = 50;
+    /**
+     * Caches the values of a channel that was just tuned.
+     * <p/>
+     * The frequency and modulation are requested from the device on another thread so tuning
+     * isn't delayed. Nothing is cached if another channel is tuned first.
+     *
+     * @param channel The channel that was tuned.
+     * @param program The program reported by the device.
+     * @param pids The PIDs reported by the device.
+     */
+    private void rememberTuning(final String channel, final int program, final int pids[]) {
+        final Thread currentTuningThread = Thread.currentThread();
 
-                    while (newConsumer.getProgram() == -1) {
-                        Thread.sleep(100);
-                        getProgram = InfiniTVStatus.GetProgram(encoderIPAddress, encoderNumber, 5);
-                        newConsumer.setProgram(getProgram);
+        tuningExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String modulation = null;
+                String frequency = null;
 
-                        if (timeout-- < 0) {
-                            logger.error("Unable to get program after more than 5 seconds.");
-                            return logger.exit(false);
-                        }
+                try {
+                    if (isHDHRTune()) {
+                        String tunedChannel = hdhrTuner.getChannel();
+                        String split[] = tunedChannel == null ? new String[0] : tunedChannel.split(":");
 
-                        if (tuningThread != Thread.currentThread()) {
-                            stopProducing(false);
-                            return logger.exit(false);
+                        if (split.length > 1) {
+                            modulation = split[0];
+                            frequency = split[split.length - 1];
                         }
+                    } else {
+                        frequency = InfiniTVStatus.getVar(encoderIPAddress, encoderNumber, "tuner", "Frequency");
+                        modulation = InfiniTVStatus.getVar(encoderIPAddress, encoderNumber, "tuner", "Modulation");
                     }
-                } catch (IOException e) {
-                    logger.error("Unable to get program number => ", e);
-                } catch (InterruptedException e) {
-                    logger.debug("Unable to get program number => ", e);
-                    return logger.exit(false);
+                } catch (Exception e) {
+                    logger.debug("Unable to get the frequency of the channel '{}' => ", channel, e);
+                }
+
+                if (tuningThread == currentTuningThread) {
+                    TuningCache.put(encoderLineup, channel, modulation, frequency, program, pids);
                 }
+            }
+        });
+    }
 
+    /**
+     * Checks the cached values used to tune a channel against the values reported by the device.
+     * <p/>
+     * This is done on another thread after the consumer has started. If the values don't match,
+     * the cache entry is removed and the consumer is given the values reported by the device.
+     *
+     * @param channel The channel that was tuned.
+     * @param cached The cached values that were used.
+     * @param consumer The consumer that was given the cached values.
+     */
+    private void verifyCachedTuning(final String channel, final TuningCache.TuningInfo cached, final SageTVConsumer consumer) {
+        final Thread currentTuningThread = Thread.currentThread();
+
+        tuningExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    int pids[] = InfiniTVStatus.GetPids(encoderIPAddress, encoderNumber, 5);
-                    newConsumer.setPids(pids);
+                    int program = new ReadinessPoller<Integer>(PROGRAM_READY_TIMEOUT) {
+                        @Override
+                        protected Integer poll() throws Exception {
+                            int program = getDeviceProgram();
+                            return program == -1 ? null : program;
+                        }
 
-                    int timeout = 50;
+                        @Override
+                        protected boolean isAbandoned() {
+                            return tuningThread != currentTuningThread;
+                        }
+                    }.call();
 
-                    while (newConsumer.getPids().length <= 1) {
-                        Thread.sleep(100);
-                        pids = InfiniTVStatus.GetPids(encoderIPAddress, encoderNumber, 5);
-                        newConsumer.setPids(pids);
+                    int pids[] = new ReadinessPoller<int[]>(PROGRAM_READY_TIMEOUT) {
+                        @Override
+                        protected int[] poll() throws Exception {
+                            int pids[] = getDevicePids();
+                            return pids.length <= 1 ? null : pids;
+                        }
 
-                        if (timeout-- < 0) {
-                            logger.error("Unable to get PIDs after more than 5 seconds.");
-                            return logger.exit(false);
+                        @Override
+                        protected boolean isAbandoned() {
+                            return tuningThread != currentTuningThread;
                         }
+                    }.call();
+
+                    if (tuningThread == currentTuningThread &&
+                            !TuningCache.verify(encoderLineup, channel, cached, program, pids)) {
+
+                        consumer.setProgram(program);
+                        consumer.setPids(pids);
+                    }
+                } catch (CancellationException e) {
+                    logger.debug("Another channel was tuned before the cached values for the" +
+                            " channel '{}' could be verified.", channel);
+                } catch (Exception e) {
+                    logger.debug("Unable to verify the cached values for the channel '{}' => ",
+                            channel, e);
+                }
+            }
+        });
+    }
+
+    // This only supports InfiniTV devices.
+    private boolean startEncodingHttp(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
+        logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+        TuningPhaseTimer timer = new TuningPhaseTimer(encoderDeviceType);
+        boolean scanOnly = false;
+
+        if (remoteAddress != null) {
+            logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' via the upload id '{}'...", channel, encoderName, filename, uploadID);
+        } else if (filename != null) {
+            logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}'...", channel, encoderName, filename);
+        } else {
+            logger.info("Starting a channel scan for the channel '{}' from the device '{}'...", channel, encoderName);
+            scanOnly = true;
+        }
+
+        // The producer and consumer methods are requested to not block. If they don't shut down in
+        // time, it will be caught and handled later. This gives us a small gain in speed.
+        stopProducing(false);
+
+        // If we are trying to restart the stream, we don't need to stop the consumer.
+        if (monitorThread == null || monitorThread != Thread.currentThread()) {
+            stopConsuming(false);
+        }
+
+        // Get a new producer and consumer.
+        RTPProducer newRTPProducer = getNewRTPProducer();
+        SageTVConsumer newConsumer;
+
+        // If we are trying to restart the stream, we don't need to create a new consumer.
+        if (monitorThread != null && monitorThread == Thread.currentThread()) {
+            newConsumer = sageTVConsumerRunnable;
+        } else if (scanOnly) {
+            newConsumer = getNewChannelScanSageTVConsumer();
+            newConsumer.consumeToNull(true);
+        } else {
+            newConsumer = getNewSageTVConsumer();
+        }
+
+        // The RTP port doesn't depend on the channel, so it's opened while the channel is tuned.
+        Future<Boolean> producerStarted = startProducingAsync(newRTPProducer, newConsumer, rtpStreamRemoteIP, rtpLocalPort, timer);
 
-                        if (tuningThread != Thread.currentThread()) {
-                            stopProducing(false);
-                            return logger.exit(false);
+        TuningCache.TuningInfo cached = getCachedTuning(channel);
+
+        // Selects what method to use to get the channel tuned in.
+        long phaseTime = timer.now();
+        boolean tuned = false;
+
+        try {
+            switch (encoderDeviceType) {
+                case DCT_INFINITV:
+                case QAM_INFINITV:
+                    // The virtual channel doesn't need to be tuned when the frequency and program
+                    // are already known.
+                    if (canDirectTune(cached)) {
+                        tuned = InfiniTVTuning.tuneFrequencyProgram(
+                                new TVChannelImpl(
+                                        channel,
+                                        "",
+                                        cached.MODULATION,
+                                        cached.FREQUENCY,
+                                        String.valueOf(cached.PROGRAM),
+                                        "",
+                                        false),
+                                encoderIPAddress,
+                                encoderNumber,
+                                5);
+
+                        if (!tuned) {
+                            logger.info("Unable to tune the cached frequency and program for the" +
+                                    " channel '{}'. Tuning the virtual channel.", channel);
+
+                            TuningCache.invalidate(encoderLineup, channel);
+                            cached = null;
                         }
                     }
-                } catch (IOException e) {
-                    logger.error("Unable to get PID numbers => ", e);
-                } catch (InterruptedException e) {
-                    logger.debug("Unable to get PID numbers => ", e);
-                    return logger.exit(false);
+
+                    if (!tuned) {
+                        InfiniTVTuning.tuneChannel(
+                                encoderLineup,
+                                channel,
+                                encoderIPAddress,
+                                encoderNumber,
+                                cableCardPresent,
+                                5);
+                        tuned = true;
+                    }
+                    break;
+                default:
+                    logger.error("This device has been assigned an " +
+                            "unsupported capture device type: {}", encoderDeviceType);
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Tuning was interrupted => ", e);
+        }
+
+        timer.record("TUNE", phaseTime);
+
+        if (!getProducerStarted(producerStarted)) {
+            logger.error("The producer thread using the implementation '{}' failed to start.",
+                    newRTPProducer.getClass().getSimpleName());
+
+            return logger.exit(false);
+        }
+
+        if (!tuned) {
+            stopProducing(false);
+            return logger.exit(false);
+        }
+
+        rtpLocalPort = newRTPProducer.getLocalPort();
+
+        Future<Integer> programReady = null;
+        Future<int[]> pidsReady = null;
+
+        // If we are buffering this can create too much backlog and overruns the file based buffer.
+        // If we are trying to restart the stream, we don't need to change anything on the
+        // consumer.
+        if (bufferSize == 0 && cached != null && (monitorThread == null || monitorThread != Thread.currentThread())) {
+            // The cached values are checked after the consumer has started.
+            newConsumer.setProgram(cached.PROGRAM);
+            newConsumer.setPids(cached.PIDS);
+        } else if (bufferSize == 0 && (monitorThread == null || monitorThread != Thread.currentThread())) {
+            final Thread currentTuningThread = Thread.currentThread();
+
+            // The program and PIDs only depend on the channel, so they are retrieved while RTSP is
+            // being configured.
+            programReady = tuningExecutor.submit(new ReadinessPoller<Integer>(PROGRAM_READY_TIMEOUT) {
+                @Override
+                protected Integer poll() throws Exception {
+                    int program = InfiniTVStatus.GetProgram(encoderIPAddress, encoderNumber, 5);
+                    return program == -1 ? null : program;
+                }
+
+                @Override
+                protected boolean isAbandoned() {
+                    return tuningThread != currentTuningThread;
+                }
+            });
+
+            pidsReady = tuningExecutor.submit(new ReadinessPoller<int[]>(PROGRAM_READY_TIMEOUT) {
+                @Override
+                protected int[] poll() throws Exception {
+                    int pids[] = InfiniTVStatus.GetPids(encoderIPAddress, encoderNumber, 5);
+                    return pids.length <= 1 ? null : pids;
+                }
+
+                @Override
+                protected boolean isAbandoned() {
+                    return tuningThread != currentTuningThread;
                 }
+            });
+        }
+
+        // Even though it takes another 100ms to perform this step, if it is already configured, we
+        // are actually already receiving data while this is checking to be sure that we should be
+        // receiving data.
+        phaseTime = timer.now();
+        InfiniTVTuning.startRTSP(localIPAddress.getHostAddress(), rtpLocalPort, encoderIPAddress, encoderNumber);
+        timer.record("RTSP", phaseTime);
+
+        if (programReady != null && pidsReady != null) {
+            phaseTime = timer.now();
+            Integer program = getReadyValue(programReady, "program", PROGRAM_READY_TIMEOUT, null, -1);
+            int pids[] = program == null ? null : getReadyValue(pidsReady, "PIDs", PROGRAM_READY_TIMEOUT, null, new int[0]);
+            timer.record("PROGRAM_PIDS", phaseTime);
+
+            if (program == null || pids == null) {
+                cancelFutures(programReady, pidsReady);
+                stopProducing(false);
+                return logger.exit(false);
             }
+
+            newConsumer.setProgram(program);
+            newConsumer.setPids(pids);
+            rememberTuning(channel, program, pids);
         }
 
         // If we are trying to restart the stream, we don't need to stop the consumer.
         if (monitorThread == null || monitorThread != Thread.currentThread()) {
             logger.info("Configuring and starting the new SageTV consumer...");
 
+            phaseTime = timer.now();
+
             if (uploadID > 0 && remoteAddress != null) {
                 newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
             } else if (!scanOnly) {
@@ -1047,14 +1224,17 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             }
 
             startConsuming(newConsumer, encodingQuality, bufferSize);
+            timer.record("CONSUMER", phaseTime);
+
+            if (bufferSize == 0 && cached != null) {
+                verifyCachedTuning(channel, cached, newConsumer);
+            }
         } else {
             logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
         }
 
-        if (logger.isDebugEnabled()) {
-            long endTime = System.currentTimeMillis();
-            logger.debug("Time to RTSP: {}ms, Total tuning time: {}ms", rtspTime - startTime, endTime - startTime);
-        }
+        String phases = timer.finish();
+        logger.debug("Tuning phases: {}", phases);
 
         // Make sure only one monitor thread is running per request.
         if (monitorThread == null || monitorThread != Thread.currentThread()) {
@@ -1067,11 +1247,132 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
         return logger.exit(true);
     }
 
+    /**
+     * Start the producer on the tuning executor so the port can be opened while other tuning
+     * steps are in progress.
+     * <p/>
+     * <b>getProducerStarted()</b> must be called with the returned future before the tuning
+     * completes, even if tuning fails.
+     */
+    private Future<Boolean> startProducingAsync(final RTPProducer rtpProducer, final SageTVConsumer sageTVConsumer,
+                                                final InetAddress remoteIP, final int localPort,
+                                                final TuningPhaseTimer timer) {
+
+        return tuningExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                long phaseTime = timer.now();
+
+                try {
+                    return startProducing(rtpProducer, sageTVConsumer, remoteIP, localPort);
+                } finally {
+                    timer.record("PRODUCER", phaseTime);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the producer started by <b>startProducingAsync()</b>.
+     * <p/>
+     * This always waits for the producer to finish starting, even if the thread is interrupted, so
+     * a producer can't be left starting after the tuning is abandoned.
+     *
+     * @return <i>true</i> if the producer started.
+     */
+    private boolean getProducerStarted(Future<Boolean> producerStarted) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    Boolean started = producerStarted.get();
+                    return started != null && started;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    logger.error("startProducing created an unexpected exception => ", e.getCause());
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void cancelFutures(Future<?>... futures) {
+        for (Future<?> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Wait for a value being retrieved on the tuning executor.
+     *
+     * @param future The value being retrieved.
+     * @param description A description of the value for logging.
+     * @param timeout The timeout in milliseconds used to retrieve the value for logging.
+     * @param timeoutValue This is returned if the value was not ready in time.
+     * @param errorValue This is returned if the device returned an error.
+     * @param <T> The type of the value.
+     * @return The value, <i>timeoutValue</i>, <i>errorValue</i> or <i>null</i> if the tuning was
+     *         abandoned or the thread was interrupted.
+     */
+    private <T> T getReadyValue(Future<T> future, String description, long timeout, T timeoutValue, T errorValue) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while waiting for the {} => ", description, e);
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof CancellationException || cause instanceof InterruptedException) {
+                return null;
+            } else if (cause instanceof TimeoutException) {
+                logger.error("Unable to get the {} after {}ms.", description, timeout);
+                return timeoutValue;
+            }
+
+            logger.error("Unable to get the {} => ", description, cause);
+            return errorValue;
+        }
+    }
+
     public boolean startEncoding(String channel, String filename, String encodingQuality, long bufferSize) {
         return startEncoding(channel, filename, encodingQuality, bufferSize, -1, null);
     }
 
     public boolean startEncoding(final String channel, final String filename, final String encodingQuality, final long bufferSize, final int uploadID, final InetAddress remoteAddress) {
+        boolean reTune = monitorThread != null && monitorThread == Thread.currentThread();
+
+        synchronized (exclusiveLock) {
+            if (!reTune) {
+                // Anything sharing the current stream needs to get its own stream before this
+                // capture device changes the channel.
+                endSharedStream();
+                stopSharedStream();
+
+                if (filename != null && startEncodingShared(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress)) {
+                    return true;
+                }
+            }
+
+            boolean returnValue = startEncodingTuner(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+            if (returnValue && filename != null) {
+                SharedStreamManager.streamStarted(this, encoderLineup, channel);
+            }
+
+            return returnValue;
+        }
+    }
+
+    private boolean startEncodingTuner(final String channel, final String filename, final String encodingQuality, final long bufferSize, final int uploadID, final InetAddress remoteAddress) {
         logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
 
         tuningThread = Thread.currentThread();
@@ -1092,7 +1393,20 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             }
         }
 
+        if (filename != null && (monitorThread == null || monitorThread != Thread.currentThread())) {
+            HotStandbyManager.channelRequested(encoderLineup, channel);
+        }
+
         synchronized (exclusiveLock) {
+            if (hotStandbyChannel != null) {
+                if (filename != null && startEncodingHotStandby(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress)) {
+                    return logger.exit(true);
+                }
+
+                hotStandbyChannel = null;
+                HotStandbyManager.release(this);
+            }
+
             if (isHttpTune()) {
                 return startEncodingHttp(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
             }
@@ -1102,7 +1416,8 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             }
 
             boolean scanOnly = (filename == null);
-            long startTime = System.currentTimeMillis();
+            TuningPhaseTimer timer = new TuningPhaseTimer(encoderDeviceType);
+            long phaseTime = timer.now();
 
             if (remoteAddress != null) {
                 logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' via the upload id '{}'...", channel, encoderName, filename, uploadID);
@@ -1138,7 +1453,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             boolean reTune = false;
             if (fastTune) {
 
-                String transportState = avTransportAction.SERVICE_ACTIONS.queryActionVariable("TransportState");
+                String transportState = deviceState.getValue(avTransportAction.SERVICE_ACTIONS, "TransportState");
 
                 if (transportState == null || transportState.equals("")) {
                     // This is a warning because this should not be happening when everything is working.
@@ -1158,7 +1473,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             if (reTune) {
                 // Common steps for all DCT devices.
                 logger.debug("Starting ConnectManager subscription...");
-                connectionManagerSubscription.start();
+                startSubscription(connectionManagerSubscription);
 
                 logger.debug("Checking for current connections...");
                 String connectionID = connectionManagerSubscription.
@@ -1201,25 +1516,37 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 }
 
                 logger.debug("Starting AVTransport subscription...");
-                avTransportSubscription.start();
+                startSubscription(avTransportSubscription);
 
                 logger.debug("Running AVTransport Play action...");
-                if (!(avTransportAction.setPlay(connectionManagerAVTransportID))) {
+                boolean playing = avTransportAction.setPlay(connectionManagerAVTransportID);
+                invalidateConnectionState();
+
+                if (!playing) {
                     logger.error("Error running AVTransport Play action.");
                     subscriptionCleanup();
                     return logger.exit(false);
                 }
             }
 
+            timer.record("SESSION", phaseTime);
+
             // Selects what method to use to get the channel tuned in.
+            phaseTime = timer.now();
+
             switch (encoderDeviceType) {
                 case DCT_INFINITV:
                 case DCT_PRIME:
                     logger.debug("Starting CAS subscription...");
-                    casSubscription.start();
+                    startSubscription(casSubscription);
+
+                    if (persistentSubscriptions) {
+                        startSubscription(tunerSubscription);
+                    }
 
                     logger.debug("Running action SetChannel...");
                     casAction.setSetChannel(channel);
+                    invalidateChannelState();
 
                     break;
                 default:
@@ -1228,9 +1555,11 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                     break;
             }
 
-            long rtspTime = System.currentTimeMillis();
+            timer.record("TUNE", phaseTime);
 
             if (reTune) {
+                phaseTime = timer.now();
+
                 // From what I have seen this URL doesn't change, but this
                 // is probably the best time to double check.
                 logger.debug("Getting the value of AVTransport/{}/GetMediaInfo/CurrentURI...",
@@ -1258,9 +1587,12 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                     subscriptionCleanup();
                     return logger.exit(false);
                 }
+
+                timer.record("MEDIA_INFO", phaseTime);
             }
 
             logger.info("Configuring and starting the new RTP producer...");
+            phaseTime = timer.now();
             String ipString = rtpStreamRemoteURI.getHost();
             try {
                 rtpStreamRemoteIP = InetAddress.getByName(ipString);
@@ -1289,46 +1621,89 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 return logger.exit(false);
             }
 
+            timer.record("PRODUCER", phaseTime);
+
+            Future<Integer> programReady = null;
+            Future<int[]> pidsReady = null;
+
+            // The program and PIDs only depend on the channel, so they are retrieved while RTSP is
+            // being configured. If we are trying to restart the stream, we don't need them.
+            if (monitorThread == null || monitorThread != Thread.currentThread()) {
+                programReady = tuningExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        String programString = deviceState.getValue(muxAction.SERVICE_ACTIONS, "ProgramNumber");
+                        return Integer.valueOf(programString);
+                    }
+                });
+
+                pidsReady = tuningExecutor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws Exception {
+                        String pidsString = deviceState.getValue(muxAction.SERVICE_ACTIONS, "PIDList");
+                        String split[] = pidsString.split(",");
+                        int pids[] = new int[split.length];
+
+                        for (int i = 0; i < pids.length; i++) {
+                            pids[i] = Integer.parseInt(split[i].trim(), 16);
+                        }
+
+                        return pids;
+                    }
+                });
+            }
+
             logger.info("Configuring the RTP stream via RTSP...");
+            phaseTime = timer.now();
+
             try {
                 rtspClient.configureRTPStream(rtpStreamRemoteURI, rtpLocalPort);
             } catch (UnknownHostException e) {
                 logger.error("Error parsing an IP address from '{}' => {}", rtpStreamRemoteURI.toString(), e);
+                cancelFutures(programReady, pidsReady);
                 subscriptionCleanup();
                 return logger.exit(false);
             } catch (Exception e) {
                 logger.error("An unexpected error occurred while configuring via RTSP => {}", e);
+                cancelFutures(programReady, pidsReady);
                 subscriptionCleanup();
                 return logger.exit(false);
             }
 
-            subscriptionCleanup();
+            timer.record("RTSP", phaseTime);
+
+            if (!persistentSubscriptions) {
+                subscriptionCleanup();
+            }
 
             // If we are trying to restart the stream, we don't need to stop the consumer.
-            if (monitorThread == null || monitorThread != Thread.currentThread()) {
+            if (programReady != null && pidsReady != null) {
+                phaseTime = timer.now();
+
                 try {
-                    String programString = muxAction.SERVICE_ACTIONS.queryActionVariable("ProgramNumber");
-                    int program = Integer.valueOf(programString);
-                    newConsumer.setProgram(program);
-                } catch (Exception e) {
-                    logger.warn("Unable to parse program => ", e);
+                    newConsumer.setProgram(programReady.get());
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the program => ", e);
+                    cancelFutures(programReady, pidsReady);
+                    return logger.exit(false);
+                } catch (ExecutionException e) {
+                    logger.warn("Unable to parse program => ", e.getCause());
                 }
 
                 try {
-                    String pidsString = muxAction.SERVICE_ACTIONS.queryActionVariable("PIDList");
-                    String split[] = pidsString.split(",");
-                    int pids[] = new int[split.length];
-
-                    for (int i = 0; i < pids.length; i++) {
-                        pids[i] = Integer.parseInt(split[i].trim(), 16);
-                    }
-
-                    newConsumer.setPids(pids);
-                } catch (Exception e) {
-                    logger.warn("Unable to parse PIDs => ", e);
+                    newConsumer.setPids(pidsReady.get());
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the PIDs => ", e);
+                    cancelFutures(programReady, pidsReady);
+                    return logger.exit(false);
+                } catch (ExecutionException e) {
+                    logger.warn("Unable to parse PIDs => ", e.getCause());
                 }
 
+                timer.record("PROGRAM_PIDS", phaseTime);
+
                 logger.info("Configuring and starting the SageTV consumer...");
+                phaseTime = timer.now();
 
                 if (uploadID > 0 && remoteAddress != null) {
                     newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
@@ -1339,14 +1714,13 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 }
 
                 startConsuming(newConsumer, encodingQuality, bufferSize);
+                timer.record("CONSUMER", phaseTime);
             } else {
                 logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
             }
 
-            if (logger.isDebugEnabled()) {
-                long endTime = System.currentTimeMillis();
-                logger.debug("Time to RTSP: {}ms, Total tuning time: {}ms", rtspTime - startTime, endTime - startTime);
-            }
+            String phases = timer.finish();
+            logger.debug("Tuning phases: {}", phases);
 
             // Don't start more than one monitoring thread.
             if (monitorThread == null || monitorThread != Thread.currentThread()) {
@@ -1360,84 +1734,332 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
         return logger.exit(true);
     }
 
-    private void monitorTuning(final String channel, final String originalFilename, final String originalEncodingQuality, final long bufferSize, final int originalUploadID, final InetAddress remoteAddress) {
-        if (monitorThread != null && monitorThread != Thread.currentThread()) {
-            monitorThread.interrupt();
+    /**
+     * Start streaming to SageTV from the capture device while it's in hot standby.
+     * <p/>
+     * The capture device is already tuned and streaming to the producer's port, so nothing needs to
+     * be changed on the capture device. The producer is replaced because the consumer can't be
+     * changed while it's running, but the new producer listens on the same port. The program and
+     * PIDs are copied from the consumer that was discarding the stream.
+     *
+     * @return <i>false</i> if the capture device is not streaming the requested channel and needs
+     *         to be tuned.
+     */
+    private boolean startEncodingHotStandby(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
+        logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+        long startTime = System.currentTimeMillis();
+
+        String standbyChannel = hotStandbyChannel;
+        hotStandbyChannel = null;
+        HotStandbyManager.release(this);
+
+        if (!channel.equals(standbyChannel) || !isProducing() || rtpLocalPort <= 0) {
+            return logger.exit(false);
         }
 
-        monitorThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                logger.info("Tuning monitoring thread started.");
+        if (isHDHRTune()) {
+            // Anything else using the HDHomeRun could have changed the tuner while we were not
+            // holding the lock.
+            try {
+                String target = hdhrTuner.getTarget();
 
-                TVChannel tvChannel = ChannelManager.getChannel(encoderLineup, channel);
-                int timeout = 0;
-                long lastValue = 0;
-                long currentValue = 0;
-                boolean firstPass = true;
-
-                if (tvChannel != null && tvChannel.getName().startsWith("MC")) {
-                    // Music Choice channels take forever to start and with a 4 second timeout,
-                    // they might never start.
-                    timeout = 16000;
-                } else {
-                    timeout = 4000;
+                if (target == null || !target.contains(":" + rtpLocalPort)) {
+                    logger.info("The HDHomeRun is no longer streaming to this capture device.");
+                    return logger.exit(false);
                 }
 
-                while (!Thread.currentThread().isInterrupted()) {
-                    lastValue = sageTVProducerRunnable.getPackets();
+                if (encoderDeviceType == CaptureDeviceType.DCT_PRIME &&
+                        !channel.equals(hdhrTuner.getVirtualChannel())) {
 
-                    try {
-                        Thread.sleep(timeout);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
+                    logger.info("The HDHomeRun is no longer tuned to the channel '{}'.", channel);
+                    return logger.exit(false);
+                }
+            } catch (IOException e) {
+                logger.error("Unable to verify the HDHomeRun hot standby channel => ", e);
+                return logger.exit(false);
+            } catch (GetSetException e) {
+                logger.error("Unable to verify the HDHomeRun hot standby channel => ", e);
+                return logger.exit(false);
+            }
+
+            setHDHRLock(true);
+        }
 
-                    currentValue = sageTVProducerRunnable.getPackets();
+        logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' using the hot standby stream...", channel, encoderName, filename);
 
-                    if (currentValue == lastValue && !Thread.currentThread().isInterrupted()) {
-                        String filename = originalFilename;
-                        String encodingQuality = originalEncodingQuality;
-                        int uploadID = originalUploadID;
+        int program = -1;
+        int pids[] = new int[0];
+        SageTVConsumer standbyConsumer = sageTVConsumerRunnable;
 
-                        // Since it's possible that a SWITCH may have happened since we last started the
-                        // recording, this keeps everything consistent.
-                        if (sageTVConsumerRunnable != null) {
-                            filename = sageTVConsumerRunnable.getEncoderFilename();
-                            encodingQuality = sageTVConsumerRunnable.getEncoderQuality();
-                            uploadID = sageTVConsumerRunnable.getEncoderUploadID();
-                        }
+        if (standbyConsumer != null) {
+            program = standbyConsumer.getProgram();
+            pids = standbyConsumer.getPids();
+        }
 
-                        logger.error("No data was streamed after {} milliseconds. Re-tuning channel...", timeout);
+        int standbyPort = rtpLocalPort;
+        RTPProducer newRTPProducer = getNewRTPProducer();
+        SageTVConsumer newConsumer = getNewSageTVConsumer();
 
-                        boolean tuned = false;
+        stopConsuming(false);
 
-                        while (!tuned && !Thread.currentThread().isInterrupted()) {
-                            stopDevice();
-                            tuned = startEncoding(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+        if (!startProducing(newRTPProducer, newConsumer, rtpStreamRemoteIP, standbyPort)) {
+            logger.error("The producer thread using the implementation '{}' failed to start.",
+                    newRTPProducer.getClass().getSimpleName());
 
-                            try {
-                                Thread.sleep(500);
-                            } catch (InterruptedException e) {
-                                return;
-                            }
-                        }
+            return logger.exit(false);
+        }
 
-                        logger.info("Copy protection status is '{}' and signal strength is {}.", getCopyProtection(), getSignalStrength());
-                    }
+        if (newRTPProducer.getLocalPort() != standbyPort) {
+            logger.warn("The hot standby port {} is no longer available.", standbyPort);
+            return logger.exit(false);
+        }
 
-                    if (getRecordedBytes() != 0 && firstPass) {
-                        firstPass = false;
-                        logger.info("Streamed first {} bytes.", getRecordedBytes());
-                    }
-                }
+        // If we are buffering this can create too much backlog and overruns the file based buffer.
+        if (bufferSize == 0) {
+            newConsumer.setProgram(program);
 
-                logger.info("Tuning monitoring thread stopped.");
+            if (pids != null) {
+                newConsumer.setPids(pids);
+            }
+        }
+
+        if (uploadID > 0 && remoteAddress != null) {
+            newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
+        } else {
+            newConsumer.consumeToFilename(filename);
+        }
+
+        startConsuming(newConsumer, encodingQuality, bufferSize);
+
+        if (logger.isDebugEnabled()) {
+            long endTime = System.currentTimeMillis();
+            logger.debug("Total hot standby tuning time: {}ms", endTime - startTime);
+        }
+
+        monitorTuning(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+        setLastChannel(channel);
+        return logger.exit(true);
+    }
+
+    /**
+     * Start streaming to SageTV from another capture device already streaming the same channel.
+     * <p/>
+     * Nothing is tuned. A new consumer receives a copy of everything the other capture device
+     * produces, so the tuner of this capture device is left free. If the other capture device stops
+     * streaming the channel first, the monitoring thread tunes the channel on this capture device
+     * and the consumer continues with the new stream.
+     *
+     * @return <i>false</i> if no other capture device is streaming the requested channel.
+     */
+    private boolean startEncodingShared(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
+        logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+        DCTCaptureDeviceImpl source = SharedStreamManager.getSource(this, encoderLineup, channel);
+
+        if (source == null) {
+            return logger.exit(false);
+        }
+
+        HotStandbyManager.channelRequested(encoderLineup, channel);
+
+        // The stream from this capture device is not needed, so the tuner can be used by anything
+        // else while this capture device is sharing.
+        if (isProducing() || hotStandbyChannel != null) {
+            stopEncoding();
+        }
+
+        sharedStreamEnded.drainPermits();
+
+        if (!SharedStreamManager.attach(this, source, encoderLineup, channel)) {
+            return logger.exit(false);
+        }
+
+        logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' using the stream from '{}'...", channel, encoderName, filename, source.getEncoderName());
+
+        int program = -1;
+        int pids[] = new int[0];
+        SageTVConsumer sourceConsumer = source.getConsumer();
+
+        if (sourceConsumer != null) {
+            program = sourceConsumer.getProgram();
+            pids = sourceConsumer.getPids();
+        }
+
+        SageTVConsumer newConsumer = getNewSageTVConsumer();
+
+        // If we are buffering this can create too much backlog and overruns the file based buffer.
+        if (bufferSize == 0) {
+            newConsumer.setProgram(program);
+
+            if (pids != null) {
+                newConsumer.setPids(pids);
+            }
+        }
+
+        if (uploadID > 0 && remoteAddress != null) {
+            newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
+        } else {
+            newConsumer.consumeToFilename(filename);
+        }
+
+        if (!startConsuming(newConsumer, encodingQuality, bufferSize)) {
+            SharedStreamManager.detach(this);
+            return logger.exit(false);
+        }
+
+        sharedSource = source;
+        source.addSharedConsumer(newConsumer);
+
+        monitorTuning(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+        setLastChannel(channel);
+        return logger.exit(true);
+    }
+
+    /**
+     * Tell this capture device that the stream it is sharing has ended.
+     * <p/>
+     * This is only called by the source of the stream.
+     */
+    void sharedStreamEnded() {
+        sharedStreamEnded.release();
+    }
+
+    /**
+     * Get the capture device this capture device is sharing a stream with.
+     *
+     * @return The source of the stream or <i>null</i> if this capture device is not sharing.
+     */
+    public DCTCaptureDeviceImpl getSharedSource() {
+        return sharedSource;
+    }
+
+    // Stop sharing the stream of another capture device.
+    private void stopSharedStream() {
+        DCTCaptureDeviceImpl source = sharedSource;
+
+        if (source == null) {
+            return;
+        }
+
+        sharedSource = null;
+        SharedStreamManager.detach(this);
+
+        SageTVConsumer consumer = sageTVConsumerRunnable;
+
+        if (consumer != null) {
+            source.removeSharedConsumer(consumer);
+        }
+    }
+
+    // Stop sending the stream from this capture device to anything sharing it.
+    private void endSharedStream() {
+        ArrayList<DCTCaptureDeviceImpl> sharedDevices = SharedStreamManager.streamStopped(this);
+
+        // The consumers are removed right away so they can't be sent a different channel.
+        for (SageTVConsumer sharedConsumer : sharedConsumers) {
+            removeSharedConsumer(sharedConsumer);
+        }
+
+        for (DCTCaptureDeviceImpl sharedDevice : sharedDevices) {
+            sharedDevice.sharedStreamEnded();
+        }
+    }
+
+    /**
+     * Tune a channel and stream it to a consumer discarding everything until SageTV requests it.
+     * <p/>
+     * This is only called by <b>HotStandbyManager</b>.
+     *
+     * @param channel The channel to tune.
+     * @return <i>true</i> if the capture device is now in hot standby.
+     */
+    boolean startHotStandby(String channel) {
+        logger.entry(channel);
+
+        synchronized (exclusiveLock) {
+            if (isLocked()) {
+                return logger.exit(false);
+            }
+
+            if (!startEncoding(channel, null, "", 0)) {
+                stopEncoding();
+                return logger.exit(false);
+            }
+
+            // The lock would make this capture device look like it's in use by another program.
+            if (isHDHRTune()) {
+                setHDHRLock(false);
             }
-        });
 
-        monitorThread.setName("TuningMonitor-" + monitorThread.getId() + ":" + encoderName);
-        monitorThread.start();
+            hotStandbyChannel = channel;
+        }
+
+        return logger.exit(true);
+    }
+
+    /**
+     * Stop streaming if the capture device is in hot standby.
+     * <p/>
+     * This is only called by <b>HotStandbyManager</b>.
+     */
+    void stopHotStandby() {
+        logger.entry();
+
+        synchronized (exclusiveLock) {
+            if (hotStandbyChannel != null && !isLocked()) {
+                stopEncoding();
+            }
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Get the channel this capture device is streaming while in hot standby.
+     *
+     * @return The channel or <i>null</i> if this capture device is not in hot standby.
+     */
+    public String getHotStandbyChannel() {
+        return hotStandbyChannel;
+    }
+
+    @Override
+    protected boolean waitForStreamCheck(long timeout) throws InterruptedException {
+        if (sharedSource != null) {
+            // Wake up right away if the source stops streaming.
+            return sharedStreamEnded.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        return super.waitForStreamCheck(timeout);
+    }
+
+    @Override
+    protected void streamStalled(boolean streamEnded, long timeout) {
+        if (streamEnded) {
+            logger.info("The shared stream has ended. Tuning channel...");
+        } else {
+            super.streamStalled(streamEnded, timeout);
+        }
+
+        // This capture device needs to tune the channel itself now.
+        synchronized (exclusiveLock) {
+            stopSharedStream();
+        }
+    }
+
+    // When sharing a stream, the consumer is what needs to be receiving data. The source can drop
+    // a shared consumer that falls too far behind while its own producer keeps receiving data.
+    @Override
+    protected long getMonitoredPackets() {
+        if (sharedSource != null) {
+            SageTVConsumer consumer = sageTVConsumerRunnable;
+
+            return consumer == null ? 0 : consumer.getBytesStreamed();
+        }
+
+        return super.getMonitoredPackets();
     }
 
     @Override
@@ -1451,8 +2073,22 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 monitorThread.interrupt();
             }
 
+            hotStandbyChannel = null;
+            HotStandbyManager.release(this);
+
+            endSharedStream();
+            boolean wasShared = sharedSource != null;
+            stopSharedStream();
+
             super.stopEncoding();
 
+            if (wasShared) {
+                // The tuner was not used while sharing the stream of another capture device.
+                logger.info("Stopped encoding.");
+                logger.exit();
+                return;
+            }
+
             if (isHttpTune()) {
                 // This will silence the RTP stream, but keep it turned on.
                 if (cableCardPresent) {
@@ -1498,10 +2134,12 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
 
                 if (fastTune) {
                     casAction.setSetChannel("0");
+                    invalidateChannelState();
                 } else {
                     if (connectionManagerAVTransportID != null && !connectionManagerAVTransportID.equals("")) {
                         avTransportAction.setStop(connectionManagerAVTransportID);
                         connectionManagerAction.setConnectionComplete(connectionManagerAVTransportID);
+                        invalidateConnectionState();
                     }
 
                     if (rtspClient != null && rtpStreamRemoteURI != null) {
@@ -1528,6 +2166,17 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             monitorThread.interrupt();
         }
 
+        hotStandbyChannel = null;
+        HotStandbyManager.release(this);
+
+        // A re-tune keeps the consumer, so anything sharing this stream will keep receiving it.
+        if (monitorThread == null || monitorThread != Thread.currentThread()) {
+            synchronized (exclusiveLock) {
+                endSharedStream();
+                stopSharedStream();
+            }
+        }
+
         // Make sure we unlock the device when the capture device is no longer in use.
         if (isHDHRTune()) {
             if (hdhrLock) {
@@ -1562,7 +2211,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
                 connectionManagerAVTransportID = null;
             }
 
-            String transportState = avTransportAction.SERVICE_ACTIONS.queryActionVariable("TransportState");
+            String transportState = deviceState.getValue(avTransportAction.SERVICE_ACTIONS, "TransportState");
 
             if (transportState == null || !transportState.equals("PLAYING")) {
                 connectionManagerAVTransportID = null;
@@ -1571,6 +2220,7 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
             if (connectionManagerAVTransportID != null) {
                 avTransportAction.setStop(connectionManagerAVTransportID);
                 connectionManagerAction.setConnectionComplete(connectionManagerAVTransportID);
+                invalidateConnectionState();
                 try {
                     if (rtpStreamRemoteURI != null) {
                         rtspClient.stopRTPStream(rtpStreamRemoteURI);
@@ -1693,6 +2343,27 @@ public class DCTCaptureDeviceImpl extends RTPCaptureDevice implements CaptureDev
     }
 
 
+    // Subscriptions that are already running are kept when persistent subscriptions are enabled.
+    private void startSubscription(ServiceSubscription subscription) {
+        if (!persistentSubscriptions || !subscription.isActive()) {
+            subscription.start();
+        }
+    }
+
+    // Values from before a channel change are not used until the device reports them again.
+    private void invalidateChannelState() {
+        deviceState.invalidate(casSubscription.getServiceName());
+        deviceState.invalidate(tunerSubscription.getServiceName());
+        deviceState.invalidate(muxAction.SERVICE_ACTIONS.getServiceName());
+    }
+
+    // Values from before a connection is started or stopped are not used until the device reports
+    // them again.
+    private void invalidateConnectionState() {
+        deviceState.invalidate(connectionManagerSubscription.getServiceName());
+        deviceState.invalidate(avTransportSubscription.getServiceName());
+    }
+
     private void subscriptionCleanup() {
         logger.entry();
 
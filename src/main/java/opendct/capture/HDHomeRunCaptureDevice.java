@@ -0,0 +1,583 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.capture;
+
+import opendct.channel.*;
+import opendct.config.Config;
+import opendct.consumer.SageTVConsumer;
+import opendct.producer.RTPProducer;
+import opendct.tuning.hdhomerun.GetSetException;
+import opendct.tuning.hdhomerun.HDHomeRunDevice;
+import opendct.tuning.hdhomerun.HDHomeRunDeviceListener;
+import opendct.tuning.hdhomerun.HDHomeRunManager;
+import opendct.tuning.hdhomerun.HDHomeRunTuner;
+import opendct.tuning.hdhomerun.HDHomeRunTuning;
+import opendct.tuning.hdhomerun.returns.HDHomeRunStatus;
+import opendct.tuning.hdhomerun.returns.HDHomeRunVStatus;
+import opendct.util.ReadinessPoller;
+import opendct.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A capture device for a tuner on any HDHomeRun discovered using the native protocol.
+ * <p/>
+ * This doesn't need UPnP. The tuner is controlled entirely with the HDHomeRun control protocol
+ * and the stream is sent to the RTP producer by setting the target of the tuner. CableCARD tuners
+ * tune virtual channels. All other tuners tune the frequency and program in the lineup if it is
+ * known and otherwise tune the virtual channel.
+ * <p/>
+ * When discovery reports that the device is lost, this capture device reports that it is
+ * externally locked and not ready so it isn't selected until the device is available again.
+ */
+public class HDHomeRunCaptureDevice extends RTPCaptureDevice implements HDHomeRunDeviceListener {
+    private final Logger logger = LogManager.getLogger(HDHomeRunCaptureDevice.class);
+
+    private final HDHomeRunDevice device;
+    private final HDHomeRunTuner tuner;
+    private final boolean cableCardPresent;
+    private volatile InetAddress localIPAddress = null;
+    private volatile boolean deviceLost = false;
+
+    // This is the amount of time in seconds that we should wait for a channel to report that it is
+    // COPY_FREELY and to wait for data to be output to null.
+    private int offlineDetectionWait =
+            Config.getInteger("hdhr.wait_for_offline_detection_s", 8);
+    private long offlineDetectionMinBytes =
+            Config.getLong("hdhr.offline_detection_min_bytes", 18800);
+    private long offlineDetectionPoll =
+            Math.max(Config.getLong("hdhr.offline_detection_poll_ms", 250), 10);
+
+    private boolean offlineScan = false;
+    private boolean hdhrLock = Config.getBoolean("hdhr.locking", true);
+    private boolean forceExternalUnlock =
+            Config.getBoolean(propertiesDeviceRoot + "always_force_external_unlock", false);
+
+    // The channel map doesn't change unless the device is reconfigured, so it's only requested
+    // once it's needed.
+    private volatile String channelmap = null;
+
+    /**
+     * Create a new HDHomeRun capture device.
+     *
+     * @param device The discovered HDHomeRun device.
+     * @param tunerNumber The number of the tuner on the device.
+     * @throws CaptureDeviceIgnoredException Thrown if this tuner is being blocked from use.
+     * @throws IOException Thrown if the device cannot be reached.
+     * @throws GetSetException Thrown if the device does not return its model.
+     */
+    public HDHomeRunCaptureDevice(HDHomeRunDevice device, int tunerNumber) throws CaptureDeviceIgnoredException, IOException, GetSetException {
+        super(device.getUniqueDeviceName(), device.getUniqueTunerName(tunerNumber));
+        logger.entry(device, tunerNumber);
+
+        this.device = device;
+        tuner = device.getTuner(tunerNumber);
+        rtpStreamRemoteIP = device.getIpAddress();
+
+        try {
+            localIPAddress = Config.getInetAddress(propertiesDeviceParent + "local_ip_override", Util.getLocalIPForRemoteIP(rtpStreamRemoteIP));
+        } catch (SocketException e) {
+            logger.error("Unable to get the IP address for localhost => ", e);
+        }
+
+        cableCardPresent = device.isCableCardTuner();
+
+        if (cableCardPresent) {
+            encoderDeviceType = CaptureDeviceType.DCT_PRIME;
+            setEncoderPoolName(Config.getString(propertiesDeviceRoot + "encoder_pool", "dct"));
+        } else {
+            encoderDeviceType = CaptureDeviceType.QAM_PRIME;
+            setEncoderPoolName(Config.getString(propertiesDeviceRoot + "encoder_pool", "qam"));
+        }
+
+        setChannelLineup(Config.getString(propertiesDeviceParent + "lineup", String.valueOf(encoderDeviceType).toLowerCase()));
+        offlineScan = Config.getBoolean(propertiesDeviceParent + "offline_scan", false);
+
+        if (!ChannelManager.hasChannels(encoderLineup) && encoderLineup.equals(String.valueOf(encoderDeviceType).toLowerCase())) {
+            ChannelLineup newChannelLineup = new ChannelLineup(encoderLineup, encoderParentName, ChannelSourceType.PRIME, rtpStreamRemoteIP.getHostAddress());
+            ChannelManager.updateChannelLineup(newChannelLineup);
+            ChannelManager.addChannelLineup(newChannelLineup, true);
+            ChannelManager.saveChannelLineup(encoderLineup);
+        }
+
+        if (offlineScan) {
+            ChannelManager.addDeviceToOfflineScan(encoderLineup, encoderName);
+        }
+
+        HDHomeRunManager.addDeviceListener(this);
+
+        logger.debug("Getting a port for incoming RTP data...");
+        rtpLocalPort = Config.getFreeRTSPPort(encoderName);
+
+        logger.info("Encoder Model: '{}'," +
+                        " Number: {}," +
+                        " Remote IP: '{}'," +
+                        " Local IP: '{}'," +
+                        " CableCARD: {}," +
+                        " Lineup: '{}'," +
+                        " Offline Scan Enabled: {}," +
+                        " RTP Port: {}",
+                device.getSysHwModel(),
+                tunerNumber,
+                rtpStreamRemoteIP,
+                localIPAddress,
+                cableCardPresent,
+                encoderLineup,
+                offlineScan,
+                rtpLocalPort);
+
+        logger.exit();
+    }
+
+    public InetAddress getEncoderIpAddress() {
+        return rtpStreamRemoteIP;
+    }
+
+    @Override
+    public void deviceAdded(HDHomeRunDevice device) {
+        if (device.getDeviceId() != this.device.getDeviceId() || !deviceLost) {
+            return;
+        }
+
+        deviceLost = false;
+        logger.info("The HDHomeRun device is available again.");
+    }
+
+    @Override
+    public void deviceAddressChanged(HDHomeRunDevice device, InetAddress oldAddress) {
+        if (device.getDeviceId() != this.device.getDeviceId()) {
+            return;
+        }
+
+        rtpStreamRemoteIP = device.getIpAddress();
+
+        try {
+            localIPAddress = Config.getInetAddress(propertiesDeviceParent + "local_ip_override", Util.getLocalIPForRemoteIP(rtpStreamRemoteIP));
+        } catch (SocketException e) {
+            logger.error("Unable to get the IP address for localhost => ", e);
+        }
+
+        // If a stream is in progress and stops, the tuning monitor will re-tune using the new
+        // address.
+        logger.info("The HDHomeRun device changed its address from {} to {}.", oldAddress, rtpStreamRemoteIP);
+    }
+
+    @Override
+    public void deviceLost(HDHomeRunDevice device) {
+        if (device.getDeviceId() != this.device.getDeviceId()) {
+            return;
+        }
+
+        deviceLost = true;
+        logger.warn("The HDHomeRun device is no longer responding to discovery.");
+    }
+
+    public boolean isExternalLocked() {
+        if (deviceLost) {
+            // The device can't be used, so the pool should select another capture device right
+            // away instead of waiting for a timeout.
+            logger.info("HDHomeRun is currently unavailable.");
+            return true;
+        }
+
+        try {
+            boolean returnValue = tuner.isLockedByThisComputer() == 0;
+
+            logger.info("HDHomeRun is currently {}.", (returnValue ? "locked" : "unlocked"));
+
+            return returnValue;
+        } catch (IOException e) {
+            logger.error("Unable to get the locked status of HDHomeRun because it cannot be reached => ", e);
+
+            // If we can't reach it, it's as good as locked.
+            return true;
+        } catch (GetSetException e) {
+            logger.error("Unable to get the locked status of HDHomeRun because the command did not work => ", e);
+
+            // The device must not support locking.
+            return false;
+        }
+    }
+
+    public boolean setExternalLock(boolean locked) {
+        if (!hdhrLock) {
+            return true;
+        }
+
+        try {
+            if (locked) {
+                if (forceExternalUnlock) {
+                    tuner.forceClearLockkey();
+                }
+
+                tuner.setLockkey(localIPAddress);
+                logger.info("HDHomeRun is now locked.");
+            } else {
+                if (forceExternalUnlock) {
+                    tuner.forceClearLockkey();
+                } else {
+                    tuner.clearLockkey();
+                }
+
+                logger.info("HDHomeRun is now unlocked.");
+            }
+
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to {} HDHomeRun because it cannot be reached => ", (locked ? "lock" : "unlock"), e);
+        } catch (GetSetException e) {
+            logger.error("Unable to {} HDHomeRun because the command did not work => ", (locked ? "lock" : "unlock"), e);
+        }
+
+        return false;
+    }
+
+    @Override
+    protected boolean updateChannelInfoOffline(TVChannel tvChannel) {
+        CopyProtection copyProtection;
+
+        if (cableCardPresent) {
+            long deadline = System.currentTimeMillis() + offlineDetectionWait * 1000L;
+            copyProtection = waitForCopyProtection(deadline, offlineDetectionPoll);
+
+            if (copyProtection == null) {
+                return false;
+            }
+        } else {
+            copyProtection = getCopyProtection();
+        }
+
+        tvChannel.setCci(copyProtection);
+        tvChannel.setSignalStrength(getSignalStrength());
+
+        HDHomeRunTuning.updateChannelInfo(tuner, tvChannel);
+
+        if (cableCardPresent) {
+            Boolean tunable = HDHomeRunTuning.isVirtualChannelTunable(tuner);
+            tvChannel.setTunable(tunable != null ? tunable : getRecordedBytes() > offlineDetectionMinBytes);
+        } else {
+            try {
+                HDHomeRunStatus status = tuner.getStatus();
+                tvChannel.setTunable(status.SIGNAL_PRESENT);
+            } catch (Exception e) {
+                logger.error("Unable to get status from HDHomeRun => ", e);
+                tvChannel.setTunable(false);
+            }
+        }
+
+        return true;
+    }
+
+    public boolean startEncoding(String channel, String filename, String encodingQuality, long bufferSize) {
+        return startEncoding(channel, filename, encodingQuality, bufferSize, -1, null);
+    }
+
+    public boolean startEncoding(String channel, String filename, String encodingQuality, long bufferSize, int uploadID, InetAddress remoteAddress) {
+        logger.entry(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+        synchronized (exclusiveLock) {
+            boolean reTune = monitorThread != null && monitorThread == Thread.currentThread();
+            boolean scanOnly = false;
+
+            if (remoteAddress != null) {
+                logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}' via the upload id '{}'...", channel, encoderName, filename, uploadID);
+            } else if (filename != null) {
+                logger.info("Starting the encoding for the channel '{}' from the device '{}' to the file '{}'...", channel, encoderName, filename);
+            } else {
+                logger.info("Starting a channel scan for the channel '{}' from the device '{}'...", channel, encoderName);
+                scanOnly = true;
+            }
+
+            if (monitorThread != null && !reTune) {
+                monitorThread.interrupt();
+            }
+
+            setExternalLock(true);
+
+            stopProducing(false);
+
+            // If we are trying to restart the stream, we don't need to stop the consumer.
+            if (!reTune) {
+                stopConsuming(false);
+            }
+
+            RTPProducer newRTPProducer = getNewRTPProducer();
+            SageTVConsumer newConsumer;
+
+            if (reTune) {
+                newConsumer = sageTVConsumerRunnable;
+            } else if (scanOnly) {
+                newConsumer = getNewChannelScanSageTVConsumer();
+                newConsumer.consumeToNull(true);
+            } else {
+                newConsumer = getNewSageTVConsumer();
+            }
+
+            if (!tuneChannel(channel)) {
+                return logger.exit(false);
+            }
+
+            if (!startProducing(newRTPProducer, newConsumer, rtpStreamRemoteIP, rtpLocalPort)) {
+                logger.error("The producer thread using the implementation '{}' failed to start.",
+                        newRTPProducer.getClass().getSimpleName());
+
+                return logger.exit(false);
+            }
+
+            rtpLocalPort = newRTPProducer.getLocalPort();
+
+            try {
+                tuner.setTarget("rtp://" + localIPAddress.getHostAddress() + ":" + rtpLocalPort);
+            } catch (IOException e) {
+                logger.error("Unable to start RTP => ", e);
+                stopProducing(false);
+                return logger.exit(false);
+            } catch (GetSetException e) {
+                logger.error("Unable to start RTP => ", e);
+                stopProducing(false);
+                return logger.exit(false);
+            }
+
+            if (!reTune) {
+                // If we are buffering this can create too much backlog and overruns the file based
+                // buffer.
+                if (bufferSize == 0) {
+                    try {
+                        newConsumer.setProgram(new ReadinessPoller<Integer>(5000) {
+                            @Override
+                            protected Integer poll() throws Exception {
+                                int program = tuner.getProgram();
+                                return program <= 0 ? null : program;
+                            }
+                        }.call());
+
+                        newConsumer.setPids(new ReadinessPoller<int[]>(5000) {
+                            @Override
+                            protected int[] poll() throws Exception {
+                                int pids[] = tuner.getFilter();
+                                return pids.length <= 1 ? null : pids;
+                            }
+                        }.call());
+                    } catch (TimeoutException e) {
+                        logger.warn("The HDHomeRun did not report the program and PIDs for the channel '{}'.", channel);
+                    } catch (InterruptedException e) {
+                        logger.debug("Interrupted while waiting for the program and PIDs => ", e);
+                        stopProducing(false);
+                        return logger.exit(false);
+                    } catch (Exception e) {
+                        logger.error("Unable to get the program and PIDs from HDHomeRun => ", e);
+                    }
+                }
+
+                logger.info("Configuring and starting the new SageTV consumer...");
+
+                if (uploadID > 0 && remoteAddress != null) {
+                    newConsumer.consumeToUploadID(filename, uploadID, remoteAddress);
+                } else if (!scanOnly) {
+                    newConsumer.consumeToFilename(filename);
+                }
+
+                startConsuming(newConsumer, encodingQuality, bufferSize);
+
+                if (!scanOnly) {
+                    monitorTuning(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+                }
+            } else {
+                logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
+            }
+
+            setLastChannel(channel);
+        }
+
+        return logger.exit(true);
+    }
+
+    /**
+     * Tune a channel on this tuner.
+     *
+     * @param channel The channel to tune.
+     * @return <i>false</i> if the channel could not be tuned.
+     */
+    private boolean tuneChannel(String channel) {
+        if (!cableCardPresent) {
+            TVChannel tvChannel = ChannelManager.getChannel(encoderLineup, channel);
+
+            if (tvChannel != null && !Util.isNullOrEmpty(tvChannel.getFrequency()) &&
+                    !Util.isNullOrEmpty(tvChannel.getProgram())) {
+
+                String modulation = tvChannel.getModulation();
+                if (Util.isNullOrEmpty(modulation)) {
+                    modulation = "auto";
+                }
+
+                return HDHomeRunTuning.tuneFrequencyProgram(tuner, modulation, tvChannel.getFrequency(), tvChannel.getProgram());
+            }
+        }
+
+        try {
+            tuner.setVirtualChannel(channel);
+        } catch (IOException e) {
+            logger.error("Unable to tune into channel '{}' => ", channel, e);
+            return false;
+        } catch (GetSetException e) {
+            logger.error("Unable to tune into channel '{}' => ", channel, e);
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void stopEncoding() {
+        logger.entry();
+
+        logger.debug("Stopping encoding...");
+
+        synchronized (exclusiveLock) {
+            if (monitorThread != null && monitorThread != Thread.currentThread()) {
+                monitorThread.interrupt();
+            }
+
+            super.stopEncoding();
+
+            try {
+                if (cableCardPresent) {
+                    tuner.clearVirtualChannel();
+                } else {
+                    tuner.clearChannel();
+                }
+
+                tuner.clearTarget();
+            } catch (IOException e) {
+                logger.error("Unable to stop HDHomeRun capture device => ", e);
+            } catch (GetSetException e) {
+                logger.error("Unable to stop HDHomeRun capture device => ", e);
+            }
+
+            setExternalLock(false);
+        }
+
+        logger.info("Stopped encoding.");
+
+        logger.exit();
+    }
+
+    @Override
+    public void stopDevice() {
+        logger.entry();
+
+        if (monitorThread != null && monitorThread != Thread.currentThread()) {
+            monitorThread.interrupt();
+        }
+
+        // Make sure we unlock the device when the capture device is no longer in use.
+        if (hdhrLock) {
+            try {
+                tuner.clearLockkey();
+            } catch (IOException e) {
+                logger.error("Unable to unlock HDHomeRun because it cannot be reached => ", e);
+            } catch (GetSetException e) {
+                logger.error("Unable to unlock HDHomeRun because the command did not work => ", e);
+            }
+        }
+
+        try {
+            tuner.clearTarget();
+        } catch (IOException e) {
+            logger.error("Unable to clear the HDHomeRun target because it cannot be reached => ", e);
+        } catch (GetSetException e) {
+            logger.error("Unable to clear the HDHomeRun target because the command did not work => ", e);
+        }
+
+        // If we are trying to restart the stream, we don't need to stop the consumer and producer.
+        if (monitorThread == null || monitorThread != Thread.currentThread()) {
+            super.stopDevice();
+        }
+
+        logger.exit();
+    }
+
+    public void tuneToChannel(String channel) {
+
+    }
+
+    public boolean autoTuneChannel(String channel) {
+        return false;
+    }
+
+    public boolean isReady() {
+        return !deviceLost;
+    }
+
+    public BroadcastStandard getBroadcastStandard() {
+        if (channelmap == null) {
+            try {
+                channelmap = tuner.getChannelmap();
+            } catch (Exception e) {
+                logger.debug("Unable to get the channel map from HDHomeRun => {}", e.getMessage());
+            }
+        }
+
+        BroadcastStandard standard = HDHomeRunTuning.getBroadcastStandard(tuner, channelmap);
+
+        // CableCARD tuners are only used on digital cable.
+        if (standard == BroadcastStandard.UNKNOWN && cableCardPresent) {
+            return BroadcastStandard.QAM256;
+        }
+
+        return standard;
+    }
+
+    public int getSignalStrength() {
+        logger.entry();
+
+        int signal = 0;
+
+        try {
+            HDHomeRunStatus status = tuner.getStatus();
+            signal = status.SIGNAL_STRENGTH;
+        } catch (Exception e) {
+            logger.debug("Unable to get signal strength from HDHomeRun.");
+        }
+
+        return logger.exit(signal);
+    }
+
+    public CopyProtection getCopyProtection() {
+        logger.entry();
+
+        CopyProtection returnValue = CopyProtection.UNKNOWN;
+
+        if (cableCardPresent) {
+            try {
+                HDHomeRunVStatus vstatus = tuner.getVirtualChannelStatus();
+                returnValue = vstatus.COPY_PROTECTION;
+            } catch (Exception e) {
+                logger.debug("Unable to get CCI status from HDHomeRun.");
+            }
+        } else {
+            returnValue = CopyProtection.NONE;
+        }
+
+        return logger.exit(returnValue);
+    }
+}
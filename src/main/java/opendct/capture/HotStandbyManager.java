@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.capture;
+
+import opendct.config.Config;
+import opendct.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a limited number of idle capture devices tuned and streaming so live TV can start
+ * without waiting for the capture device to tune.
+ * <p/>
+ * When a capture device is unlocked, it is tuned to the channel most likely to be requested next
+ * if a hot standby slot is available. The channels most recently requested by SageTV on each
+ * lineup are used for the prediction. A capture device in hot standby continues to receive the
+ * stream into a consumer that discards everything, so when SageTV requests the same channel only
+ * a new consumer needs to be started.
+ */
+public class HotStandbyManager {
+    private static final Logger logger = LogManager.getLogger(HotStandbyManager.class);
+
+    private static final int standbyCount =
+            Math.max(Config.getInteger("sagetv.device.global.hot_standby_count", 0), 0);
+
+    // This gives SageTV a chance to START again right after a STOP before we start tuning.
+    private static final long standbyDelay =
+            Math.max(Config.getLong("sagetv.device.global.hot_standby_delay_ms", 2000), 0);
+
+    // A capture device is not kept in hot standby forever since it's using a tuner that could be
+    // used by something else and the prediction gets less likely to be correct over time.
+    private static final long standbyTimeout =
+            Math.max(Config.getLong("sagetv.device.global.hot_standby_timeout_ms", 3600000), 0);
+
+    private static final int RECENT_CHANNELS = 16;
+
+    private static final Object standbyLock = new Object();
+    private static final HashSet<DCTCaptureDeviceImpl> standbyDevices = new HashSet<>();
+    private static final HashMap<DCTCaptureDeviceImpl, ScheduledFuture<?>> pendingTasks = new HashMap<>();
+    private static final HashMap<String, LinkedList<String>> recentChannels = new HashMap<>();
+    private static ScheduledThreadPoolExecutor executor = null;
+
+    /**
+     * Is hot standby enabled?
+     *
+     * @return <i>true</i> if at least one capture device can be kept in hot standby.
+     */
+    public static boolean isEnabled() {
+        return standbyCount > 0;
+    }
+
+    /**
+     * Remember that SageTV requested a channel.
+     *
+     * @param lineup This is the lineup the channel is on.
+     * @param channel This is the channel requested.
+     */
+    public static void channelRequested(String lineup, String channel) {
+        if (!isEnabled() || Util.isNullOrEmpty(channel)) {
+            return;
+        }
+
+        synchronized (standbyLock) {
+            LinkedList<String> channels = recentChannels.get(lineup);
+
+            if (channels == null) {
+                channels = new LinkedList<>();
+                recentChannels.put(lineup, channels);
+            }
+
+            channels.remove(channel);
+            channels.addFirst(channel);
+
+            while (channels.size() > RECENT_CHANNELS) {
+                channels.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Schedule a capture device to go into hot standby.
+     * <p/>
+     * This is called when a capture device is unlocked. Nothing happens if there are no hot
+     * standby slots available when the delay expires or if the capture device is locked again
+     * before then.
+     *
+     * @param captureDevice This is the capture device that is now idle.
+     */
+    public static void deviceIdle(final DCTCaptureDeviceImpl captureDevice) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (standbyLock) {
+            if (standbyDevices.contains(captureDevice)) {
+                return;
+            }
+
+            ScheduledFuture<?> pendingTask = pendingTasks.remove(captureDevice);
+
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+            }
+
+            pendingTasks.put(captureDevice, getExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startStandby(captureDevice);
+                }
+            }, standbyDelay, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Remove a capture device from hot standby.
+     * <p/>
+     * This must be called by the capture device any time it stops streaming or starts streaming
+     * something other than the hot standby channel so the slot can be used by another capture
+     * device.
+     *
+     * @param captureDevice This is the capture device to remove.
+     */
+    public static void release(DCTCaptureDeviceImpl captureDevice) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (standbyLock) {
+            ScheduledFuture<?> pendingTask = pendingTasks.remove(captureDevice);
+
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+            }
+
+            if (standbyDevices.remove(captureDevice)) {
+                logger.debug("'{}' is no longer in hot standby.", captureDevice.getEncoderName());
+            }
+        }
+    }
+
+    private static void startStandby(final DCTCaptureDeviceImpl captureDevice) {
+        String channel;
+
+        synchronized (standbyLock) {
+            pendingTasks.remove(captureDevice);
+
+            if (standbyDevices.size() >= standbyCount || captureDevice.isLocked()) {
+                return;
+            }
+
+            channel = getPredictedChannel(captureDevice);
+
+            if (channel == null) {
+                return;
+            }
+
+            standbyDevices.add(captureDevice);
+        }
+
+        logger.info("Putting '{}' into hot standby on channel '{}'...",
+                captureDevice.getEncoderName(), channel);
+
+        if (!captureDevice.startHotStandby(channel)) {
+            release(captureDevice);
+            return;
+        }
+
+        if (standbyTimeout > 0) {
+            synchronized (standbyLock) {
+                if (!standbyDevices.contains(captureDevice)) {
+                    return;
+                }
+
+                pendingTasks.put(captureDevice, getExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.info("'{}' has been in hot standby for over {}ms.",
+                                captureDevice.getEncoderName(), standbyTimeout);
+
+                        captureDevice.stopHotStandby();
+                    }
+                }, standbyTimeout, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    // This must be called while synchronized on standbyLock.
+    private static String getPredictedChannel(DCTCaptureDeviceImpl captureDevice) {
+        String lineup = captureDevice.getChannelLineup();
+        HashSet<String> standbyChannels = new HashSet<>();
+
+        // There's no point in having two capture devices waiting on the same channel.
+        for (DCTCaptureDeviceImpl standbyDevice : standbyDevices) {
+            if (lineup.equals(standbyDevice.getChannelLineup())) {
+                standbyChannels.add(standbyDevice.getHotStandbyChannel());
+            }
+        }
+
+        LinkedList<String> channels = recentChannels.get(lineup);
+
+        if (channels != null) {
+            Iterator<String> iterator = channels.iterator();
+
+            while (iterator.hasNext()) {
+                String channel = iterator.next();
+
+                if (!standbyChannels.contains(channel)) {
+                    return channel;
+                }
+            }
+        }
+
+        String lastChannel = captureDevice.getLastChannel();
+
+        if (Util.isNullOrEmpty(lastChannel) || standbyChannels.contains(lastChannel)) {
+            return null;
+        }
+
+        return lastChannel;
+    }
+
+    // This must be called while synchronized on standbyLock.
+    private static ScheduledThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("HotStandby-" + thread.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+}
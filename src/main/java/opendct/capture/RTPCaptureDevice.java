@@ -16,6 +16,9 @@
 
 package opendct.capture;
 
+import opendct.channel.ChannelManager;
+import opendct.channel.CopyProtection;
+import opendct.channel.TVChannel;
 import opendct.config.Config;
 import opendct.consumer.SageTVConsumer;
 import opendct.producer.NIORTPProducerImpl;
@@ -29,6 +32,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /*
@@ -46,6 +51,16 @@ public abstract class RTPCaptureDevice extends BasicCaptureDevice implements Cap
     protected final ReentrantReadWriteLock rtpProducerLock = new ReentrantReadWriteLock(true);
     protected RTSPClient rtspClient = null;
 
+    // Consumers from other capture devices streaming the same channel from this producer. These
+    // are added to every new producer so re-tuning doesn't stop the other capture devices.
+    protected final CopyOnWriteArrayList<SageTVConsumer> sharedConsumers = new CopyOnWriteArrayList<>();
+
+    // The tuning monitor is the only thread that re-tunes a channel, so comparing this to the
+    // current thread is how a re-tune is detected.
+    protected Thread monitorThread = null;
+    protected final AtomicBoolean locked = new AtomicBoolean(false);
+    protected final Object exclusiveLock = new Object();
+
     /**
      * Create a new RTP capture device.
      *
@@ -95,6 +110,10 @@ public abstract class RTPCaptureDevice extends BasicCaptureDevice implements Cap
                     sageTVProducerRunnable = rtpProducer;
                     rtpProducerRunnable = rtpProducer;
                     rtpProducerRunnable.setConsumer(sageTVConsumer);
+
+                    for (SageTVConsumer sharedConsumer : sharedConsumers) {
+                        rtpProducerRunnable.addSharedConsumer(sharedConsumer);
+                    }
                     rtpProducerRunnable.setStreamingSocket(remoteIP, this.rtpLocalPort);
 
                     // In case the port was dynamically assigned.
@@ -135,6 +154,236 @@ public abstract class RTPCaptureDevice extends BasicCaptureDevice implements Cap
         return logger.exit(returnValue);
     }
 
+    public boolean isLocked() {
+        return locked.get();
+    }
+
+    public boolean setLocked(boolean locked) {
+        boolean messageLock = this.locked.get();
+
+        // This means the lock was already set
+        if (this.locked.getAndSet(locked) == locked) {
+            logger.info("Capture device is was already {}.", (locked ? "locked" : "unlocked"));
+            return false;
+        }
+
+        synchronized (exclusiveLock) {
+            this.locked.set(locked);
+
+            if (messageLock != locked) {
+                logger.info("Capture device is now {}.", (locked ? "locked" : "unlocked"));
+            } else {
+                logger.debug("Capture device is now re-{}.", (locked ? "locked" : "unlocked"));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Tune a channel without recording it and update the channel with what was found.
+     * <p/>
+     * The channel is tuned while holding the exclusive lock, <b>updateChannelInfoOffline()</b>
+     * fills in the details, then encoding is stopped.
+     *
+     * @param tvChannel A TVChannel object with at the very least a defined channel or frequency and
+     *                  program. Otherwise there is nothing to tune.
+     * @return <i>true</i> if the test was complete and successful. <i>false</i> if we should try
+     *         again on a different capture device since this one is currently locked.
+     */
+    public boolean getChannelInfoOffline(TVChannel tvChannel) {
+        logger.entry();
+
+        if (isLocked() || isExternalLocked()) {
+            return logger.exit(false);
+        }
+
+        synchronized (exclusiveLock) {
+            // Return immediately if an exclusive lock was set between here and the first check if
+            // there is an exclusive lock set.
+            if (isLocked()) {
+                return logger.exit(false);
+            }
+
+            if (!startEncoding(tvChannel.getChannel(), null, "", 0)) {
+                return logger.exit(false);
+            }
+
+            boolean returnValue = updateChannelInfoOffline(tvChannel);
+
+            stopEncoding();
+
+            return logger.exit(returnValue);
+        }
+    }
+
+    /**
+     * Update a channel that is currently being scanned by <b>getChannelInfoOffline()</b>.
+     * <p/>
+     * This is called with the exclusive lock held and the channel tuned. Encoding is stopped after
+     * this returns.
+     *
+     * @param tvChannel The channel to update.
+     * @return <i>false</i> if the capture device was locked or interrupted before the channel
+     *         could be checked.
+     */
+    protected abstract boolean updateChannelInfoOffline(TVChannel tvChannel);
+
+    /**
+     * Wait for the copy protection of a channel being scanned to be reported.
+     *
+     * @param deadline The time in milliseconds to stop waiting.
+     * @param poll The time in milliseconds between checks.
+     * @return The copy protection or <i>null</i> if the capture device was locked or the thread was
+     *         interrupted.
+     */
+    protected CopyProtection waitForCopyProtection(long deadline, long poll) {
+        CopyProtection copyProtection = getCopyProtection();
+
+        while ((copyProtection == CopyProtection.NONE ||
+                copyProtection == CopyProtection.UNKNOWN) &&
+                System.currentTimeMillis() < deadline) {
+
+            if (isLocked()) {
+                return null;
+            }
+
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            copyProtection = getCopyProtection();
+        }
+
+        return copyProtection;
+    }
+
+    /**
+     * Start a thread that re-tunes the channel if the stream stops.
+     *
+     * @param channel The channel being recorded.
+     * @param originalFilename The filename the recording started with.
+     * @param originalEncodingQuality The quality the recording started with.
+     * @param bufferSize The buffer size of the recording.
+     * @param originalUploadID The upload ID the recording started with.
+     * @param remoteAddress The address of the SageTV server for uploads.
+     */
+    protected void monitorTuning(final String channel, final String originalFilename, final String originalEncodingQuality, final long bufferSize, final int originalUploadID, final InetAddress remoteAddress) {
+        if (monitorThread != null && monitorThread != Thread.currentThread()) {
+            monitorThread.interrupt();
+        }
+
+        monitorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Tuning monitoring thread started.");
+
+                TVChannel tvChannel = ChannelManager.getChannel(encoderLineup, channel);
+                int timeout;
+                long lastValue;
+                long currentValue;
+                boolean firstPass = true;
+
+                if (tvChannel != null && tvChannel.getName() != null && tvChannel.getName().startsWith("MC")) {
+                    // Music Choice channels take forever to start and with a 4 second timeout,
+                    // they might never start.
+                    timeout = 16000;
+                } else {
+                    timeout = 4000;
+                }
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    lastValue = getMonitoredPackets();
+                    boolean streamEnded;
+
+                    try {
+                        streamEnded = waitForStreamCheck(timeout);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    currentValue = getMonitoredPackets();
+
+                    if ((streamEnded || currentValue == lastValue) && !Thread.currentThread().isInterrupted()) {
+                        String filename = originalFilename;
+                        String encodingQuality = originalEncodingQuality;
+                        int uploadID = originalUploadID;
+
+                        // Since it's possible that a SWITCH may have happened since we last started the
+                        // recording, this keeps everything consistent.
+                        if (sageTVConsumerRunnable != null) {
+                            filename = sageTVConsumerRunnable.getEncoderFilename();
+                            encodingQuality = sageTVConsumerRunnable.getEncoderQuality();
+                            uploadID = sageTVConsumerRunnable.getEncoderUploadID();
+                        }
+
+                        streamStalled(streamEnded, timeout);
+
+                        boolean tuned = false;
+
+                        while (!tuned && !Thread.currentThread().isInterrupted()) {
+                            stopDevice();
+                            tuned = startEncoding(channel, filename, encodingQuality, bufferSize, uploadID, remoteAddress);
+
+                            try {
+                                Thread.sleep(500);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+
+                        logger.info("Copy protection status is '{}' and signal strength is {}.", getCopyProtection(), getSignalStrength());
+                    }
+
+                    if (getRecordedBytes() != 0 && firstPass) {
+                        firstPass = false;
+                        logger.info("Streamed first {} bytes.", getRecordedBytes());
+                    }
+                }
+
+                logger.info("Tuning monitoring thread stopped.");
+            }
+        });
+
+        monitorThread.setName("TuningMonitor-" + monitorThread.getId() + ":" + encoderName);
+        monitorThread.start();
+    }
+
+    /**
+     * Wait between checks of the tuning monitor.
+     *
+     * @param timeout The time in milliseconds to wait.
+     * @return <i>true</i> if the stream is known to have ended and the channel must be tuned again
+     *         right away.
+     * @throws InterruptedException Thrown if the tuning monitor is interrupted.
+     */
+    protected boolean waitForStreamCheck(long timeout) throws InterruptedException {
+        Thread.sleep(timeout);
+        return false;
+    }
+
+    /**
+     * Get the value the tuning monitor uses to tell if data is still streaming.
+     *
+     * @return A value that increases while data is streaming.
+     */
+    protected long getMonitoredPackets() {
+        SageTVProducer producer = sageTVProducerRunnable;
+
+        return producer == null ? 0 : producer.getPackets();
+    }
+
+    /**
+     * Called by the tuning monitor right before the channel is tuned again.
+     *
+     * @param streamEnded <i>true</i> if <b>waitForStreamCheck()</b> reported that the stream ended.
+     * @param timeout The time in milliseconds that no data was streamed.
+     */
+    protected void streamStalled(boolean streamEnded, long timeout) {
+        logger.error("No data was streamed after {} milliseconds. Re-tuning channel...", timeout);
+    }
+
     // Use factory methods like this one to get interfaces so it can be customized via the
     // properties file.
     protected RTSPClient getNewRTSPClient() {
@@ -174,6 +423,53 @@ public abstract class RTPCaptureDevice extends BasicCaptureDevice implements Cap
         return rtpProducerRunnable;
     }
 
+    /**
+     * Send a copy of everything this capture device produces to a consumer belonging to another
+     * capture device.
+     *
+     * @param sageTVConsumer The already configured and running consumer.
+     */
+    public void addSharedConsumer(SageTVConsumer sageTVConsumer) {
+        logger.entry(sageTVConsumer);
+
+        rtpProducerLock.readLock().lock();
+
+        try {
+            sharedConsumers.addIfAbsent(sageTVConsumer);
+
+            if (rtpProducerRunnable != null) {
+                rtpProducerRunnable.addSharedConsumer(sageTVConsumer);
+            }
+        } finally {
+            rtpProducerLock.readLock().unlock();
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Stop sending a copy of everything this capture device produces to a consumer.
+     *
+     * @param sageTVConsumer The consumer added by <b>addSharedConsumer()</b>.
+     */
+    public void removeSharedConsumer(SageTVConsumer sageTVConsumer) {
+        logger.entry(sageTVConsumer);
+
+        rtpProducerLock.readLock().lock();
+
+        try {
+            sharedConsumers.remove(sageTVConsumer);
+
+            if (rtpProducerRunnable != null) {
+                rtpProducerRunnable.removeSharedConsumer(sageTVConsumer);
+            }
+        } finally {
+            rtpProducerLock.readLock().unlock();
+        }
+
+        logger.exit();
+    }
+
     /**
      * Stops the producer if it is running.
      *
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.capture;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of which capture devices are streaming each channel so a second recording of the
+ * same channel can share the stream instead of tuning another tuner.
+ * <p/>
+ * A capture device that tuned a channel for a recording is the source of that channel. When
+ * another capture device is asked to record the same channel on the same lineup, it adds its
+ * consumer to the producer of the source and leaves its own tuner free. When the source stops
+ * streaming the channel, every capture device sharing the stream is told so it can tune the
+ * channel itself.
+ */
+public class SharedStreamManager {
+    private static final Logger logger = LogManager.getLogger(SharedStreamManager.class);
+
+    private static final boolean enabled =
+            Config.getBoolean("sagetv.device.global.shared_streams", true);
+
+    private static final Object sharedLock = new Object();
+    private static final HashMap<String, DCTCaptureDeviceImpl> sources = new HashMap<>();
+    private static final HashMap<DCTCaptureDeviceImpl, String> sourceKeys = new HashMap<>();
+    private static final HashMap<DCTCaptureDeviceImpl, DCTCaptureDeviceImpl> sharers = new HashMap<>();
+
+    /**
+     * Can capture devices share streams?
+     *
+     * @return <i>true</i> if streams can be shared.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Make a capture device available as the source of a channel.
+     * <p/>
+     * If another capture device is already the source of the channel, it stays the source.
+     *
+     * @param captureDevice This is the capture device that tuned the channel.
+     * @param lineup This is the lineup the channel is on.
+     * @param channel This is the channel being streamed.
+     */
+    public static void streamStarted(DCTCaptureDeviceImpl captureDevice, String lineup, String channel) {
+        if (!enabled) {
+            return;
+        }
+
+        String key = getKey(lineup, channel);
+
+        synchronized (sharedLock) {
+            String oldKey = sourceKeys.remove(captureDevice);
+
+            if (oldKey != null && sources.get(oldKey) == captureDevice) {
+                sources.remove(oldKey);
+            }
+
+            DCTCaptureDeviceImpl source = sources.get(key);
+
+            if (source == null || !source.isProducing()) {
+                sources.put(key, captureDevice);
+                sourceKeys.put(captureDevice, key);
+            }
+        }
+    }
+
+    /**
+     * Stop using a capture device as the source of a channel.
+     * <p/>
+     * The caller must tell every returned capture device that the stream has ended.
+     *
+     * @param captureDevice This is the capture device that is no longer streaming its channel.
+     * @return Every capture device that was sharing the stream.
+     */
+    public static ArrayList<DCTCaptureDeviceImpl> streamStopped(DCTCaptureDeviceImpl captureDevice) {
+        ArrayList<DCTCaptureDeviceImpl> returnValue = new ArrayList<>();
+
+        if (!enabled) {
+            return returnValue;
+        }
+
+        synchronized (sharedLock) {
+            String key = sourceKeys.remove(captureDevice);
+
+            if (key != null && sources.get(key) == captureDevice) {
+                sources.remove(key);
+            }
+
+            Iterator<Map.Entry<DCTCaptureDeviceImpl, DCTCaptureDeviceImpl>> entries = sharers.entrySet().iterator();
+
+            while (entries.hasNext()) {
+                Map.Entry<DCTCaptureDeviceImpl, DCTCaptureDeviceImpl> entry = entries.next();
+
+                if (entry.getValue() == captureDevice) {
+                    returnValue.add(entry.getKey());
+                    entries.remove();
+                }
+            }
+        }
+
+        if (returnValue.size() > 0) {
+            logger.info("'{}' stopped a stream shared by {} other capture device(s).",
+                    captureDevice.getEncoderName(), returnValue.size());
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Get the source of a channel without sharing it.
+     *
+     * @param captureDevice This is the capture device that wants to record the channel.
+     * @param lineup This is the lineup the channel is on.
+     * @param channel This is the channel to be recorded.
+     * @return The capture device streaming the channel or <i>null</i> if there isn't one.
+     */
+    public static DCTCaptureDeviceImpl getSource(DCTCaptureDeviceImpl captureDevice, String lineup, String channel) {
+        if (!enabled) {
+            return null;
+        }
+
+        String key = getKey(lineup, channel);
+
+        synchronized (sharedLock) {
+            DCTCaptureDeviceImpl source = sources.get(key);
+
+            if (source == null || source == captureDevice || !source.isProducing()) {
+                return null;
+            }
+
+            return source;
+        }
+    }
+
+    /**
+     * Is any capture device streaming a channel that can be shared?
+     * <p/>
+     * This is used to select a capture device before it knows it will be sharing.
+     *
+     * @param lineup This is the lineup the channel is on.
+     * @param channel This is the channel to be recorded.
+     * @return <i>true</i> if a new recording of the channel would share an existing stream.
+     */
+    public static boolean isStreaming(String lineup, String channel) {
+        if (!enabled) {
+            return false;
+        }
+
+        String key = getKey(lineup, channel);
+
+        synchronized (sharedLock) {
+            DCTCaptureDeviceImpl source = sources.get(key);
+
+            return source != null && source.isProducing();
+        }
+    }
+
+    /**
+     * Can a capture device share the stream of another capture device?
+     *
+     * @param captureDevice This is the capture device to check.
+     * @return <i>true</i> if the capture device can record by sharing a stream.
+     */
+    public static boolean canShare(CaptureDevice captureDevice) {
+        return enabled && captureDevice instanceof DCTCaptureDeviceImpl;
+    }
+
+    /**
+     * Start sharing the stream of a source.
+     *
+     * @param captureDevice This is the capture device that will share the stream.
+     * @param source This is the source returned by <b>getSource()</b>.
+     * @param lineup This is the lineup the channel is on.
+     * @param channel This is the channel to be recorded.
+     * @return <i>false</i> if the source is no longer streaming the channel.
+     */
+    public static boolean attach(DCTCaptureDeviceImpl captureDevice, DCTCaptureDeviceImpl source, String lineup, String channel) {
+        if (!enabled) {
+            return false;
+        }
+
+        String key = getKey(lineup, channel);
+
+        synchronized (sharedLock) {
+            if (sources.get(key) != source) {
+                return false;
+            }
+
+            sharers.put(captureDevice, source);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop sharing a stream.
+     *
+     * @param captureDevice This is the capture device that was sharing the stream.
+     */
+    public static void detach(DCTCaptureDeviceImpl captureDevice) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (sharedLock) {
+            sharers.remove(captureDevice);
+        }
+    }
+
+    private static String getKey(String lineup, String channel) {
+        return lineup + "|" + channel;
+    }
+}
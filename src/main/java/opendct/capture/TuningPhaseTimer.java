@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.capture;
+
+import opendct.util.LatencyHistogram;
+import opendct.util.LatencyHistograms;
+
+import java.util.Map;
+
+/**
+ * Times each phase of tuning a channel.
+ * <p/>
+ * Phases can be recorded from any thread since some phases run at the same time. Every phase is
+ * also recorded in a histogram kept per capture device type, so it's possible to see which phase
+ * is responsible for slow tuning on a specific kind of device.
+ */
+public class TuningPhaseTimer {
+    public static final String TOTAL = "TOTAL";
+
+    private static final LatencyHistograms histograms = new LatencyHistograms();
+
+    private final CaptureDeviceType deviceType;
+    private final long startTime = System.nanoTime();
+    private final StringBuffer phases = new StringBuffer();
+
+    /**
+     * Start timing a new tuning.
+     *
+     * @param deviceType This is the type of capture device being tuned.
+     */
+    public TuningPhaseTimer(CaptureDeviceType deviceType) {
+        this.deviceType = deviceType;
+    }
+
+    /**
+     * Get the current time to be used as the start time for a phase.
+     *
+     * @return The current time in nanoseconds.
+     */
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a phase that started at a specific time and is now complete.
+     *
+     * @param phase This is the name of the phase.
+     * @param phaseStartTime This is the value of <b>now()</b> when the phase started.
+     */
+    public void record(String phase, long phaseStartTime) {
+        long elapsed = System.nanoTime() - phaseStartTime;
+        histograms.getOrCreate(deviceType + ": " + phase).recordNanos(elapsed);
+
+        phases.append(phase).append('=').append(elapsed / 1000000).append("ms ");
+    }
+
+    /**
+     * Record the total tuning time.
+     *
+     * @return A summary of every recorded phase and the total time.
+     */
+    public String finish() {
+        record(TOTAL, startTime);
+
+        return phases.toString().trim();
+    }
+
+    /**
+     * Get all of the histograms currently being kept.
+     *
+     * @return A sorted map of all histograms with keys in the format <i>device type: phase</i>.
+     */
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return histograms.getAll();
+    }
+
+    /**
+     * Get a summary of every histogram.
+     *
+     * @return One line per histogram.
+     */
+    public static String getReport() {
+        return histograms.getReport();
+    }
+}
@@ -23,8 +23,11 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ChannelLineup {
@@ -34,6 +37,8 @@ public class ChannelLineup {
 
     final private ConcurrentHashMap<String, TVChannel> channelMap;
     final private ConcurrentHashMap<String, TVChannel> remapMap;
+    final private ConcurrentHashMap<String, ChannelScanRecord> scanRecords;
+    final private Set<String> changedChannels;
     final public String LINEUP_NAME;
     final public ChannelSourceType SOURCE;
 
@@ -92,6 +97,8 @@ public class ChannelLineup {
 
         channelMap = new ConcurrentHashMap<String, TVChannel>();
         remapMap = new ConcurrentHashMap<String, TVChannel>();
+        scanRecords = new ConcurrentHashMap<String, ChannelScanRecord>();
+        changedChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
         setAddress(address);
     }
@@ -196,6 +203,7 @@ public class ChannelLineup {
         }
 
         channelMap.put(tvChannel.getChannel(), tvChannel);
+        changedChannels.add(tvChannel.getChannel());
 
         if (!tvChannel.getChannelRemap().equals("")) {
             setRemap(tvChannel.getChannel(), tvChannel.getChannelRemap());
@@ -252,6 +260,8 @@ public class ChannelLineup {
     public void removeChannel(String originalChannel) {
         clearRemap(originalChannel);
         channelMap.remove(originalChannel);
+        scanRecords.remove(originalChannel);
+        changedChannels.add(originalChannel);
     }
 
     /**
@@ -306,6 +316,7 @@ public class ChannelLineup {
         if (tvChannel != null && remapChannel != "") {
             tvChannel.setChannelRemap(remapChannel);
             remapMap.put(remapChannel, tvChannel);
+            changedChannels.add(originalChannel);
         }
     }
 
@@ -331,8 +342,9 @@ public class ChannelLineup {
         }
 
         TVChannel tvChannel = channelMap.get(originalChannel);
-        if (tvChannel != null) {
+        if (tvChannel != null && !"".equals(tvChannel.getChannelRemap())) {
             tvChannel.setChannelRemap("");
+            changedChannels.add(originalChannel);
         }
     }
 
@@ -458,6 +470,111 @@ public class ChannelLineup {
         this.offlineUpdateInterval = offlineUpdateInterval;
     }
 
+    /**
+     * Record that a channel was just scanned offline.
+     * <p/>
+     * Call this after the results of the scan have been updated in this lineup.
+     *
+     * @param channelNumber This is the original channel.
+     * @param failed <i>true</i> if the scan was unable to get any information about the channel.
+     */
+    public void channelScanned(String channelNumber, boolean failed) {
+        TVChannel tvChannel = channelMap.get(channelNumber);
+
+        if (tvChannel == null) {
+            return;
+        }
+
+        scanRecords.put(channelNumber, new ChannelScanRecord(
+                channelNumber,
+                System.currentTimeMillis(),
+                ChannelScanRecord.getChannelHash(tvChannel),
+                failed));
+
+        changedChannels.add(channelNumber);
+    }
+
+    public void addScanRecord(ChannelScanRecord scanRecord) {
+        scanRecords.put(scanRecord.CHANNEL, scanRecord);
+        changedChannels.add(scanRecord.CHANNEL);
+    }
+
+    public ChannelScanRecord getScanRecord(String channelNumber) {
+        return scanRecords.get(channelNumber);
+    }
+
+    public ArrayList<ChannelScanRecord> getScanRecords() {
+        return new ArrayList<ChannelScanRecord>(scanRecords.values());
+    }
+
+    /**
+     * Gets the channels that need to be scanned offline.
+     * <p/>
+     * A channel needs to be scanned if it has never been scanned, the lineup changed it since it
+     * was last scanned, the last scan failed more than <b>failedRetryInterval</b> ago or it was
+     * last scanned more than the offline update interval ago. Each channel gets a slightly
+     * different offline update interval so all of the channels don't need to be scanned at the
+     * same time. Ignored channels are never scanned.
+     *
+     * @param failedRetryInterval The time in milliseconds to wait before scanning a failed channel
+     *                            again.
+     * @return The channels that need to be scanned. These are copies.
+     */
+    public ArrayList<TVChannel> getChannelsToScan(long failedRetryInterval) {
+        ArrayList<TVChannel> returnValue = new ArrayList<TVChannel>();
+        long now = System.currentTimeMillis();
+
+        for (TVChannel tvChannel : getAllChannels(false, true)) {
+            ChannelScanRecord scanRecord = scanRecords.get(tvChannel.getChannel());
+
+            if (scanRecord == null ||
+                    scanRecord.CHANNEL_HASH != ChannelScanRecord.getChannelHash(tvChannel) ||
+                    (scanRecord.FAILED && now - scanRecord.LAST_SCANNED > failedRetryInterval) ||
+                    now - scanRecord.LAST_SCANNED > getChannelScanInterval(tvChannel.getChannel())) {
+
+                returnValue.add(tvChannel);
+            }
+        }
+
+        return returnValue;
+    }
+
+    // Spreads the offline update interval between 75% and 125% of the configured value.
+    private long getChannelScanInterval(String channelNumber) {
+        int spread = (channelNumber.hashCode() & 0x7fffffff) % 51;
+
+        return offlineUpdateInterval / 100 * (75 + spread);
+    }
+
+    /**
+     * Gets the original channels that were added, changed, removed or scanned since the last time
+     * this method was called.
+     * <p/>
+     * This is used to only save the channels that changed. If the changes could not be saved,
+     * return them with <b>addChanges()</b> so they are included in the next save.
+     *
+     * @return The original channel numbers that changed.
+     */
+    public HashSet<String> getAndClearChanges() {
+        HashSet<String> returnValue = new HashSet<String>();
+
+        for (String channel : changedChannels) {
+            changedChannels.remove(channel);
+            returnValue.add(channel);
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Marks original channels as changed again.
+     *
+     * @param channels The original channel numbers returned by <b>getAndClearChanges()</b>.
+     */
+    public void addChanges(Collection<String> channels) {
+        changedChannels.addAll(channels);
+    }
+
     public long getNextOfflineUpdate() {
         return nextOfflineUpdate;
     }
@@ -20,7 +20,9 @@ import opendct.channel.http.InfiniTVChannels;
 import opendct.channel.http.PrimeChannels;
 import opendct.config.Config;
 import opendct.config.ConfigBag;
+import opendct.capture.CaptureDevice;
 import opendct.power.PowerEventListener;
+import opendct.sagetv.SageTVManager;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -32,6 +34,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChannelManager implements PowerEventListener {
@@ -56,10 +63,60 @@ public class ChannelManager implements PowerEventListener {
     final private static ConcurrentHashMap<String, ChannelLineup> channelLineupsMap =
             new ConcurrentHashMap<String, ChannelLineup>();
 
+    // This is used to map channel lineup names to the journal of changes since the lineup was last
+    // completely saved.
+    final private static ConcurrentHashMap<String, LineupJournal> lineupJournalsMap =
+            new ConcurrentHashMap<String, LineupJournal>();
+
     private static AtomicBoolean updateRunning = new AtomicBoolean(false);
     private static Thread updateThread;
     private static boolean noOfflineScan = false;
 
+    // Only the channels that need to be scanned are scanned, so lineups are checked often.
+    private static final long offlineScanCheckInterval =
+            Math.max(Config.getLong("channel.offline_scan.check_interval_ms", 3600000), 60000);
+
+    // This is how long to wait before trying to scan a channel that could not be scanned again.
+    private static final long offlineScanFailedRetry =
+            Math.max(Config.getLong("channel.offline_scan.failed_retry_ms", 21600000), 0);
+
+    // This is how many changes can be journaled before the entire lineup is saved again.
+    private static final int journalCompactRecords =
+            Math.max(Config.getInteger("channel.lineup.journal_compact_records", 2000), 1);
+
+    // When enabled, a binary snapshot is written with every lineup properties file and is loaded
+    // instead of the properties file.
+    private static final boolean binarySnapshots =
+            Config.getBoolean("channel.lineup.binary_snapshot", true);
+
+    // Lineups are updated from their sources at the same time on these threads so one slow
+    // device doesn't delay the updates of all of the other lineups.
+    private static final ExecutorService lineupUpdater =
+            Executors.newFixedThreadPool(
+                    Math.max(Config.getInteger("channel.update_threads", 4), 1),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable);
+                            thread.setName("LineupUpdate-" + thread.getId());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+    // Lineups loaded from a snapshot are compared with their properties file on this thread so
+    // startup isn't delayed.
+    private static final ExecutorService snapshotValidator =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("LineupValidation-" + thread.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
 
     /**
      * Returns the offline channel scan object for the provided name.
@@ -113,6 +170,10 @@ public class ChannelManager implements PowerEventListener {
      * A channel scan will start if it is scheduled. It will also start if a scan has never run or
      * the last scan failed. If the scan fails to start, the scheduled time will not be incremented
      * and it will be tried again the next time this method is called.
+     * <p/>
+     * Only channels that are new, were changed by the lineup, failed their last scan or have not
+     * been scanned in a while are scanned. Scheduled scans also wait until none of the capture
+     * devices for the lineup are in use so scans don't compete with recordings.
      *
      * @param now <i>true</i> to ignore the schedule and run all channel updates right now.
      */
@@ -135,6 +196,7 @@ public class ChannelManager implements PowerEventListener {
 
                     for (TVChannel channel : channels) {
                         channelLineup.updateChannel(channel);
+                        channelLineup.channelScanned(channel.getChannel(), offlineChannelScan.isFailed(channel.getChannel()));
                     }
 
                     // The scan is now complete. Save the results immediately.
@@ -145,6 +207,7 @@ public class ChannelManager implements PowerEventListener {
                 } else {
                     for (TVChannel channel : channels) {
                         channelLineup.updateChannel(channel);
+                        channelLineup.channelScanned(channel.getChannel(), offlineChannelScan.isFailed(channel.getChannel()));
                     }
                 }
             }
@@ -158,6 +221,9 @@ public class ChannelManager implements PowerEventListener {
             } else if (!now && channelLineup.getNextOfflineUpdate() > System.currentTimeMillis()) {
                 // Skip if it is not time to run a new update.
                 continue;
+            } else if (!now && !isOfflineScanIdle(scanName)) {
+                // Wait until nothing is using the capture devices.
+                continue;
             } else {
                 // We are scheduled to start.
                 if (!startOfflineChannelScan(scanName)) {
@@ -165,10 +231,28 @@ public class ChannelManager implements PowerEventListener {
                 }
             }
 
-            channelLineup.setNextOfflineUpdate(System.currentTimeMillis() + channelLineup.getUpdateInterval());
+            channelLineup.setNextOfflineUpdate(System.currentTimeMillis() + offlineScanCheckInterval);
         }
     }
 
+    /**
+     * Checks if none of the capture devices used to scan a lineup are in use.
+     *
+     * @param lineupName This is the name of the lineup.
+     * @return <i>true</i> if every capture device is available.
+     */
+    private static boolean isOfflineScanIdle(String lineupName) {
+        for (String deviceName : getDevicesForOfflineScan(lineupName)) {
+            CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(deviceName, false);
+
+            if (captureDevice != null && (captureDevice.isLocked() || captureDevice.isExternalLocked())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Starts an offline channel scan based on the currently submitted capture devices.
      * <p/>
@@ -177,25 +261,35 @@ public class ChannelManager implements PowerEventListener {
      * method while initializing a capture device.
      *
      * @param lineupName This is the name of the lineup.
-     * @return <i>true</i> if a scan was started.
+     * @return <i>true</i> if a scan was started or no channels need to be scanned.
      */
     public synchronized static boolean startOfflineChannelScan(String lineupName) {
 
         String devices[] = getDevicesForOfflineScan(lineupName);
         OfflineChannelScan channelScan = getOfflineChannelScan(lineupName);
+        ChannelLineup channelLineup = channelLineupsMap.get(lineupName);
 
-        if (devices == null || devices.length == 0) {
+        if (devices == null || devices.length == 0 || channelLineup == null) {
             return false;
         } else if (channelScan != null && channelScan.isRunning()) {
             return false;
         }
 
+        // We don't want to waste resources seeing if we can tune into a channel that we are
+        // ignoring or that was recently scanned.
+        ArrayList<TVChannel> channels = channelLineup.getChannelsToScan(offlineScanFailedRetry);
+
+        if (channels.size() == 0) {
+            logger.debug("None of the channels in the lineup '{}' need to be scanned.", lineupName);
+            return true;
+        }
+
         channelScan = new OfflineChannelScan(lineupName, devices);
         offlineScansMap.put(lineupName, channelScan);
 
-        // We don't want to waste resources seeing if we can tune into a channel that we are
-        // ignoring.
-        return channelScan.start(getChannelList(lineupName, false, true), 2000);
+        logger.info("Scanning {} of the channels in the lineup '{}'.", channels.size(), lineupName);
+
+        return channelScan.start(channels.toArray(new TVChannel[channels.size()]), 2000);
     }
 
     /**
@@ -394,7 +488,16 @@ public class ChannelManager implements PowerEventListener {
         channelLineupsMap.remove(lineupName);
         offlineScanDevicesMap.remove(lineupName);
 
+        LineupJournal journal = lineupJournalsMap.remove(lineupName);
+
         if (delete) {
+            if (journal == null) {
+                journal = new LineupJournal(lineupName);
+            }
+
+            journal.delete();
+            LineupSnapshot.delete(lineupName);
+
             String lineupPath = Config.getConfigDirectory() + Config.DIR_SEPARATOR + "lineup" + Config.DIR_SEPARATOR + lineupName + ".properties";
             File lineupFile = new File(lineupPath);
             if (lineupFile.exists()) {
@@ -437,14 +540,22 @@ public class ChannelManager implements PowerEventListener {
         for (Map.Entry<String, ChannelLineup> lineupMapPair : channelLineupsMap.entrySet()) {
             saveChannelLineup(lineupMapPair.getKey());
         }
+
+        TuningCache.save();
     }
 
     /**
      * Updates all loaded channel lineups from their respective sources.
+     * <p/>
+     * The lineups are updated at the same time and this method returns when all of the updates
+     * are complete.
      *
      * @param now <i>true</i> to ignore the schedule and run all channel updates right now.
+     * @throws InterruptedException If the thread is interrupted while waiting for the updates.
      */
-    public static void updateChannelLineups(boolean now) {
+    public static void updateChannelLineups(boolean now) throws InterruptedException {
+        ArrayList<Future<?>> updates = new ArrayList<Future<?>>();
+
         for (Map.Entry<String, ChannelLineup> lineupPair : channelLineupsMap.entrySet()) {
             final ChannelLineup channelLineup = lineupPair.getValue();
 
@@ -452,9 +563,22 @@ public class ChannelManager implements PowerEventListener {
                 continue;
             }
 
-            updateChannelLineup(channelLineup);
+            updates.add(lineupUpdater.submit(new Runnable() {
+                @Override
+                public void run() {
+                    updateChannelLineup(channelLineup);
 
-            channelLineup.setNextUpdate(System.currentTimeMillis() + channelLineup.getUpdateInterval());
+                    channelLineup.setNextUpdate(System.currentTimeMillis() + channelLineup.getUpdateInterval());
+                }
+            }));
+        }
+
+        for (Future<?> update : updates) {
+            try {
+                update.get();
+            } catch (ExecutionException e) {
+                logger.error("Unable to update a channel lineup => ", e);
+            }
         }
     }
 
@@ -478,6 +602,8 @@ public class ChannelManager implements PowerEventListener {
      * Loads all available channel lineups.
      */
     public static void loadChannelLineups() {
+        TuningCache.load();
+
         String lineupPath = Config.getConfigDirectory() + Config.DIR_SEPARATOR + "lineup";
 
         File directory = new File(lineupPath);
@@ -502,15 +628,112 @@ public class ChannelManager implements PowerEventListener {
      * If the lineup is already loaded, it will replace channels in the lineup with the value from
      * the file. It will not remove any channels. If the resulting lineup is empty, it will run an
      * update to populate the channels.
+     * <p/>
+     * Any changes journaled since the lineup was last completely saved are applied after the
+     * properties file is loaded.
+     * <p/>
+     * If the lineup is not loaded yet and it has a binary snapshot that matches its properties
+     * file, the snapshot is loaded instead and the properties file is compared with the snapshot
+     * in the background.
      *
      * @param lineupName This is the name of the lineup.
      * @return <i>true</i> if the load was successful.
      */
     public static boolean loadChannelLineup(String lineupName) {
+        if (binarySnapshots && !channelLineupsMap.containsKey(lineupName)) {
+            final LineupSnapshot snapshot = LineupSnapshot.read(lineupName);
+
+            if (snapshot != null) {
+                ChannelLineup lineup = snapshot.LINEUP;
+                LineupJournal journal = getLineupJournal(lineupName);
+
+                synchronized (journal) {
+                    journal.replay(lineup, snapshot.GENERATION);
+                    lineup.getAndClearChanges();
+                }
+
+                channelLineupsMap.put(lineup.LINEUP_NAME, lineup);
+
+                logger.debug("Loaded the lineup '{}' from its snapshot.", lineupName);
+
+                snapshotValidator.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        validateChannelLineup(snapshot);
+                    }
+                });
+
+                if (lineup.SOURCE != ChannelSourceType.STATIC && !lineup.hasChannels()) {
+                    updateChannelLineup(lineup);
+                }
+
+                return true;
+            }
+        }
+
+        return loadChannelLineupProperties(lineupName, false);
+    }
+
+    // Compares the properties file of a lineup loaded from a snapshot with the snapshot. If they
+    // don't match, the lineup is loaded again from the properties file.
+    //
+    // This holds the journal lock so a save can't write the properties file while it's being
+    // compared. If the lineup was replaced or written to its properties file since the snapshot
+    // was loaded, the snapshot doesn't matter anymore and nothing is compared.
+    private static void validateChannelLineup(LineupSnapshot snapshot) {
+        String lineupName = snapshot.LINEUP.LINEUP_NAME;
+        LineupJournal journal = getLineupJournal(lineupName);
+
+        synchronized (journal) {
+            if (channelLineupsMap.get(lineupName) != snapshot.LINEUP ||
+                    journal.getGeneration() != snapshot.GENERATION) {
+
+                return;
+            }
+
+            ConfigBag configBag = new ConfigBag(lineupName, "lineup", false);
+
+            if (!configBag.loadConfig()) {
+                return;
+            }
+
+            long checksum = LineupSnapshot.getPropertiesChecksum(
+                    configBag.getAllByRootKey("channel."),
+                    configBag.getAllByRootKey("scan."));
+
+            if (checksum == snapshot.PROPERTIES_CHECKSUM &&
+                    configBag.getLong("lineup.journal_generation", 0) == snapshot.GENERATION) {
+
+                logger.debug("The snapshot of the lineup '{}' matches its properties file.", lineupName);
+                return;
+            }
+
+            // Changes that have not been saved yet are appended to the journal so they are
+            // replayed onto the lineup loaded from the properties file.
+            HashSet<String> changes = snapshot.LINEUP.getAndClearChanges();
+
+            if (changes.size() > 0 && !journal.append(snapshot.LINEUP, changes)) {
+                logger.warn("The snapshot of the lineup '{}' does not match its properties file," +
+                        " but the unsaved changes could not be journaled. Keeping the snapshot.",
+                        lineupName);
+
+                snapshot.LINEUP.addChanges(changes);
+                return;
+            }
+
+            logger.warn("The snapshot of the lineup '{}' does not match its properties file." +
+                    " Loading the properties file.", lineupName);
+
+            LineupSnapshot.delete(lineupName);
+            loadChannelLineupProperties(lineupName, true);
+        }
+    }
+
+    private static boolean loadChannelLineupProperties(String lineupName, boolean replace) {
         ConfigBag configBag = new ConfigBag(lineupName, "lineup", false);
 
         if (configBag.loadConfig()) {
-            ChannelLineup lineup = channelLineupsMap.get(lineupName);
+            ChannelLineup lineup = replace ? null : channelLineupsMap.get(lineupName);
 
             if (lineup == null) {
                 String friendlyName = configBag.getString("lineup.friendly_name", lineupName);
@@ -540,8 +763,6 @@ public class ChannelManager implements PowerEventListener {
 
                 lineup = new ChannelLineup(lineupName, friendlyName, sourceType, address,
                         updateInterval, offlineUpdateInterval);
-
-                channelLineupsMap.put(lineup.LINEUP_NAME, lineup);
             }
 
             final HashMap<String, String> loadedChannels = configBag.getAllByRootKey("channel.");
@@ -556,6 +777,35 @@ public class ChannelManager implements PowerEventListener {
                 }
             }
 
+            final HashMap<String, String> loadedScans = configBag.getAllByRootKey("scan.");
+
+            for (Map.Entry<String, String> scanMapPair : loadedScans.entrySet()) {
+                final String properties = scanMapPair.getValue();
+
+                try {
+                    lineup.addScanRecord(new ChannelScanRecord(Util.getStringArrayFromCSV(properties)));
+                } catch (Exception e) {
+                    logger.error("Unable to load the channel scan record => ", e);
+                }
+            }
+
+            LineupJournal journal = getLineupJournal(lineupName);
+
+            synchronized (journal) {
+                journal.replay(lineup, configBag.getLong("lineup.journal_generation", 0));
+
+                // Everything that was just loaded is already saved.
+                lineup.getAndClearChanges();
+
+                // Write a snapshot on the next save so the next load doesn't need to parse the
+                // properties file.
+                if (binarySnapshots && !new File(LineupSnapshot.getFileName(lineupName)).exists()) {
+                    journal.requireCompaction();
+                }
+            }
+
+            channelLineupsMap.put(lineup.LINEUP_NAME, lineup);
+
             if (lineup.SOURCE != ChannelSourceType.STATIC && !lineup.hasChannels()) {
                 updateChannelLineup(lineup);
             }
@@ -567,7 +817,11 @@ public class ChannelManager implements PowerEventListener {
     }
 
     /**
-     * Saves the requested channel lineup to a properties file so it can be restored later.
+     * Saves the changes to the requested channel lineup so it can be restored later.
+     * <p/>
+     * Only the channels that changed since the last save are appended to the journal of the
+     * lineup. The entire lineup is written to its properties file when the journal gets too long
+     * or the properties file does not exist yet.
      *
      * @param lineupName This is the name of the lineup to be saved.
      * @return <i>true</i> if it was successfully saved.
@@ -580,23 +834,80 @@ public class ChannelManager implements PowerEventListener {
             return false;
         }
 
+        LineupJournal journal = getLineupJournal(lineupName);
+
+        synchronized (journal) {
+            HashSet<String> changes = lineup.getAndClearChanges();
+            boolean saved;
+
+            if (journal.needsCompaction(journalCompactRecords) ||
+                    !new File(getLineupFileName(lineupName)).exists()) {
+
+                long generation = journal.getGeneration() + 1;
+                saved = writeChannelLineup(lineup, generation);
+
+                if (saved) {
+                    journal.reset(lineup, generation);
+                }
+            } else if (changes.size() == 0 && !journal.isSettingsChanged(lineup)) {
+                return true;
+            } else {
+                saved = journal.append(lineup, changes);
+            }
+
+            if (!saved) {
+                lineup.addChanges(changes);
+            }
+
+            return saved;
+        }
+    }
+
+    private static LineupJournal getLineupJournal(String lineupName) {
+        LineupJournal journal = lineupJournalsMap.get(lineupName);
+
+        if (journal == null) {
+            LineupJournal newJournal = new LineupJournal(lineupName);
+            journal = lineupJournalsMap.putIfAbsent(lineupName, newJournal);
+
+            if (journal == null) {
+                journal = newJournal;
+            }
+        }
+
+        return journal;
+    }
+
+    private static String getLineupFileName(String lineupName) {
+        return Config.getConfigDirectory() + Config.DIR_SEPARATOR + "lineup" +
+                Config.DIR_SEPARATOR + lineupName + ".properties";
+    }
+
+    // Writes the entire lineup to its properties file.
+    private static boolean writeChannelLineup(ChannelLineup lineup, long generation) {
+        String lineupName = lineup.LINEUP_NAME;
+
         ConfigBag configBag = new ConfigBag(lineupName, "lineup", false);
         configBag.loadConfig();
 
         // Remove all current channels so we don't retain any old values or channels we have
         // removed.
         configBag.removeAllByRootKey("channel.");
+        configBag.removeAllByRootKey("scan.");
 
         configBag.setString("lineup.friendly_name", lineup.getFriendlyName());
         configBag.setString("lineup.address", lineup.getAddress());
         configBag.setLong("lineup.update_interval", lineup.getUpdateInterval());
         configBag.setLong("lineup.offline_update_interval", lineup.getOfflineUpdateInterval());
         configBag.setString("lineup.source", String.valueOf(lineup.SOURCE));
+        configBag.setLong("lineup.journal_generation", generation);
 
         StringBuilder unavailableChannels = new StringBuilder();
         StringBuilder availableChannels = new StringBuilder();
+        ArrayList<TVChannel> tvChannels = lineup.getAllChannels(true, true);
+        ArrayList<ChannelScanRecord> scanRecords = lineup.getScanRecords();
 
-        for (TVChannel tvChannel : lineup.getAllChannels(true, true)) {
+        for (TVChannel tvChannel : tvChannels) {
 
             String channel = tvChannel.getChannel();
             while (channel.length() < 4) {
@@ -614,6 +925,16 @@ public class ChannelManager implements PowerEventListener {
             }
         }
 
+        for (ChannelScanRecord scanRecord : scanRecords) {
+
+            String channel = scanRecord.CHANNEL;
+            while (channel.length() < 4) {
+                channel = "0" + channel;
+            }
+
+            configBag.setStringArray("scan." + channel, scanRecord.getProperties());
+        }
+
         // Remove the last comma.
         if (unavailableChannels.length() > 0) {
             unavailableChannels.deleteCharAt(unavailableChannels.length() - 1);
@@ -629,7 +950,21 @@ public class ChannelManager implements PowerEventListener {
         configBag.setString("sagetv.unavailable_channels_ref", unavailableChannels.toString());
         configBag.setString("sagetv.available_channels_ref", availableChannels.toString());
 
-        return configBag.saveConfig();
+        if (!configBag.saveConfig()) {
+            LineupSnapshot.delete(lineupName);
+            return false;
+        }
+
+        if (binarySnapshots) {
+            long checksum = LineupSnapshot.getPropertiesChecksum(
+                    configBag.getAllByRootKey("channel."),
+                    configBag.getAllByRootKey("scan."));
+
+            LineupSnapshot.write(lineup, tvChannels, scanRecords, generation,
+                    new File(configBag.FILE_NAME), checksum);
+        }
+
+        return true;
     }
 
     public static void startUpdateChannelsThread() {
@@ -649,6 +984,8 @@ public class ChannelManager implements PowerEventListener {
                     // initialization. This thread is only to keep things periodically updated.
                     Thread.sleep(60000);
 
+                    long nextTuningCacheSave = System.currentTimeMillis() + 60000;
+
                     while (!Thread.currentThread().isInterrupted()) {
                         try {
                             if (!Thread.currentThread().isInterrupted()) {
@@ -661,6 +998,13 @@ public class ChannelManager implements PowerEventListener {
                                 if (!Config.isConfigOnly()) {
                                     startAllOfflineChannelScans(false);
                                 }
+
+                                // Tuning changes the cache constantly, so it's only saved once a
+                                // minute.
+                                if (System.currentTimeMillis() > nextTuningCacheSave) {
+                                    TuningCache.save();
+                                    nextTuningCacheSave = System.currentTimeMillis() + 60000;
+                                }
                             }
                         } catch (InterruptedException e) {
                             logger.debug("The ChannelManager update thread has been interrupted => ", e);
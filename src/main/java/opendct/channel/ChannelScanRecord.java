@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import java.util.Arrays;
+
+/**
+ * The result of the last offline scan of a channel.
+ * <p/>
+ * This is used to decide if a channel needs to be scanned again. The hash is made from the values
+ * of the channel that come from the lineup, so if the lineup changes the channel, the hash will
+ * no longer match.
+ */
+public class ChannelScanRecord {
+    public final String CHANNEL;
+    public final long LAST_SCANNED;
+    public final int CHANNEL_HASH;
+    public final boolean FAILED;
+
+    public ChannelScanRecord(String channel, long lastScanned, int channelHash, boolean failed) {
+        CHANNEL = channel;
+        LAST_SCANNED = lastScanned;
+        CHANNEL_HASH = channelHash;
+        FAILED = failed;
+    }
+
+    /**
+     * Create a scan record from values returned by <b>getProperties()</b>.
+     *
+     * @param properties The saved values.
+     * @throws Exception If the values are not valid.
+     */
+    public ChannelScanRecord(String properties[]) throws Exception {
+        if (properties.length < 4) {
+            throw new Exception("The provided array does not contain all parameters required for a channel scan record.");
+        }
+
+        CHANNEL = properties[0];
+        LAST_SCANNED = Long.parseLong(properties[1]);
+        CHANNEL_HASH = Integer.parseInt(properties[2]);
+        FAILED = Boolean.valueOf(properties[3]);
+    }
+
+    public String[] getProperties() {
+        return new String[]{
+                CHANNEL,
+                String.valueOf(LAST_SCANNED),
+                String.valueOf(CHANNEL_HASH),
+                String.valueOf(FAILED)
+        };
+    }
+
+    /**
+     * Get a hash of the values of a channel that are provided by the lineup.
+     * <p/>
+     * Values that are only set by scanning the channel are not included.
+     *
+     * @param tvChannel The channel.
+     * @return The hash.
+     */
+    public static int getChannelHash(TVChannel tvChannel) {
+        return Arrays.hashCode(new String[]{
+                tvChannel.getName(),
+                tvChannel.getUrl(),
+                tvChannel.getModulation(),
+                tvChannel.getFrequency(),
+                tvChannel.getProgram(),
+                tvChannel.getEia()
+        });
+    }
+}
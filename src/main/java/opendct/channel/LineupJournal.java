@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import opendct.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes made to a channel lineup since its properties file was
+ * last written.
+ * <p/>
+ * Saving a lineup only appends the channels that changed, so the cost of a save depends on the
+ * number of changes instead of the size of the lineup. When the journal gets too long, the lineup
+ * is written to its properties file again and the journal is started over.
+ * <p/>
+ * Every journal starts with the generation of the properties file it follows. The generation is
+ * incremented every time the properties file is written, so a journal left behind by a crash
+ * after the properties file was replaced is ignored instead of replaying older values over the
+ * newer file. Every record has a length and a checksum, so a record that was only partially
+ * written is discarded when the journal is replayed.
+ */
+public class LineupJournal {
+    private static final Logger logger = LogManager.getLogger(LineupJournal.class);
+
+    private static final int MAGIC = 0x4F444A4C; // ODJL
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_RECORD_SIZE = 65536;
+
+    private static final byte CHANNEL_RECORD = 1;
+    private static final byte REMOVE_RECORD = 2;
+    private static final byte SCAN_RECORD = 3;
+    private static final byte SETTINGS_RECORD = 4;
+
+    public final String LINEUP_NAME;
+    public final String FILE_NAME;
+
+    private long generation;
+    private int recordCount;
+    private boolean valid;
+    private String lastSettings[];
+
+    /**
+     * Create a journal for a lineup.
+     * <p/>
+     * The journal is not valid until it has been replayed or reset.
+     *
+     * @param lineupName This is the name of the lineup.
+     */
+    public LineupJournal(String lineupName) {
+        LINEUP_NAME = lineupName;
+        FILE_NAME = Config.getConfigDirectory() + Config.DIR_SEPARATOR + "lineup" +
+                Config.DIR_SEPARATOR + lineupName + ".journal";
+    }
+
+    /**
+     * The generation of the properties file this journal follows.
+     *
+     * @return The generation.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Check if the lineup needs to be written to its properties file instead of appending to this
+     * journal.
+     *
+     * @param maxRecords This is the number of records the journal can have before it is compacted.
+     * @return <i>true</i> if the journal should be compacted.
+     */
+    public synchronized boolean needsCompaction(int maxRecords) {
+        return !valid || recordCount >= maxRecords;
+    }
+
+    /**
+     * Make the next save write the entire lineup instead of appending to this journal.
+     */
+    public synchronized void requireCompaction() {
+        valid = false;
+    }
+
+    /**
+     * Check if the lineup settings are different from the last settings in this journal.
+     *
+     * @param lineup This is the lineup.
+     * @return <i>true</i> if the settings need to be saved.
+     */
+    public synchronized boolean isSettingsChanged(ChannelLineup lineup) {
+        return !Arrays.equals(lastSettings, getSettings(lineup));
+    }
+
+    /**
+     * Replay this journal onto a lineup that was just loaded from its properties file or
+     * snapshot.
+     * <p/>
+     * If the journal belongs to a different generation of the properties file, it is ignored and
+     * the journal is marked as needing compaction. If the last record was not completely written,
+     * it is removed.
+     *
+     * @param lineup This is the lineup that was loaded.
+     * @param snapshotGeneration This is the generation saved in the properties file.
+     * @return The number of records replayed.
+     */
+    public synchronized int replay(ChannelLineup lineup, long snapshotGeneration) {
+        logger.entry(lineup.LINEUP_NAME, snapshotGeneration);
+
+        generation = snapshotGeneration;
+        recordCount = 0;
+        valid = true;
+
+        File file = new File(FILE_NAME);
+
+        if (!file.exists()) {
+            lastSettings = getSettings(lineup);
+            return logger.exit(0);
+        }
+
+        int replayed = 0;
+
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            if (journal.length() < HEADER_SIZE ||
+                    journal.readInt() != MAGIC ||
+                    journal.readLong() != snapshotGeneration) {
+
+                logger.warn("The journal for the lineup '{}' does not match the saved lineup." +
+                        " It will be discarded.", LINEUP_NAME);
+
+                valid = false;
+                lastSettings = getSettings(lineup);
+                return logger.exit(0);
+            }
+
+            long goodLength = journal.getFilePointer();
+            CRC32 crc32 = new CRC32();
+
+            while (true) {
+                byte payload[];
+
+                try {
+                    int length = journal.readInt();
+                    long checksum = journal.readInt() & 0xffffffffL;
+
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+
+                    payload = new byte[length];
+                    journal.readFully(payload);
+
+                    crc32.reset();
+                    crc32.update(payload);
+
+                    if (crc32.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try {
+                    applyRecord(lineup, payload);
+                    replayed += 1;
+                } catch (Exception e) {
+                    logger.error("Unable to replay a journal record for the lineup '{}' => ",
+                            LINEUP_NAME, e);
+                }
+
+                recordCount += 1;
+                goodLength = journal.getFilePointer();
+            }
+
+            if (goodLength < journal.length()) {
+                logger.warn("The journal for the lineup '{}' ends with an incomplete record." +
+                        " Removing {} bytes.", LINEUP_NAME, journal.length() - goodLength);
+
+                journal.setLength(goodLength);
+                journal.getFD().sync();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read the journal for the lineup '{}' => ", LINEUP_NAME, e);
+            valid = false;
+        }
+
+        lastSettings = getSettings(lineup);
+
+        logger.debug("Replayed {} journal records for the lineup '{}'.", replayed, LINEUP_NAME);
+        return logger.exit(replayed);
+    }
+
+    /**
+     * Append the current values of changed channels to this journal.
+     * <p/>
+     * The lineup settings are also appended if they changed. The journal is synced to disk before
+     * returning.
+     *
+     * @param lineup This is the lineup.
+     * @param changedChannels These are the original channel numbers that changed. Channels that
+     *                        are no longer in the lineup are recorded as removed.
+     * @return <i>true</i> if the changes were saved.
+     */
+    public synchronized boolean append(ChannelLineup lineup, Collection<String> changedChannels) {
+        logger.entry(lineup.LINEUP_NAME, changedChannels.size());
+
+        if (!valid) {
+            return logger.exit(false);
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int newRecords = 0;
+        String settings[] = getSettings(lineup);
+
+        try {
+            if (!Arrays.equals(lastSettings, settings)) {
+                writeRecord(records, SETTINGS_RECORD, settings);
+                newRecords += 1;
+            }
+
+            for (String channel : changedChannels) {
+                TVChannel tvChannel = lineup.getOriginalChannel(channel);
+
+                if (tvChannel == null) {
+                    writeRecord(records, REMOVE_RECORD, channel);
+                    newRecords += 1;
+                    continue;
+                }
+
+                writeRecord(records, CHANNEL_RECORD, tvChannel.getProperties());
+                newRecords += 1;
+
+                ChannelScanRecord scanRecord = lineup.getScanRecord(channel);
+
+                if (scanRecord != null) {
+                    writeRecord(records, SCAN_RECORD, scanRecord.getProperties());
+                    newRecords += 1;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to create journal records for the lineup '{}' => ",
+                    LINEUP_NAME, e);
+            return logger.exit(false);
+        }
+
+        if (newRecords == 0) {
+            return logger.exit(true);
+        }
+
+        if (!Util.createDirectory(new File(FILE_NAME).getParent())) {
+            logger.error("Unable to create the directory for the journal '{}'.", FILE_NAME);
+            return logger.exit(false);
+        }
+
+        try (RandomAccessFile journal = new RandomAccessFile(FILE_NAME, "rw")) {
+            long length = journal.length();
+
+            if (length == 0) {
+                journal.writeInt(MAGIC);
+                journal.writeLong(generation);
+                length = HEADER_SIZE;
+            }
+
+            journal.seek(length);
+
+            try {
+                journal.write(records.toByteArray());
+                journal.getFD().sync();
+            } catch (IOException e) {
+                // Don't leave a partial batch behind for the next append to follow.
+                journal.setLength(length);
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.error("Unable to append to the journal for the lineup '{}' => ",
+                    LINEUP_NAME, e);
+            valid = false;
+            return logger.exit(false);
+        }
+
+        recordCount += newRecords;
+        lastSettings = settings;
+
+        return logger.exit(true);
+    }
+
+    /**
+     * Start a new empty journal after the lineup was written to its properties file.
+     *
+     * @param lineup This is the lineup that was written.
+     * @param snapshotGeneration This is the generation saved in the properties file.
+     * @return <i>true</i> if the journal was started over.
+     */
+    public synchronized boolean reset(ChannelLineup lineup, long snapshotGeneration) {
+        logger.entry(lineup.LINEUP_NAME, snapshotGeneration);
+
+        generation = snapshotGeneration;
+        recordCount = 0;
+        lastSettings = getSettings(lineup);
+
+        try (RandomAccessFile journal = new RandomAccessFile(FILE_NAME, "rw")) {
+            journal.setLength(0);
+            journal.writeInt(MAGIC);
+            journal.writeLong(snapshotGeneration);
+            journal.getFD().sync();
+        } catch (IOException e) {
+            // The old journal will be ignored on the next load because its generation no longer
+            // matches the properties file.
+            logger.error("Unable to start over the journal for the lineup '{}' => ",
+                    LINEUP_NAME, e);
+            valid = false;
+            return logger.exit(false);
+        }
+
+        valid = true;
+        return logger.exit(true);
+    }
+
+    /**
+     * Delete this journal.
+     *
+     * @return <i>true</i> if the journal does not exist anymore.
+     */
+    public synchronized boolean delete() {
+        File file = new File(FILE_NAME);
+        valid = false;
+
+        return !file.exists() || file.delete();
+    }
+
+    private void applyRecord(ChannelLineup lineup, byte payload[]) throws Exception {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = inputStream.readByte();
+        String values[] = new String[inputStream.readUnsignedShort()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = inputStream.readBoolean() ? inputStream.readUTF() : null;
+        }
+
+        switch (type) {
+            case CHANNEL_RECORD:
+                lineup.addChannel(new TVChannelImpl(values));
+                break;
+            case REMOVE_RECORD:
+                lineup.removeChannel(values[0]);
+                break;
+            case SCAN_RECORD:
+                lineup.addScanRecord(new ChannelScanRecord(values));
+                break;
+            case SETTINGS_RECORD:
+                lineup.setFriendlyName(values[0]);
+                lineup.setAddress(values[1]);
+                lineup.setUpdateInterval(Long.parseLong(values[2]));
+                lineup.setOfflineUpdateInterval(Long.parseLong(values[3]));
+                break;
+            default:
+                logger.warn("Skipping unknown journal record type {}.", type);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte type, String... values) throws IOException {
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadStream);
+
+        payload.writeByte(type);
+        payload.writeShort(values.length);
+
+        for (String value : values) {
+            payload.writeBoolean(value != null);
+
+            if (value != null) {
+                payload.writeUTF(value);
+            }
+        }
+
+        payload.flush();
+        byte bytes[] = payloadStream.toByteArray();
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+
+        DataOutputStream record = new DataOutputStream(records);
+        record.writeInt(bytes.length);
+        record.writeInt((int) crc32.getValue());
+        record.write(bytes);
+        record.flush();
+    }
+
+    private static String[] getSettings(ChannelLineup lineup) {
+        return new String[]{
+                lineup.getFriendlyName(),
+                lineup.getAddress(),
+                String.valueOf(lineup.getUpdateInterval()),
+                String.valueOf(lineup.getOfflineUpdateInterval())
+        };
+    }
+}
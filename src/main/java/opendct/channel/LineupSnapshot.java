@@ -0,0 +1,352 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A binary copy of a channel lineup properties file that can be loaded much faster than the
+ * properties file.
+ * <p/>
+ * The snapshot is written every time the entire lineup is written to its properties file. It
+ * contains the size and modification time of the properties file it was written with, so if the
+ * properties file was changed by anything else, the snapshot is not used. The snapshot also
+ * contains a checksum of the channel values in the properties file so the properties file can be
+ * compared with the snapshot later without delaying startup.
+ * <p/>
+ * Every value is stored as a length followed by UTF-8 bytes and the entire file is followed by a
+ * CRC32, so the file can be memory-mapped and read without any copying or parsing of text.
+ */
+public class LineupSnapshot {
+    private static final Logger logger = LogManager.getLogger(LineupSnapshot.class);
+
+    private static final int MAGIC = 0x4F44534E; // ODSN
+    private static final int VERSION = 1;
+
+    public final ChannelLineup LINEUP;
+    public final long GENERATION;
+    public final long PROPERTIES_CHECKSUM;
+
+    private LineupSnapshot(ChannelLineup lineup, long generation, long propertiesChecksum) {
+        LINEUP = lineup;
+        GENERATION = generation;
+        PROPERTIES_CHECKSUM = propertiesChecksum;
+    }
+
+    public static String getFileName(String lineupName) {
+        return Config.getConfigDirectory() + Config.DIR_SEPARATOR + "lineup" +
+                Config.DIR_SEPARATOR + lineupName + ".snapshot";
+    }
+
+    /**
+     * Get a checksum of the channels and scan records in a lineup properties file.
+     *
+     * @param channels The values returned by <b>ConfigBag.getAllByRootKey("channel.")</b>.
+     * @param scans The values returned by <b>ConfigBag.getAllByRootKey("scan.")</b>.
+     * @return The checksum.
+     */
+    public static long getPropertiesChecksum(Map<String, String> channels, Map<String, String> scans) {
+        CRC32 crc32 = new CRC32();
+
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(channels).entrySet()) {
+            crc32.update(("channel." + entry.getKey() + "=" + entry.getValue() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(scans).entrySet()) {
+            crc32.update(("scan." + entry.getKey() + "=" + entry.getValue() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        return crc32.getValue();
+    }
+
+    /**
+     * Write a snapshot of a lineup right after it was written to its properties file.
+     * <p/>
+     * The snapshot is written to a temporary file that then replaces the old snapshot. If the
+     * snapshot can't be written, the old snapshot is deleted since it no longer matches the
+     * properties file.
+     *
+     * @param lineup This is the lineup.
+     * @param channels These are the channels that were written to the properties file.
+     * @param scanRecords These are the scan records that were written to the properties file.
+     * @param generation This is the generation that was written to the properties file.
+     * @param propertiesFile This is the properties file that was just written.
+     * @param propertiesChecksum This is the checksum of the channels in the properties file.
+     * @return <i>true</i> if the snapshot was written.
+     */
+    public static boolean write(ChannelLineup lineup, Collection<TVChannel> channels,
+                                Collection<ChannelScanRecord> scanRecords, long generation,
+                                File propertiesFile, long propertiesChecksum) {
+
+        logger.entry(lineup.LINEUP_NAME, generation);
+
+        File file = new File(getFileName(lineup.LINEUP_NAME));
+        File fileTemp = new File(file.getPath() + ".tmp");
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(generation);
+            buffer.putLong(propertiesFile.length());
+            buffer.putLong(propertiesFile.lastModified());
+            buffer.putLong(propertiesChecksum);
+
+            buffer = putString(buffer, lineup.getFriendlyName());
+            buffer = putString(buffer, lineup.getAddress());
+            buffer = putString(buffer, String.valueOf(lineup.SOURCE));
+            buffer = ensureCapacity(buffer, 20);
+            buffer.putLong(lineup.getUpdateInterval());
+            buffer.putLong(lineup.getOfflineUpdateInterval());
+
+            buffer.putInt(channels.size());
+            for (TVChannel tvChannel : channels) {
+                buffer = putStrings(buffer, tvChannel.getProperties());
+            }
+
+            buffer = ensureCapacity(buffer, 4);
+            buffer.putInt(scanRecords.size());
+            for (ChannelScanRecord scanRecord : scanRecords) {
+                buffer = putStrings(buffer, scanRecord.getProperties());
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer.array(), 0, buffer.position());
+            buffer = ensureCapacity(buffer, 8);
+            buffer.putLong(crc32.getValue());
+
+            try (FileOutputStream outputStream = new FileOutputStream(fileTemp)) {
+                outputStream.write(buffer.array(), 0, buffer.position());
+                outputStream.getFD().sync();
+            }
+
+            try {
+                Files.move(fileTemp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception e) {
+            logger.error("Unable to write the snapshot for the lineup '{}' => ",
+                    lineup.LINEUP_NAME, e);
+
+            fileTemp.delete();
+            file.delete();
+            return logger.exit(false);
+        }
+
+        return logger.exit(true);
+    }
+
+    /**
+     * Read the snapshot of a lineup.
+     *
+     * @param lineupName This is the name of the lineup.
+     * @return The snapshot or <i>null</i> if the snapshot does not exist, is damaged or does not
+     *         match the properties file of the lineup.
+     */
+    public static LineupSnapshot read(String lineupName) {
+        logger.entry(lineupName);
+
+        File file = new File(getFileName(lineupName));
+        File propertiesFile = new File(file.getParent(), lineupName + ".properties");
+
+        if (!file.exists() || !propertiesFile.exists()) {
+            return logger.exit(null);
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+
+            long size = fileChannel.size();
+
+            if (size < 48 || size > Integer.MAX_VALUE) {
+                logger.warn("The snapshot for the lineup '{}' is not a valid size.", lineupName);
+                return logger.exit(null);
+            }
+
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc32 = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            content.limit((int) size - 8);
+            byte chunk[] = new byte[8192];
+
+            while (content.hasRemaining()) {
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                crc32.update(chunk, 0, length);
+            }
+
+            if (crc32.getValue() != buffer.getLong((int) size - 8)) {
+                logger.warn("The snapshot for the lineup '{}' is damaged.", lineupName);
+                return logger.exit(null);
+            }
+
+            buffer.limit((int) size - 8);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                logger.info("The snapshot for the lineup '{}' is not a supported version.", lineupName);
+                return logger.exit(null);
+            }
+
+            long generation = buffer.getLong();
+            long propertiesLength = buffer.getLong();
+            long propertiesModified = buffer.getLong();
+            long propertiesChecksum = buffer.getLong();
+
+            if (propertiesLength != propertiesFile.length() ||
+                    propertiesModified != propertiesFile.lastModified()) {
+
+                logger.info("The properties file for the lineup '{}' was changed after the" +
+                        " snapshot was written.", lineupName);
+                return logger.exit(null);
+            }
+
+            String friendlyName = getString(buffer);
+            String address = getString(buffer);
+            ChannelSourceType sourceType = ChannelSourceType.valueOf(getString(buffer));
+            long updateInterval = buffer.getLong();
+            long offlineUpdateInterval = buffer.getLong();
+
+            ChannelLineup lineup = new ChannelLineup(lineupName, friendlyName, sourceType, address,
+                    updateInterval, offlineUpdateInterval);
+
+            int channels = buffer.getInt();
+            for (int i = 0; i < channels; i++) {
+                lineup.addChannel(new TVChannelImpl(getStrings(buffer)));
+            }
+
+            int scanRecords = buffer.getInt();
+            for (int i = 0; i < scanRecords; i++) {
+                lineup.addScanRecord(new ChannelScanRecord(getStrings(buffer)));
+            }
+
+            return logger.exit(new LineupSnapshot(lineup, generation, propertiesChecksum));
+        } catch (BufferUnderflowException e) {
+            logger.warn("The snapshot for the lineup '{}' is incomplete.", lineupName);
+        } catch (Exception e) {
+            logger.error("Unable to read the snapshot for the lineup '{}' => ", lineupName, e);
+        }
+
+        return logger.exit(null);
+    }
+
+    /**
+     * Delete the snapshot of a lineup.
+     *
+     * @param lineupName This is the name of the lineup.
+     * @return <i>true</i> if the snapshot does not exist anymore.
+     */
+    public static boolean delete(String lineupName) {
+        File file = new File(getFileName(lineupName));
+
+        return !file.exists() || file.delete();
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int length) {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        newBuffer.put(buffer);
+
+        return newBuffer;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer = ensureCapacity(buffer, 4);
+            buffer.putInt(-1);
+            return buffer;
+        }
+
+        byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensureCapacity(buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+
+        return buffer;
+    }
+
+    private static ByteBuffer putStrings(ByteBuffer buffer, String values[]) {
+        buffer = ensureCapacity(buffer, 4);
+        buffer.putInt(values.length);
+
+        for (String value : values) {
+            buffer = putString(buffer, value);
+        }
+
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte bytes[] = new byte[length];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] getStrings(ByteBuffer buffer) {
+        int length = buffer.getInt();
+
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String values[] = new String[length];
+
+        for (int i = 0; i < length; i++) {
+            values[i] = getString(buffer);
+        }
+
+        return values;
+    }
+}
@@ -18,12 +18,16 @@ package opendct.channel;
 
 import opendct.capture.CaptureDevice;
 import opendct.capture.CaptureDeviceType;
+import opendct.config.Config;
 import opendct.sagetv.SageTVManager;
+import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -46,6 +50,21 @@ public class OfflineChannelScan {
     private int totalCaptureDevices = 0;
     private ArrayList<TVChannel> scannedChannels = new ArrayList<TVChannel>();
     private final Object scannedChannelsLock = new Object();
+    private final ConcurrentHashMap<TVChannel, Integer> failedAttempts = new ConcurrentHashMap<TVChannel, Integer>();
+    private final ConcurrentHashMap<String, Boolean> failedChannels = new ConcurrentHashMap<String, Boolean>();
+
+    // A channel is given up on after it fails this many times on capture devices that were not
+    // in use.
+    private static final int MAX_ATTEMPTS = 10;
+
+    // A worker without anything to scan checks for groups put back by other workers this often.
+    // The interval doubles every time nothing is found up to the maximum.
+    private static final long MIN_IDLE_DELAY = 100;
+    private static final long MAX_IDLE_DELAY = 5000;
+
+    // This is the shortest delay between channels on a capture device that is responding well.
+    private final long minScanDelay =
+            Math.max(Config.getLong("channel.offline_scan.min_delay_ms", 100), 0);
 
     public final String SCAN_NAME;
     public final CaptureDeviceType[] CAPTURE_DEVICE_TYPES;
@@ -210,6 +229,16 @@ public class OfflineChannelScan {
         }
     }
 
+    /**
+     * Was the channel unable to be scanned?
+     *
+     * @param channel This is the channel.
+     * @return <i>true</i> if every attempt to scan the channel in the current/last scan failed.
+     */
+    public boolean isFailed(String channel) {
+        return failedChannels.containsKey(channel);
+    }
+
     /**
      * Get the numer of channels remaining to be scanned.
      *
@@ -292,8 +321,6 @@ public class OfflineChannelScan {
             }
         }
 
-        final ArrayBlockingQueue<CaptureDevice> captureDevices = new ArrayBlockingQueue<CaptureDevice>(devices.size());
-
         boolean devicesUnlocked = false;
 
         // Since we separate ClearQAM from CableCARD we can safely assume all
@@ -303,14 +330,6 @@ public class OfflineChannelScan {
             if (!device.isLocked()) {
                 devicesUnlocked = true;
             }
-
-            try {
-                captureDevices.put(device);
-            } catch (InterruptedException e) {
-                logger.debug("Offline channel scan was interrupted.");
-                running.set(false);
-                return logger.exit(false);
-            }
         }
 
         // If there are no capture devices that will be able to do the scan right this instant,
@@ -321,98 +340,59 @@ public class OfflineChannelScan {
             return logger.exit(false);
         }
 
-        executorService = Executors.newFixedThreadPool(devices.size());
+        // Every capture device gets its own worker and the monitor needs a thread too.
+        executorService = Executors.newFixedThreadPool(devices.size() + 1);
         totalCaptureDevices = devices.size();
 
         completeLatch = new CountDownLatch(channels.length);
         totalChannels = channels.length;
         scannedChannels.clear();
+        failedAttempts.clear();
+        failedChannels.clear();
 
         complete = false;
         stop = false;
 
-        // After this point, if we don't register with the channel manager, we cannot correctly stop
-        // things if need to suspend or shutdown.
-        ChannelManager.addOfflineChannelScan(this);
-
-        for (final TVChannel channel : channels) {
-
-            executorService.submit(new Runnable() {
-                public void run() {
-                    Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-                    Thread.currentThread().setName(SCAN_NAME + "-" + channel.getChannel() + "-" + Thread.currentThread().getId() + ":Unknown");
-
-                    boolean result = false;
-                    CaptureDevice captureDevice = null;
-
-                    if (stop) {
-                        executorService.shutdown();
-                        while (completeLatch.getCount() > 0) {
-                            completeLatch.countDown();
-                        }
-                    }
+        // Channels on the same frequency are kept together so they are scanned one after the other
+        // by the same capture device. The groups are dealt out to the workers evenly and a worker
+        // that runs out of groups takes groups from the end of another worker's queue.
+        LinkedHashMap<String, ArrayList<TVChannel>> frequencyGroups = new LinkedHashMap<String, ArrayList<TVChannel>>();
 
+        for (TVChannel channel : channels) {
+            String frequency = channel.getFrequency();
+            String key = Util.isNullOrEmpty(frequency) ? "channel:" + channel.getChannel() : frequency;
+            ArrayList<TVChannel> frequencyGroup = frequencyGroups.get(key);
 
-                    int retry = 10;
-                    while (!result && !stop && retry-- > 0) {
-                        try {
-                            captureDevice = captureDevices.take();
-                        } catch (InterruptedException e) {
-                            logger.debug("The offline channel scan has been interrupted => ", e);
-                            stop = true;
-                            completeLatch.countDown();
-                            break;
-                        }
+            if (frequencyGroup == null) {
+                frequencyGroup = new ArrayList<TVChannel>();
+                frequencyGroups.put(key, frequencyGroup);
+            }
 
-                        Thread.currentThread().setName(SCAN_NAME + "-" + channel.getChannel() + "-" + Thread.currentThread().getId() + ":" + captureDevice.getEncoderName());
+            frequencyGroup.add(channel);
+        }
 
-                        try {
-                            Thread.sleep(scanDelay);
-                        } catch (InterruptedException e) {
-                            logger.debug("The offline channel scan has been interrupted => ", e);
-                            stop = true;
-                            completeLatch.countDown();
-                            break;
-                        }
+        final ArrayList<ConcurrentLinkedDeque<ArrayList<TVChannel>>> workQueues =
+                new ArrayList<ConcurrentLinkedDeque<ArrayList<TVChannel>>>(devices.size());
 
-                        if (!captureDevice.isLocked()) {
-                            logger.info("Scanning the channel '{}' ({}).", channel.getChannel(), channel.getName());
-                            result = captureDevice.getChannelInfoOffline(channel);
-                        } else {
-                            // If the device is locked, it's not really fair to call this a failure.
-                            retry++;
-                        }
+        for (int i = 0; i < devices.size(); i++) {
+            workQueues.add(new ConcurrentLinkedDeque<ArrayList<TVChannel>>());
+        }
 
-                        try {
-                            captureDevices.put(captureDevice);
-                        } catch (InterruptedException e) {
-                            logger.debug("The offline channel scan has been interrupted => ", e);
-                            stop = true;
-                            completeLatch.countDown();
-                            break;
-                        }
-                    }
+        int nextQueue = 0;
+        for (ArrayList<TVChannel> frequencyGroup : frequencyGroups.values()) {
+            workQueues.get(nextQueue++ % workQueues.size()).addLast(frequencyGroup);
+        }
 
-                    if (retry == 0) {
-                        logger.error("Unable to Scan channel {} ({}).", channel.getChannel(), channel.getName());
-                        channel.setTunable(false);
-                        addScannedChannel(channel);
-                    } else if (!stop) {
-                        logger.info("Scanned channel {} ({}). Signal strength is now '{}', CCI is now '{}' and tunable is now '{}'.", channel.getChannel(), channel.getName(), channel.getSignalStrength(), channel.getCci(), channel.isTunable());
-                        addScannedChannel(channel);
-                    }
+        logger.info("Scanning {} channels on {} frequencies using {} capture devices.",
+                channels.length, frequencyGroups.size(), devices.size());
 
-                    completeLatch.countDown();
+        // After this point, if we don't register with the channel manager, we cannot correctly stop
+        // things if need to suspend or shutdown.
+        ChannelManager.addOfflineChannelScan(this);
 
-                    // This will free up the completion CountDownLatch if it's waiting.
-                    if (stop) {
-                        executorService.shutdown();
-                        while (completeLatch.getCount() > 0) {
-                            completeLatch.countDown();
-                        }
-                    }
-                }
-            });
+        int workerIndex = 0;
+        for (CaptureDevice device : devices) {
+            executorService.submit(new ScanWorker(device, workerIndex++, workQueues, scanDelay));
         }
 
         // This is the always the last thread to stop because it waits for all other thread to
@@ -450,6 +430,145 @@ public class OfflineChannelScan {
         return logger.exit(true);
     }
 
+    /**
+     * Stop every worker and release anything waiting for the scan to complete.
+     */
+    private void abortScan() {
+        stop = true;
+        executorService.shutdown();
+
+        while (completeLatch.getCount() > 0) {
+            completeLatch.countDown();
+        }
+    }
+
+    /**
+     * Scans channels on one capture device until every channel has been scanned.
+     * <p/>
+     * The delay between channels adapts to how quickly the capture device responds. A capture
+     * device that scans channels quickly waits a quarter of its average scan time, but never longer
+     * than the requested scan delay. Every failure doubles the delay up to four times the requested
+     * scan delay so a struggling capture device is not overwhelmed.
+     */
+    private class ScanWorker implements Runnable {
+        private final CaptureDevice captureDevice;
+        private final int workerIndex;
+        private final List<ConcurrentLinkedDeque<ArrayList<TVChannel>>> workQueues;
+        private final long scanDelay;
+
+        private long delay = 0;
+        private long averageResponse = -1;
+
+        private ScanWorker(CaptureDevice captureDevice, int workerIndex, List<ConcurrentLinkedDeque<ArrayList<TVChannel>>> workQueues, long scanDelay) {
+            this.captureDevice = captureDevice;
+            this.workerIndex = workerIndex;
+            this.workQueues = workQueues;
+            this.scanDelay = scanDelay;
+        }
+
+        public void run() {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            Thread.currentThread().setName(SCAN_NAME + "-" + Thread.currentThread().getId() + ":" + captureDevice.getEncoderName());
+
+            ConcurrentLinkedDeque<ArrayList<TVChannel>> ownQueue = workQueues.get(workerIndex);
+
+            try {
+                long idleDelay = 0;
+
+                // A worker can't stop when the queues are empty because another worker could
+                // still put back the rest of a group when its capture device is in use or fails a
+                // channel.
+                while (!stop && completeLatch.getCount() > 0) {
+                    ArrayList<TVChannel> frequencyGroup = takeFrequencyGroup();
+
+                    if (frequencyGroup == null) {
+                        idleDelay = Math.min(Math.max(idleDelay * 2, MIN_IDLE_DELAY), MAX_IDLE_DELAY);
+                        Thread.sleep(idleDelay);
+                        continue;
+                    }
+
+                    idleDelay = 0;
+                    int index = 0;
+
+                    while (!stop && index < frequencyGroup.size()) {
+                        TVChannel channel = frequencyGroup.get(index);
+
+                        Thread.sleep(delay);
+
+                        if (captureDevice.isLocked() || captureDevice.isExternalLocked()) {
+                            // Let a capture device that isn't in use take the rest of the group.
+                            // If it's not taken, this worker will get it back once it runs out.
+                            ownQueue.addLast(new ArrayList<TVChannel>(frequencyGroup.subList(index, frequencyGroup.size())));
+                            Thread.sleep(scanDelay);
+                            break;
+                        }
+
+                        logger.info("Scanning the channel '{}' ({}).", channel.getChannel(), channel.getName());
+
+                        long startTime = System.currentTimeMillis();
+                        boolean result = captureDevice.getChannelInfoOffline(channel);
+                        long responseTime = System.currentTimeMillis() - startTime;
+
+                        if (result) {
+                            averageResponse = averageResponse < 0 ? responseTime : (averageResponse * 3 + responseTime) / 4;
+                            delay = Math.max(minScanDelay, Math.min(scanDelay, averageResponse / 4));
+
+                            logger.info("Scanned channel {} ({}). Signal strength is now '{}', CCI is now '{}' and tunable is now '{}'.", channel.getChannel(), channel.getName(), channel.getSignalStrength(), channel.getCci(), channel.isTunable());
+                            addScannedChannel(channel);
+                            completeLatch.countDown();
+                            index += 1;
+                            continue;
+                        }
+
+                        // If the device is locked, it's not really fair to call this a failure.
+                        if (captureDevice.isLocked()) {
+                            continue;
+                        }
+
+                        delay = Math.min(Math.max(delay * 2, minScanDelay), scanDelay * 4);
+
+                        Integer attempts = failedAttempts.get(channel);
+                        attempts = attempts == null ? 1 : attempts + 1;
+                        failedAttempts.put(channel, attempts);
+
+                        if (attempts >= MAX_ATTEMPTS) {
+                            logger.error("Unable to Scan channel {} ({}).", channel.getChannel(), channel.getName());
+                            channel.setTunable(false);
+                            failedChannels.put(channel.getChannel(), true);
+                            addScannedChannel(channel);
+                            completeLatch.countDown();
+                            index += 1;
+                            continue;
+                        }
+
+                        // Give another capture device a chance to try the rest of the group.
+                        ownQueue.addLast(new ArrayList<TVChannel>(frequencyGroup.subList(index, frequencyGroup.size())));
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("The offline channel scan has been interrupted => ", e);
+                stop = true;
+            }
+
+            // This will free up the completion CountDownLatch if it's waiting.
+            if (stop) {
+                abortScan();
+            }
+        }
+
+        // Take the next group from this worker's queue or the last group from another worker.
+        private ArrayList<TVChannel> takeFrequencyGroup() {
+            ArrayList<TVChannel> frequencyGroup = workQueues.get(workerIndex).pollFirst();
+
+            for (int i = 1; frequencyGroup == null && i < workQueues.size(); i++) {
+                frequencyGroup = workQueues.get((workerIndex + i) % workQueues.size()).pollLast();
+            }
+
+            return frequencyGroup;
+        }
+    }
+
     /**
      * Call this method to block until the channel scan has completed.
      *
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import opendct.config.ConfigBag;
+import opendct.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the frequency, modulation, program and PIDs that were last seen when a channel was
+ * tuned successfully.
+ * <p/>
+ * When a channel has a fresh entry, the capture device can tune the frequency and program
+ * directly and give the consumer the program and PIDs without waiting for the device to report
+ * them. The values are still checked against the device after the stream has started, and an
+ * entry that doesn't match is removed so the next tuning discovers the values again.
+ */
+public class TuningCache {
+    private static final Logger logger = LogManager.getLogger(TuningCache.class);
+
+    private static final boolean enabled =
+            Config.getBoolean("channel.tuning_cache.enabled", true);
+
+    // This is how long a channel can go without being verified before its values are no longer
+    // trusted.
+    private static final long ttl =
+            Math.max(Config.getLong("channel.tuning_cache.ttl_ms", 43200000), 0);
+
+    private static final ConcurrentHashMap<String, TuningInfo> cache =
+            new ConcurrentHashMap<String, TuningInfo>();
+
+    private static final AtomicBoolean changed = new AtomicBoolean(false);
+
+    /**
+     * The values seen the last time a channel was tuned.
+     */
+    public static class TuningInfo {
+        public final String MODULATION;
+        public final String FREQUENCY;
+        public final int PROGRAM;
+        public final int PIDS[];
+        public final long VERIFIED;
+
+        public TuningInfo(String modulation, String frequency, int program, int pids[], long verified) {
+            MODULATION = modulation;
+            FREQUENCY = frequency;
+            PROGRAM = program;
+            PIDS = pids;
+            VERIFIED = verified;
+        }
+
+        /**
+         * Can the frequency and program be tuned directly?
+         *
+         * @return <i>true</i> if the frequency and modulation are known.
+         */
+        public boolean isDirectTunable() {
+            return !Util.isNullOrEmpty(MODULATION) && !Util.isNullOrEmpty(FREQUENCY) && PROGRAM > 0;
+        }
+
+        /**
+         * Check if this entry doesn't contradict the values in a channel lineup.
+         * <p/>
+         * Values that are missing from the lineup are not compared.
+         *
+         * @param tvChannel The channel from the lineup.
+         * @return <i>false</i> if the lineup has a different frequency or program.
+         */
+        public boolean isConsistent(TVChannel tvChannel) {
+            if (tvChannel == null) {
+                return true;
+            }
+
+            String frequency = tvChannel.getFrequency();
+            if (isKnown(frequency) && FREQUENCY != null && !frequency.equals(FREQUENCY)) {
+                return false;
+            }
+
+            String program = tvChannel.getProgram();
+            if (isKnown(program) && !program.equals(String.valueOf(PROGRAM))) {
+                return false;
+            }
+
+            return true;
+        }
+
+        private static boolean isKnown(String value) {
+            return !Util.isNullOrEmpty(value) && !value.equals("-1") && !value.equals("0");
+        }
+    }
+
+    /**
+     * Get the cached values for a channel if they were verified within the TTL.
+     *
+     * @param lineupName This is the lineup of the channel.
+     * @param channel This is the channel.
+     * @return The cached values or <i>null</i> if there are no fresh values.
+     */
+    public static TuningInfo getFresh(String lineupName, String channel) {
+        if (!enabled || lineupName == null || channel == null) {
+            return null;
+        }
+
+        TuningInfo tuningInfo = cache.get(getKey(lineupName, channel));
+
+        if (tuningInfo == null || System.currentTimeMillis() - tuningInfo.VERIFIED > ttl) {
+            return null;
+        }
+
+        return tuningInfo;
+    }
+
+    /**
+     * Remember the values of a channel that was just tuned successfully.
+     *
+     * @param lineupName This is the lineup of the channel.
+     * @param channel This is the channel.
+     * @param modulation This is the modulation or <i>null</i> if it is not known.
+     * @param frequency This is the frequency or <i>null</i> if it is not known.
+     * @param program This is the program.
+     * @param pids These are the PIDs.
+     */
+    public static void put(String lineupName, String channel, String modulation, String frequency, int program, int pids[]) {
+        if (!enabled || lineupName == null || channel == null || program <= 0 || pids == null || pids.length <= 1) {
+            return;
+        }
+
+        cache.put(getKey(lineupName, channel),
+                new TuningInfo(modulation, frequency, program, pids, System.currentTimeMillis()));
+
+        changed.set(true);
+    }
+
+    /**
+     * Check the values of a channel that was tuned using the cache.
+     * <p/>
+     * If they match, the entry is verified again. If they don't match, the entry is removed.
+     *
+     * @param lineupName This is the lineup of the channel.
+     * @param channel This is the channel.
+     * @param tuningInfo These are the values that were used to tune the channel.
+     * @param program This is the program reported by the device.
+     * @param pids These are the PIDs reported by the device.
+     * @return <i>true</i> if the values match.
+     */
+    public static boolean verify(String lineupName, String channel, TuningInfo tuningInfo, int program, int pids[]) {
+        if (tuningInfo.PROGRAM == program && Arrays.equals(tuningInfo.PIDS, pids)) {
+            put(lineupName, channel, tuningInfo.MODULATION, tuningInfo.FREQUENCY, program, pids);
+            return true;
+        }
+
+        logger.info("The cached program '{}' and PIDs {} for the channel '{}' on the lineup '{}'" +
+                        " do not match the program '{}' and PIDs {} reported by the device.",
+                tuningInfo.PROGRAM, Arrays.toString(tuningInfo.PIDS), channel, lineupName,
+                program, Arrays.toString(pids));
+
+        invalidate(lineupName, channel);
+        return false;
+    }
+
+    /**
+     * Forget the values of a channel.
+     *
+     * @param lineupName This is the lineup of the channel.
+     * @param channel This is the channel.
+     */
+    public static void invalidate(String lineupName, String channel) {
+        if (lineupName == null || channel == null) {
+            return;
+        }
+
+        if (cache.remove(getKey(lineupName, channel)) != null) {
+            changed.set(true);
+        }
+    }
+
+    /**
+     * Load the cache from the configuration directory.
+     */
+    public static void load() {
+        if (!enabled) {
+            return;
+        }
+
+        ConfigBag configBag = new ConfigBag("tuning_cache", false);
+
+        if (!configBag.loadConfig()) {
+            return;
+        }
+
+        HashMap<String, String> entries = configBag.getAllByRootKey("channel.");
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String values[] = Util.getStringArrayFromCSV(entry.getValue());
+
+            if (values.length < 6) {
+                continue;
+            }
+
+            try {
+                int pids[] = new int[values.length - 4];
+
+                for (int i = 0; i < pids.length; i++) {
+                    pids[i] = Integer.parseInt(values[i + 4]);
+                }
+
+                cache.put(entry.getKey(), new TuningInfo(
+                        values[0].equals("") ? null : values[0],
+                        values[1].equals("") ? null : values[1],
+                        Integer.parseInt(values[2]),
+                        pids,
+                        Long.parseLong(values[3])));
+            } catch (NumberFormatException e) {
+                logger.warn("Unable to load the cached tuning values for '{}' => {}",
+                        entry.getKey(), e);
+            }
+        }
+
+        logger.debug("Loaded {} cached channel tuning values.", cache.size());
+    }
+
+    /**
+     * Save the cache to the configuration directory if it changed.
+     * <p/>
+     * Entries that are no longer fresh are not saved.
+     *
+     * @return <i>true</i> if the cache was saved or didn't need to be saved.
+     */
+    public static boolean save() {
+        if (!enabled || !changed.getAndSet(false)) {
+            return true;
+        }
+
+        ConfigBag configBag = new ConfigBag("tuning_cache", false);
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, TuningInfo> entry : cache.entrySet()) {
+            TuningInfo tuningInfo = entry.getValue();
+
+            if (now - tuningInfo.VERIFIED > ttl) {
+                cache.remove(entry.getKey(), tuningInfo);
+                continue;
+            }
+
+            String values[] = new String[4 + tuningInfo.PIDS.length];
+            values[0] = tuningInfo.MODULATION == null ? "" : tuningInfo.MODULATION;
+            values[1] = tuningInfo.FREQUENCY == null ? "" : tuningInfo.FREQUENCY;
+            values[2] = String.valueOf(tuningInfo.PROGRAM);
+            values[3] = String.valueOf(tuningInfo.VERIFIED);
+
+            for (int i = 0; i < tuningInfo.PIDS.length; i++) {
+                values[i + 4] = String.valueOf(tuningInfo.PIDS[i]);
+            }
+
+            configBag.setStringArray("channel." + entry.getKey(), values);
+        }
+
+        if (!configBag.saveConfig()) {
+            changed.set(true);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static String getKey(String lineupName, String channel) {
+        return lineupName + "|" + channel;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel.http;
+
+import opendct.channel.ChannelLineup;
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads channel maps from capture devices only when they have changed.
+ * <p/>
+ * The validators returned by the device are sent back with the next request so a device that
+ * supports conditional requests doesn't need to send the channel map again. Devices that don't
+ * support conditional requests still send the entire channel map, but it is compared with a
+ * checksum of the last channel map that was merged into a lineup, so an unchanged channel map
+ * doesn't need to be parsed and merged again.
+ */
+public class ChannelMapDownloader {
+    private static final Logger logger = LogManager.getLogger(ChannelMapDownloader.class);
+
+    private static final int timeout =
+            Config.getInteger("channels.http.timeout_ms", 15000);
+
+    // This is used to map a lineup and the URL of a channel map to the last version merged into
+    // that lineup. Lineups can use the same URL, so each lineup must see the changes itself.
+    private static final ConcurrentHashMap<String, Download> lastMerged =
+            new ConcurrentHashMap<String, Download>();
+
+    /**
+     * A downloaded channel map.
+     */
+    public static class Download {
+        public final String URL;
+        public final long CHECKSUM;
+        public final int LENGTH;
+        private final byte content[];
+        private final String eTag;
+        private final String lastModified;
+
+        private Download(String url, byte content[], int length, long checksum, String eTag, String lastModified) {
+            URL = url;
+            CHECKSUM = checksum;
+            LENGTH = length;
+            this.content = content;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * The downloaded bytes.
+         * <p/>
+         * The array is not copied and can be longer than <b>LENGTH</b>.
+         *
+         * @return The downloaded bytes.
+         */
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * Download a channel map if it changed since it was last merged into a lineup.
+     *
+     * @param lineup This is the lineup the channel map will be merged into.
+     * @param url This is the URL of the channel map.
+     * @param force <i>true</i> to download and return the channel map even if it has not changed.
+     * @return The channel map or <i>null</i> if it has not changed.
+     * @throws IOException If the channel map could not be downloaded.
+     */
+    public static Download download(ChannelLineup lineup, URL url, boolean force) throws IOException {
+        logger.entry(lineup.LINEUP_NAME, url, force);
+
+        Download previous = force ? null : lastMerged.get(getKey(lineup, url.toString()));
+        HttpURLConnection httpURLConnection = null;
+
+        try {
+            httpURLConnection = (HttpURLConnection) url.openConnection();
+            httpURLConnection.setRequestMethod("GET");
+            httpURLConnection.setConnectTimeout(timeout);
+            httpURLConnection.setReadTimeout(timeout);
+
+            if (previous != null) {
+                if (previous.eTag != null) {
+                    httpURLConnection.setRequestProperty("If-None-Match", previous.eTag);
+                }
+
+                if (previous.lastModified != null) {
+                    httpURLConnection.setRequestProperty("If-Modified-Since", previous.lastModified);
+                }
+            }
+
+            httpURLConnection.connect();
+
+            if (httpURLConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                logger.debug("The channel map at '{}' was not modified.", url);
+                return logger.exit(null);
+            }
+
+            int contentLength = httpURLConnection.getContentLength();
+            byte content[] = new byte[contentLength > 0 ? contentLength : 65536];
+            int length = 0;
+            CRC32 crc32 = new CRC32();
+
+            try (InputStream inputStream = httpURLConnection.getInputStream()) {
+                while (true) {
+                    if (length == content.length) {
+                        content = Arrays.copyOf(content, content.length * 2);
+                    }
+
+                    int read = inputStream.read(content, length, content.length - length);
+
+                    if (read == -1) {
+                        break;
+                    }
+
+                    crc32.update(content, length, read);
+                    length += read;
+                }
+            }
+
+            Download download = new Download(url.toString(), content, length, crc32.getValue(),
+                    httpURLConnection.getHeaderField("ETag"),
+                    httpURLConnection.getHeaderField("Last-Modified"));
+
+            if (previous != null && previous.LENGTH == length && previous.CHECKSUM == download.CHECKSUM) {
+                logger.debug("The channel map at '{}' has not changed.", url);
+                return logger.exit(null);
+            }
+
+            return logger.exit(download);
+        } finally {
+            if (httpURLConnection != null) {
+                try {
+                    httpURLConnection.disconnect();
+                } catch (Exception e) {
+                    logger.trace("Created an exception while disconnecting => ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember a channel map that was successfully merged into a lineup.
+     * <p/>
+     * Only call this after the merge is complete, so a failed merge is tried again on the next
+     * update.
+     *
+     * @param lineup This is the lineup the channel map was merged into.
+     * @param download The channel map returned by <b>download()</b>.
+     */
+    public static void merged(ChannelLineup lineup, Download download) {
+        // The content isn't needed to compare with the next download.
+        lastMerged.put(getKey(lineup, download.URL), new Download(download.URL, null,
+                download.LENGTH, download.CHECKSUM, download.eTag, download.lastModified));
+    }
+
+    private static String getKey(ChannelLineup lineup, String url) {
+        return lineup.LINEUP_NAME + "|" + url;
+    }
+}
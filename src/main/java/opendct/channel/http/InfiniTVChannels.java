@@ -23,11 +23,9 @@ import opendct.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -61,6 +59,12 @@ public class InfiniTVChannels {
                     "Modulation</th><th>Frequency (kHz)</th><th>Program</th><th>EIA</th></tr>";
     private static final String REQUEST_END = "</table>";
 
+    private static final byte REQUEST_START_BYTES[] = REQUEST_START.getBytes(StandardCharsets.UTF_8);
+    private static final byte REQUEST_END_BYTES[] = REQUEST_END.getBytes(StandardCharsets.UTF_8);
+    private static final byte ROW_START[] = "<tr><td>".getBytes(StandardCharsets.UTF_8);
+    private static final byte ROW_END[] = "</td></tr>".getBytes(StandardCharsets.UTF_8);
+    private static final byte CELL_SEPARATOR[] = "</td><td>".getBytes(StandardCharsets.UTF_8);
+
     // Default is every 8 hours. That should be frequent enough.
     private static long updateInterval = 28800000;
 
@@ -68,179 +72,92 @@ public class InfiniTVChannels {
     public static boolean populateChannels(ChannelLineup channelLineup) {
         logger.entry();
 
-        // Lock immediately.
-        channelMapLock.writeLock().lock();
-
-        boolean returnValue = true;
+        // If a valid address was provided in the configuration, it should resolve to an IP
+        // address. This makes sure that actually happened.
+        InetAddress ipAddress = channelLineup.getAddressIP();
+        if (ipAddress == null) {
+            return logger.exit(false);
+        }
 
-        HttpURLConnection httpURLConnection = null;
-        HashSet<String> newChannelList = new HashSet<String>();
+        ChannelMapDownloader.Download download;
 
         try {
-            // If a valid address was provided in the configuration, it should resolve to an IP
-            // address. This makes sure that actually happened.
-            InetAddress ipAddress = channelLineup.getAddressIP();
-            if (ipAddress == null) {
-                return logger.exit(false);
-            }
-
-
             URL url = new URL("http://" + ipAddress.getHostAddress() + ":80/view_channel_map.cgi?page=0");
             logger.info("Connecting to InfiniTV DCT using the URL '{}'", url);
 
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setRequestMethod("GET");
-            httpURLConnection.connect();
-            InputStreamReader inputStreamReader = new InputStreamReader(httpURLConnection.getInputStream());
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
+            // Always download the channel map if the lineup is empty since it might have been
+            // cleared since the last update.
+            download = ChannelMapDownloader.download(channelLineup, url, !channelLineup.hasChannels());
+        } catch (Exception e) {
+            logger.debug("Unable to download the channel map from InfiniTV => {}", e);
+            return logger.exit(false);
+        }
 
-            boolean parsing = false;
-            boolean ignore = false;
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                logger.trace("Parsing line '{}'.", line);
-                if (parsing) {
-                    // This should ensure we are probably working with the right data and
-                    // allows us to make some assumptions later.
-                    if (line.startsWith("<tr><td>") && line.contains("</td><td>") && line.endsWith("</td></tr>")) {
-                        String trim = line.substring("<tr><td>".length(), line.length() - "</th></tr>".length());
-                        String values[] = trim.split("</td><td>");
-
-                        if (values.length == 6) {
-                            // Check if the name is on the ignore list.
-                            ignore = false;
-                            for (String ignoreName : ignoreNamesContaining) {
-                                if (values[1].contains(ignoreName)) {
-                                    logger.debug("Skipping channel {} ({}) because it contains '{}'", values[0], values[1], ignoreName);
-                                    ignore = true;
-                                    break;
-                                }
-                            }
+        if (download == null) {
+            logger.info("The InfiniTV channel map for the lineup '{}' has not changed.",
+                    channelLineup.LINEUP_NAME);
+            return logger.exit(true);
+        }
 
-                            for (String ignoreChannel : ignoreChannelNumbers) {
-                                if (values[0].equals(ignoreChannel)) {
-                                    logger.debug("Skipping channel {} ({}) because the channel number is '{}'", values[0], values[1], ignoreChannel);
-                                    ignore = true;
-                                    break;
-                                }
-                            }
+        // Lock only while merging so other lineups can be downloaded at the same time.
+        channelMapLock.writeLock().lock();
 
-                            try {
-                                int channel = Integer.parseInt(values[0]);
-                                //name
-                                //modulation
-                                int frequency = -1;
-                                int program = -1;
-                                float eia = -1;
-                                try {
-                                    // If these can't be parsed, we likely can't use them in any way
-                                    // other than the VChannel number, but it could prevent us from
-                                    // storing a valid channel if the channel is tuned using SDV.
-
-                                    // Add 3 zeros to the end of the frequency to make it compliant
-                                    // with the HDHomeRun.
-                                    frequency = Integer.parseInt(values[3]) * 1000;
-                                    program = Integer.parseInt(values[4]);
-                                    eia = Float.parseFloat(values[5]);
-                                } catch (Exception e) {
-                                    logger.debug("Unable to parse the " +
-                                                    "frequency '{}', program '{}' or eia '{}'. " +
-                                                    "This may not be an actual problem, the " +
-                                                    "channel will still be added. => {}",
-                                            values[3], values[4], values[5], e);
-                                }
+        boolean returnValue = true;
 
-                                newChannelList.add(values[0]);
+        HashSet<String> newChannelList = new HashSet<String>();
 
-                                boolean isDuplicate = false;
+        try {
+            final byte content[] = download.getContent();
+            final int length = download.LENGTH;
 
+            boolean parsing = false;
+            int lineStart = 0;
 
-                                if (removeDuplicateChannels) {
-                                    isDuplicate = channelLineup.isDuplicate(values[0], values[1]);
+            // The rows are found and split directly in the downloaded bytes, so only the values
+            // in each row become Strings.
+            while (lineStart < length) {
+                int lineEnd = indexOf(content, lineStart, length, (byte) '\n');
+                int nextLine = lineEnd == -1 ? length : lineEnd + 1;
 
-                                    if (isDuplicate) {
-                                        try {
-                                            channelLineup.removeChannel(values[0]);
-                                        } catch (Exception e) {
-                                            logger.error("There was a problem removing the duplicate channel => ", e);
-                                        }
-                                    }
-                                }
+                if (lineEnd == -1) {
+                    lineEnd = length;
+                }
 
-                                if (!isDuplicate) {
-                                    TVChannel oldChannel = channelLineup.getChannel(values[0]);
-
-                                    boolean updated = false;
-
-                                    if (oldChannel == null) {
-                                        logger.debug("Adding new channel...");
-                                        TVChannelImpl infiniTVChannel = new TVChannelImpl(
-                                                values[0],
-                                                values[1],
-                                                values[2],
-                                                String.valueOf(frequency),
-                                                String.valueOf(program),
-                                                String.valueOf(eia),
-                                                ignore);
-
-                                        channelLineup.addChannel(infiniTVChannel);
-
-                                        updated = true;
-                                    } else {
-                                        if (!oldChannel.getModulation().equals(values[2])) {
-                                            oldChannel.setModulation(values[2]);
-                                            updated = true;
-                                        }
-
-                                        if (frequency > 0 && !oldChannel.getFrequency().equals(String.valueOf(frequency))) {
-                                            oldChannel.setFrequency(String.valueOf(frequency));
-                                            updated = true;
-                                        }
-
-                                        if (program > 0 && !oldChannel.getProgram().equals(String.valueOf(program))) {
-                                            oldChannel.setProgram(String.valueOf(program));
-                                            updated = true;
-                                        }
-
-                                        if (eia > 0 && !oldChannel.getEia().equals(String.valueOf(eia))) {
-                                            oldChannel.setEia(String.valueOf(eia));
-                                            updated = true;
-                                        }
-
-                                        if (oldChannel.isIgnore() != ignore) {
-                                            oldChannel.setIgnore(ignore);
-                                            updated = true;
-                                        }
-
-                                        if (updated) {
-                                            logger.debug("Updating channel values...");
-                                            channelLineup.updateChannel(oldChannel);
-                                        }
-                                    }
+                if (lineEnd > lineStart && content[lineEnd - 1] == '\r') {
+                    lineEnd -= 1;
+                }
 
-                                    if (updated) {
-                                        logger.info("Updated InfiniTV channel:" +
-                                                        " channel = {}, name = {}, modulation = {}," +
-                                                        " frequency = {}, program = {}, eia = {}, ignore = {}",
-                                                channel, values[1], values[2],
-                                                frequency, program, eia, ignore);
-                                    }
-                                }
-                            } catch (Exception e) {
-                                logger.error("Unable to parse the line '{}' from InfiniTV => {}",
-                                        line, e);
-                            }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Parsing line '{}'.",
+                            new String(content, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                }
+
+                if (parsing) {
+                    // This should ensure we are probably working with the right data and
+                    // allows us to make some assumptions later.
+                    if (startsWith(content, lineStart, lineEnd, ROW_START) &&
+                            endsWith(content, lineStart, lineEnd, ROW_END) &&
+                            indexOf(content, lineStart, lineEnd, CELL_SEPARATOR) != -1) {
+
+                        String values[] = splitRow(content,
+                                lineStart + ROW_START.length, lineEnd - ROW_END.length);
+
+                        if (values != null) {
+                            mergeChannel(channelLineup, values, newChannelList);
                         } else {
-                            logger.debug("Skipping the line '{}' because it does not split into 6 strings.", line);
+                            logger.debug("Skipping the line '{}' because it does not split into 6 strings.",
+                                    new String(content, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
                         }
-                    } else if (line.contains(REQUEST_END)) {
+                    } else if (indexOf(content, lineStart, lineEnd, REQUEST_END_BYTES) != -1) {
                         parsing = false;
                     }
                 } else {
-                    if (line.contains(REQUEST_START)) {
+                    if (indexOf(content, lineStart, lineEnd, REQUEST_START_BYTES) != -1) {
                         parsing = true;
                     }
                 }
+
+                lineStart = nextLine;
             }
 
             channelLineup.cleanChannels(newChannelList);
@@ -307,6 +224,7 @@ public class InfiniTVChannels {
                     dctChannelMap.remove(removeChannel);
                 }
             }*/
+            ChannelMapDownloader.merged(channelLineup, download);
         } catch (Exception e) {
             logger.debug("There was an unhandled exception while using" +
                     " 'channelMapLock' in 'populateChannels' => {}", e);
@@ -314,15 +232,194 @@ public class InfiniTVChannels {
             returnValue = false;
         } finally {
             channelMapLock.writeLock().unlock();
+        }
+
+        return logger.exit(returnValue);
+    }
+
+    private static void mergeChannel(ChannelLineup channelLineup, String values[], HashSet<String> newChannelList) {
+        // Check if the name is on the ignore list.
+        boolean ignore = false;
+        for (String ignoreName : ignoreNamesContaining) {
+            if (values[1].contains(ignoreName)) {
+                logger.debug("Skipping channel {} ({}) because it contains '{}'", values[0], values[1], ignoreName);
+                ignore = true;
+                break;
+            }
+        }
 
+        for (String ignoreChannel : ignoreChannelNumbers) {
+            if (values[0].equals(ignoreChannel)) {
+                logger.debug("Skipping channel {} ({}) because the channel number is '{}'", values[0], values[1], ignoreChannel);
+                ignore = true;
+                break;
+            }
+        }
+
+        try {
+            int channel = Integer.parseInt(values[0]);
+            //name
+            //modulation
+            int frequency = -1;
+            int program = -1;
+            float eia = -1;
             try {
-                if (httpURLConnection != null) {
-                    httpURLConnection.disconnect();
-                }
+                // If these can't be parsed, we likely can't use them in any way
+                // other than the VChannel number, but it could prevent us from
+                // storing a valid channel if the channel is tuned using SDV.
+
+                // Add 3 zeros to the end of the frequency to make it compliant
+                // with the HDHomeRun.
+                frequency = Integer.parseInt(values[3]) * 1000;
+                program = Integer.parseInt(values[4]);
+                eia = Float.parseFloat(values[5]);
             } catch (Exception e) {
+                logger.debug("Unable to parse the " +
+                                "frequency '{}', program '{}' or eia '{}'. " +
+                                "This may not be an actual problem, the " +
+                                "channel will still be added. => {}",
+                        values[3], values[4], values[5], e);
             }
+
+            newChannelList.add(values[0]);
+
+            boolean isDuplicate = false;
+
+
+            if (removeDuplicateChannels) {
+                isDuplicate = channelLineup.isDuplicate(values[0], values[1]);
+
+                if (isDuplicate) {
+                    try {
+                        channelLineup.removeChannel(values[0]);
+                    } catch (Exception e) {
+                        logger.error("There was a problem removing the duplicate channel => ", e);
+                    }
+                }
+            }
+
+            if (!isDuplicate) {
+                TVChannel oldChannel = channelLineup.getChannel(values[0]);
+
+                boolean updated = false;
+
+                if (oldChannel == null) {
+                    logger.debug("Adding new channel...");
+                    TVChannelImpl infiniTVChannel = new TVChannelImpl(
+                            values[0],
+                            values[1],
+                            values[2],
+                            String.valueOf(frequency),
+                            String.valueOf(program),
+                            String.valueOf(eia),
+                            ignore);
+
+                    channelLineup.addChannel(infiniTVChannel);
+
+                    updated = true;
+                } else {
+                    if (!oldChannel.getModulation().equals(values[2])) {
+                        oldChannel.setModulation(values[2]);
+                        updated = true;
+                    }
+
+                    if (frequency > 0 && !oldChannel.getFrequency().equals(String.valueOf(frequency))) {
+                        oldChannel.setFrequency(String.valueOf(frequency));
+                        updated = true;
+                    }
+
+                    if (program > 0 && !oldChannel.getProgram().equals(String.valueOf(program))) {
+                        oldChannel.setProgram(String.valueOf(program));
+                        updated = true;
+                    }
+
+                    if (eia > 0 && !oldChannel.getEia().equals(String.valueOf(eia))) {
+                        oldChannel.setEia(String.valueOf(eia));
+                        updated = true;
+                    }
+
+                    if (oldChannel.isIgnore() != ignore) {
+                        oldChannel.setIgnore(ignore);
+                        updated = true;
+                    }
+
+                    if (updated) {
+                        logger.debug("Updating channel values...");
+                        channelLineup.updateChannel(oldChannel);
+                    }
+                }
+
+                if (updated) {
+                    logger.info("Updated InfiniTV channel:" +
+                                    " channel = {}, name = {}, modulation = {}," +
+                                    " frequency = {}, program = {}, eia = {}, ignore = {}",
+                            channel, values[1], values[2],
+                            frequency, program, eia, ignore);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to parse the channel '{}' from InfiniTV => {}",
+                    values[0], e);
         }
+    }
 
-        return logger.exit(returnValue);
+    // Splits the cells of a row without the leading <tr><td> and trailing </td></tr>. Returns null
+    // if the row doesn't have exactly 6 cells.
+    private static String[] splitRow(byte content[], int start, int end) {
+        String values[] = new String[6];
+        int index = 0;
+
+        while (true) {
+            int cellEnd = indexOf(content, start, end, CELL_SEPARATOR);
+
+            if (index == values.length) {
+                return null;
+            }
+
+            if (cellEnd == -1) {
+                values[index++] = new String(content, start, end - start, StandardCharsets.UTF_8);
+                break;
+            }
+
+            values[index++] = new String(content, start, cellEnd - start, StandardCharsets.UTF_8);
+            start = cellEnd + CELL_SEPARATOR.length;
+        }
+
+        return index == values.length ? values : null;
+    }
+
+    private static int indexOf(byte content[], int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (content[i] == value) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int indexOf(byte content[], int start, int end, byte pattern[]) {
+        int last = end - pattern.length;
+
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (content[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static boolean startsWith(byte content[], int start, int end, byte pattern[]) {
+        return end - start >= pattern.length && indexOf(content, start, start + pattern.length, pattern) == start;
+    }
+
+    private static boolean endsWith(byte content[], int start, int end, byte pattern[]) {
+        return end - start >= pattern.length && indexOf(content, end - pattern.length, end, pattern) == end - pattern.length;
     }
 }
@@ -23,13 +23,11 @@ import opendct.channel.TVChannelImpl;
 import opendct.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.net.HttpURLConnection;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
 import java.net.InetAddress;
 import java.net.URL;
 import java.util.HashSet;
@@ -46,9 +44,18 @@ public class PrimeChannels {
     private static final boolean enableAllChannels =
             Config.getBoolean("channels.prime.enable_all_channels", true);
 
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    static {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
     /**
      * This will populate the provided channel lineup with the latest channel information provided
      * by the the Prime DCT.
+     * <p/>
+     * If the lineup returned by the Prime DCT has not changed since it was last merged, the
+     * lineup is not changed.
      *
      * @param channelLineup This is the lineup object.
      * @return <i>true</i> if the update was successful.
@@ -62,58 +69,76 @@ public class PrimeChannels {
         boolean enableAllChannels = PrimeChannels.enableAllChannels;
         boolean isQam = false;
 
-        HttpURLConnection httpURLConnection = null;
         HashSet<String> newChannelList = new HashSet<String>();
 
-        try {
-            InetAddress ipAddress = channelLineup.getAddressIP();
-            if (ipAddress == null) {
-                return logger.exit(false);
-            }
+        InetAddress ipAddress = channelLineup.getAddressIP();
+        if (ipAddress == null) {
+            return logger.exit(false);
+        }
 
+        ChannelMapDownloader.Download download;
+
+        try {
             URL url = new URL("http://" + ipAddress.getHostAddress() + ":80/lineup.xml");
             logger.info("Connecting to Prime DCT using the URL '{}'", url);
 
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setRequestMethod("GET");
-            httpURLConnection.connect();
-
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setValidating(false);
-            factory.setIgnoringElementContentWhitespace(true);
-            DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-            Document document = documentBuilder.parse(httpURLConnection.getInputStream());
-
-            NodeList programList = null;
+            // Always download the lineup if the lineup is empty since it might have been cleared
+            // since the last update.
+            download = ChannelMapDownloader.download(channelLineup, url, !channelLineup.hasChannels());
+        } catch (Exception e) {
+            logger.debug("Unable to download the lineup from Prime DCT => ", e);
+            return logger.exit(false);
+        }
 
-            try {
-                programList = document.getChildNodes().item(0).getChildNodes();
-            } catch (Exception e) {
-                logger.error("Unable to read programs from Prime DCT.");
-                return logger.exit(false);
-            }
+        if (download == null) {
+            logger.info("The Prime DCT lineup for the lineup '{}' has not changed.",
+                    channelLineup.LINEUP_NAME);
+            return logger.exit(true);
+        }
 
-            for (int i = 0; i < programList.getLength(); i++) {
+        XMLStreamReader xmlReader = null;
 
-                Node programChild = programList.item(i);
-                if (programChild.getNodeName().equals("Program")) {
+        try {
+            xmlReader = xmlInputFactory.createXMLStreamReader(
+                    new ByteArrayInputStream(download.getContent(), 0, download.LENGTH));
+
+            String channel = null;
+            String name = null;
+            String channelUrl = null;
+            int depth = 0;
+
+            // The programs are read as the document is parsed instead of building the entire
+            // document first.
+            while (xmlReader.hasNext()) {
+                int event = xmlReader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth += 1;
+                    String element = xmlReader.getLocalName();
+
+                    if (depth == 2 && element.equals("Program")) {
+                        channel = null;
+                        name = null;
+                        channelUrl = null;
+                    } else if (depth == 3 && element.equals("GuideNumber")) {
+                        channel = xmlReader.getElementText();
+                        depth -= 1;
+                    } else if (depth == 3 && element.equals("GuideName")) {
+                        name = xmlReader.getElementText();
+                        depth -= 1;
+                    } else if (depth == 3 && element.equals("URL")) {
+                        channelUrl = xmlReader.getElementText();
+                        depth -= 1;
+                    }
 
-                    String channel = null;
-                    String name = null;
-                    String channelUrl = null;
+                    continue;
+                } else if (event != XMLStreamConstants.END_ELEMENT) {
+                    continue;
+                }
 
-                    NodeList contentNodes = programChild.getChildNodes();
-                    for (int x = 0; x < contentNodes.getLength(); x++) {
+                depth -= 1;
 
-                        Node contentChild = contentNodes.item(x);
-                        if (contentChild.getNodeName().equals("GuideNumber")) {
-                            channel = contentChild.getTextContent();
-                        } else if (contentChild.getNodeName().equals("GuideName")) {
-                            name = contentChild.getTextContent();
-                        } else if (contentChild.getNodeName().equals("URL")) {
-                            channelUrl = contentChild.getTextContent();
-                        }
-                    }
+                if (depth == 1 && xmlReader.getLocalName().equals("Program")) {
 
                     if (channel != null && name != null && channelUrl != null) {
 
@@ -185,16 +210,18 @@ public class PrimeChannels {
                     }
                 }
             }
+
+            ChannelMapDownloader.merged(channelLineup, download);
         } catch (Exception e) {
             logger.debug("populateChannels created an unexpected exception => ", e);
             returnValue = false;
         } finally {
             try {
-                if (httpURLConnection != null) {
-                    httpURLConnection.disconnect();
+                if (xmlReader != null) {
+                    xmlReader.close();
                 }
             } catch (Exception e) {
-                logger.trace("Created an exception while disconnecting => ", e);
+                logger.trace("Created an exception while closing the parser => ", e);
             }
         }
 
@@ -25,6 +25,9 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 public class ConfigBag {
@@ -134,6 +137,9 @@ public class ConfigBag {
 
     /**
      * Sorts the properties alphabetically, then saves them.
+     * <p/>
+     * The properties are written to a temporary file that then replaces the configuration file,
+     * so the configuration file is never left partially written.
      *
      * @return <i>true</i> if the properties were successfully saved.
      */
@@ -156,11 +162,12 @@ public class ConfigBag {
             file.renameTo(fileBackup);
         }
 
+        File fileTemp = new File(FILE_NAME + ".tmp");
         FileOutputStream fileOutputStream;
         try {
-            fileOutputStream = new FileOutputStream(FILE_NAME);
+            fileOutputStream = new FileOutputStream(fileTemp);
         } catch (FileNotFoundException e) {
-            logger.error("Unable to open the configuration file '{}' => {}", FILE_NAME, e);
+            logger.error("Unable to open the configuration file '{}' => {}", fileTemp, e);
             return logger.exit(false);
         }
 
@@ -174,9 +181,27 @@ public class ConfigBag {
             sortedProperties.putAll(properties);
 
             sortedProperties.store(fileOutputStream, CONFIG_NAME + " Configuration File");
-            fileOutputStream.close();
+            fileOutputStream.getFD().sync();
+        } catch (IOException e) {
+            logger.error("Unable to write the configuration file '{}' => {}", fileTemp, e);
+            return logger.exit(false);
+        } finally {
+            try {
+                fileOutputStream.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close the configuration file '{}' => {}", fileTemp, e);
+            }
+        }
+
+        try {
+            try {
+                Files.move(fileTemp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException e) {
-            logger.error("Unable to write the configuration file '{}' => {}", FILE_NAME, e);
+            logger.error("Unable to replace the configuration file '{}' => {}", FILE_NAME, e);
             return logger.exit(false);
         }
 
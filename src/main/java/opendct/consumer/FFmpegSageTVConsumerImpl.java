@@ -18,7 +18,9 @@ package opendct.consumer;
 
 import opendct.config.Config;
 import opendct.consumer.buffers.FFmpegCircularBuffer;
+import opendct.consumer.upload.NIOSageTVAsyncUploadID;
 import opendct.consumer.upload.NIOSageTVUploadID;
+import opendct.sagetv.SageTVLatencyMonitor;
 import opendct.video.ffmpeg.FFmpegLogger;
 import opendct.video.ffmpeg.FFmpegUtil;
 import org.apache.logging.log4j.LogManager;
@@ -107,6 +109,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
     private FileOutputStream currentFileOutputStream = null;
     private FileOutputStream switchFileOutputStream = null;
     private String currentRecordingFilename = null;
+    private boolean firstByteStreamed = false;
     private String switchRecordingFilename = null;
     private int currentUploadID = -1;
     private int switchUploadID = -1;
@@ -131,6 +134,11 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
     private NIOSageTVUploadID nioSageTVUploadID = null;
 
     private int uploadIDPort = Config.getInteger("consumer.ffmpeg.upload_id_port", 7818);
+
+    // When enabled, uploading happens on its own thread so network latency to the SageTV server
+    // doesn't slow down FFmpeg.
+    private final boolean asyncUploadID =
+            Config.getBoolean("consumer.ffmpeg.upload_id_async", true);
     private SocketAddress uploadIDSocket = null;
 
     private static ConcurrentHashMap<Pointer, FFmpegSageTVConsumerImpl> instanceMap = new ConcurrentHashMap<Pointer, FFmpegSageTVConsumerImpl>();
@@ -169,6 +177,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
 
         uploadEnabled = false;
         switchFile = false;
+        firstByteStreamed = false;
 
         try {
             avioCtxOutput = allocIoContext("output");
@@ -177,7 +186,8 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
 
             if (currentUploadID > 0) {
                 if (nioSageTVUploadID == null) {
-                    nioSageTVUploadID = new NIOSageTVUploadID();
+                    nioSageTVUploadID = asyncUploadID ?
+                            new NIOSageTVAsyncUploadID() : new NIOSageTVUploadID();
                 } else {
                     nioSageTVUploadID.reset();
                 }
@@ -205,7 +215,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
                             currentFile = currentFileOutputStream.getChannel();
                         } catch (FileNotFoundException e) {
                             logger.error("Unable to create the recording file '{}'.", currentRecordingFilename);
-                            currentRecordingFilename = null;
+                            setCurrentRecordingFilename(null);
                         }
                     }
                 } else {
@@ -261,7 +271,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
 
             bytesStreamed.set(0);
 
-            currentRecordingFilename = null;
+            setCurrentRecordingFilename(null);
             if (currentFile != null && currentFile.isOpen()) {
                 try {
                     currentFile.close();
@@ -276,7 +286,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
                 try {
                     nioSageTVUploadID.endUpload(true);
                 } catch (IOException e) {
-                    logger.debug("FFmpeg consumer created an exception while ending the current upload id session => ", e);
+                    logger.error("FFmpeg consumer created an exception while ending the current upload id session => ", e);
                 } finally {
                     nioSageTVUploadID = null;
                 }
@@ -334,6 +344,13 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
     }
 
     public long getBytesStreamed() {
+        NIOSageTVUploadID uploadID = nioSageTVUploadID;
+
+        // Don't report bytes that are still queued to be uploaded.
+        if (uploadID != null) {
+            return Math.max(bytesStreamed.get() - uploadID.getBytesPending(), 0);
+        }
+
         return bytesStreamed.get();
     }
 
@@ -356,7 +373,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
     public boolean consumeToUploadID(String filename, int uploadId, InetAddress inetAddress) {
         logger.entry(filename, uploadId, inetAddress);
 
-        this.currentRecordingFilename = filename;
+        setCurrentRecordingFilename(filename);
         this.currentUploadID = uploadId;
 
         uploadIDSocket = new InetSocketAddress(inetAddress, uploadIDPort);
@@ -370,7 +387,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
 
         try {
             this.currentFileOutputStream = new FileOutputStream(filename);
-            this.currentRecordingFilename = filename;
+            setCurrentRecordingFilename(filename);
         } catch (FileNotFoundException e) {
             logger.error("Unable to create the recording file '{}'.", filename);
             return logger.exit(false);
@@ -432,6 +449,14 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
         return currentRecordingQuality;
     }
 
+    // The filename is also kept in the file size index so GET_FILE_SIZE can be answered without
+    // locking or checking the filesystem while this consumer is writing to the file.
+    private void setCurrentRecordingFilename(String filename) {
+        SageTVFileSizeIndex.removeFile(currentRecordingFilename, this);
+        currentRecordingFilename = filename;
+        SageTVFileSizeIndex.addFile(filename, this);
+    }
+
     public String getEncoderFilename() {
         return currentRecordingFilename;
     }
@@ -559,6 +584,11 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
     private int writeBuffer(BytePointer bytePtr, int offset, int length) {
         logger.entry(offset, length);
 
+        if (!firstByteStreamed) {
+            firstByteStreamed = true;
+            SageTVLatencyMonitor.recordFirstStreamedByte(currentRecordingFilename);
+        }
+
         streamBuffer.put(bytePtr.position(offset).limit(length).asByteBuffer());
 
         int switchIndex = -1;
@@ -626,7 +656,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
                                             " '{}'.", switchRecordingFilename, switchUploadID);
 
                                 } else {
-                                    currentRecordingFilename = switchRecordingFilename;
+                                    setCurrentRecordingFilename(switchRecordingFilename);
                                     currentUploadID = switchUploadID;
                                     bytesStreamed.set(0);
 
@@ -687,7 +717,7 @@ public class FFmpegSageTVConsumerImpl implements SageTVConsumer {
                                 }
                                 currentFile = switchFileOutputStream.getChannel();
                                 currentFileOutputStream = switchFileOutputStream;
-                                currentRecordingFilename = switchRecordingFilename;
+                                setCurrentRecordingFilename(switchRecordingFilename);
                                 switchFileOutputStream = null;
                                 bytesStreamed.set(0);
 
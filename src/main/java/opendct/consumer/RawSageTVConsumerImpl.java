@@ -18,7 +18,9 @@ package opendct.consumer;
 
 import opendct.config.Config;
 import opendct.consumer.buffers.SeekableCircularBuffer;
+import opendct.consumer.upload.NIOSageTVAsyncUploadID;
 import opendct.consumer.upload.NIOSageTVUploadID;
+import opendct.sagetv.SageTVLatencyMonitor;
 import opendct.video.java.VideoUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -89,6 +91,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private NIOSageTVUploadID nioSageTVUploadID = null;
 
     private final int uploadIDPort = Config.getInteger("consumer.raw.upload_id_port", 7818);
+
+    // When enabled, uploading happens on its own thread so network latency to the SageTV server
+    // doesn't slow down reading from the buffer.
+    private final boolean asyncUploadID =
+            Config.getBoolean("consumer.raw.upload_id_async", true);
     private SocketAddress uploadIDSocket = null;
 
     public void run() {
@@ -111,7 +118,8 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
             if (currentUploadID > 0) {
                 if (nioSageTVUploadID == null) {
-                    nioSageTVUploadID = new NIOSageTVUploadID();
+                    nioSageTVUploadID = asyncUploadID ?
+                            new NIOSageTVAsyncUploadID() : new NIOSageTVUploadID();
                 } else {
                     nioSageTVUploadID.reset();
                 }
@@ -139,7 +147,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                             currentFile = currentFileOutputStream.getChannel();
                         } catch (FileNotFoundException e) {
                             logger.error("Unable to create the recording file '{}'.", currentRecordingFilename);
-                            currentRecordingFilename = null;
+                            setCurrentRecordingFilename(null);
                         }
                     }
                 } else {
@@ -183,6 +191,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         streamBuffer.position(startIndex);
                         start = false;
                         logger.info("Raw consumer is now streaming...");
+                        SageTVLatencyMonitor.recordFirstStreamedByte(currentRecordingFilename);
                     } else {
                         continue;
                     }
@@ -226,7 +235,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                                 switchRecordingFilename, switchUploadID);
 
                                     } else {
-                                        currentRecordingFilename = switchRecordingFilename;
+                                        setCurrentRecordingFilename(switchRecordingFilename);
                                         currentUploadID = switchUploadID;
                                         bytesStreamed.set(0);
                                         switchFile = false;
@@ -297,7 +306,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                         }
                                         currentFile = switchFileOutputStream.getChannel();
                                         currentFileOutputStream = switchFileOutputStream;
-                                        currentRecordingFilename = switchRecordingFilename;
+                                        setCurrentRecordingFilename(switchRecordingFilename);
                                         switchFileOutputStream = null;
                                         bytesStreamed.set(0);
                                     }
@@ -344,7 +353,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
             seekableBuffer.clear();
 
-            currentRecordingFilename = null;
+            setCurrentRecordingFilename(null);
             if (currentFile != null && currentFile.isOpen()) {
                 try {
                     currentFile.close();
@@ -359,7 +368,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 try {
                     nioSageTVUploadID.endUpload(true);
                 } catch (IOException e) {
-                    logger.debug("Raw consumer created an exception while ending the current upload id session => ", e);
+                    logger.error("Raw consumer created an exception while ending the current upload id session => ", e);
                 } finally {
                     nioSageTVUploadID = null;
                 }
@@ -408,6 +417,13 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     }
 
     public long getBytesStreamed() {
+        NIOSageTVUploadID uploadID = nioSageTVUploadID;
+
+        // Don't report bytes that are still queued to be uploaded.
+        if (uploadID != null) {
+            return Math.max(bytesStreamed.get() - uploadID.getBytesPending(), 0);
+        }
+
         return bytesStreamed.get();
     }
 
@@ -426,7 +442,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     public boolean consumeToUploadID(String filename, int uploadId, InetAddress inetAddress) {
         logger.entry(filename, uploadId, inetAddress);
 
-        this.currentRecordingFilename = filename;
+        setCurrentRecordingFilename(filename);
         this.currentUploadID = uploadId;
 
         uploadIDSocket = new InetSocketAddress(inetAddress, uploadIDPort);
@@ -440,7 +456,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
         try {
             this.currentFileOutputStream = new FileOutputStream(filename);
-            this.currentRecordingFilename = filename;
+            setCurrentRecordingFilename(filename);
         } catch (FileNotFoundException e) {
             logger.error("Unable to create the recording file '{}'.", filename);
             return logger.exit(false);
@@ -502,6 +518,14 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         return currentRecordingQuality;
     }
 
+    // The filename is also kept in the file size index so GET_FILE_SIZE can be answered without
+    // locking or checking the filesystem while this consumer is writing to the file.
+    private void setCurrentRecordingFilename(String filename) {
+        SageTVFileSizeIndex.removeFile(currentRecordingFilename, this);
+        currentRecordingFilename = filename;
+        SageTVFileSizeIndex.addFile(filename, this);
+    }
+
     public String getEncoderFilename() {
         return currentRecordingFilename;
     }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers GET_FILE_SIZE without locks for files that are currently being recorded.
+ * <p/>
+ * Consumers add the filename they are writing to when they start or switch and remove it when they
+ * stop, so the size of an active recording is always the consumer's own counter. Files that are
+ * not being recorded are looked up on the filesystem and the result is cached for a short time
+ * since SageTV will keep asking for the same file while it's being played back.
+ */
+public class SageTVFileSizeIndex {
+    private static final Logger logger = LogManager.getLogger(SageTVFileSizeIndex.class);
+
+    private static final long finishedTTL =
+            Math.max(Config.getLong("consumer.file_size_cache_ttl_ms", 10000), 0);
+
+    private static final int maxFinishedFiles =
+            Math.max(Config.getInteger("consumer.file_size_cache_max_files", 256), 1);
+
+    private static final ConcurrentHashMap<String, SageTVConsumer> activeFiles =
+            new ConcurrentHashMap<String, SageTVConsumer>();
+
+    private static final ConcurrentHashMap<String, FinishedFile> finishedFiles =
+            new ConcurrentHashMap<String, FinishedFile>();
+
+    /**
+     * Set the file a consumer is currently writing to.
+     *
+     * @param filename This is the filename as it was provided by SageTV. <i>null</i> is ignored.
+     * @param consumer This is the consumer writing to the file.
+     */
+    public static void addFile(String filename, SageTVConsumer consumer) {
+        if (filename == null) {
+            return;
+        }
+
+        activeFiles.put(filename, consumer);
+        finishedFiles.remove(filename);
+    }
+
+    /**
+     * Remove the file a consumer was writing to.
+     * <p/>
+     * The file is only removed if it still belongs to this consumer.
+     *
+     * @param filename This is the filename as it was provided by SageTV. <i>null</i> is ignored.
+     * @param consumer This is the consumer that was writing to the file.
+     */
+    public static void removeFile(String filename, SageTVConsumer consumer) {
+        if (filename == null) {
+            return;
+        }
+
+        activeFiles.remove(filename, consumer);
+
+        // Anything cached before the recording started is now out of date.
+        finishedFiles.remove(filename);
+    }
+
+    /**
+     * Is the size of this file available without accessing the filesystem?
+     *
+     * @param filename This is the filename as it was provided by SageTV.
+     * @return <i>true</i> if the file is being recorded or has an unexpired cached size.
+     */
+    public static boolean isCached(String filename) {
+        if (activeFiles.containsKey(filename)) {
+            return true;
+        }
+
+        FinishedFile finishedFile = finishedFiles.get(filename);
+
+        return finishedFile != null && finishedFile.expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Get the current size of a file.
+     *
+     * @param filename This is the filename as it was provided by SageTV.
+     * @return The number of bytes recorded or stored in the file. 0 is returned if the file does
+     *         not exist.
+     */
+    public static long getFileSize(String filename) {
+        SageTVConsumer consumer = activeFiles.get(filename);
+
+        if (consumer != null) {
+            return consumer.getBytesStreamed();
+        }
+
+        long now = System.currentTimeMillis();
+        FinishedFile finishedFile = finishedFiles.get(filename);
+
+        if (finishedFile != null && finishedFile.expires > now) {
+            return finishedFile.size;
+        }
+
+        long size;
+
+        try {
+            size = new File(filename).length();
+        } catch (Exception e) {
+            logger.error("Unable to get the file size of '{}'.", filename);
+            return 0;
+        }
+
+        // A file that doesn't exist yet is not cached since it could be created at any moment.
+        if (size > 0 && finishedTTL > 0) {
+            if (finishedFiles.size() >= maxFinishedFiles) {
+                removeExpired(now);
+            }
+
+            if (finishedFiles.size() < maxFinishedFiles) {
+                finishedFiles.put(filename, new FinishedFile(size, now + finishedTTL));
+            }
+        }
+
+        return size;
+    }
+
+    private static void removeExpired(long now) {
+        Iterator<Map.Entry<String, FinishedFile>> entries = finishedFiles.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            if (entries.next().getValue().expires <= now) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static class FinishedFile {
+        private final long size;
+        private final long expires;
+
+        private FinishedFile(long size, long expires) {
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.upload;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Uploads to the SageTV server on a dedicated thread.
+ * <p/>
+ * The consumer thread only copies data into a bounded queue of buffers and returns, so network
+ * latency to the SageTV server no longer slows down how fast the consumer drains its own buffer.
+ * When the queued data reaches the high watermark, the consumer thread blocks until the upload
+ * thread has brought it back down to the low watermark. SWITCH is queued in order with the data
+ * and blocks until all data queued before it has been uploaded.
+ * <p/>
+ * Ending the upload waits for everything queued to be uploaded. Each write to the server is
+ * already bounded by <i>upload_id.write_timeout_ms</i>, so this can't wait forever. If any queued
+ * data could not be uploaded, <i>endUpload</i> throws an exception so the file is never quietly
+ * left incomplete.
+ */
+public class NIOSageTVAsyncUploadID extends NIOSageTVUploadID {
+    private final Logger logger = LogManager.getLogger(NIOSageTVAsyncUploadID.class);
+
+    private final int chunkSize =
+            Math.max(Config.getInteger("upload_id.async.chunk_size", 65536), 1316);
+
+    private final long highWatermark =
+            Math.max(Config.getLong("upload_id.async.high_watermark", 4194304), chunkSize);
+
+    private final long lowWatermark =
+            Math.min(Config.getLong("upload_id.async.low_watermark", 2097152), highWatermark);
+
+    // How often to report progress while waiting for the queue to drain.
+    private static final long DRAIN_LOG_INTERVAL = 5000;
+
+    private static final int TASK_DATA = 0;
+    private static final int TASK_SWITCH = 1;
+
+    private final Object queueLock = new Object();
+    private final ArrayDeque<UploadTask> uploadQueue = new ArrayDeque<UploadTask>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+    private long bytesPending = 0;
+    private boolean throttled = false;
+    private IOException uploadException = null;
+    private long bytesNotUploaded = 0;
+
+    private volatile boolean running = false;
+    private volatile Thread uploadThread = null;
+
+    // Statistics for the current upload.
+    private volatile long networkWriteNanos = 0;
+    private volatile long producerBlockedNanos = 0;
+    private volatile long peakBytesPending = 0;
+    private volatile long bytesUploaded = 0;
+
+    @Override
+    public boolean startUpload(
+            SocketAddress newServerSocket, String uploadFilename, int uploadID) throws IOException {
+
+        boolean returnValue = super.startUpload(newServerSocket, uploadFilename, uploadID);
+
+        if (returnValue) {
+            startUploadThread();
+        }
+
+        return returnValue;
+    }
+
+    @Override
+    public void uploadAutoIncrement(ByteBuffer byteBuffer) throws IOException {
+        queueData(0, byteBuffer);
+    }
+
+    @Override
+    public void uploadAutoBuffered(long limit, ByteBuffer byteBuffer) throws IOException {
+        queueData(limit, byteBuffer);
+    }
+
+    @Override
+    public boolean switchUpload(String uploadFilename, int uploadID) throws IOException {
+        if (!running || isUploadThread()) {
+            return super.switchUpload(uploadFilename, uploadID);
+        }
+
+        UploadTask task = new UploadTask(TASK_SWITCH);
+        task.uploadFilename = uploadFilename;
+        task.uploadID = uploadID;
+
+        synchronized (queueLock) {
+            throwUploadException();
+            uploadQueue.addLast(task);
+            queueLock.notifyAll();
+
+            try {
+                while (!task.complete && running) {
+                    queueLock.wait(500);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for SWITCH.");
+            }
+
+            if (!task.complete) {
+                throw new IOException("The upload thread stopped before SWITCH completed.");
+            }
+        }
+
+        if (task.exception != null) {
+            throw task.exception;
+        }
+
+        return task.result;
+    }
+
+    @Override
+    public boolean endUpload(boolean disconnect) throws IOException {
+        // SWITCH ends the current upload from the upload thread.
+        if (isUploadThread()) {
+            return super.endUpload(disconnect);
+        }
+
+        long lostBytes = stopUploadThread();
+        boolean returnValue = super.endUpload(disconnect);
+
+        if (lostBytes > 0) {
+            throw new IOException(lostBytes + " bytes could not be uploaded to the SageTV server." +
+                    " The file is incomplete.");
+        }
+
+        return returnValue;
+    }
+
+    @Override
+    public void reset() {
+        if (!isUploadThread()) {
+            stopUploadThread();
+        }
+
+        super.reset();
+    }
+
+    /**
+     * Get the number of bytes queued, but not yet uploaded to the SageTV server.
+     *
+     * @return The number of bytes pending.
+     */
+    @Override
+    public long getBytesPending() {
+        synchronized (queueLock) {
+            return bytesPending;
+        }
+    }
+
+    /**
+     * Get the total time the upload thread has spent writing to the SageTV server.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getNetworkWriteTime() {
+        return networkWriteNanos / 1000000;
+    }
+
+    /**
+     * Get the total time the consumer thread has spent waiting for the queue to drain.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getProducerBlockedTime() {
+        return producerBlockedNanos / 1000000;
+    }
+
+    /**
+     * Get the largest number of bytes that have been waiting to be uploaded at one time.
+     *
+     * @return The number of bytes.
+     */
+    public long getPeakBytesPending() {
+        return peakBytesPending;
+    }
+
+    private void queueData(long limit, ByteBuffer byteBuffer) throws IOException {
+        if (!running || isUploadThread()) {
+            if (limit > 0) {
+                super.uploadAutoBuffered(limit, byteBuffer);
+            } else {
+                super.uploadAutoIncrement(byteBuffer);
+            }
+
+            return;
+        }
+
+        while (byteBuffer.hasRemaining()) {
+            ByteBuffer buffer;
+
+            synchronized (queueLock) {
+                throwUploadException();
+
+                if (bytesPending >= highWatermark) {
+                    throttled = true;
+                }
+
+                if (throttled) {
+                    long startTime = System.nanoTime();
+
+                    try {
+                        while (bytesPending > lowWatermark && running) {
+                            queueLock.wait(500);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                                "Interrupted while waiting for the upload queue to drain.");
+                    } finally {
+                        producerBlockedNanos += System.nanoTime() - startTime;
+                    }
+
+                    throttled = false;
+                    throwUploadException();
+
+                    if (!running) {
+                        throw new IOException("The upload thread is not running.");
+                    }
+                }
+
+                buffer = freeBuffers.pollLast();
+            }
+
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(chunkSize);
+            }
+
+            // The copy is done outside of the lock so the upload thread is never waiting on it.
+            int length = Math.min(byteBuffer.remaining(), buffer.capacity());
+            ByteBuffer slice = byteBuffer.slice();
+            slice.limit(length);
+            byteBuffer.position(byteBuffer.position() + length);
+
+            buffer.clear();
+            buffer.put(slice);
+            buffer.flip();
+
+            UploadTask task = new UploadTask(TASK_DATA);
+            task.limit = limit;
+            task.buffer = buffer;
+
+            synchronized (queueLock) {
+                uploadQueue.addLast(task);
+                bytesPending += length;
+
+                if (bytesPending > peakBytesPending) {
+                    peakBytesPending = bytesPending;
+                }
+
+                queueLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean isUploadThread() {
+        return Thread.currentThread() == uploadThread;
+    }
+
+    // This must be called while holding queueLock.
+    private void throwUploadException() throws IOException {
+        if (uploadException != null) {
+            IOException e = uploadException;
+            uploadException = null;
+            throw e;
+        }
+    }
+
+    private void startUploadThread() {
+        if (running) {
+            return;
+        }
+
+        networkWriteNanos = 0;
+        producerBlockedNanos = 0;
+        peakBytesPending = 0;
+        bytesUploaded = 0;
+
+        synchronized (queueLock) {
+            uploadQueue.clear();
+            bytesPending = 0;
+            throttled = false;
+            uploadException = null;
+            bytesNotUploaded = 0;
+        }
+
+        running = true;
+
+        uploadThread = new Thread(new UploadThread());
+        uploadThread.setName("NIOSageTVAsyncUploadID-" + uploadThread.getId());
+        uploadThread.start();
+    }
+
+    /**
+     * Stop the upload thread after everything that has been queued is uploaded.
+     * <p/>
+     * Queued data is never discarded to make this return faster. If the upload thread could not
+     * write some of the data, the number of bytes is returned so the caller can report that the
+     * file is incomplete.
+     *
+     * @return The number of queued bytes that could not be uploaded.
+     */
+    private long stopUploadThread() {
+        if (!running) {
+            return 0;
+        }
+
+        // This can be called when the consumer thread has been interrupted, so the interrupt is
+        // cleared while we wait and restored after.
+        boolean interrupted = Thread.interrupted();
+        Thread thread = uploadThread;
+
+        synchronized (queueLock) {
+            // The upload thread keeps going until the queue is empty, then exits.
+            running = false;
+            queueLock.notifyAll();
+
+            long startTime = System.currentTimeMillis();
+            long nextLog = startTime + DRAIN_LOG_INTERVAL;
+
+            while (thread.isAlive() && !uploadQueue.isEmpty()) {
+                try {
+                    queueLock.wait(500);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+
+                if (System.currentTimeMillis() >= nextLog && !uploadQueue.isEmpty()) {
+                    logger.info("Waiting for {} bytes to be uploaded. {}ms elapsed.",
+                            bytesPending, System.currentTimeMillis() - startTime);
+
+                    nextLog += DRAIN_LOG_INTERVAL;
+                }
+            }
+        }
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        long lostBytes;
+
+        synchronized (queueLock) {
+            // Anything still here was left behind because the upload thread stopped unexpectedly.
+            for (UploadTask task : uploadQueue) {
+                if (task.type == TASK_DATA) {
+                    bytesNotUploaded += task.buffer.limit();
+                }
+            }
+
+            uploadQueue.clear();
+            bytesPending = 0;
+            lostBytes = bytesNotUploaded;
+            bytesNotUploaded = 0;
+        }
+
+        uploadThread = null;
+
+        logger.info("Upload queue statistics: {} bytes uploaded, {}ms writing to the network," +
+                        " {}ms waiting for the queue to drain, {} bytes peak queued.",
+                bytesUploaded, getNetworkWriteTime(), getProducerBlockedTime(), peakBytesPending);
+
+        if (lostBytes > 0) {
+            logger.error("{} queued bytes could not be uploaded to the SageTV server.", lostBytes);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return lostBytes;
+    }
+
+    private class UploadThread implements Runnable {
+        public void run() {
+            logger.debug("Upload thread is now running.");
+
+            try {
+                while (true) {
+                    UploadTask task;
+
+                    synchronized (queueLock) {
+                        while (uploadQueue.isEmpty() && running) {
+                            queueLock.wait();
+                        }
+
+                        // When stopping, everything already queued is still uploaded first.
+                        if (uploadQueue.isEmpty()) {
+                            break;
+                        }
+
+                        // The task stays in the queue until it is done so it's still counted as
+                        // pending while it's being uploaded.
+                        task = uploadQueue.peekFirst();
+                    }
+
+                    processTask(task);
+
+                    synchronized (queueLock) {
+                        uploadQueue.pollFirst();
+
+                        if (task.type == TASK_DATA) {
+                            int length = task.buffer.limit();
+                            bytesPending -= length;
+                            freeBuffers.addLast(task.buffer);
+                            task.buffer = null;
+
+                            if (task.exception != null) {
+                                bytesNotUploaded += length;
+
+                                if (uploadException == null) {
+                                    uploadException = task.exception;
+                                }
+                            }
+                        }
+
+                        task.complete = true;
+                        queueLock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Upload thread was interrupted.");
+            } finally {
+                synchronized (queueLock) {
+                    running = false;
+                    queueLock.notifyAll();
+                }
+
+                logger.debug("Upload thread has stopped.");
+            }
+        }
+
+        private void processTask(UploadTask task) {
+            try {
+                if (task.type == TASK_DATA) {
+                    int length = task.buffer.limit();
+                    long startTime = System.nanoTime();
+
+                    try {
+                        if (task.limit > 0) {
+                            NIOSageTVAsyncUploadID.super.uploadAutoBuffered(task.limit, task.buffer);
+                        } else {
+                            NIOSageTVAsyncUploadID.super.uploadAutoIncrement(task.buffer);
+                        }
+                    } finally {
+                        networkWriteNanos += System.nanoTime() - startTime;
+                    }
+
+                    bytesUploaded += length;
+                } else if (task.type == TASK_SWITCH) {
+                    task.result = NIOSageTVAsyncUploadID.super.switchUpload(
+                            task.uploadFilename, task.uploadID);
+                }
+            } catch (IOException e) {
+                logger.error("Unable to upload to the SageTV server => {}", e);
+                task.exception = e;
+            }
+        }
+    }
+
+    private static class UploadTask {
+        private final int type;
+        private long limit;
+        private ByteBuffer buffer;
+        private String uploadFilename;
+        private int uploadID;
+        private boolean complete;
+        private boolean result;
+        private IOException exception;
+
+        private UploadTask(int type) {
+            this.type = type;
+        }
+    }
+}
@@ -16,12 +16,17 @@
 
 package opendct.consumer.upload;
 
+import opendct.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -36,13 +41,58 @@ public class NIOSageTVUploadID {
     private AtomicBoolean uploadInProgress = new AtomicBoolean(false);
     private long autoOffset = 0;
 
+    private final long responseTimeout =
+            Math.max(Config.getLong("upload_id.response_timeout_ms", 2000), 100);
+
+    private final long writeTimeout =
+            Math.max(Config.getLong("upload_id.write_timeout_ms", 30000), 1000);
+
+    // These are the only responses we expect, so they are returned without creating new strings.
+    private static final String RESPONSE_OK = "OK";
+    private static final String RESPONSE_NON_MEDIA = "NON_MEDIA";
+    private static final byte RESPONSE_OK_BYTES[] = RESPONSE_OK.getBytes();
+    private static final byte RESPONSE_NON_MEDIA_BYTES[] = RESPONSE_NON_MEDIA.getBytes();
+
+    // The channel is kept in non-blocking mode while it's being used for an upload and all waiting
+    // is done on this selector.
+    private Selector selector = null;
+    private SelectionKey selectionKey = null;
+
     private ByteBuffer messageInBuffer = ByteBuffer.allocate(4096);
-    private StringBuilder messageInBuilder = new StringBuilder();
-    private int messageInBytes = 0;
-    private long messageInTimeout = 0;
+    private byte messageInLine[] = new byte[4096];
+    private int messageInLineLength = 0;
+
+    // This is the number of commands sent that will have a response we have not read yet. If we
+    // time out waiting for a response, it will still arrive eventually and must not be mistaken
+    // for the response to the next command. This, the buffers and the selector are only used
+    // while holding uploadLock.
+    private int outstandingResponses = 0;
 
     private ByteBuffer messageOutBuffer = ByteBuffer.allocate(4096);
 
+    private final boolean journalEnabled =
+            Config.getBoolean("upload_id.journal.enabled", true);
+
+    private final long journalMaxSize =
+            Math.max(Config.getLong("upload_id.journal.max_size", 67108864), 0);
+
+    // Set this to 0 to replay as fast as the network will allow.
+    private final long journalReplayRate =
+            Math.max(Config.getLong("upload_id.journal.replay_bytes_per_second", 8388608), 0);
+
+    private final long journalReconnectInterval =
+            Math.max(Config.getLong("upload_id.journal.reconnect_interval_ms", 2000), 250);
+
+    private final String journalDirectory =
+            Config.getString("upload_id.journal.directory", System.getProperty("java.io.tmpdir"));
+
+    private static final int JOURNAL_RECORD_SIZE = 65536;
+
+    private NIOSageTVUploadJournal journal = null;
+    private ByteBuffer journalReplayBuffer = null;
+    private long journalNextReconnect = 0;
+    private long journalBytesReplayed = 0;
+
     /**
      * Performs all of the steps needed to start uploading to the SageTV server.
      *
@@ -61,11 +111,10 @@ public class NIOSageTVUploadID {
             this.uploadFilename = null;
 
             if (currentServerSocket == null && newServerSocket != null) {
-                logger.info("Connecting to SageTV server on socket {}...",
-                        newServerSocket.toString());
-
-                socketChannel = SocketChannel.open(newServerSocket);
+                // This will re-use an idle connection to this server if one is available.
+                socketChannel = NIOSageTVUploadPool.getConnection(newServerSocket);
                 currentServerSocket = newServerSocket;
+                attachChannel();
             } else if (currentServerSocket == null) {
                 throw new IOException("The upload cannot be changed" +
                         " because the upload was never started.");
@@ -75,7 +124,7 @@ public class NIOSageTVUploadID {
             this.uploadID = uploadID;
             autoOffset = 0;
 
-            sendMessage("WRITEOPEN " + uploadFilename + " " + uploadID + "\r\n");
+            sendCommand("WRITEOPEN " + uploadFilename + " " + uploadID + "\r\n");
 
             // The expected responses are OK or NON_MEDIA.
             try {
@@ -93,36 +142,74 @@ public class NIOSageTVUploadID {
      * <p/>
      * This should be called if you are starting a new thread, but not creating a new object. Call
      * this method before <b>startUpload</b> if you cannot be certain of state of the socket
-     * connection. It will attempt to keep the connection open and just close the open file. If it
-     * is unable to keep the connection open, it will make sure the connection will be
-     * re-established when you call <b>startUpload</b>.
+     * connection. It will attempt to close the open file, then drop the connection so a new
+     * connection is established when you call <b>startUpload</b>.
      */
     public void reset() {
-        if (currentServerSocket != null) {
-            try {
-                sendMessage("CLOSE\r\n");
-            } catch (IOException e) {
-                currentServerSocket = null;
+        synchronized (uploadLock) {
+            if (currentServerSocket != null) {
+                try {
+                    sendCommand("CLOSE\r\n");
+                } catch (IOException e) {
+                    logger.debug("Unable to close the current file => {}", e.getMessage());
+                }
             }
-        }
 
-        socketChannel = null;
-        uploadFilename = null;
-        uploadID = -1;
+            // The response to CLOSE is never read, so the connection can't be returned to the pool.
+            // startUpload will get a new connection.
+            detachChannel();
+
+            if (socketChannel != null) {
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Unable to close the connection => {}", e.getMessage());
+                }
+            }
+
+            closeSelector();
+            socketChannel = null;
+            currentServerSocket = null;
+            uploadFilename = null;
+            uploadID = -1;
+        }
     }
 
-    private void reconnectUpload() throws IOException {
+    private boolean reconnectUpload() throws IOException {
         logger.entry();
+        boolean returnValue;
 
         synchronized (uploadLock) {
             if (!Thread.currentThread().isInterrupted() && uploadFilename != null && uploadID > 0 && currentServerSocket != null) {
-                startUpload(currentServerSocket, uploadFilename, uploadID);
+                SocketAddress serverSocket = currentServerSocket;
+
+                // The current connection is not usable anymore. Clearing the current server socket
+                // makes startUpload open a new connection.
+                if (socketChannel != null) {
+                    try {
+                        socketChannel.close();
+                    } catch (IOException e) {
+                        logger.debug("Unable to close the dropped connection => {}", e.getMessage());
+                    }
+                }
+
+                socketChannel = null;
+                currentServerSocket = null;
+                detachChannel();
+
+                try {
+                    returnValue = startUpload(serverSocket, uploadFilename, uploadID);
+                } finally {
+                    // Keep the address so we can try again later even if the connection failed.
+                    currentServerSocket = serverSocket;
+                }
             } else {
                 throw new IOException("The upload cannot be resumed" +
                         " because the upload was never started.");
             }
         }
-        logger.exit();
+
+        return logger.exit(returnValue);
     }
 
     public boolean isConnected() {
@@ -139,6 +226,8 @@ public class NIOSageTVUploadID {
         logger.entry(uploadFilename, uploadID);
         boolean returnValue = false;
 
+        // The lock is held across both files so nothing can be written after the old file is
+        // closed and before the new one is open.
         synchronized (uploadLock) {
             try {
                 endUpload(false);
@@ -210,13 +299,21 @@ public class NIOSageTVUploadID {
 
             String returnValue = null;
 
+            // If we are still disconnected, everything goes into the journal until we are able to
+            // reconnect so the data is written in the order it was received.
+            if (isJournaling()) {
+                journalAppend(offset, slice);
+
+                if (System.currentTimeMillis() >= journalNextReconnect) {
+                    resumeFromJournal();
+                }
+
+                return logger.exit(false);
+            }
+
             while (true) {
                 try {
-                    sendMessage("WRITE " + offset + " " + slice.remaining() + "\r\n");
-                    while (slice.hasRemaining() && !Thread.currentThread().isInterrupted()) {
-                        int sentBytes = socketChannel.write(slice);
-                        logger.trace("Transferred {} stream bytes to SageTV server. {} bytes remaining.", sentBytes, slice.remaining());
-                    }
+                    writeData(offset, slice);
 
                     break;
                 } catch (IOException e) {
@@ -229,10 +326,33 @@ public class NIOSageTVUploadID {
 
                     logger.info("Attempting to reconnect to SageTV server...");
 
-                    // Try to reconnect once. This can throw an IOException that will break the
-                    // loop. This can be made more robust if disconnects become something we see
-                    // often.
-                    reconnectUpload();
+                    if (!journalEnabled) {
+                        // Try to reconnect once. This can throw an IOException that will break the
+                        // loop.
+                        if (!reconnectUpload()) {
+                            throw new IOException("The SageTV server did not accept the upload" +
+                                    " after reconnecting.");
+                        }
+                        continue;
+                    }
+
+                    boolean reconnected;
+                    try {
+                        reconnected = reconnectUpload();
+                    } catch (IOException e1) {
+                        logger.debug("Unable to reconnect to SageTV server => {}", e1.getMessage());
+                        reconnected = false;
+                    }
+
+                    if (!reconnected) {
+                        logger.warn("Unable to reconnect to SageTV server. Uploaded data will be" +
+                                " journaled until the connection can be re-established.");
+
+                        journalAppend(offset, slice);
+                        journalNextReconnect = System.currentTimeMillis() + journalReconnectInterval;
+
+                        return logger.exit(false);
+                    }
                 }
             }
 
@@ -240,6 +360,161 @@ public class NIOSageTVUploadID {
         }
     }
 
+    private void writeData(long offset, ByteBuffer slice) throws IOException {
+        sendMessage("WRITE " + offset + " " + slice.remaining() + "\r\n");
+        writeFully(slice);
+    }
+
+    private void journalAppend(long offset, ByteBuffer slice) throws IOException {
+        if (journal == null) {
+            journal = new NIOSageTVUploadJournal(
+                    new File(journalDirectory, "opendct-upload-" + uploadID + "-" +
+                            System.currentTimeMillis() + ".journal"),
+                    journalMaxSize,
+                    JOURNAL_RECORD_SIZE);
+        }
+
+        if (!journal.append(offset, slice)) {
+            logger.error("The upload journal is full at {} bytes. Discarding the journal.",
+                    journal.getSize());
+
+            journal.close();
+            journal = null;
+
+            throw new IOException("The upload journal is full and the SageTV server is still" +
+                    " not available.");
+        }
+
+        slice.position(slice.limit());
+    }
+
+    /**
+     * Try to reconnect to the SageTV server and replay the journal.
+     * <p/>
+     * If the connection can't be re-established or drops again while the journal is being
+     * replayed, the journal is kept and the next attempt will be made after the reconnect
+     * interval.
+     *
+     * @return <i>true</i> if the journal was completely replayed.
+     */
+    private boolean resumeFromJournal() {
+        logger.entry();
+
+        journalNextReconnect = System.currentTimeMillis() + journalReconnectInterval;
+
+        try {
+            if (!reconnectUpload()) {
+                return logger.exit(false);
+            }
+
+            logger.info("Reconnected to SageTV server. Replaying {} journaled bytes...",
+                    journal.getSize());
+
+            if (journalReplayBuffer == null) {
+                journalReplayBuffer = ByteBuffer.allocate(JOURNAL_RECORD_SIZE);
+            }
+
+            long startTime = System.currentTimeMillis();
+            long replayedBytes = 0;
+            long offset;
+
+            journal.rewind();
+
+            while ((offset = journal.readNext(journalReplayBuffer)) != -1) {
+                replayedBytes += journalReplayBuffer.remaining();
+                writeData(offset, journalReplayBuffer);
+
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Journal replay was interrupted.");
+                }
+
+                if (journalReplayRate > 0) {
+                    long waitTime = (replayedBytes * 1000 / journalReplayRate) -
+                            (System.currentTimeMillis() - startTime);
+
+                    if (waitTime > 0) {
+                        try {
+                            Thread.sleep(waitTime);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Journal replay was interrupted.");
+                        }
+                    }
+                }
+            }
+
+            journalBytesReplayed += replayedBytes;
+
+            logger.info("Replayed {} journaled bytes to SageTV server in {}ms.",
+                    replayedBytes, System.currentTimeMillis() - startTime);
+
+            journal.clear();
+        } catch (IOException e) {
+            logger.warn("Unable to replay the upload journal => {}", e.getMessage());
+            return logger.exit(false);
+        }
+
+        return logger.exit(true);
+    }
+
+    /**
+     * Get the number of bytes accepted for upload, but not yet written to the SageTV server.
+     * <p/>
+     * Uploads are written before returning, so this is always 0 unless the upload is being done
+     * asynchronously.
+     *
+     * @return The number of bytes pending.
+     */
+    public long getBytesPending() {
+        return 0;
+    }
+
+    /**
+     * Is data currently being journaled because the SageTV server is not available?
+     *
+     * @return <i>true</i> if the journal contains data not yet written to the SageTV server.
+     */
+    public boolean isJournaling() {
+        return journal != null && !journal.isEmpty();
+    }
+
+    /**
+     * Get the number of bytes currently in the journal waiting to be written to the SageTV server.
+     *
+     * @return The number of journaled bytes.
+     */
+    public long getJournalSize() {
+        NIOSageTVUploadJournal currentJournal = journal;
+        return currentJournal != null ? currentJournal.getSize() : 0;
+    }
+
+    /**
+     * Get the maximum number of bytes that can be journaled before data is lost.
+     *
+     * @return The maximum journal size in bytes.
+     */
+    public long getJournalMaxSize() {
+        return journalMaxSize;
+    }
+
+    /**
+     * Get the rate that the journal is replayed to the SageTV server.
+     *
+     * @return The replay rate in bytes per second or 0 if the rate is not limited.
+     */
+    public long getJournalReplayRate() {
+        return journalReplayRate;
+    }
+
+    /**
+     * Get the total number of bytes that have been replayed from the journal.
+     *
+     * @return The number of replayed bytes.
+     */
+    public long getJournalBytesReplayed() {
+        return journalBytesReplayed;
+    }
+
     /**
      * Ends an uploading session with SageTV.
      * <p/>
@@ -254,26 +529,184 @@ public class NIOSageTVUploadID {
         String response = null;
 
         synchronized (uploadLock) {
-            sendMessage("CLOSE\r\n");
+            if (isJournaling() && !resumeFromJournal()) {
+                logger.error("Unable to write {} journaled bytes to the SageTV server. The data" +
+                        " will be discarded.", journal.getSize());
 
-            // The expected responses are OK or NON_MEDIA.
-            response = waitForMessage();
+                journal.clear();
+            }
+
+            if (disconnect && journal != null) {
+                journal.close();
+                journal = null;
+            }
+
+            try {
+                sendCommand("CLOSE\r\n");
+
+                // The expected responses are OK or NON_MEDIA.
+                response = waitForMessage();
+            } finally {
+                if (disconnect) {
+                    disconnect(response != null && response.equals("OK") && outstandingResponses == 0);
+                }
+            }
         }
 
-        if (disconnect) {
-            sendMessage("QUIT\r\n");
+        return logger.exit(response != null && response.equals("OK") ? true : false);
+    }
+
+    /**
+     * Disconnect from the SageTV server and clear the current upload.
+     *
+     * @param reusable <i>true</i> if the server closed the file and there is nothing left to read,
+     *                 so the connection can be used again by the next upload to this server.
+     */
+    private void disconnect(boolean reusable) {
+        if (reusable) {
+            detachChannel();
+            NIOSageTVUploadPool.returnConnection(currentServerSocket, socketChannel);
+        } else {
+            try {
+                sendMessage("QUIT\r\n");
+            } catch (IOException e) {
+                logger.debug("Unable to send QUIT to the SageTV server => {}", e.getMessage());
+            }
+
+            detachChannel();
 
             if (socketChannel != null && socketChannel.isOpen()) {
-                socketChannel.close();
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Unable to close the connection => {}", e.getMessage());
+                }
             }
+        }
 
-            socketChannel = null;
-            uploadFilename = null;
-            uploadID = -1;
-            currentServerSocket = null;
+        closeSelector();
+        socketChannel = null;
+        uploadFilename = null;
+        uploadID = -1;
+        currentServerSocket = null;
+    }
+
+    /**
+     * Put the current channel in non-blocking mode and register it with the selector.
+     */
+    private void attachChannel() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
         }
 
-        return logger.exit(response != null && response.equals("OK") ? true : false);
+        messageInBuffer.clear();
+        messageInBuffer.flip();
+        messageInLineLength = 0;
+        outstandingResponses = 0;
+
+        socketChannel.configureBlocking(false);
+        selectionKey = socketChannel.register(selector, 0);
+    }
+
+    /**
+     * Remove the current channel from the selector and return it to blocking mode so it can be
+     * returned to the connection pool.
+     */
+    private void detachChannel() {
+        if (selectionKey != null) {
+            selectionKey.cancel();
+            selectionKey = null;
+
+            try {
+                // The key is not actually removed until the next selection.
+                selector.selectNow();
+
+                if (socketChannel != null && socketChannel.isOpen()) {
+                    socketChannel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                logger.debug("Unable to return the channel to blocking mode => {}", e.getMessage());
+            }
+        }
+    }
+
+    private void closeSelector() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close the selector => {}", e.getMessage());
+            }
+
+            selector = null;
+            selectionKey = null;
+        }
+    }
+
+    /**
+     * Wait until the channel is ready for the requested operation.
+     *
+     * @param operation The operation to wait for.
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return <i>true</i> if the channel is ready or <i>false</i> if the timeout was reached.
+     * @throws IOException If the channel is not usable or the thread was interrupted.
+     */
+    private boolean waitForReady(int operation, long timeout) throws IOException {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            throw new IOException("The socket is not available.");
+        }
+
+        selectionKey.interestOps(operation);
+
+        try {
+            int selected = selector.select(timeout);
+
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for SageTV server.");
+            }
+
+            if (selected > 0) {
+                selector.selectedKeys().clear();
+                return true;
+            }
+
+            return false;
+        } finally {
+            if (selectionKey.isValid()) {
+                selectionKey.interestOps(0);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        long timeout = System.currentTimeMillis() + writeTimeout;
+
+        while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
+            int sentBytes = socketChannel.write(buffer);
+
+            if (sentBytes == 0) {
+                long waitTime = timeout - System.currentTimeMillis();
+
+                if (waitTime <= 0 || !waitForReady(SelectionKey.OP_WRITE, waitTime)) {
+                    throw new IOException("Unable to write to SageTV server after " +
+                            writeTimeout + "ms.");
+                }
+            } else {
+                timeout = System.currentTimeMillis() + writeTimeout;
+                logger.trace("Transferred {} stream bytes to SageTV server. {} bytes remaining.", sentBytes, buffer.remaining());
+            }
+        }
+    }
+
+    /**
+     * Send a command that the SageTV server will respond to.
+     *
+     * @param message The command including the line ending.
+     * @throws IOException If there was a problem sending the command.
+     */
+    private void sendCommand(String message) throws IOException {
+        sendMessage(message);
+        outstandingResponses += 1;
     }
 
     private void sendMessage(String message) throws IOException {
@@ -290,9 +723,13 @@ public class NIOSageTVUploadID {
             messageOutBuffer.put(message.getBytes());
             messageOutBuffer.flip();
 
-            while (messageOutBuffer.hasRemaining()) {
-                int sendBytes = socketChannel.write(messageOutBuffer);
-                logger.trace("Sent {} bytes to the SageTV server.", sendBytes);
+            if (socketChannel.isBlocking()) {
+                while (messageOutBuffer.hasRemaining()) {
+                    int sendBytes = socketChannel.write(messageOutBuffer);
+                    logger.trace("Sent {} bytes to the SageTV server.", sendBytes);
+                }
+            } else {
+                writeFully(messageOutBuffer);
             }
         } else {
             logger.warn("Unable to send '{}' because the socket has not been initialized.", message);
@@ -302,58 +739,98 @@ public class NIOSageTVUploadID {
         logger.exit();
     }
 
+    /**
+     * Wait for the response to the last command sent.
+     * <p/>
+     * Responses to earlier commands that arrive late are read and discarded. Lines are parsed
+     * directly from the receive buffer and the expected responses are returned as constants, so
+     * this normally doesn't create any garbage.
+     * <p/>
+     * This must be called while holding <b>uploadLock</b> since it uses the same selector and
+     * buffers as the upload.
+     *
+     * @return The response from the SageTV server.
+     * @throws IOException If there was no response before the timeout or the socket is not usable.
+     */
     private String waitForMessage() throws IOException {
         logger.entry(socketChannel);
-        messageInBuilder.setLength(0);
 
-        // This should keep stale messages from coming in.
-        if (System.currentTimeMillis() > messageInTimeout) {
-            messageInBuffer.clear();
-            messageInBytes = 0;
+        if (socketChannel == null || !socketChannel.isConnected()) {
+            logger.warn("Unable to receive a message because the socket has not been initialized.");
+            throw new IOException("The socket is not available.");
         }
 
-        // Set the timeout for 30 seconds. If the message has been waiting for that long it's not likely to be relevant.
-        messageInTimeout = System.currentTimeMillis() + 30000;
-        long messageReceivedTimeout = System.currentTimeMillis() + 2000;
+        long timeout = System.currentTimeMillis() + responseTimeout;
 
-        if (socketChannel != null && socketChannel.isConnected()) {
-            while (messageReceivedTimeout > System.currentTimeMillis()) {
-                logger.debug("messageInBytes = {}", messageInBytes);
-                if (messageInBytes > 0) {
-                    while (messageInBuffer.hasRemaining()) {
-                        byte readChar = messageInBuffer.get();
-
-                        if (readChar == '\r') {
-                            if (messageInBuffer.hasRemaining()) {
-                                readChar = messageInBuffer.get();
-                                if (readChar != '\n') {
-                                    logger.debug("Expected LF, but found '{}'. Returning message anyway.", readChar);
-                                }
-                            }
-                            messageInBytes = messageInBytes - (messageInBuilder.length() + 2);
-
-                            String returnString = messageInBuilder.toString();
-                            logger.info("Received message from SageTV server '{}'", returnString);
-                            return logger.exit(returnString);
-                        } else {
-                            //TODO: [js] There needs to be a better way.
-                            messageInBuilder.append(new String(new byte[]{readChar}));
-                        }
+        while (outstandingResponses > 0) {
+            while (messageInBuffer.hasRemaining()) {
+                byte readChar = messageInBuffer.get();
+
+                if (readChar == '\n') {
+                    continue;
+                } else if (readChar != '\r') {
+                    if (messageInLineLength < messageInLine.length) {
+                        messageInLine[messageInLineLength++] = readChar;
                     }
-                } else {
-                    messageInBuffer.clear();
-                    messageInBytes = socketChannel.read(messageInBuffer);
-                    messageInBuffer.flip();
-                    logger.debug("Received {} bytes from SageTV server.", messageInBytes);
+                    continue;
+                }
+
+                outstandingResponses -= 1;
+                String returnString = getResponseString();
+                messageInLineLength = 0;
+
+                if (outstandingResponses > 0) {
+                    logger.debug("Discarding late response from SageTV server '{}'", returnString);
+                    continue;
                 }
+
+                logger.info("Received message from SageTV server '{}'", returnString);
+                return logger.exit(returnString);
+            }
+
+            long waitTime = timeout - System.currentTimeMillis();
+
+            if (waitTime <= 0) {
+                break;
+            }
+
+            messageInBuffer.clear();
+            int readBytes = socketChannel.read(messageInBuffer);
+            messageInBuffer.flip();
+
+            if (readBytes < 0) {
+                throw new IOException("The SageTV server closed the connection.");
+            } else if (readBytes == 0) {
+                waitForReady(SelectionKey.OP_READ, waitTime);
+            } else {
+                logger.debug("Received {} bytes from SageTV server.", readBytes);
             }
         }
 
-        if (messageReceivedTimeout >= System.currentTimeMillis()) {
-            throw new IOException("No response from SageTV after 2 seconds.");
+        throw new IOException("No response from SageTV after " + responseTimeout + "ms.");
+    }
+
+    private String getResponseString() {
+        if (lineEquals(RESPONSE_OK_BYTES)) {
+            return RESPONSE_OK;
+        } else if (lineEquals(RESPONSE_NON_MEDIA_BYTES)) {
+            return RESPONSE_NON_MEDIA;
+        }
+
+        return new String(messageInLine, 0, messageInLineLength);
+    }
+
+    private boolean lineEquals(byte compare[]) {
+        if (messageInLineLength != compare.length) {
+            return false;
+        }
+
+        for (int i = 0; i < compare.length; i++) {
+            if (messageInLine[i] != compare[i]) {
+                return false;
+            }
         }
 
-        logger.warn("Unable to receive '{}' because the socket has not been initialized.");
-        throw new IOException("The socket is not available.");
+        return true;
     }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.upload;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A bounded on-disk journal of upload data that could not be delivered to the SageTV server.
+ * <p/>
+ * Each record is stored as the remote file offset, the length of the data and then the data
+ * itself. Writing the same bytes to the same offset more than once is harmless, so the journal can
+ * be replayed from the beginning as many times as needed until the server has received all of it.
+ * The backing file is not created until the first record is appended.
+ */
+public class NIOSageTVUploadJournal {
+    private final Logger logger = LogManager.getLogger(NIOSageTVUploadJournal.class);
+
+    // offset (long) + length (int)
+    public static final int RECORD_HEADER_SIZE = 12;
+
+    private final File journalFile;
+    private final long maxSize;
+    private final int maxRecordSize;
+
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel fileChannel = null;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+    private long writePosition = 0;
+    private long readPosition = 0;
+    private long journalBytes = 0;
+
+    /**
+     * Create a new upload journal.
+     *
+     * @param journalFile This is the file that will be used to store the journal.
+     * @param maxSize This is the maximum number of bytes of data to be journaled.
+     * @param maxRecordSize This is the largest amount of data that will be stored in a single
+     *                      record. Buffers used to read records must be at least this large.
+     */
+    public NIOSageTVUploadJournal(File journalFile, long maxSize, int maxRecordSize) {
+        this.journalFile = journalFile;
+        this.maxSize = maxSize;
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Add data to the journal.
+     * <p/>
+     * The position of the provided buffer is not changed.
+     *
+     * @param offset This is the offset in the remote file where the data belongs.
+     * @param data This is the data to be journaled.
+     * @return <i>true</i> if the data was journaled or <i>false</i> if the journal would exceed
+     *         the maximum size.
+     * @throws IOException If there was a problem writing to the journal file.
+     */
+    public boolean append(long offset, ByteBuffer data) throws IOException {
+        if (journalBytes + data.remaining() > maxSize) {
+            return false;
+        }
+
+        openJournal();
+
+        ByteBuffer duplicate = data.duplicate();
+
+        while (duplicate.hasRemaining()) {
+            int length = Math.min(duplicate.remaining(), maxRecordSize);
+            ByteBuffer record = duplicate.slice();
+            record.limit(length);
+            duplicate.position(duplicate.position() + length);
+
+            headerBuffer.clear();
+            headerBuffer.putLong(offset);
+            headerBuffer.putInt(length);
+            headerBuffer.flip();
+
+            while (headerBuffer.hasRemaining()) {
+                writePosition += fileChannel.write(headerBuffer, writePosition);
+            }
+
+            while (record.hasRemaining()) {
+                writePosition += fileChannel.write(record, writePosition);
+            }
+
+            offset += length;
+            journalBytes += length;
+        }
+
+        return true;
+    }
+
+    /**
+     * Start reading records from the first record in the journal.
+     */
+    public void rewind() {
+        readPosition = 0;
+    }
+
+    /**
+     * Read the next record from the journal.
+     * <p/>
+     * The buffer will be cleared, filled with the data from the record and flipped.
+     *
+     * @param buffer The buffer to fill. This must be at least as large as the maximum record size.
+     * @return The remote file offset of the record or -1 if there are no more records.
+     * @throws IOException If there was a problem reading from the journal file.
+     */
+    public long readNext(ByteBuffer buffer) throws IOException {
+        if (fileChannel == null || readPosition >= writePosition) {
+            return -1;
+        }
+
+        headerBuffer.clear();
+
+        while (headerBuffer.hasRemaining()) {
+            int readBytes = fileChannel.read(headerBuffer, readPosition + headerBuffer.position());
+
+            if (readBytes < 0) {
+                throw new IOException("The upload journal '" + journalFile + "' is truncated.");
+            }
+        }
+
+        headerBuffer.flip();
+        long offset = headerBuffer.getLong();
+        int length = headerBuffer.getInt();
+
+        if (length < 0 || length > buffer.capacity()) {
+            throw new IOException("The upload journal '" + journalFile + "' has a record with" +
+                    " an invalid length of " + length + " bytes.");
+        }
+
+        buffer.clear();
+        buffer.limit(length);
+        long dataPosition = readPosition + RECORD_HEADER_SIZE;
+
+        while (buffer.hasRemaining()) {
+            int readBytes = fileChannel.read(buffer, dataPosition + buffer.position());
+
+            if (readBytes < 0) {
+                throw new IOException("The upload journal '" + journalFile + "' is truncated.");
+            }
+        }
+
+        buffer.flip();
+        readPosition = dataPosition + length;
+
+        return offset;
+    }
+
+    /**
+     * Remove all records from the journal.
+     * <p/>
+     * The journal file is kept open so it can be re-used without creating a new file.
+     *
+     * @throws IOException If there was a problem truncating the journal file.
+     */
+    public void clear() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.truncate(0);
+        }
+
+        writePosition = 0;
+        readPosition = 0;
+        journalBytes = 0;
+    }
+
+    /**
+     * Close and remove the journal file.
+     */
+    public void close() {
+        writePosition = 0;
+        readPosition = 0;
+        journalBytes = 0;
+
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close the upload journal '{}' => {}", journalFile, e);
+            }
+
+            randomAccessFile = null;
+            fileChannel = null;
+        }
+
+        if (journalFile.exists() && !journalFile.delete()) {
+            logger.warn("Unable to remove the upload journal '{}'.", journalFile);
+        }
+    }
+
+    /**
+     * Is there any data in the journal?
+     *
+     * @return <i>true</i> if there are no records in the journal.
+     */
+    public boolean isEmpty() {
+        return journalBytes == 0;
+    }
+
+    /**
+     * Get the number of bytes of upload data currently journaled.
+     * <p/>
+     * This does not include the record headers.
+     *
+     * @return The number of journaled bytes.
+     */
+    public long getSize() {
+        return journalBytes;
+    }
+
+    /**
+     * Get the maximum number of bytes of upload data that can be journaled.
+     *
+     * @return The maximum number of bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private void openJournal() throws IOException {
+        if (fileChannel != null) {
+            return;
+        }
+
+        logger.info("Creating upload journal '{}'.", journalFile);
+
+        randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        randomAccessFile.setLength(0);
+        fileChannel = randomAccessFile.getChannel();
+        journalFile.deleteOnExit();
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.upload;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle upload connections to SageTV servers open so they can be re-used.
+ * <p/>
+ * Every recording would otherwise open a new connection to the MediaServer port and close it with
+ * QUIT when the recording stops. A connection is only returned to the pool after the SageTV server
+ * accepted CLOSE, so any connection taken from the pool is in a known state and can immediately be
+ * used for WRITEOPEN.
+ * <p/>
+ * Idle connections that are not used within the idle timeout are closed. They are checked every
+ * time a connection is taken or returned and on a timer while there are idle connections, so a
+ * SageTV server that is no longer used doesn't keep its connections open.
+ */
+public class NIOSageTVUploadPool {
+    private static final Logger logger = LogManager.getLogger(NIOSageTVUploadPool.class);
+
+    private static final boolean poolEnabled =
+            Config.getBoolean("upload_id.pool.enabled", true);
+
+    private static final int maxIdleConnections =
+            Math.max(Config.getInteger("upload_id.pool.max_idle_connections", 4), 0);
+
+    private static final long idleTimeout =
+            Math.max(Config.getLong("upload_id.pool.idle_timeout_ms", 120000), 0);
+
+    private static final long sweepInterval = Math.max(idleTimeout / 2, 1000);
+
+    private static final Object poolLock = new Object();
+    private static final HashMap<SocketAddress, ArrayDeque<PooledConnection>> idleConnections =
+            new HashMap<SocketAddress, ArrayDeque<PooledConnection>>();
+
+    // The timer only runs while there are idle connections. These are only used while holding
+    // poolLock.
+    private static ScheduledThreadPoolExecutor sweepExecutor = null;
+    private static ScheduledFuture<?> sweepFuture = null;
+
+    /**
+     * Get a connection to the SageTV server.
+     * <p/>
+     * If a healthy idle connection is available for this address it will be returned, otherwise a
+     * new connection will be opened.
+     *
+     * @param serverSocket This is the address of the SageTV server upload port.
+     * @return A connected socket channel in blocking mode.
+     * @throws IOException If a new connection could not be established.
+     */
+    public static SocketChannel getConnection(SocketAddress serverSocket) throws IOException {
+        logger.entry(serverSocket);
+
+        if (poolEnabled) {
+            ArrayList<SocketChannel> expired = new ArrayList<SocketChannel>();
+            SocketChannel socketChannel = null;
+
+            synchronized (poolLock) {
+                removeExpired(expired);
+
+                ArrayDeque<PooledConnection> connections = idleConnections.get(serverSocket);
+
+                if (connections != null) {
+                    // The most recently used connection is the least likely to have been dropped.
+                    PooledConnection connection = connections.pollLast();
+
+                    if (connection != null) {
+                        socketChannel = connection.socketChannel;
+                    }
+
+                    if (connections.isEmpty()) {
+                        idleConnections.remove(serverSocket);
+                    }
+                }
+            }
+
+            // Closing connections and checking health is done outside of the lock since it
+            // involves network communication.
+            for (SocketChannel expiredChannel : expired) {
+                quitAndClose(expiredChannel);
+            }
+
+            while (socketChannel != null) {
+                if (isHealthy(socketChannel)) {
+                    logger.debug("Re-using idle connection to SageTV server on socket {}.",
+                            serverSocket);
+
+                    return logger.exit(socketChannel);
+                }
+
+                logger.debug("Discarding a dropped idle connection to SageTV server on socket {}.",
+                        serverSocket);
+
+                close(socketChannel);
+
+                synchronized (poolLock) {
+                    socketChannel = null;
+                    ArrayDeque<PooledConnection> connections = idleConnections.get(serverSocket);
+
+                    if (connections != null) {
+                        PooledConnection connection = connections.pollLast();
+
+                        if (connection != null) {
+                            socketChannel = connection.socketChannel;
+                        }
+
+                        if (connections.isEmpty()) {
+                            idleConnections.remove(serverSocket);
+                        }
+                    }
+                }
+            }
+        }
+
+        logger.info("Connecting to SageTV server on socket {}...", serverSocket);
+
+        return logger.exit(SocketChannel.open(serverSocket));
+    }
+
+    /**
+     * Return a connection to the pool.
+     * <p/>
+     * Only return connections that do not have an open file on the SageTV server and do not have
+     * any unread responses. If the pool is disabled or full, the connection will be closed.
+     *
+     * @param serverSocket This is the address of the SageTV server upload port.
+     * @param socketChannel This is the connection to be returned.
+     */
+    public static void returnConnection(SocketAddress serverSocket, SocketChannel socketChannel) {
+        logger.entry(serverSocket, socketChannel);
+
+        if (socketChannel == null) {
+            logger.exit();
+            return;
+        }
+
+        if (!poolEnabled || serverSocket == null || !socketChannel.isConnected()) {
+            quitAndClose(socketChannel);
+            logger.exit();
+            return;
+        }
+
+        ArrayList<SocketChannel> expired = new ArrayList<SocketChannel>();
+        boolean added = false;
+
+        synchronized (poolLock) {
+            removeExpired(expired);
+
+            ArrayDeque<PooledConnection> connections = idleConnections.get(serverSocket);
+
+            if (connections == null) {
+                connections = new ArrayDeque<PooledConnection>();
+                idleConnections.put(serverSocket, connections);
+            }
+
+            if (connections.size() < maxIdleConnections) {
+                connections.addLast(new PooledConnection(socketChannel));
+                added = true;
+                scheduleSweep();
+            } else if (connections.isEmpty()) {
+                idleConnections.remove(serverSocket);
+            }
+        }
+
+        for (SocketChannel expiredChannel : expired) {
+            quitAndClose(expiredChannel);
+        }
+
+        if (added) {
+            logger.debug("Returned idle connection to SageTV server on socket {} to the pool.",
+                    serverSocket);
+        } else {
+            quitAndClose(socketChannel);
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Close all idle connections.
+     * <p/>
+     * This should be called when the program is shutting down or entering standby since the
+     * connections are unlikely to survive either.
+     */
+    public static void closeAllConnections() {
+        logger.entry();
+
+        ArrayList<SocketChannel> closing = new ArrayList<SocketChannel>();
+
+        synchronized (poolLock) {
+            for (ArrayDeque<PooledConnection> connections : idleConnections.values()) {
+                for (PooledConnection connection : connections) {
+                    closing.add(connection.socketChannel);
+                }
+            }
+
+            idleConnections.clear();
+            cancelSweep();
+        }
+
+        for (SocketChannel socketChannel : closing) {
+            quitAndClose(socketChannel);
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Get the number of idle connections currently in the pool.
+     *
+     * @return The total number of idle connections for all SageTV servers.
+     */
+    public static int getIdleConnectionCount() {
+        int returnValue = 0;
+
+        synchronized (poolLock) {
+            for (ArrayDeque<PooledConnection> connections : idleConnections.values()) {
+                returnValue += connections.size();
+            }
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Close every idle connection that has expired.
+     * <p/>
+     * This is run on a timer while there are idle connections.
+     */
+    private static void sweepExpired() {
+        ArrayList<SocketChannel> expired = new ArrayList<SocketChannel>();
+
+        synchronized (poolLock) {
+            removeExpired(expired);
+
+            if (idleConnections.isEmpty()) {
+                cancelSweep();
+            }
+        }
+
+        for (SocketChannel expiredChannel : expired) {
+            logger.debug("Closing an expired idle connection to SageTV server.");
+            quitAndClose(expiredChannel);
+        }
+    }
+
+    // This must be called while holding poolLock.
+    private static void scheduleSweep() {
+        if (sweepFuture != null) {
+            return;
+        }
+
+        if (sweepExecutor == null) {
+            sweepExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("UploadPoolSweeper-" + thread.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        sweepFuture = sweepExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweepExpired();
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // This must be called while holding poolLock.
+    private static void cancelSweep() {
+        if (sweepFuture != null) {
+            sweepFuture.cancel(false);
+            sweepFuture = null;
+        }
+    }
+
+    // This must be called while holding poolLock.
+    private static void removeExpired(ArrayList<SocketChannel> expired) {
+        long expireTime = System.currentTimeMillis() - idleTimeout;
+
+        Iterator<Map.Entry<SocketAddress, ArrayDeque<PooledConnection>>> entries =
+                idleConnections.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            ArrayDeque<PooledConnection> connections = entries.next().getValue();
+
+            // The oldest connections are always at the start of the queue.
+            while (!connections.isEmpty() && connections.peekFirst().idleSince < expireTime) {
+                expired.add(connections.pollFirst().socketChannel);
+            }
+
+            if (connections.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private static boolean isHealthy(SocketChannel socketChannel) {
+        if (!socketChannel.isOpen() || !socketChannel.isConnected()) {
+            return false;
+        }
+
+        // An idle connection should never have anything to read. If the server closed the
+        // connection we will get -1 and if there is data, the connection is in an unknown state.
+        ByteBuffer probe = ByteBuffer.allocate(1);
+
+        try {
+            socketChannel.configureBlocking(false);
+            int readBytes = socketChannel.read(probe);
+            socketChannel.configureBlocking(true);
+
+            return readBytes == 0;
+        } catch (IOException e) {
+            logger.debug("Idle connection health check failed => {}", e.getMessage());
+        }
+
+        return false;
+    }
+
+    private static void quitAndClose(SocketChannel socketChannel) {
+        try {
+            if (socketChannel.isOpen() && socketChannel.isConnected() &&
+                    socketChannel.isBlocking()) {
+
+                ByteBuffer quit = ByteBuffer.wrap("QUIT\r\n".getBytes(Config.STD_BYTE));
+
+                while (quit.hasRemaining()) {
+                    socketChannel.write(quit);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to send QUIT to SageTV server => {}", e.getMessage());
+        }
+
+        close(socketChannel);
+    }
+
+    private static void close(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close connection to SageTV server => {}", e.getMessage());
+        }
+    }
+
+    private static class PooledConnection {
+        private final SocketChannel socketChannel;
+        private final long idleSince;
+
+        private PooledConnection(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+            idleSince = System.currentTimeMillis();
+        }
+    }
+}
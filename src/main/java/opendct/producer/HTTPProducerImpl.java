@@ -24,6 +24,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class HTTPProducerImpl implements HTTPProducer {
@@ -41,6 +42,7 @@ public class HTTPProducerImpl implements HTTPProducer {
     private volatile long bytesReceived = 0;
 
     private SageTVConsumer sageTVConsumer = null;
+    private final CopyOnWriteArrayList<SharedConsumerWriter> sharedConsumers = new CopyOnWriteArrayList<>();
     private byte localBuffer[] = new byte[32768];
 
     public synchronized void setSourceUrls(URL... urls) throws IOException {
@@ -121,6 +123,46 @@ public class HTTPProducerImpl implements HTTPProducer {
         this.sageTVConsumer = sageTVConsumer;
     }
 
+    public synchronized void addSharedConsumer(SageTVConsumer sageTVConsumer) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.getConsumer() == sageTVConsumer) {
+                return;
+            }
+        }
+
+        sharedConsumers.add(new SharedConsumerWriter(sageTVConsumer));
+    }
+
+    public synchronized void removeSharedConsumer(SageTVConsumer sageTVConsumer) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.getConsumer() == sageTVConsumer) {
+                sharedConsumer.stop();
+                sharedConsumers.remove(sharedConsumer);
+            }
+        }
+    }
+
+    // Each shared consumer has its own buffer and thread, so this never waits on a shared consumer.
+    private void writeSharedConsumers(byte[] bytes, int offset, int length) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.isFailed()) {
+                sharedConsumer.stop();
+                sharedConsumers.remove(sharedConsumer);
+                continue;
+            }
+
+            sharedConsumer.write(bytes, offset, length);
+        }
+    }
+
+    private void stopSharedConsumers() {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            sharedConsumer.stop();
+        }
+
+        sharedConsumers.clear();
+    }
+
     public int getPacketsLost() {
         return 0;
     }
@@ -198,6 +240,10 @@ public class HTTPProducerImpl implements HTTPProducer {
 
                         if (readBytes > 0) {
                             sageTVConsumer.write(localBuffer, 0, readBytes);
+
+                            if (!sharedConsumers.isEmpty()) {
+                                writeSharedConsumers(localBuffer, 0, readBytes);
+                            }
                         } else {
                             logger.info("We have reached the end of the stream. Stopping thread.");
                             Thread.currentThread().interrupt();
@@ -209,6 +255,8 @@ public class HTTPProducerImpl implements HTTPProducer {
             }
         }
 
+        stopSharedConsumers();
+
         logger.info("Producer thread has stopped.");
         running.set(false);
     }
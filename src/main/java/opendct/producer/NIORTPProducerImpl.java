@@ -33,6 +33,7 @@ import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -54,6 +55,7 @@ public class NIORTPProducerImpl implements RTPProducer {
     private final Object receiveMonitor = new Object();
 
     private SageTVConsumer sageTVConsumer = null;
+    private final CopyOnWriteArrayList<SharedConsumerWriter> sharedConsumers = new CopyOnWriteArrayList<>();
 
     public synchronized void setStreamingSocket(InetAddress streamRemoteIP, int streamLocalPort) throws IOException {
         logger.entry(streamRemoteIP, streamLocalPort);
@@ -99,6 +101,46 @@ public class NIORTPProducerImpl implements RTPProducer {
         this.sageTVConsumer = sageTVConsumer;
     }
 
+    public synchronized void addSharedConsumer(SageTVConsumer sageTVConsumer) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.getConsumer() == sageTVConsumer) {
+                return;
+            }
+        }
+
+        sharedConsumers.add(new SharedConsumerWriter(sageTVConsumer));
+    }
+
+    public synchronized void removeSharedConsumer(SageTVConsumer sageTVConsumer) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.getConsumer() == sageTVConsumer) {
+                sharedConsumer.stop();
+                sharedConsumers.remove(sharedConsumer);
+            }
+        }
+    }
+
+    // Each shared consumer has its own buffer and thread, so this never waits on a shared consumer.
+    private void writeSharedConsumers(byte[] bytes, int offset, int length) {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            if (sharedConsumer.isFailed()) {
+                sharedConsumer.stop();
+                sharedConsumers.remove(sharedConsumer);
+                continue;
+            }
+
+            sharedConsumer.write(bytes, offset, length);
+        }
+    }
+
+    private void stopSharedConsumers() {
+        for (SharedConsumerWriter sharedConsumer : sharedConsumers) {
+            sharedConsumer.stop();
+        }
+
+        sharedConsumers.clear();
+    }
+
     public int getPacketsLost() {
         return packetProcessor.getMissedRTPPackets();
     }
@@ -258,6 +300,10 @@ public class NIORTPProducerImpl implements RTPProducer {
                         packetProcessor.findMissingRTPPackets(datagramBuffer);
 
                         sageTVConsumer.write(datagramBuffer.array(), datagramBuffer.position(), datagramBuffer.remaining());
+
+                        if (!sharedConsumers.isEmpty()) {
+                            writeSharedConsumers(datagramBuffer.array(), datagramBuffer.position(), datagramBuffer.remaining());
+                        }
                     }
 
                     synchronized (receiveMonitor) {
@@ -287,6 +333,8 @@ public class NIORTPProducerImpl implements RTPProducer {
             }
         }
 
+        stopSharedConsumers();
+
         logger.info("Producer thread has stopped.");
         running.set(false);
         stop.set(false);
@@ -43,6 +43,27 @@ public interface SageTVProducer extends Runnable {
      */
     public void setConsumer(SageTVConsumer sageTVConsumer) throws IOException;
 
+    /**
+     * Add a consumer that receives a copy of everything written to the consumer set by
+     * <b>setConsumer()</b>.
+     * <p/>
+     * This can be done while the producer is running. This is used when more than one recording is
+     * streaming the same channel so the channel only needs to be received once. Shared consumers
+     * are written to on their own threads so they can't slow down the producer. A shared consumer
+     * that fails to write or falls too far behind is removed without affecting the other
+     * consumers.
+     *
+     * @param sageTVConsumer The already configured and running consumer.
+     */
+    public void addSharedConsumer(SageTVConsumer sageTVConsumer);
+
+    /**
+     * Stop writing to a consumer added by <b>addSharedConsumer()</b>.
+     *
+     * @param sageTVConsumer The consumer to remove.
+     */
+    public void removeSharedConsumer(SageTVConsumer sageTVConsumer);
+
     /**
      * Returns the number of packets that needed to be dropped.
      * <p/>
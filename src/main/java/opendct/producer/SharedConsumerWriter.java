@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.producer;
+
+import opendct.config.Config;
+import opendct.consumer.SageTVConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes to a shared consumer on its own thread.
+ * <p/>
+ * The producer thread only copies into a bounded buffer and never waits on the shared consumer, so
+ * a slow shared consumer can't hold up the recording of the capture device that owns the stream.
+ * When the buffer is full, new data is dropped until the shared consumer catches up. If the shared
+ * consumer stays too far behind for too long or fails to write, it is detached.
+ */
+class SharedConsumerWriter implements Runnable {
+    private static final Logger logger = LogManager.getLogger(SharedConsumerWriter.class);
+
+    private static final int bufferSize =
+            Math.max(Config.getInteger("producer.shared_consumer.buffer_size", 4194304), 65536);
+
+    private static final long maxLagTime =
+            Math.max(Config.getLong("producer.shared_consumer.max_lag_ms", 10000), 1000);
+
+    private static final int WRITE_SIZE = 65536;
+
+    private final SageTVConsumer consumer;
+    private final Object bufferLock = new Object();
+    private final byte buffer[] = new byte[bufferSize];
+    private int readIndex = 0;
+    private int readAvailable = 0;
+    private long bytesDropped = 0;
+    private long lagStartTime = 0;
+
+    private volatile boolean running = true;
+    private volatile boolean failed = false;
+    private final Thread thread;
+
+    SharedConsumerWriter(SageTVConsumer consumer) {
+        this.consumer = consumer;
+
+        thread = new Thread(this);
+        thread.setName("SharedConsumerWriter-" + thread.getId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    SageTVConsumer getConsumer() {
+        return consumer;
+    }
+
+    /**
+     * Has this writer stopped because the shared consumer failed or fell too far behind?
+     *
+     * @return <i>true</i> if the shared consumer should be removed.
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Copy data to be written to the shared consumer.
+     * <p/>
+     * This never blocks. If there isn't enough space in the buffer, the data is dropped.
+     *
+     * @param bytes The data to write.
+     * @param offset The offset of the data.
+     * @param length The number of bytes to write.
+     */
+    void write(byte bytes[], int offset, int length) {
+        if (failed) {
+            return;
+        }
+
+        synchronized (bufferLock) {
+            if (length > buffer.length - readAvailable) {
+                long now = System.currentTimeMillis();
+
+                if (bytesDropped == 0) {
+                    logger.warn("The shared consumer is not keeping up. Dropping data.");
+                    lagStartTime = now;
+                } else if (now - lagStartTime > maxLagTime) {
+                    logger.error("The shared consumer has been behind for more than {}ms." +
+                            " Detaching it.", maxLagTime);
+
+                    failed = true;
+                    running = false;
+                    bufferLock.notifyAll();
+                    return;
+                }
+
+                bytesDropped += length;
+                return;
+            }
+
+            if (bytesDropped > 0) {
+                logger.warn("The shared consumer lost {} bytes.", bytesDropped);
+                bytesDropped = 0;
+            }
+
+            int writeIndex = (readIndex + readAvailable) % buffer.length;
+            int firstLength = Math.min(length, buffer.length - writeIndex);
+
+            System.arraycopy(bytes, offset, buffer, writeIndex, firstLength);
+
+            if (firstLength < length) {
+                System.arraycopy(bytes, offset + firstLength, buffer, 0, length - firstLength);
+            }
+
+            readAvailable += length;
+            bufferLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop writing to the shared consumer.
+     * <p/>
+     * Anything still buffered is not written.
+     */
+    void stop() {
+        synchronized (bufferLock) {
+            running = false;
+            bufferLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        byte writeBuffer[] = new byte[WRITE_SIZE];
+
+        try {
+            while (true) {
+                int length;
+
+                synchronized (bufferLock) {
+                    while (readAvailable == 0 && running) {
+                        bufferLock.wait();
+                    }
+
+                    if (!running) {
+                        break;
+                    }
+
+                    // The copy is made so the shared consumer is written to outside of the lock.
+                    length = Math.min(Math.min(readAvailable, writeBuffer.length),
+                            buffer.length - readIndex);
+
+                    System.arraycopy(buffer, readIndex, writeBuffer, 0, length);
+                    readIndex = (readIndex + length) % buffer.length;
+                    readAvailable -= length;
+                }
+
+                consumer.write(writeBuffer, 0, length);
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Shared consumer writer was interrupted.");
+        } catch (Exception e) {
+            logger.error("Detaching shared consumer that was unable to write => ", e);
+            failed = true;
+        } finally {
+            running = false;
+        }
+    }
+}
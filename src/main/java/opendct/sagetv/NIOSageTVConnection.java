@@ -0,0 +1,423 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.config.Config;
+import opendct.consumer.SageTVFileSizeIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayDeque;
+
+/**
+ * A single connection from SageTV serviced by <b>NIOSageTVSelector</b>.
+ * <p/>
+ * Requests are read into a re-used buffer and split on line endings. While a request is being
+ * processed on the worker pool, the connection stops reading so any further requests from SageTV
+ * wait in the socket buffer and are processed in order when the current request completes.
+ */
+public class NIOSageTVConnection {
+    private final Logger logger = LogManager.getLogger(NIOSageTVConnection.class);
+
+    // SageTV requests are single lines. A line this long is not a request from SageTV.
+    private static final int MAX_REQUEST_LENGTH = 65536;
+
+    private static final Charset charset = Charset.forName(Config.STD_BYTE);
+
+    private final SocketChannel socketChannel;
+    private final NIOSageTVSelector.SelectorLoop selectorLoop;
+    private final SageTVRequestHandler requestHandler;
+    private final ResponseWriter responseWriter;
+    private SelectionKey selectionKey = null;
+
+    // These are only accessed from the selector thread.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private byte lineBuffer[] = new byte[256];
+    private int lineLength = 0;
+    private final ArrayDeque<String> requests = new ArrayDeque<String>();
+    private boolean busy = false;
+    private boolean closing = false;
+    private boolean closed = false;
+    private final long acceptTime = System.nanoTime();
+    private boolean firstRead = true;
+
+    public NIOSageTVConnection(SocketChannel socketChannel,
+                               NIOSageTVSelector.SelectorLoop selectorLoop,
+                               CaptureDevice captureDevice) {
+
+        this.socketChannel = socketChannel;
+        this.selectorLoop = selectorLoop;
+        responseWriter = new ResponseWriter();
+        requestHandler = new SageTVRequestHandler(
+                socketChannel.socket(), captureDevice, responseWriter);
+    }
+
+    // This must be called from the selector thread.
+    void register() {
+        try {
+            selectionKey = socketChannel.register(selectorLoop.selector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            logger.debug("Connection was closed before it could be registered.");
+            close();
+            return;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Starting connection to remote socket {}:{}",
+                    requestHandler.getRemoteAddress(), requestHandler.getRemotePort());
+        }
+    }
+
+    // This must be called from the selector thread.
+    void onReadable() {
+        int readBytes;
+
+        try {
+            readBuffer.clear();
+            readBytes = socketChannel.read(readBuffer);
+        } catch (IOException e) {
+            logger.debug("The SageTV server has disconnected ungracefully => {}", e.getMessage());
+            close();
+            return;
+        }
+
+        if (readBytes < 0) {
+            close();
+            return;
+        }
+
+        if (firstRead && readBytes > 0) {
+            firstRead = false;
+            SageTVLatencyMonitor.recordAcceptToFirstByte(System.nanoTime() - acceptTime);
+        }
+
+        readBuffer.flip();
+
+        while (readBuffer.hasRemaining()) {
+            byte nextByte = readBuffer.get();
+
+            if (nextByte == '\n') {
+                // Line endings are expected to be \r\n, but a lone \n is also accepted just like
+                // BufferedReader.readLine().
+                int length = lineLength;
+
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length -= 1;
+                }
+
+                requests.addLast(new String(lineBuffer, 0, length, charset));
+                lineLength = 0;
+                continue;
+            }
+
+            if (lineLength == lineBuffer.length) {
+                if (lineBuffer.length >= MAX_REQUEST_LENGTH) {
+                    logger.error("Closing connection from {} because a request exceeded {} bytes.",
+                            requestHandler.getRemoteAddress(), MAX_REQUEST_LENGTH);
+                    close();
+                    return;
+                }
+
+                byte newLineBuffer[] = new byte[Math.min(lineBuffer.length * 2, MAX_REQUEST_LENGTH)];
+                System.arraycopy(lineBuffer, 0, newLineBuffer, 0, lineLength);
+                lineBuffer = newLineBuffer;
+            }
+
+            lineBuffer[lineLength++] = nextByte;
+        }
+
+        processRequests();
+    }
+
+    // This must be called from the selector thread.
+    void onWritable() {
+        try {
+            if (responseWriter.writePending()) {
+                if (closing) {
+                    close();
+                    return;
+                }
+
+                updateInterest();
+            }
+        } catch (IOException e) {
+            logger.debug("The SageTV server has disconnected ungracefully => {}", e.getMessage());
+            close();
+        }
+    }
+
+    // This must be called from the selector thread.
+    private void processRequests() {
+        while (!busy && !closing && !closed) {
+            final String request = requests.pollFirst();
+
+            if (request == null) {
+                break;
+            }
+
+            if (request.equals("")) {
+                closeAfterWrite();
+                return;
+            }
+
+            if (isInlineRequest(request)) {
+                if (!runRequest(request)) {
+                    closeAfterWrite();
+                    return;
+                }
+
+                continue;
+            }
+
+            busy = true;
+            updateInterest();
+
+            boolean dispatched = NIOSageTVSelector.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean keepOpen = runRequest(request);
+
+                    selectorLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            busy = false;
+
+                            if (!keepOpen) {
+                                closeAfterWrite();
+                                return;
+                            }
+
+                            updateInterest();
+                            processRequests();
+                        }
+                    });
+                }
+            });
+
+            if (!dispatched) {
+                busy = false;
+                logger.error("Unable to process '{}' because all worker threads are busy.", request);
+
+                try {
+                    responseWriter.write("ERROR Server Busy\r\n");
+                    responseWriter.flush();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+
+                updateInterest();
+            }
+        }
+    }
+
+    /**
+     * Can this request be answered without waiting on anything?
+     * <p/>
+     * These requests are processed on the selector thread. Everything else is given to the worker
+     * pool since it might need to wait on a capture device, a lock or the filesystem.
+     *
+     * @param request The request from SageTV.
+     * @return <i>true</i> if the request can be answered on the selector thread.
+     */
+    private static boolean isInlineRequest(String request) {
+        if (request.startsWith("GET_FILE_SIZE ")) {
+            return SageTVFileSizeIndex.isCached(request.substring("GET_FILE_SIZE ".length()));
+        }
+
+        return request.equals("NOOP") || request.equals("VERSION") || request.equals("QUIT");
+    }
+
+    private boolean runRequest(String request) {
+        // The request handler renames the current thread to reflect the capture device it's
+        // working on. This thread will be used for other connections after this request.
+        String threadName = Thread.currentThread().getName();
+
+        try {
+            return requestHandler.processRequest(request);
+        } catch (Exception e) {
+            logger.error("An unhandled exception was created while processing '{}' => ",
+                    request, e);
+            return false;
+        } finally {
+            Thread.currentThread().setName(threadName);
+        }
+    }
+
+    // This must be called from the selector thread.
+    private void updateInterest() {
+        if (closed || selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+
+        int interestOps = 0;
+
+        if (!busy && !closing) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+
+        if (responseWriter.hasPending()) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+
+        selectionKey.interestOps(interestOps);
+    }
+
+    // This must be called from the selector thread.
+    private void closeAfterWrite() {
+        if (!responseWriter.hasPending()) {
+            close();
+            return;
+        }
+
+        // The last response, like the reply to QUIT, could still be waiting for the socket buffer
+        // to have space. The connection is closed by onWritable() once it has been written.
+        closing = true;
+        updateInterest();
+    }
+
+    // This must be called from the selector thread.
+    private void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Closing connection to {} on port {}",
+                    requestHandler.getRemoteAddress(), requestHandler.getRemotePort());
+        }
+
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close the connection => {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes responses into a re-used buffer and writes them to the connection without blocking.
+     * <p/>
+     * If the socket buffer is full, the rest of the response is written when the selector reports
+     * that the connection is writable again.
+     */
+    private class ResponseWriter extends Writer {
+        private final CharsetEncoder encoder = charset.newEncoder();
+        private CharBuffer charBuffer = CharBuffer.allocate(512);
+        private ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
+        private boolean pending = false;
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            if (charBuffer.remaining() < length) {
+                CharBuffer newCharBuffer = CharBuffer.allocate(
+                        Math.max(charBuffer.capacity() * 2, charBuffer.position() + length));
+                charBuffer.flip();
+                newCharBuffer.put(charBuffer);
+                charBuffer = newCharBuffer;
+            }
+
+            charBuffer.put(chars, offset, length);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            charBuffer.flip();
+            encoder.reset();
+
+            while (true) {
+                CoderResult result = encoder.encode(charBuffer, byteBuffer, true);
+
+                if (result.isOverflow()) {
+                    ByteBuffer newByteBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
+                    byteBuffer.flip();
+                    newByteBuffer.put(byteBuffer);
+                    byteBuffer = newByteBuffer;
+                    continue;
+                }
+
+                break;
+            }
+
+            charBuffer.clear();
+
+            if (!writePending() && !pending) {
+                pending = true;
+
+                // The selector thread will finish writing the response when it can.
+                if (selectorLoop.isSelectorThread()) {
+                    updateInterest();
+                } else {
+                    selectorLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            updateInterest();
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Write as much of the encoded responses as the connection will take.
+         *
+         * @return <i>true</i> if everything was written.
+         * @throws IOException If the connection is closed.
+         */
+        private synchronized boolean writePending() throws IOException {
+            byteBuffer.flip();
+
+            try {
+                while (byteBuffer.hasRemaining()) {
+                    if (socketChannel.write(byteBuffer) == 0) {
+                        return false;
+                    }
+                }
+            } finally {
+                byteBuffer.compact();
+            }
+
+            pending = false;
+            return true;
+        }
+
+        private synchronized boolean hasPending() {
+            return pending;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The connection is closed by the selector thread.
+        }
+    }
+}
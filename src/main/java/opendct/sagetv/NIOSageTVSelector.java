@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Services every SageTV network encoder port and connection from a small number of selector
+ * threads.
+ * <p/>
+ * Accepting connections and reading requests never blocks, so a thread is no longer created for
+ * every connection SageTV opens. Requests that can be answered immediately are answered on the
+ * selector thread. Requests that can take a long time such as START, SWITCH and STOP are handed
+ * to a bounded pool of worker threads. Only one request per connection is ever in progress, so
+ * SageTV still receives responses in the order the requests were sent.
+ */
+public class NIOSageTVSelector {
+    private static final Logger logger = LogManager.getLogger(NIOSageTVSelector.class);
+
+    private static final int selectorThreads =
+            Math.min(Math.max(Config.getInteger("sagetv.nio.selector_threads", 1), 1), 4);
+
+    private static final int workerThreads =
+            Math.max(Config.getInteger("sagetv.nio.worker_threads", 16), 1);
+
+    private static final int workerQueueSize =
+            Math.max(Config.getInteger("sagetv.nio.worker_queue_size", 256), 1);
+
+    private static final Object selectorLock = new Object();
+    private static SelectorLoop selectorLoops[] = null;
+    private static ThreadPoolExecutor workerPool = null;
+    private static final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    /**
+     * Start accepting connections on an open and bound server socket channel.
+     *
+     * @param serverSocketChannel This is the channel to accept connections on.
+     * @param socketServer This is the server that owns the channel.
+     * @throws IOException If the selector threads could not be started or the channel could not
+     *                     be configured for non-blocking mode.
+     */
+    public static void registerServer(final ServerSocketChannel serverSocketChannel,
+                                      final SageTVSocketServer socketServer) throws IOException {
+
+        logger.entry(serverSocketChannel, socketServer);
+
+        serverSocketChannel.configureBlocking(false);
+
+        final SelectorLoop selectorLoop = nextSelectorLoop();
+
+        selectorLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serverSocketChannel.register(
+                            selectorLoop.selector, SelectionKey.OP_ACCEPT, socketServer);
+                } catch (IOException e) {
+                    logger.error("Unable to accept connections on port {} => {}",
+                            socketServer.getListenPort(), e);
+                }
+            }
+        });
+
+        logger.exit();
+    }
+
+    /**
+     * Stop accepting connections on a server socket channel and close it.
+     * <p/>
+     * Connections that have already been accepted are not closed.
+     *
+     * @param serverSocketChannel This is the channel to stop accepting connections on.
+     */
+    public static void unregisterServer(ServerSocketChannel serverSocketChannel) {
+        logger.entry(serverSocketChannel);
+
+        // Closing a registered channel cancels all of its keys. The selector will release the
+        // port on its next selection.
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            logger.debug("An unexpected exception occurred while closing the socket => {}", e);
+        }
+
+        synchronized (selectorLock) {
+            if (selectorLoops != null) {
+                for (SelectorLoop selectorLoop : selectorLoops) {
+                    selectorLoop.selector.wakeup();
+                }
+            }
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Run a request on the worker pool.
+     *
+     * @param runnable This is the request to run.
+     * @return <i>false</i> if the worker pool is full and the request was not queued.
+     */
+    static boolean dispatch(Runnable runnable) {
+        ThreadPoolExecutor executor;
+
+        synchronized (selectorLock) {
+            executor = workerPool;
+        }
+
+        if (executor == null) {
+            return false;
+        }
+
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of requests currently being processed or waiting on the worker pool.
+     *
+     * @return The number of requests.
+     */
+    public static int getPendingRequests() {
+        synchronized (selectorLock) {
+            if (workerPool == null) {
+                return 0;
+            }
+
+            return workerPool.getActiveCount() + workerPool.getQueue().size();
+        }
+    }
+
+    private static SelectorLoop nextSelectorLoop() throws IOException {
+        synchronized (selectorLock) {
+            if (selectorLoops == null) {
+                startSelectorLoops();
+            }
+
+            return selectorLoops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) %
+                    selectorLoops.length];
+        }
+    }
+
+    // This must be called while holding selectorLock.
+    private static void startSelectorLoops() throws IOException {
+        logger.info("Starting {} selector thread(s) and up to {} worker thread(s)...",
+                selectorThreads, workerThreads);
+
+        workerPool = new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setName("SageTVRequestHandler-" + thread.getId() + ":Idle");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        workerPool.allowCoreThreadTimeOut(true);
+
+        SelectorLoop newLoops[] = new SelectorLoop[selectorThreads];
+
+        for (int i = 0; i < newLoops.length; i++) {
+            newLoops[i] = new SelectorLoop(Selector.open());
+
+            Thread thread = new Thread(newLoops[i]);
+            thread.setName("NIOSageTVSelector-" + thread.getId());
+            thread.setDaemon(true);
+            newLoops[i].thread = thread;
+            thread.start();
+        }
+
+        selectorLoops = newLoops;
+    }
+
+    private static void acceptConnections(SelectionKey key) {
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
+        SageTVSocketServer socketServer = (SageTVSocketServer) key.attachment();
+
+        while (true) {
+            SocketChannel socketChannel;
+
+            try {
+                socketChannel = serverSocketChannel.accept();
+            } catch (IOException e) {
+                logger.error("Unable to accept connections on port {} => {}",
+                        socketServer.getListenPort(), e);
+                return;
+            }
+
+            if (socketChannel == null) {
+                return;
+            }
+
+            try {
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+
+                // Spread connections over all of the selector threads.
+                SelectorLoop selectorLoop = nextSelectorLoop();
+
+                final NIOSageTVConnection connection = new NIOSageTVConnection(
+                        socketChannel, selectorLoop, socketServer.getCaptureDevice());
+
+                selectorLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.register();
+                    }
+                });
+            } catch (IOException e) {
+                logger.error("Unable to configure connection on port {} => {}",
+                        socketServer.getListenPort(), e);
+
+                try {
+                    socketChannel.close();
+                } catch (IOException e0) {
+                    logger.debug("An unexpected exception occurred while closing the socket => {}", e0);
+                }
+            }
+        }
+    }
+
+    static class SelectorLoop implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile Thread thread;
+
+        private SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run a task on this selector thread.
+         * <p/>
+         * Registration and interest changes must be done on the selector thread, otherwise they can
+         * block until the current selection returns.
+         *
+         * @param runnable This is the task to run.
+         */
+        void execute(Runnable runnable) {
+            tasks.add(runnable);
+
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        boolean isSelectorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        public void run() {
+            logger.info("Selector thread is now running.");
+
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("Selector failed => {}", e);
+                    continue;
+                }
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        logger.error("Unexpected exception in selector task => ", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            acceptConnections(key);
+                        } else if (key.attachment() instanceof NIOSageTVConnection) {
+                            NIOSageTVConnection connection =
+                                    (NIOSageTVConnection) key.attachment();
+
+                            if (key.isWritable()) {
+                                connection.onWritable();
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        logger.debug("Connection was closed while it was selected.");
+                    } catch (Exception e) {
+                        logger.error("Unexpected exception in selector thread => ", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.capture.SharedStreamManager;
+import opendct.channel.ChannelManager;
+import opendct.channel.TVChannel;
+import opendct.config.Config;
+import opendct.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool capture devices in one pool, ordered by how good of a choice they are for a new
+ * recording.
+ * <p/>
+ * Every capture device has a slot ordered first by its state (free, externally locked, busy), then
+ * by merit from highest to lowest, then by the least recently used and then by the order it was
+ * added. Putting the least recently used capture device first spreads recordings evenly across
+ * capture devices with the same merit. Slots are never changed.
+ * When the state or merit of a capture device changes, its slot is removed and a new slot is
+ * added. Removing a slot is atomic, so the thread that removes a slot is the only thread that can
+ * change that capture device until a new slot is added. Selecting the best capture device is
+ * usually a single removal of the first slot.
+ * <p/>
+ * The state of a slot is only a hint. Capture devices can be locked or unlocked without the pool
+ * being told, so the actual state is always verified before a capture device is selected.
+ * <p/>
+ * When the requested channel is known, a free capture device that can start streaming it with the
+ * least amount of work is preferred over merit. In order of preference, that is a capture device
+ * already on the channel, a capture device already on the same frequency and a capture device on
+ * the same parent device that last streamed the channel. The last preference is skipped when at
+ * least half of the pool is free so light use is spread across every parent device.
+ * <p/>
+ * A recording that will share a stream already being received doesn't use a tuner, so it is given
+ * the capture device whose tuner is least useful for anything else.
+ */
+public class SageTVDevicePool {
+    private static final Logger logger = LogManager.getLogger(SageTVDevicePool.class);
+
+    public enum State {
+        FREE,
+        EXTERNAL_LOCKED,
+        BUSY
+    }
+
+    private final String poolName;
+    private final ConcurrentSkipListSet<Slot> slots = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Slot> currentSlots = new ConcurrentHashMap<>();
+    private final AtomicLong nextOrder = new AtomicLong(0);
+    private final AtomicLong nextUse = new AtomicLong(0);
+
+    // Looking up the frequency of a channel is not free, so the last known channel of each capture
+    // device is kept with its frequency and only looked up again when the channel changes.
+    private final ConcurrentHashMap<String, TunerState> tunerStates = new ConcurrentHashMap<>();
+
+    // The parent device that most recently streamed each channel.
+    private final ConcurrentHashMap<String, String> channelToParent = new ConcurrentHashMap<>();
+
+    private static final boolean channelAffinity = Config.getBoolean("pool.channel_affinity", true);
+
+    private static final int AFFINITY_NONE = 0;
+    private static final int AFFINITY_PARENT = 1;
+    private static final int AFFINITY_FREQUENCY = 2;
+    private static final int AFFINITY_CHANNEL = 3;
+
+    public SageTVDevicePool(String poolName) {
+        this.poolName = poolName;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * Add a capture device to this pool.
+     *
+     * @param captureDevice The name of the pool capture device.
+     * @return <i>false</i> if the capture device is already in this pool.
+     */
+    public boolean addCaptureDevice(String captureDevice) {
+        Slot slot = new Slot(captureDevice, getMerit(captureDevice), State.FREE, 0, nextOrder.getAndIncrement());
+
+        if (currentSlots.putIfAbsent(captureDevice, slot) != null) {
+            return false;
+        }
+
+        slots.add(slot);
+        return true;
+    }
+
+    /**
+     * Remove a capture device from this pool.
+     *
+     * @param captureDevice The name of the pool capture device.
+     * @return <i>false</i> if the capture device was not in this pool.
+     */
+    public boolean removeCaptureDevice(String captureDevice) {
+        Slot slot = currentSlots.remove(captureDevice);
+
+        if (slot == null) {
+            return false;
+        }
+
+        // If another thread currently has this slot, it will not be added back since it's no
+        // longer the current slot.
+        slots.remove(slot);
+        tunerStates.remove(captureDevice);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return currentSlots.isEmpty();
+    }
+
+    /**
+     * Get the names of all capture devices in this pool.
+     *
+     * @return The names in order of merit.
+     */
+    public ArrayList<String> getCaptureDevices() {
+        ArrayList<Slot> sortedSlots = new ArrayList<>(currentSlots.values());
+
+        Collections.sort(sortedSlots, new Comparator<Slot>() {
+            @Override
+            public int compare(Slot o1, Slot o2) {
+                if (o1.merit != o2.merit) {
+                    return o1.merit > o2.merit ? -1 : 1;
+                }
+
+                return Long.compare(o1.order, o2.order);
+            }
+        });
+
+        ArrayList<String> returnValue = new ArrayList<>(sortedSlots.size());
+
+        for (Slot slot : sortedSlots) {
+            returnValue.add(slot.captureDevice);
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Re-read the merit of every capture device in this pool.
+     * <p/>
+     * Run this any time the merit of a capture device in this pool changes.
+     */
+    public void updateMerits() {
+        for (Slot slot : currentSlots.values()) {
+            int merit = getMerit(slot.captureDevice);
+
+            if (merit != slot.merit && slots.remove(slot)) {
+                putBack(slot, new Slot(slot.captureDevice, merit, slot.state, slot.lastUsed, slot.order));
+            }
+        }
+    }
+
+    /**
+     * Tell the pool that a capture device is no longer in use.
+     *
+     * @param captureDevice The name of the pool capture device.
+     */
+    public void released(String captureDevice) {
+        Slot slot = currentSlots.get(captureDevice);
+
+        // If the slot can't be removed, another thread is currently checking this capture device
+        // and will set the correct state.
+        if (slot == null || slot.state == State.FREE || !slots.remove(slot)) {
+            return;
+        }
+
+        putBack(slot, new Slot(slot.captureDevice, slot.merit, State.FREE, nextUse.incrementAndGet(), slot.order));
+    }
+
+    /**
+     * Find the best available capture device in this pool for a channel and lock it.
+     * <p/>
+     * A free capture device that is already on the channel, on the same frequency or on the parent
+     * device that last streamed the channel is preferred. If none of the free capture devices are
+     * a better choice for the channel, this is the same as <b>claimBestCaptureDevice()</b>.
+     *
+     * @param channel The channel that will be streamed or <i>null</i> if it is not known.
+     * @return The locked capture device or <i>null</i> if every capture device in this pool is in
+     *         use.
+     */
+    public CaptureDevice claimBestCaptureDevice(String channel) {
+        CaptureDevice captureDevice = null;
+
+        if (channelAffinity && !Util.isNullOrEmpty(channel)) {
+            captureDevice = claimAffinityCaptureDevice(channel);
+        }
+
+        if (captureDevice == null) {
+            captureDevice = claimBestCaptureDevice();
+        }
+
+        if (captureDevice != null && !Util.isNullOrEmpty(channel)) {
+            tunerStates.put(captureDevice.getEncoderName(),
+                    new TunerState(channel, getFrequency(captureDevice, channel)));
+
+            String parent = captureDevice.getEncoderParentName();
+
+            if (parent != null) {
+                channelToParent.put(channel, parent);
+            }
+        }
+
+        return captureDevice;
+    }
+
+    /**
+     * Find the best available capture device in this pool and lock it.
+     * <p/>
+     * Capture devices that are not locked and not externally locked are preferred. If all of them
+     * are in use, an externally locked capture device will be unlocked. If the external lock can't
+     * be removed, the externally locked capture device with the highest merit is used anyway.
+     *
+     * @return The locked capture device or <i>null</i> if every capture device in this pool is in
+     *         use.
+     */
+    public CaptureDevice claimBestCaptureDevice() {
+        ArrayList<Slot> externalLocked = new ArrayList<>();
+        boolean checkedIdle = false;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Slot slot = slots.pollFirst();
+
+                if (slot == null || slot.state == State.BUSY) {
+                    if (slot != null) {
+                        putBack(slot, slot);
+                    }
+
+                    // Capture devices can be unlocked without telling the pool, so before giving
+                    // up, make sure nothing is marked busy that actually isn't.
+                    if (!checkedIdle) {
+                        checkedIdle = true;
+
+                        if (freeIdleSlots()) {
+                            continue;
+                        }
+                    }
+
+                    break;
+                }
+
+                CaptureDevice captureDevice = getCaptureDevice(slot.captureDevice);
+
+                if (captureDevice == null) {
+                    // The capture device has not been loaded yet or was removed.
+                    putBack(slot, State.BUSY);
+                    continue;
+                }
+
+                if (captureDevice.isLocked()) {
+                    putBack(slot, State.BUSY);
+                    continue;
+                }
+
+                if (captureDevice.isExternalLocked()) {
+                    if (slot.state == State.FREE) {
+                        putBack(slot, State.EXTERNAL_LOCKED);
+                        continue;
+                    }
+
+                    // We only get here when there are no free capture devices left. Keep the slot
+                    // so nothing else can use it while we decide what to do with it.
+                    if (captureDevice.setExternalLock(false)) {
+                        if (!captureDevice.setLocked(true)) {
+                            putBack(slot, State.BUSY);
+                            continue;
+                        }
+
+                        putBack(slot, State.BUSY);
+
+                        logger.info("'{}' pool capture device was externally locked and has been unlocked.",
+                                slot.captureDevice);
+
+                        return captureDevice;
+                    }
+
+                    externalLocked.add(slot);
+                    continue;
+                }
+
+                if (!captureDevice.setLocked(true)) {
+                    putBack(slot, State.BUSY);
+                    continue;
+                }
+
+                putBack(slot, State.BUSY);
+                return captureDevice;
+            }
+
+            // If we can't find a device that's not locked, then we need to use one that is. These
+            // are still in order of merit.
+            while (!externalLocked.isEmpty()) {
+                Slot slot = externalLocked.remove(0);
+                CaptureDevice captureDevice = getCaptureDevice(slot.captureDevice);
+
+                if (captureDevice == null || !captureDevice.setLocked(true)) {
+                    putBack(slot, State.BUSY);
+                    continue;
+                }
+
+                captureDevice.setExternalLock(false);
+                putBack(slot, State.BUSY);
+
+                logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected.",
+                        slot.captureDevice);
+
+                return captureDevice;
+            }
+        } finally {
+            for (Slot slot : externalLocked) {
+                putBack(slot, State.EXTERNAL_LOCKED);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find a capture device in this pool for a recording that will share a stream and lock it.
+     * <p/>
+     * The capture device will not use its own tuner, so the tuners that are least useful to
+     * anything else are used first. That is an externally locked capture device, which is left
+     * externally locked, then the free capture device with the lowest merit. This leaves the best
+     * tuners free for recordings that need to tune a channel.
+     *
+     * @param lineup The lineup of the channel being shared.
+     * @return The locked capture device or <i>null</i> if no capture device in this pool can share
+     *         the stream.
+     */
+    public CaptureDevice claimSharingCaptureDevice(String lineup) {
+        // Busy slots are last in order, so they are first when descending.
+        for (Slot slot : slots.descendingSet()) {
+            if (slot.state == State.BUSY) {
+                continue;
+            }
+
+            CaptureDevice captureDevice = getCaptureDevice(slot.captureDevice);
+
+            if (captureDevice == null || !SharedStreamManager.canShare(captureDevice) ||
+                    lineup == null || !lineup.equals(captureDevice.getChannelLineup())) {
+
+                continue;
+            }
+
+            if (!slots.remove(slot)) {
+                // Another thread has this slot.
+                continue;
+            }
+
+            if (!captureDevice.setLocked(true)) {
+                putBack(slot, State.BUSY);
+                continue;
+            }
+
+            putBack(slot, State.BUSY);
+
+            logger.info("'{}' pool capture device selected to share a stream.", slot.captureDevice);
+
+            return captureDevice;
+        }
+
+        return null;
+    }
+
+    private CaptureDevice claimAffinityCaptureDevice(String channel) {
+        Slot bestSlot = null;
+        int bestAffinity = AFFINITY_NONE;
+        int freeSlots = 0;
+        String lastParent = channelToParent.get(channel);
+        // Only look up the frequency of the requested channel once per lineup.
+        String lastLineup = null;
+        String frequency = null;
+
+        // The slots are in order, so the first slot with the highest affinity also has the highest
+        // merit and is the least recently used of the slots with that affinity.
+        for (Slot slot : slots) {
+            if (slot.state != State.FREE) {
+                break;
+            }
+
+            freeSlots += 1;
+
+            if (bestAffinity == AFFINITY_CHANNEL) {
+                continue;
+            }
+
+            CaptureDevice captureDevice = getCaptureDevice(slot.captureDevice);
+
+            if (captureDevice == null) {
+                continue;
+            }
+
+            TunerState tunerState = getTunerState(captureDevice);
+            int affinity = AFFINITY_NONE;
+
+            if (tunerState != null && channel.equals(tunerState.channel)) {
+                affinity = AFFINITY_CHANNEL;
+            } else if (tunerState != null && !Util.isNullOrEmpty(tunerState.frequency)) {
+                String lineup = captureDevice.getChannelLineup();
+
+                if (lastLineup == null || !lastLineup.equals(lineup)) {
+                    lastLineup = lineup;
+                    frequency = getFrequency(captureDevice, channel);
+                }
+
+                if (tunerState.frequency.equals(frequency)) {
+                    affinity = AFFINITY_FREQUENCY;
+                }
+            }
+
+            if (affinity == AFFINITY_NONE && lastParent != null &&
+                    lastParent.equals(captureDevice.getEncoderParentName())) {
+
+                affinity = AFFINITY_PARENT;
+            }
+
+            if (affinity > bestAffinity) {
+                bestAffinity = affinity;
+                bestSlot = slot;
+            }
+        }
+
+        // Under light load, spread the work across parent devices instead.
+        if (bestAffinity == AFFINITY_PARENT && freeSlots * 2 >= currentSlots.size()) {
+            return null;
+        }
+
+        if (bestSlot == null || !slots.remove(bestSlot)) {
+            return null;
+        }
+
+        CaptureDevice captureDevice = getCaptureDevice(bestSlot.captureDevice);
+
+        if (captureDevice == null || captureDevice.isLocked()) {
+            putBack(bestSlot, State.BUSY);
+            return null;
+        }
+
+        if (captureDevice.isExternalLocked()) {
+            putBack(bestSlot, State.EXTERNAL_LOCKED);
+            return null;
+        }
+
+        if (!captureDevice.setLocked(true)) {
+            putBack(bestSlot, State.BUSY);
+            return null;
+        }
+
+        putBack(bestSlot, State.BUSY);
+
+        logger.debug("'{}' pool capture device selected for channel '{}' with affinity {}.",
+                bestSlot.captureDevice, channel, bestAffinity);
+
+        return captureDevice;
+    }
+
+    // The channel the capture device is actually on is preferred over the cached channel since it
+    // could have been changed by something other than the pool.
+    private TunerState getTunerState(CaptureDevice captureDevice) {
+        String name = captureDevice.getEncoderName();
+        String lastChannel = captureDevice.getLastChannel();
+        TunerState tunerState = tunerStates.get(name);
+
+        if (Util.isNullOrEmpty(lastChannel) ||
+                (tunerState != null && lastChannel.equals(tunerState.channel))) {
+
+            return tunerState;
+        }
+
+        tunerState = new TunerState(lastChannel, getFrequency(captureDevice, lastChannel));
+        tunerStates.put(name, tunerState);
+
+        return tunerState;
+    }
+
+    private static String getFrequency(CaptureDevice captureDevice, String channel) {
+        TVChannel tvChannel = ChannelManager.getChannel(captureDevice.getChannelLineup(), channel);
+
+        return tvChannel == null ? null : tvChannel.getFrequency();
+    }
+
+    /**
+     * Change the state of every busy slot that is not actually locked to free.
+     *
+     * @return <i>true</i> if at least one slot was changed.
+     */
+    private boolean freeIdleSlots() {
+        boolean returnValue = false;
+
+        for (Slot slot : currentSlots.values()) {
+            if (slot.state != State.BUSY) {
+                continue;
+            }
+
+            CaptureDevice captureDevice = getCaptureDevice(slot.captureDevice);
+
+            if (captureDevice != null && !captureDevice.isLocked() && slots.remove(slot)) {
+                putBack(slot, State.FREE);
+                returnValue = true;
+            }
+        }
+
+        return returnValue;
+    }
+
+    private void putBack(Slot oldSlot, State state) {
+        putBack(oldSlot, new Slot(oldSlot.captureDevice, oldSlot.merit, state, oldSlot.lastUsed, oldSlot.order));
+    }
+
+    // The old slot must have already been removed from the ordered slots by the current thread.
+    private void putBack(Slot oldSlot, Slot newSlot) {
+        if (currentSlots.replace(oldSlot.captureDevice, oldSlot, newSlot)) {
+            slots.add(newSlot);
+        }
+    }
+
+    private int getMerit(String captureDeviceName) {
+        CaptureDevice captureDevice = getCaptureDevice(captureDeviceName);
+
+        return captureDevice == null ? 0 : captureDevice.getMerit();
+    }
+
+    /**
+     * Get a capture device in this pool by name.
+     *
+     * @param captureDevice The name of the pool capture device.
+     * @return The capture device or <i>null</i> if it has not been loaded.
+     */
+    CaptureDevice getCaptureDevice(String captureDevice) {
+        return SageTVManager.getSageTVCaptureDevice(captureDevice, false);
+    }
+
+    private static class Slot implements Comparable<Slot> {
+        private final String captureDevice;
+        private final int merit;
+        private final State state;
+        private final long lastUsed;
+        private final long order;
+
+        private Slot(String captureDevice, int merit, State state, long lastUsed, long order) {
+            this.captureDevice = captureDevice;
+            this.merit = merit;
+            this.state = state;
+            this.lastUsed = lastUsed;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Slot o) {
+            if (state != o.state) {
+                return state.ordinal() < o.state.ordinal() ? -1 : 1;
+            }
+
+            if (merit != o.merit) {
+                return merit > o.merit ? -1 : 1;
+            }
+
+            if (lastUsed != o.lastUsed) {
+                return Long.compare(lastUsed, o.lastUsed);
+            }
+
+            return Long.compare(order, o.order);
+        }
+    }
+
+    private static class TunerState {
+        private final String channel;
+        private final String frequency;
+
+        private TunerState(String channel, String frequency) {
+            this.channel = channel;
+            this.frequency = frequency;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps track of every socket server, capture device, recording file and upload ID.
+ * <p/>
+ * All of the mappings are held in a single immutable snapshot. Lookups read the current snapshot
+ * without taking any locks. Changes are made to a copy of the snapshot, which replaces the current
+ * snapshot only after every change has been made, so a lookup will never see a capture device
+ * without its socket server or a file without its capture device. Changes are rare compared to
+ * lookups, so copying the maps on every change costs very little.
+ */
+public class SageTVDeviceRegistry {
+    private final Object updateLock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(new Builder(null));
+
+    private final ConcurrentHashMap<String, DeviceFuture> waitingDevices =
+            new ConcurrentHashMap<String, DeviceFuture>();
+
+    /**
+     * Get the current snapshot.
+     * <p/>
+     * The snapshot will never change. Get a new snapshot to see any changes made after this call.
+     *
+     * @return The current snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Make one or more changes to the registry atomically.
+     * <p/>
+     * Only one update runs at a time. If the update throws an exception, none of its changes are
+     * kept. Do not do anything slow or anything that could look up devices in the registry inside
+     * of an update since the changes are not visible until the update returns.
+     *
+     * @param update The changes to make.
+     * @param <T> The type returned by the update.
+     * @return The value returned by the update.
+     * @throws Exception Any exception thrown by the update.
+     */
+    public <T> T update(Update<T> update) throws Exception {
+        T returnValue;
+        Snapshot newSnapshot;
+
+        synchronized (updateLock) {
+            Builder builder = new Builder(snapshot);
+            returnValue = update.apply(builder);
+            newSnapshot = new Snapshot(builder);
+            snapshot = newSnapshot;
+        }
+
+        // Complete anything that was waiting for a capture device that is now available.
+        if (!waitingDevices.isEmpty()) {
+            Iterator<Map.Entry<String, DeviceFuture>> entries = waitingDevices.entrySet().iterator();
+
+            while (entries.hasNext()) {
+                Map.Entry<String, DeviceFuture> entry = entries.next();
+                CaptureDevice captureDevice = newSnapshot.getCaptureDevice(entry.getKey());
+
+                if (captureDevice != null) {
+                    entries.remove();
+                    entry.getValue().complete(captureDevice);
+                }
+            }
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Get a future that completes when a capture device is added to the registry.
+     * <p/>
+     * If the capture device is already available, the returned future is already complete.
+     *
+     * @param deviceName The name of the capture device.
+     * @return A future that returns the capture device or <i>null</i> if
+     *         <b>completeAllWaiting()</b> was called before it was added.
+     */
+    public Future<CaptureDevice> getCaptureDeviceFuture(String deviceName) {
+        CaptureDevice captureDevice = snapshot.getCaptureDevice(deviceName);
+
+        if (captureDevice != null) {
+            DeviceFuture future = new DeviceFuture();
+            future.complete(captureDevice);
+            return future;
+        }
+
+        DeviceFuture newFuture = new DeviceFuture();
+        DeviceFuture future = waitingDevices.putIfAbsent(deviceName, newFuture);
+
+        if (future == null) {
+            future = newFuture;
+        }
+
+        // The device could have been added after we checked the snapshot, but before the future
+        // was registered.
+        captureDevice = snapshot.getCaptureDevice(deviceName);
+
+        if (captureDevice != null) {
+            waitingDevices.remove(deviceName, future);
+            future.complete(captureDevice);
+        }
+
+        return future;
+    }
+
+    /**
+     * Complete everything waiting for a capture device.
+     * <p/>
+     * This is used when no more capture devices are expected to be added. Any capture devices that
+     * have not been added by now are returned as <i>null</i>.
+     */
+    public void completeAllWaiting() {
+        Iterator<DeviceFuture> futures = waitingDevices.values().iterator();
+
+        while (futures.hasNext()) {
+            DeviceFuture future = futures.next();
+            futures.remove();
+            future.complete(null);
+        }
+    }
+
+    /**
+     * A set of changes to be made to the registry.
+     *
+     * @param <T> The type returned by the update.
+     */
+    public static abstract class Update<T> {
+        public abstract T apply(Builder builder) throws Exception;
+    }
+
+    /**
+     * A mutable copy of a snapshot used to make changes.
+     */
+    public static class Builder {
+        private final HashMap<Integer, SageTVSocketServer> portToSocketServer;
+        private final HashMap<String, CaptureDevice> captureDeviceNameToCaptureDevice;
+        private final HashMap<CaptureDevice, String> captureDeviceToFiles;
+        private final HashMap<String, Integer> fileToUploadID;
+        private final HashMap<String, SageTVSocketServer> fileToSocketServer;
+
+        private Builder(Snapshot snapshot) {
+            if (snapshot == null) {
+                portToSocketServer = new HashMap<Integer, SageTVSocketServer>();
+                captureDeviceNameToCaptureDevice = new HashMap<String, CaptureDevice>();
+                captureDeviceToFiles = new HashMap<CaptureDevice, String>();
+                fileToUploadID = new HashMap<String, Integer>();
+                fileToSocketServer = new HashMap<String, SageTVSocketServer>();
+            } else {
+                portToSocketServer = new HashMap<Integer, SageTVSocketServer>(snapshot.portToSocketServer);
+                captureDeviceNameToCaptureDevice = new HashMap<String, CaptureDevice>(snapshot.captureDeviceNameToCaptureDevice);
+                captureDeviceToFiles = new HashMap<CaptureDevice, String>(snapshot.captureDeviceToFiles);
+                fileToUploadID = new HashMap<String, Integer>(snapshot.fileToUploadID);
+                fileToSocketServer = new HashMap<String, SageTVSocketServer>(snapshot.fileToSocketServer);
+            }
+        }
+
+        public SageTVSocketServer getSocketServer(int port) {
+            return portToSocketServer.get(port);
+        }
+
+        public void putSocketServer(int port, SageTVSocketServer socketServer) {
+            portToSocketServer.put(port, socketServer);
+        }
+
+        public CaptureDevice getCaptureDevice(String deviceName) {
+            return captureDeviceNameToCaptureDevice.get(deviceName);
+        }
+
+        public ArrayList<CaptureDevice> getCaptureDevices() {
+            return new ArrayList<CaptureDevice>(captureDeviceNameToCaptureDevice.values());
+        }
+
+        public void putCaptureDevice(CaptureDevice captureDevice) {
+            captureDeviceNameToCaptureDevice.put(captureDevice.getEncoderName(), captureDevice);
+        }
+
+        public void putFile(CaptureDevice captureDevice, String filename) {
+            captureDeviceToFiles.put(captureDevice, filename);
+        }
+
+        public void putUploadID(String filename, Integer uploadID) {
+            fileToUploadID.put(filename, uploadID);
+        }
+
+        public void putFileSocketServer(String filename, SageTVSocketServer socketServer) {
+            fileToSocketServer.put(filename, socketServer);
+        }
+
+        /**
+         * Remove all capture devices and everything associated with them.
+         * <p/>
+         * Socket servers are not removed.
+         */
+        public void clearCaptureDevices() {
+            captureDeviceNameToCaptureDevice.clear();
+            captureDeviceToFiles.clear();
+            fileToUploadID.clear();
+            fileToSocketServer.clear();
+        }
+    }
+
+    /**
+     * An immutable view of the registry at one point in time.
+     */
+    public static class Snapshot {
+        private final Map<Integer, SageTVSocketServer> portToSocketServer;
+        private final Map<String, CaptureDevice> captureDeviceNameToCaptureDevice;
+        private final Map<CaptureDevice, String> captureDeviceToFiles;
+        private final Map<String, CaptureDevice> fileToCaptureDevice;
+        private final Map<String, Integer> fileToUploadID;
+        private final Map<String, SageTVSocketServer> fileToSocketServer;
+
+        // These are used often enough that it's worth keeping them as lists.
+        private final ArrayList<SageTVSocketServer> socketServers;
+        private final ArrayList<CaptureDevice> captureDevices;
+
+        private Snapshot(Builder builder) {
+            portToSocketServer = Collections.unmodifiableMap(builder.portToSocketServer);
+            captureDeviceNameToCaptureDevice = Collections.unmodifiableMap(builder.captureDeviceNameToCaptureDevice);
+            captureDeviceToFiles = Collections.unmodifiableMap(builder.captureDeviceToFiles);
+            fileToUploadID = Collections.unmodifiableMap(builder.fileToUploadID);
+            fileToSocketServer = Collections.unmodifiableMap(builder.fileToSocketServer);
+
+            HashMap<String, CaptureDevice> newFileToCaptureDevice = new HashMap<String, CaptureDevice>();
+
+            for (Map.Entry<CaptureDevice, String> entry : builder.captureDeviceToFiles.entrySet()) {
+                if (entry.getValue() != null) {
+                    newFileToCaptureDevice.put(entry.getValue(), entry.getKey());
+                }
+            }
+
+            fileToCaptureDevice = Collections.unmodifiableMap(newFileToCaptureDevice);
+
+            socketServers = new ArrayList<SageTVSocketServer>();
+
+            for (SageTVSocketServer socketServer : builder.portToSocketServer.values()) {
+                if (socketServer != null) {
+                    socketServers.add(socketServer);
+                }
+            }
+
+            captureDevices = new ArrayList<CaptureDevice>(builder.captureDeviceNameToCaptureDevice.values());
+        }
+
+        public SageTVSocketServer getSocketServer(int port) {
+            return portToSocketServer.get(port);
+        }
+
+        public CaptureDevice getCaptureDevice(String deviceName) {
+            return captureDeviceNameToCaptureDevice.get(deviceName);
+        }
+
+        public String getFilename(CaptureDevice captureDevice) {
+            return captureDeviceToFiles.get(captureDevice);
+        }
+
+        public CaptureDevice getCaptureDeviceByFilename(String filename) {
+            return fileToCaptureDevice.get(filename);
+        }
+
+        public Integer getUploadID(String filename) {
+            return fileToUploadID.get(filename);
+        }
+
+        public SageTVSocketServer getSocketServerByFilename(String filename) {
+            return fileToSocketServer.get(filename);
+        }
+
+        /**
+         * Get all socket servers.
+         *
+         * @return A new list that can be modified by the caller.
+         */
+        public ArrayList<SageTVSocketServer> getSocketServers() {
+            return new ArrayList<SageTVSocketServer>(socketServers);
+        }
+
+        /**
+         * Get all capture devices.
+         *
+         * @return A new list that can be modified by the caller.
+         */
+        public ArrayList<CaptureDevice> getCaptureDevices() {
+            return new ArrayList<CaptureDevice>(captureDevices);
+        }
+
+        public int getCaptureDeviceCount() {
+            return captureDevices.size();
+        }
+    }
+
+    private static class DeviceFuture implements Future<CaptureDevice> {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile CaptureDevice captureDevice;
+
+        private void complete(CaptureDevice captureDevice) {
+            this.captureDevice = captureDevice;
+            completed.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return completed.getCount() == 0;
+        }
+
+        @Override
+        public CaptureDevice get() throws InterruptedException, ExecutionException {
+            completed.await();
+            return captureDevice;
+        }
+
+        @Override
+        public CaptureDevice get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+
+            if (!completed.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+
+            return captureDevice;
+        }
+    }
+}
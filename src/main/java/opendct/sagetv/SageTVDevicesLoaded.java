@@ -37,6 +37,9 @@ public class SageTVDevicesLoaded extends Thread {
 
     private volatile boolean allowFailure = true;
 
+    // Set when the timeout passes without all of the required devices and we continue anyway.
+    private volatile boolean stoppedWaiting = false;
+
     @Override
     public void run() {
         // If the number of devices to wait for is none, then there is no reason to wait.
@@ -60,6 +63,8 @@ public class SageTVDevicesLoaded extends Thread {
                 ExitCode.SAGETV_NO_DEVICES.terminateJVM();
             } else {
                 logger.info("Stopped waiting for devices to become available.");
+                stoppedWaiting = true;
+                SageTVManager.devicesLoaded();
             }
         } else {
             // This be called to make ensure we cannot still be blocking in the event that we
@@ -92,6 +97,10 @@ public class SageTVDevicesLoaded extends Thread {
         while (blockUntilLoaded.getCount() > requiredDevices - loadedDevices) {
             blockUntilLoaded.countDown();
 
+            if (blockUntilLoaded.getCount() == 0) {
+                SageTVManager.devicesLoaded();
+            }
+
             // Without this if we load more than the expected number of devices, the count down
             // latch will continue to run countDown(), but it will never be a negative number and it
             // can never be equal to a negative number causing an endless loop.
@@ -105,6 +114,16 @@ public class SageTVDevicesLoaded extends Thread {
         }
     }
 
+    /**
+     * Have all of the required devices been loaded?
+     *
+     * @return <i>true</i> if there are no more required devices to wait for or we have stopped
+     *         waiting for them.
+     */
+    public boolean isLoaded() {
+        return stoppedWaiting || blockUntilLoaded.getCount() == 0;
+    }
+
     public void blockUntilLoaded() throws InterruptedException {
         blockUntilLoaded.await();
 
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.capture.TuningPhaseTimer;
+import opendct.config.Config;
+import opendct.util.LatencyHistogram;
+import opendct.util.LatencyHistograms;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps latency histograms for the SageTV network encoder protocol.
+ * <p/>
+ * Histograms are kept per encoder and per command, so a regression on one kind of tuner doesn't
+ * get hidden by all of the others. Encoder names are provided by SageTV, so only the names of
+ * loaded capture devices get their own histograms. Anything else is counted with all encoders so
+ * the number of histograms can't grow without limit. Besides the commands themselves, this also tracks how long it
+ * takes SageTV to send the first request after a connection is accepted and how long it takes
+ * from the start of tuning until the first byte is streamed to the recording. A summary of every
+ * histogram is written to the log periodically.
+ */
+public class SageTVLatencyMonitor {
+    private static final Logger logger = LogManager.getLogger(SageTVLatencyMonitor.class);
+
+    public static final String ACCEPT_TO_FIRST_BYTE = "ACCEPT_TO_FIRST_BYTE";
+    public static final String TUNE_TO_FIRST_BYTE = "TUNE_TO_FIRST_BYTE";
+
+    // This is used when a latency can't be attributed to a loaded capture device.
+    public static final String ALL_ENCODERS = "All";
+
+    private static final boolean enabled = Config.getBoolean("sagetv.latency.enabled", true);
+
+    private static final long logInterval =
+            Math.max(Config.getLong("sagetv.latency.log_interval_ms", 900000), 0);
+
+    // Only commands from the protocol are tracked so a misbehaving client can't create an
+    // unlimited number of histograms.
+    private static final HashSet<String> trackedCommands = new HashSet<String>(Arrays.asList(
+            "START", "BUFFER", "SWITCH", "BUFFER_SWITCH", "STOP", "GET_FILE_SIZE", "GET_SIZE",
+            "GET_START", "NOOP", "TUNE", "AUTOTUNE", "AUTOSCAN", "AUTOINFOSCAN", "PROPERTIES",
+            "VERSION"));
+
+    private static final LatencyHistograms histograms = new LatencyHistograms();
+
+    // 10 minutes in nanoseconds.
+    private static final long PENDING_TUNE_TIMEOUT = 600000000000L;
+
+    private static final ConcurrentHashMap<String, PendingTune> pendingTunes =
+            new ConcurrentHashMap<String, PendingTune>();
+
+    private static final Object logThreadLock = new Object();
+    private static Thread logThread = null;
+
+    /**
+     * Record how long a request took to process and respond to.
+     *
+     * @param encoder This is the name of the encoder the request was for or <i>null</i> if it
+     *                wasn't for a specific encoder.
+     * @param request This is the full request line from SageTV.
+     * @param elapsedNanos This is how long the request took in nanoseconds.
+     */
+    public static void recordCommand(String encoder, String request, long elapsedNanos) {
+        if (!enabled || request == null) {
+            return;
+        }
+
+        int space = request.indexOf(' ');
+        String command = space < 0 ? request : request.substring(0, space);
+
+        if (!trackedCommands.contains(command)) {
+            return;
+        }
+
+        getOrCreateHistogram(encoder, command).recordNanos(elapsedNanos);
+    }
+
+    /**
+     * Record how long it took to receive the first byte on a newly accepted connection.
+     *
+     * @param elapsedNanos This is the time from accepting the connection in nanoseconds.
+     */
+    public static void recordAcceptToFirstByte(long elapsedNanos) {
+        if (!enabled) {
+            return;
+        }
+
+        getOrCreateHistogram(ALL_ENCODERS, ACCEPT_TO_FIRST_BYTE).recordNanos(elapsedNanos);
+    }
+
+    /**
+     * Start timing a recording from the start of tuning until the first byte is streamed.
+     *
+     * @param filename This is the filename provided by SageTV for the recording.
+     * @param encoder This is the name of the encoder doing the recording.
+     */
+    public static void startTuneTimer(String filename, String encoder) {
+        if (!enabled || filename == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        // Recordings that never streamed anything would otherwise stay here forever.
+        Iterator<PendingTune> tunes = pendingTunes.values().iterator();
+
+        while (tunes.hasNext()) {
+            if (now - tunes.next().startTime > PENDING_TUNE_TIMEOUT) {
+                tunes.remove();
+            }
+        }
+
+        pendingTunes.put(filename, new PendingTune(encoder, now));
+    }
+
+    /**
+     * Stop timing a recording that failed to start.
+     *
+     * @param filename This is the filename provided by SageTV for the recording.
+     */
+    public static void cancelTuneTimer(String filename) {
+        if (filename == null) {
+            return;
+        }
+
+        pendingTunes.remove(filename);
+    }
+
+    /**
+     * Record that the first byte of a recording has been streamed.
+     * <p/>
+     * This is called by consumers. Nothing is recorded if the recording wasn't started by
+     * <b>startTuneTimer()</b> or the first byte was already recorded.
+     *
+     * @param filename This is the filename provided by SageTV for the recording.
+     */
+    public static void recordFirstStreamedByte(String filename) {
+        if (filename == null) {
+            return;
+        }
+
+        PendingTune pendingTune = pendingTunes.remove(filename);
+
+        if (pendingTune != null) {
+            getOrCreateHistogram(pendingTune.encoder, TUNE_TO_FIRST_BYTE)
+                    .recordNanos(System.nanoTime() - pendingTune.startTime);
+        }
+    }
+
+    /**
+     * Get the histogram for an encoder and command.
+     *
+     * @param encoder This is the name of the encoder or <b>ALL_ENCODERS</b>.
+     * @param command This is the command or one of the additional latencies tracked.
+     * @return The histogram or <i>null</i> if nothing has been recorded for this combination.
+     */
+    public static LatencyHistogram getHistogram(String encoder, String command) {
+        return histograms.get(getKey(encoder, command));
+    }
+
+    /**
+     * Get all of the histograms currently being kept.
+     *
+     * @return A sorted map of all histograms with keys in the format <i>encoder: command</i>.
+     */
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return histograms.getAll();
+    }
+
+    /**
+     * Get a summary of every histogram.
+     *
+     * @return One line per histogram.
+     */
+    public static String getReport() {
+        return histograms.getReport();
+    }
+
+    /**
+     * Clear all histograms.
+     */
+    public static void reset() {
+        histograms.reset();
+    }
+
+    private static String getKey(String encoder, String command) {
+        return getEncoderName(encoder) + ": " + command;
+    }
+
+    private static String getEncoderName(String encoder) {
+        if (encoder == null || encoder.equals(ALL_ENCODERS)) {
+            return ALL_ENCODERS;
+        }
+
+        CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(encoder, false);
+
+        return captureDevice == null ? ALL_ENCODERS : captureDevice.getEncoderName();
+    }
+
+    private static LatencyHistogram getOrCreateHistogram(String encoder, String command) {
+        String key = getKey(encoder, command);
+        LatencyHistogram histogram = histograms.get(key);
+
+        if (histogram == null) {
+            histogram = histograms.getOrCreate(key);
+            startLogThread();
+        }
+
+        return histogram;
+    }
+
+    private static void startLogThread() {
+        if (logInterval == 0) {
+            return;
+        }
+
+        synchronized (logThreadLock) {
+            if (logThread != null) {
+                return;
+            }
+
+            logThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            Thread.sleep(logInterval);
+
+                            String report = getReport();
+
+                            if (report.length() > 0) {
+                                logger.info("SageTV request latency:{}{}",
+                                        System.lineSeparator(), report);
+                            }
+
+                            String tuningReport = TuningPhaseTimer.getReport();
+
+                            if (tuningReport.length() > 0) {
+                                logger.info("Tuning latency:{}{}",
+                                        System.lineSeparator(), tuningReport);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        logger.debug("Latency logging thread was interrupted.");
+                    }
+                }
+            });
+
+            logThread.setName("SageTVLatencyMonitor-" + logThread.getId());
+            logThread.setDaemon(true);
+            logThread.start();
+        }
+    }
+
+    private static class PendingTune {
+        private final String encoder;
+        private final long startTime;
+
+        private PendingTune(String encoder, long startTime) {
+            this.encoder = encoder;
+            this.startTime = startTime;
+        }
+    }
+}
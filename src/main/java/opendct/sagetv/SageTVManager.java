@@ -20,6 +20,7 @@ import opendct.capture.CaptureDevice;
 import opendct.capture.CaptureDeviceType;
 import opendct.config.Config;
 import opendct.config.ExitCode;
+import opendct.consumer.upload.NIOSageTVUploadPool;
 import opendct.power.PowerEventListener;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
@@ -28,10 +29,12 @@ import org.apache.logging.log4j.Logger;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SageTVManager implements PowerEventListener {
     private static final Logger logger = LogManager.getLogger(SageTVManager.class);
@@ -44,17 +47,12 @@ public class SageTVManager implements PowerEventListener {
     public static final int MPEG_PURE_CAPTURE_MASK = 0x2000;
     public static final int MPEG_LIVE_PREVIEW_MASK = 0x1000;
 
-    private static final ReentrantReadWriteLock portToSocketServerLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock captureDeviceNameToCaptureDeviceLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock captureDeviceToFilesLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock fileToUploadIDLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock fileToSocketServerLock = new ReentrantReadWriteLock();
+    // Socket servers, capture devices, recording files and upload IDs. Lookups do not lock.
+    private static final SageTVDeviceRegistry registry = new SageTVDeviceRegistry();
 
-    private static final HashMap<Integer, SageTVSocketServer> portToSocketServer = new HashMap<Integer, SageTVSocketServer>();
-    private static final HashMap<String, CaptureDevice> captureDeviceNameToCaptureDevice = new HashMap<String, CaptureDevice>();
-    private static final HashMap<CaptureDevice, String> captureDeviceToFiles = new HashMap<CaptureDevice, String>();
-    private static final HashMap<String, Integer> fileToUploadID = new HashMap<String, Integer>();
-    private static final HashMap<String, SageTVSocketServer> fileToSocketServer = new HashMap<String, SageTVSocketServer>();
+    // This is the longest we will wait for a capture device that hasn't been loaded yet.
+    private static final long deviceWaitTimeout =
+            Config.getLong("sagetv.device.global.required_devices_loaded_timeout_ms", 30000);
 
     public static boolean isBroadcasting() {
         return broadcasting.get();
@@ -88,27 +86,35 @@ public class SageTVManager implements PowerEventListener {
 
         boolean failure = false;
         SageTVSocketServer socketServer = null;
-        boolean portInUse = false;
-
-        portToSocketServerLock.writeLock().lock();
-        captureDeviceNameToCaptureDeviceLock.writeLock().lock();
+        final boolean portInUse[] = new boolean[1];
+        final int port = newPort;
+        final CaptureDevice addDevice = captureDevice;
 
         try {
-            if (captureDeviceNameToCaptureDevice.get(captureDevice.getEncoderName()) != null) {
-                logger.error("A capture device with the name '{}' already exists.", captureDevice.getEncoderName());
-                throw new Exception("Duplicate capture device.");
-            }
+            // The port and the capture device are added together, so nothing will ever see the
+            // capture device without its socket server.
+            socketServer = registry.update(new SageTVDeviceRegistry.Update<SageTVSocketServer>() {
+                @Override
+                public SageTVSocketServer apply(SageTVDeviceRegistry.Builder builder) throws Exception {
+                    if (builder.getCaptureDevice(addDevice.getEncoderName()) != null) {
+                        logger.error("A capture device with the name '{}' already exists.", addDevice.getEncoderName());
+                        throw new Exception("Duplicate capture device.");
+                    }
 
-            //Check to see if a socket server is already running with this port.
-            socketServer = portToSocketServer.get(newPort);
-            portInUse = !(socketServer == null);
+                    //Check to see if a socket server is already running with this port.
+                    SageTVSocketServer portSocketServer = builder.getSocketServer(port);
+                    portInUse[0] = !(portSocketServer == null);
 
-            if (!portInUse) {
-                socketServer = new SageTVSocketServer(newPort, captureDevice);
-            }
+                    if (!portInUse[0]) {
+                        portSocketServer = new SageTVSocketServer(port, addDevice);
+                    }
+
+                    builder.putSocketServer(port, portSocketServer);
+                    builder.putCaptureDevice(addDevice);
 
-            portToSocketServer.put(newPort, socketServer);
-            captureDeviceNameToCaptureDevice.put(captureDevice.getEncoderName(), captureDevice);
+                    return portSocketServer;
+                }
+            });
 
             if (!Util.isNullOrEmpty(captureDevice.getEncoderPoolName()) && SageTVPoolManager.isUsePools()) {
                 SageTVPoolManager.addPoolCaptureDevice(captureDevice.getEncoderPoolName(), captureDevice.getEncoderName());
@@ -133,16 +139,12 @@ public class SageTVManager implements PowerEventListener {
             }
         } catch (Exception e) {
             failure = true;
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            portToSocketServerLock.writeLock().unlock();
-            captureDeviceNameToCaptureDeviceLock.writeLock().unlock();
+            logger.debug("There was an unhandled exception while adding a capture device => ", e);
         }
 
         if (failure) {
-            // We can't kill the JVM within a lock because the lock will not be released.
             ExitCode.SAGETV_DUPLICATE.terminateJVM();
-        } else if (!portInUse) {
+        } else if (!portInUse[0]) {
             if (!Config.isConfigOnly()) {
                 // This can kill the JVM, so we start listening outside of the lock.
                 socketServer.startListening();
@@ -209,25 +211,28 @@ public class SageTVManager implements PowerEventListener {
         logger.entry(ports);
 
         for (int port : ports) {
-            portToSocketServerLock.writeLock().lock();
-
+            final int newPort = port;
             SageTVSocketServer stvSocketServer = null;
 
             try {
-                ArrayList<SageTVSocketServer> sageTVSocketServers = new ArrayList<>();
+                stvSocketServer = registry.update(new SageTVDeviceRegistry.Update<SageTVSocketServer>() {
+                    @Override
+                    public SageTVSocketServer apply(SageTVDeviceRegistry.Builder builder) {
+                        if (builder.getSocketServer(newPort) != null) {
+                            return null;
+                        }
 
-                if (portToSocketServer.get(port) == null) {
-                    stvSocketServer = new SageTVSocketServer(port, null);
-                    portToSocketServer.put(port, stvSocketServer);
-                }
+                        SageTVSocketServer newSocketServer = new SageTVSocketServer(newPort, null);
+                        builder.putSocketServer(newPort, newSocketServer);
+
+                        return newSocketServer;
+                    }
+                });
             } catch (Exception e) {
-                logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-            } finally {
-                portToSocketServerLock.writeLock().unlock();
+                logger.debug("There was an unhandled exception while adding a socket server => ", e);
             }
 
-            // If we do this within the lock and it crashes the JVM, everything will lock up because
-            // portToSocketServerLock doesn't get unlocked.
+            // This can kill the JVM, so it's not done within the update.
             if (stvSocketServer != null) {
                 stvSocketServer.startListening();
             }
@@ -241,8 +246,8 @@ public class SageTVManager implements PowerEventListener {
      * devices.
      * <p/>
      * Before calling this method, all of the socket server threads should be stopping. This can run
-     * even while they spin down since any request made will likely not be able to successfully find
-     * a capture device once all of the requested locks are in place and the HashMaps are cleared.
+     * even while they spin down since any request made will not be able to find a capture device
+     * once the capture devices have been removed from the registry.
      * Also be sure that anything that adds capture devices is not running since that might start
      * populating this list and end up firing up a new SageTV Socket Server right after this method
      * has completed.
@@ -252,52 +257,39 @@ public class SageTVManager implements PowerEventListener {
             devicesWaitingThread.interrupt();
         }
 
-        // This only needs a read lock. Since it uses captureDeviceToSocketServerLock and we can't
-        // upgrade to a write lock, that create a problem.
-        ArrayList<CaptureDevice> captureDevices = getAllSageTVCaptureDevices();
-
-        // This will prevent the SageTV Socket Server from looking up capture devices until we are
-        // done. That basically means the SageTV Socket Server will not be able to locate any
-        // capture devices once this method completes which is what we want.
-        captureDeviceNameToCaptureDeviceLock.writeLock().lock();
+        // Remove every capture device and everything associated with them in one update. That
+        // means the SageTV Socket Server will not be able to locate any capture devices from this
+        // point on which is what we want since they are about to be stopped.
+        ArrayList<CaptureDevice> captureDevices = new ArrayList<CaptureDevice>();
 
         try {
-            for (CaptureDevice captureDevice : captureDevices) {
-                if (captureDevice != null) {
-                    try {
-                        logger.info("The capture device '{}' is being unloaded.", captureDevice.getEncoderName());
-                        // This should cease all offline activities.
-                        captureDevice.setLocked(true);
-                        captureDevice.stopDevice();
-                    } catch (Exception e) {
-                        logger.error("The capture device '{}' did not stop gracefully.",
-                                captureDevice.getEncoderName());
-                    }
+            captureDevices = registry.update(new SageTVDeviceRegistry.Update<ArrayList<CaptureDevice>>() {
+                @Override
+                public ArrayList<CaptureDevice> apply(SageTVDeviceRegistry.Builder builder) {
+                    ArrayList<CaptureDevice> removedDevices = builder.getCaptureDevices();
+                    builder.clearCaptureDevices();
+                    return removedDevices;
                 }
-            }
+            });
         } catch (Exception e) {
-            logger.error("An unexpected error occurred while stopping and clearing all of the capture devices => ", e);
-        } finally {
+            logger.error("An unexpected error occurred while clearing all of the capture devices => ", e);
+        }
 
-            // We need all of these exclusive locks or there could be trouble. If only there was a
-            // way to say this lock is more important than all of the other ones since this is
-            // likely to be called when entering standby.
-            captureDeviceToFilesLock.writeLock().lock();
-            fileToUploadIDLock.writeLock().lock();
-            fileToSocketServerLock.writeLock().lock();
+        // Nothing should be left waiting on a capture device that is not coming back.
+        registry.completeAllWaiting();
 
-            try {
-                captureDeviceNameToCaptureDevice.clear();
-                captureDeviceToFiles.clear();
-                fileToUploadID.clear();
-                fileToSocketServer.clear();
-            } finally {
-                captureDeviceToFilesLock.writeLock().unlock();
-                fileToUploadIDLock.writeLock().unlock();
-                fileToSocketServerLock.writeLock().unlock();
+        for (CaptureDevice captureDevice : captureDevices) {
+            if (captureDevice != null) {
+                try {
+                    logger.info("The capture device '{}' is being unloaded.", captureDevice.getEncoderName());
+                    // This should cease all offline activities.
+                    captureDevice.setLocked(true);
+                    captureDevice.stopDevice();
+                } catch (Exception e) {
+                    logger.error("The capture device '{}' did not stop gracefully.",
+                            captureDevice.getEncoderName());
+                }
             }
-
-            captureDeviceNameToCaptureDeviceLock.writeLock().unlock();
         }
     }
 
@@ -314,21 +306,7 @@ public class SageTVManager implements PowerEventListener {
     public static ArrayList<SageTVSocketServer> getAllSageTVSocketServers() {
         logger.entry();
 
-        ArrayList<SageTVSocketServer> sageTVSocketServers = new ArrayList<SageTVSocketServer>();
-
-        portToSocketServerLock.readLock().lock();
-
-        try {
-            for(Map.Entry<Integer, SageTVSocketServer> keyValuePair : portToSocketServer.entrySet()) {
-                if (keyValuePair.getValue() != null) {
-                    sageTVSocketServers.add(keyValuePair.getValue());
-                }
-            }
-        } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            portToSocketServerLock.readLock().unlock();
-        }
+        ArrayList<SageTVSocketServer> sageTVSocketServers = registry.getSnapshot().getSocketServers();
 
         return logger.exit(sageTVSocketServers);
     }
@@ -337,8 +315,8 @@ public class SageTVManager implements PowerEventListener {
      * Get a capture device by name.
      * <p/>
      * This will return a capture device and offers optional blocking in the event that we know the
-     * device will be there, but it's just not there right this second. The blocking is based on if
-     * all required devices are accounted for or not.
+     * device will be there, but it's just not there right this second. The blocking ends as soon as
+     * the device is added or when all required devices are accounted for.
      *
      * @param deviceName This is the name of the capture device.
      * @param wait When <i>true</i> this will wait for all of the required capture devices to be
@@ -348,43 +326,37 @@ public class SageTVManager implements PowerEventListener {
     public static CaptureDevice getSageTVCaptureDevice(String deviceName, boolean wait) {
         logger.entry(deviceName);
 
-        CaptureDevice captureDevice = null;
+        if (deviceName.endsWith(" Digital TV Tuner")) {
+            deviceName = deviceName.substring(0, deviceName.length() - " Digital TV Tuner".length());
+        }
+        deviceName = deviceName.trim();
 
-        captureDeviceNameToCaptureDeviceLock.readLock().lock();
+        CaptureDevice captureDevice = registry.getSnapshot().getCaptureDevice(deviceName);
+        SageTVDevicesLoaded waitingThread = devicesWaitingThread;
 
-        try {
-            if (deviceName.endsWith(" Digital TV Tuner")) {
-                deviceName = deviceName.substring(0, deviceName.length() - " Digital TV Tuner".length());
-            }
-            captureDevice = captureDeviceNameToCaptureDevice.get(deviceName.trim());
-        } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceNameToCaptureDeviceLock.readLock().unlock();
-        }
+        // In case the capture device was not loaded yet, we can wait for it to be added or for all
+        // further expected devices to be loaded, whichever happens first.
+        if (wait && captureDevice == null && waitingThread != null && !waitingThread.isLoaded()) {
+            Future<CaptureDevice> future = registry.getCaptureDeviceFuture(deviceName);
 
-        if (wait) {
-            // In case the capture device was not loaded yet, we can wait for an further expected
-            // devices here before trying one more time.
-            if (captureDevice == null) {
-                try {
-                    blockUntilCaptureDevicesLoaded();
-                } catch (InterruptedException e) {
-                    logger.debug("getSageTVCaptureDevice was interrupted while waiting for all capture devices to be loaded.");
-                }
+            // Loading could have finished after the first check, but before the future was
+            // registered. Nothing else would complete the future in that case.
+            if (waitingThread.isLoaded()) {
+                registry.completeAllWaiting();
+            }
 
-                captureDeviceNameToCaptureDeviceLock.readLock().lock();
+            try {
+                captureDevice = future.get(deviceWaitTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                logger.debug("getSageTVCaptureDevice was interrupted while waiting for all capture devices to be loaded.");
+            } catch (TimeoutException e) {
+                logger.debug("getSageTVCaptureDevice timed out waiting for '{}' to be loaded.", deviceName);
+            } catch (ExecutionException e) {
+                logger.debug("getSageTVCaptureDevice was unable to wait for '{}' => ", deviceName, e);
+            }
 
-                try {
-                    if (deviceName.endsWith(" Digital TV Tuner")) {
-                        deviceName = deviceName.substring(0, deviceName.length() - " Digital TV Tuner".length());
-                    }
-                    captureDevice = captureDeviceNameToCaptureDevice.get(deviceName.trim());
-                } catch (Exception e) {
-                    logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-                } finally {
-                    captureDeviceNameToCaptureDeviceLock.readLock().unlock();
-                }
+            if (captureDevice == null) {
+                captureDevice = registry.getSnapshot().getCaptureDevice(deviceName);
             }
         }
 
@@ -400,14 +372,19 @@ public class SageTVManager implements PowerEventListener {
     public static void setFilesByCaptureDevice(CaptureDevice captureDevice, String filename) {
         logger.entry(captureDevice, filename);
 
-        captureDeviceToFilesLock.writeLock().lock();
+        final CaptureDevice fileCaptureDevice = captureDevice;
+        final String newFilename = filename;
 
         try {
-            captureDeviceToFiles.put(captureDevice, filename);
+            registry.update(new SageTVDeviceRegistry.Update<Void>() {
+                @Override
+                public Void apply(SageTVDeviceRegistry.Builder builder) {
+                    builder.putFile(fileCaptureDevice, newFilename);
+                    return null;
+                }
+            });
         } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceToFilesLock.writeLock().unlock();
+            logger.debug("There was an unhandled exception while setting a file => ", e);
         }
 
         logger.exit();
@@ -422,14 +399,19 @@ public class SageTVManager implements PowerEventListener {
     public static void setUploadIDByFilename(String filename, Integer uploadID) {
         logger.entry(filename, uploadID);
 
-        fileToUploadIDLock.writeLock().lock();
+        final String uploadFilename = filename;
+        final Integer newUploadID = uploadID;
 
         try {
-            fileToUploadID.put(filename, uploadID);
+            registry.update(new SageTVDeviceRegistry.Update<Void>() {
+                @Override
+                public Void apply(SageTVDeviceRegistry.Builder builder) {
+                    builder.putUploadID(uploadFilename, newUploadID);
+                    return null;
+                }
+            });
         } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            fileToUploadIDLock.writeLock().unlock();
+            logger.debug("There was an unhandled exception while setting an upload ID => ", e);
         }
 
         logger.exit();
@@ -445,23 +427,7 @@ public class SageTVManager implements PowerEventListener {
     public static CaptureDevice getCaptureDeviceByFilename(String filename) {
         logger.entry(filename);
 
-        captureDeviceToFilesLock.readLock().lock();
-        CaptureDevice captureDevice = null;
-
-        try {
-            for (Map.Entry<CaptureDevice, String> keyValuePair : captureDeviceToFiles.entrySet()) {
-                if (keyValuePair.getValue() != null && keyValuePair.getValue().equals(filename)) {
-                    if (keyValuePair.getValue().equals(filename)) {
-                        captureDevice = keyValuePair.getKey();
-                    }
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceToFilesLock.readLock().unlock();
-        }
+        CaptureDevice captureDevice = registry.getSnapshot().getCaptureDeviceByFilename(filename);
 
         return logger.exit(captureDevice);
     }
@@ -490,20 +456,16 @@ public class SageTVManager implements PowerEventListener {
     public static ArrayList<CaptureDevice> getAllSageTVCaptureDevices(CaptureDeviceType captureDeviceType) {
         logger.entry();
 
-        portToSocketServerLock.readLock().lock();
-        ArrayList<CaptureDevice> captureDevices = new ArrayList<CaptureDevice>();
+        ArrayList<CaptureDevice> captureDevices = registry.getSnapshot().getCaptureDevices();
 
-        try {
-            for (Map.Entry<String, CaptureDevice> captureDeviceMap : captureDeviceNameToCaptureDevice.entrySet()) {
-                CaptureDevice captureDevice = captureDeviceMap.getValue();
-                if (captureDeviceType == null || captureDevice.getEncoderDeviceType() == captureDeviceType) {
-                    captureDevices.add(captureDevice);
+        if (captureDeviceType != null) {
+            Iterator<CaptureDevice> iterator = captureDevices.iterator();
+
+            while (iterator.hasNext()) {
+                if (iterator.next().getEncoderDeviceType() != captureDeviceType) {
+                    iterator.remove();
                 }
             }
-        } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            portToSocketServerLock.readLock().unlock();
         }
 
         return logger.exit(captureDevices);
@@ -512,12 +474,10 @@ public class SageTVManager implements PowerEventListener {
     protected static ArrayList<String> getAllTunerProperties(SageTVRequestHandler requestHandler) {
         logger.entry();
 
-        captureDeviceNameToCaptureDeviceLock.readLock().lock();
         ArrayList<String> tunerPropertiesList = new ArrayList<String>();
 
         try {
-            for (Map.Entry<String, CaptureDevice> captureDeviceMap : captureDeviceNameToCaptureDevice.entrySet()) {
-                CaptureDevice captureDevice = captureDeviceMap.getValue();
+            for (CaptureDevice captureDevice : registry.getSnapshot().getCaptureDevices()) {
 
                 // This allows us to make a capture device only appear in detection for a server on
                 // a specific IP address.
@@ -561,9 +521,7 @@ public class SageTVManager implements PowerEventListener {
                 tunerPropertiesList.addAll(Arrays.asList(tunerProperties));
             }
         } catch (Exception e) {
-            logger.debug("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceNameToCaptureDeviceLock.readLock().unlock();
+            logger.debug("There was an unhandled exception while building tuner properties => ", e);
         }
 
         return logger.exit(tunerPropertiesList);
@@ -647,6 +605,16 @@ public class SageTVManager implements PowerEventListener {
         devicesWaitingThread.blockUntilLoaded();
     }
 
+    /**
+     * Called when all required devices are loaded or we have stopped waiting for them.
+     * <p/>
+     * Anything still waiting for a capture device will stop waiting since it's not expected to be
+     * loaded.
+     */
+    static void devicesLoaded() {
+        registry.completeAllWaiting();
+    }
+
     /**
      * Implements a callback for Suspend Event.
      * <p/>
@@ -669,6 +637,9 @@ public class SageTVManager implements PowerEventListener {
             // This only stops all of the socket servers. It does not remove them.
             stopAllSocketServers();
             stopAndClearAllCaptureDevices();
+
+            // Idle upload connections will not survive standby.
+            NIOSageTVUploadPool.closeAllConnections();
         }
     }
 
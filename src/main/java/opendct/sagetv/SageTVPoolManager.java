@@ -17,12 +17,14 @@
 package opendct.sagetv;
 
 import opendct.capture.CaptureDevice;
+import opendct.capture.SharedStreamManager;
 import opendct.config.Config;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SageTVPoolManager  {
@@ -39,12 +41,15 @@ public class SageTVPoolManager  {
     // The SageTVPoolManager should be the only class that will swap things around if needed.
 
     private static final ReentrantReadWriteLock captureDeviceMappingLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock poolNameToPoolCaptureDevicesLock = new ReentrantReadWriteLock();
     private static final ReentrantReadWriteLock vCaptureDeviceToPoolNameLock = new ReentrantReadWriteLock();
 
+    // Pools are only created and removed while holding this lock. Selecting a capture device from
+    // a pool does not need any locks.
+    private static final Object poolsLock = new Object();
+
     private static final HashMap<String, String> vCaptureDeviceToPoolCaptureDevice = new HashMap<>();
     private static final HashMap<String, String> poolCaptureDeviceToVCaptureDevice = new HashMap<>();
-    private static final HashMap<String, ArrayList<String>> poolNameToPoolCaptureDevices = new HashMap<>();
+    private static final ConcurrentHashMap<String, SageTVDevicePool> poolNameToPool = new ConcurrentHashMap<>();
     private static final HashMap<String, String> vCaptureDeviceToPoolName = new HashMap<>();
 
     private static boolean usePools = Config.getBoolean("pool.enabled", false);
@@ -61,6 +66,21 @@ public class SageTVPoolManager  {
      * @return The name of the pool capture device or <i>null</i> if no device is available.
      */
     public static String getAndLockBestCaptureDevice(String vCaptureDevice) {
+        return getAndLockBestCaptureDevice(vCaptureDevice, null);
+    }
+
+    /**
+     * Finds the best available capture device in the pool for a channel, locks it and puts it on
+     * the map, then returns the pool capture device.
+     * <p/>
+     * Pool capture devices that can start streaming the channel with the least amount of work are
+     * preferred. Otherwise this is the same as <b>getAndLockBestCaptureDevice(vCaptureDevice)</b>.
+     *
+     * @param vCaptureDevice The name of the virtual capture device.
+     * @param channel The channel that will be streamed or <i>null</i> if it is not known.
+     * @return The name of the pool capture device or <i>null</i> if no device is available.
+     */
+    public static String getAndLockBestCaptureDevice(String vCaptureDevice, String channel) {
 
         long startTime = System.currentTimeMillis();
 
@@ -98,9 +118,9 @@ public class SageTVPoolManager  {
             return vCaptureDevice;
         }
 
-        final ArrayList<String> poolCaptureDevices = getPoolNameToPoolCaptureDevices(poolName);
+        final SageTVDevicePool pool = poolNameToPool.get(poolName);
 
-        if (poolCaptureDevices == null) {
+        if (pool == null) {
             // This device is not associated with any pool so it will just be mapped to itself, but
             // claimed it did in the previous step. Displaying warning so we know something odd has
             // happened, but not strange enough to prevent us from proceeding.
@@ -126,119 +146,46 @@ public class SageTVPoolManager  {
             return vCaptureDevice;
         }
 
-        boolean tryAgain = true;
-
-        while (tryAgain && !Thread.currentThread().isInterrupted()) {
-            tryAgain = false;
-
-            // Temporarily Store all of the capture devices we might come back to so we don't need
-            // to look them up twice.
-            ArrayList<CaptureDevice> externalLocked = new ArrayList<>();
-
-            // These are already in their order of merit since every time a new device is added,
-            // they are re-sorted by merit.
-            for (String poolCaptureDevice : poolCaptureDevices) {
-                CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
-
-                if (captureDevice == null) {
-                    continue;
-                }
-
-                if (captureDevice.isLocked()) {
-                    continue;
-                }
-
-                if (captureDevice.isExternalLocked()) {
-                    externalLocked.add(captureDevice);
-                    continue;
-                }
-
-                if (!captureDevice.setLocked(true)) {
-                    continue;
-                }
-
-                // Map device so we can find it later by the name SageTV uses.
-                setCaptureDeviceMapping(vCaptureDevice, poolCaptureDevice);
+        CaptureDevice captureDevice = null;
 
-                if (logger.isDebugEnabled()) {
-                    long endTime = System.currentTimeMillis();
-                    logger.debug("'{}' pool capture device selected for virtual capture device '{}' in {}ms.", poolCaptureDevice, vCaptureDevice, endTime - startTime);
-                } else {
-                    logger.info("'{}' pool capture device selected for virtual capture device '{}'.", poolCaptureDevice, vCaptureDevice);
-                }
+        // A recording of a channel that is already being streamed will share that stream, so it
+        // doesn't need to take a tuner that another recording could use.
+        if (!Util.isNullOrEmpty(channel)) {
+            CaptureDevice vCaptureDeviceObject = SageTVManager.getSageTVCaptureDevice(vCaptureDevice, false);
+            String lineup = vCaptureDeviceObject != null ? vCaptureDeviceObject.getChannelLineup() : null;
 
-                return poolCaptureDevice;
+            if (lineup != null && SharedStreamManager.isStreaming(lineup, channel)) {
+                captureDevice = pool.claimSharingCaptureDevice(lineup);
             }
+        }
+
+        if (captureDevice == null) {
+            captureDevice = pool.claimBestCaptureDevice(channel);
+        }
 
+        if (captureDevice == null) {
             if (Thread.currentThread().isInterrupted()) {
                 logger.warn("The thread was interrupted before a pool capture device could be found.");
-                return null;
-            }
-
-            // If we can't find a device that's not locked, then we need to use one that is.
-            for (CaptureDevice captureDevice : externalLocked) {
-                if (captureDevice.isLocked()) {
-                    // If suddenly a capture device has become locked and all of the other
-                    // devices are externally locked, go back to see if anything else is now
-                    // unlocked and doesn't have an external lock.
-                    tryAgain = true;
-                    continue;
-                }
-
-                if (captureDevice.setExternalLock(false)) {
-
-                    // Map device so we can find it later by the name SageTV uses.
-                    setCaptureDeviceMapping(vCaptureDevice, captureDevice.getEncoderName());
-
-                    if (!captureDevice.setLocked(true)) {
-                        continue;
-                    }
-
-                    if (logger.isDebugEnabled()) {
-                        long endTime = System.currentTimeMillis();
-                        logger.debug("'{}' pool capture device was externally locked and was selected for virtual capture device '{}' in {}ms.", captureDevice.getEncoderName(), vCaptureDevice, endTime - startTime);
-                    } else {
-                        logger.info("'{}' pool capture device was externally locked and was selected for virtual capture device '{}'.", captureDevice.getEncoderName(), vCaptureDevice);
-                    }
-
-                    return captureDevice.getEncoderName();
-                }
+            } else {
+                logger.error("Unable to locate a free pool capture device for '{}'.", vCaptureDevice);
             }
 
-            // If we can't find a device that's online, let's try to tune the first internally
-            // unlocked tuner.
-            // If we can't find a device that's not locked, then we need to use one that is.
-            for (CaptureDevice captureDevice : externalLocked) {
-                if (captureDevice.isLocked()) {
-                    // If suddenly a capture device has become locked and all of the other
-                    // devices are externally locked, go back to see if anything else is now
-                    // unlocked and doesn't have an external lock.
-                    tryAgain = true;
-                    continue;
-                }
-
-                if (!captureDevice.setLocked(true)) {
-                    continue;
-                }
-
-                captureDevice.setExternalLock(false);
+            return null;
+        }
 
-                setCaptureDeviceMapping(vCaptureDevice, captureDevice.getEncoderName());
+        String poolCaptureDevice = captureDevice.getEncoderName();
 
-                if (logger.isDebugEnabled()) {
-                    long endTime = System.currentTimeMillis();
-                    logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}' in {}ms.", captureDevice.getEncoderName(), vCaptureDevice, endTime - startTime);
-                } else {
-                    logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}'.", captureDevice.getEncoderName(), vCaptureDevice);
-                }
+        // Map device so we can find it later by the name SageTV uses.
+        setCaptureDeviceMapping(vCaptureDevice, poolCaptureDevice);
 
-                return captureDevice.getEncoderName();
-            }
+        if (logger.isDebugEnabled()) {
+            long endTime = System.currentTimeMillis();
+            logger.debug("'{}' pool capture device selected for virtual capture device '{}' in {}ms.", poolCaptureDevice, vCaptureDevice, endTime - startTime);
+        } else {
+            logger.info("'{}' pool capture device selected for virtual capture device '{}'.", poolCaptureDevice, vCaptureDevice);
         }
 
-        logger.error("Unable to locate a free pool capture device for '{}'.");
-        return null;
-
+        return poolCaptureDevice;
     }
 
     /**
@@ -294,59 +241,79 @@ public class SageTVPoolManager  {
         }
     }
 
+    /**
+     * Tell the pool manager that a pool capture device is no longer in use.
+     * <p/>
+     * This allows the capture device to be selected again without checking every capture device in
+     * the pool. It will remove " Digital TV Tuner" automatically if present.
+     *
+     * @param pCaptureDevice The name of the pool capture device.
+     */
+    public static void poolCaptureDeviceUnlocked(String pCaptureDevice) {
+        if (!isUsePools()) {
+            return;
+        }
+
+        String poolName = getVCaptureDeviceToPoolName(pCaptureDevice);
+
+        if (poolName == null) {
+            return;
+        }
+
+        SageTVDevicePool pool = poolNameToPool.get(poolName);
+
+        if (pool != null) {
+            if (pCaptureDevice.endsWith(" Digital TV Tuner")) {
+                pCaptureDevice = pCaptureDevice.substring(0, pCaptureDevice.length() - " Digital TV Tuner".length()).trim();
+            }
+
+            pool.released(pCaptureDevice);
+        }
+    }
+
     /**
      * Removes a capture device from the pool manager completely.
      *
      * @param vCaptureDevice The name of the virtual capture device.
      */
     public static void removePoolCaptureDevice(String vCaptureDevice) {
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
-            if (vCaptureDevice.endsWith(" Digital TV Tuner")) {
-                vCaptureDevice = vCaptureDevice.substring(0, vCaptureDevice.length() - " Digital TV Tuner".length()).trim();
-            }
+        synchronized (poolsLock) {
+            vCaptureDeviceToPoolNameLock.writeLock().lock();
 
-            ArrayList<String> removePools = new ArrayList<>();
+            try {
+                if (vCaptureDevice.endsWith(" Digital TV Tuner")) {
+                    vCaptureDevice = vCaptureDevice.substring(0, vCaptureDevice.length() - " Digital TV Tuner".length()).trim();
+                }
 
-            for (Map.Entry<String, ArrayList<String>> poolCaptureDeviceKVP : poolNameToPoolCaptureDevices.entrySet()) {
+                ArrayList<String> removePools = new ArrayList<>();
 
-                ArrayList<String> poolCaptureDevices = poolCaptureDeviceKVP.getValue();
-                ArrayList<String> removePoolCaptureDevices = new ArrayList<>();
+                for (Map.Entry<String, SageTVDevicePool> poolKVP : poolNameToPool.entrySet()) {
+                    SageTVDevicePool pool = poolKVP.getValue();
 
-                for (String poolCaptureDevice : poolCaptureDevices) {
-                    if (poolCaptureDevice.equals(vCaptureDevice)) {
-                        removePoolCaptureDevices.add(poolCaptureDevice);
+                    if (pool.removeCaptureDevice(vCaptureDevice)) {
+                        logger.info("The capture device '{}' has been removed from the '{}' pool.", vCaptureDevice, poolKVP.getKey());
                     }
-                }
 
-                for (String removeDevice : removePoolCaptureDevices) {
-                    poolCaptureDevices.remove(removeDevice);
+                    if (pool.isEmpty()) {
+                        removePools.add(poolKVP.getKey());
+                    }
                 }
 
-                if (poolCaptureDevices.size() == 0) {
-                    removePools.add(poolCaptureDeviceKVP.getKey());
+                for (String removePool : removePools) {
+                    logger.info("Removed the pool '{}' since it no longer contains any capture devices.", removePool);
+                    poolNameToPool.remove(removePool);
                 }
 
-                logger.info("The capture device '{}' has been removed from the '{}' pool.", vCaptureDevice, poolCaptureDeviceKVP.getKey());
-            }
+                vCaptureDeviceToPoolName.remove(vCaptureDevice);
 
-            for (String removePool : removePools) {
-                logger.info("Removed the pool '{}' since it no longer contains any capture devices.", removePool);
-                poolNameToPoolCaptureDevices.remove(removePool);
+                // Don't clear the mapping since the device might still be in use and we won't be able
+                // to find it again. This will clean itself up when SageTV sends a STOP command.
+                //vCaptureDeviceToPoolCaptureDevice.remove(vCaptureDevice);
+            } catch (Exception e) {
+                logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
+            } finally {
+                vCaptureDeviceToPoolNameLock.writeLock().unlock();
             }
-
-            vCaptureDeviceToPoolName.remove(vCaptureDevice);
-
-            // Don't clear the mapping since the device might still be in use and we won't be able
-            // to find it again. This will clean itself up when SageTV sends a STOP command.
-            //vCaptureDeviceToPoolCaptureDevice.remove(vCaptureDevice);
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
         }
     }
 
@@ -370,49 +337,47 @@ public class SageTVPoolManager  {
             return;
         }
 
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
+        synchronized (poolsLock) {
+            vCaptureDeviceToPoolNameLock.writeLock().lock();
 
-        try {
-            String oldPool = vCaptureDeviceToPoolName.get(captureDevice);
-
-            if (oldPool != null && oldPool.equals(poolName)) {
-                logger.debug("The capture device '{}' has already been added to the '{}' pool.", captureDevice, poolName);
-                return;
-            } else if (oldPool != null && !oldPool.equals(poolName)) {
-                ArrayList<String> poolCaptureDevices = poolNameToPoolCaptureDevices.get(poolName);
-                ArrayList<String> removePoolCaptureDevices = new ArrayList<>();
-
-                for (String poolCaptureDevice : poolCaptureDevices) {
-                    if (poolCaptureDevice.equals(captureDevice)) {
-                        removePoolCaptureDevices.add(poolCaptureDevice);
+            try {
+                String oldPool = vCaptureDeviceToPoolName.get(captureDevice);
+
+                if (oldPool != null && oldPool.equals(poolName)) {
+                    logger.debug("The capture device '{}' has already been added to the '{}' pool.", captureDevice, poolName);
+                    return;
+                } else if (oldPool != null && !oldPool.equals(poolName)) {
+                    SageTVDevicePool pool = poolNameToPool.get(oldPool);
+
+                    if (pool != null) {
+                        pool.removeCaptureDevice(captureDevice);
+
+                        if (pool.isEmpty()) {
+                            logger.info("Removed the pool '{}' since it no longer contains any capture devices.", oldPool);
+                            poolNameToPool.remove(oldPool);
+                        }
                     }
-                }
 
-                for (String removeDevice : removePoolCaptureDevices) {
-                    poolCaptureDevices.remove(removeDevice);
+                    logger.info("The capture device '{}' has been moved from the '{}' pool to the '{}' pool.", captureDevice, oldPool, poolName);
                 }
 
-                logger.info("The capture device '{}' has been moved from the '{}' pool to the '{}' pool.", captureDevice, oldPool, poolName);
-            }
-
-            vCaptureDeviceToPoolName.put(captureDevice, poolName);
-            ArrayList<String> poolCaptureDevices = poolNameToPoolCaptureDevices.get(poolName);
+                vCaptureDeviceToPoolName.put(captureDevice, poolName);
+                SageTVDevicePool pool = poolNameToPool.get(poolName);
 
-            if (poolCaptureDevices == null) {
-                poolCaptureDevices = new ArrayList<>();
-                poolNameToPoolCaptureDevices.put(poolName, poolCaptureDevices);
-                logger.info("The pool '{}' has been created.", poolName);
-            }
+                if (pool == null) {
+                    pool = new SageTVDevicePool(poolName);
+                    poolNameToPool.put(poolName, pool);
+                    logger.info("The pool '{}' has been created.", poolName);
+                }
 
-            poolCaptureDevices.add(captureDevice);
+                pool.addCaptureDevice(captureDevice);
 
-            logger.info("The capture device '{}' has been added to the '{}' pool.", captureDevice, poolName);
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+                logger.info("The capture device '{}' has been added to the '{}' pool.", captureDevice, poolName);
+            } catch (Exception e) {
+                logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
+            } finally {
+                vCaptureDeviceToPoolNameLock.writeLock().unlock();
+            }
         }
     }
 
@@ -423,96 +388,23 @@ public class SageTVPoolManager  {
      * effect.
      */
     public static void resortAllMerits() {
-        captureDeviceMappingLock.writeLock().lock();
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
-            for (Map.Entry<String, ArrayList<String>> poolKeyValue: poolNameToPoolCaptureDevices.entrySet()) {
-                if (poolKeyValue.getValue() != null) {
-
-                    Collections.sort(poolKeyValue.getValue(), new Comparator<String>() {
-                        @Override
-                        public int compare(String o1, String o2) {
-                            CaptureDevice c1 = SageTVManager.getSageTVCaptureDevice(o1, false);
-                            CaptureDevice c2 = SageTVManager.getSageTVCaptureDevice(o2, false);
-
-                            if (c1 == null && c2 == null) {
-                                logger.warn("'{}' and '{}' don't exist.", o1, o2);
-                                return 0;
-                            } else if (c1 == null) {
-                                logger.warn("'{}' doesn't exist.", o1);
-                                return -1;
-                            } else if (c2 == null) {
-                                logger.warn("'{}' doesn't exist.", o2);
-                                return 1;
-                            }
-
-                            if (c1.getMerit() > c2.getMerit()) {
-                                return -1;
-                            } else if (c1.getMerit() < c2.getMerit()) {
-                                return 1;
-                            }
-
-                            return 0;
-                        }
-                    });
-                }
-            }
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceMappingLock.writeLock().unlock();
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+        for (SageTVDevicePool pool : poolNameToPool.values()) {
+            pool.updateMerits();
         }
     }
 
     public static void resortMerits(String poolName) {
-        ArrayList<String> encoders = poolNameToPoolCaptureDevices.get(poolName);
-
-        if (encoders == null) {
+        if (poolName == null) {
             return;
         }
 
-        captureDeviceMappingLock.writeLock().lock();
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
-                Collections.sort(encoders, new Comparator<String>() {
-                    @Override
-                    public int compare(String o1, String o2) {
-                        CaptureDevice c1 = SageTVManager.getSageTVCaptureDevice(o1, false);
-                        CaptureDevice c2 = SageTVManager.getSageTVCaptureDevice(o2, false);
-
-                        if (c1 == null && c2 == null) {
-                            logger.warn("'{}' and '{}' don't exist.", o1, o2);
-                            return 0;
-                        } else if (c1 == null) {
-                            logger.warn("'{}' doesn't exist.", o1);
-                            return -1;
-                        } else if (c2 == null) {
-                            logger.warn("'{}' doesn't exist.", o2);
-                            return 1;
-                        }
-
-                        if (c1.getMerit() > c2.getMerit()) {
-                            return -1;
-                        } else if (c1.getMerit() < c2.getMerit()) {
-                            return 1;
-                        }
+        SageTVDevicePool pool = poolNameToPool.get(poolName);
 
-                        return 0;
-                    }
-                });
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            captureDeviceMappingLock.writeLock().unlock();
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+        if (pool == null) {
+            return;
         }
+
+        pool.updateMerits();
     }
 
     /**
@@ -615,25 +507,14 @@ public class SageTVPoolManager  {
      * @return An array of the devices associated with the pool or 'null' if the pool doesn't exist.
      */
     public static ArrayList<String> getPoolNameToPoolCaptureDevices(String poolName) {
+        SageTVDevicePool pool = poolNameToPool.get(poolName);
 
-        ArrayList<String> returnValue = null;
-
-        poolNameToPoolCaptureDevicesLock.readLock().lock();
-
-        try {
-            returnValue = poolNameToPoolCaptureDevices.get(poolName);
-
-            if (returnValue != null) {
-                // Create a new array so we don't accidentally modify it outside of this class.
-                returnValue = new ArrayList<String>(returnValue);
-            }
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ", e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.readLock().unlock();
+        if (pool == null) {
+            return null;
         }
 
-        return returnValue;
+        // This is always a new array so it can't be modified outside of this class.
+        return pool.getCaptureDevices();
     }
 
     /**
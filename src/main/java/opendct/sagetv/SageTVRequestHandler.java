@@ -26,6 +26,7 @@ package opendct.sagetv;
 
 import opendct.capture.CaptureDevice;
 import opendct.config.Config;
+import opendct.consumer.SageTVFileSizeIndex;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,6 +35,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
@@ -50,9 +52,12 @@ public class SageTVRequestHandler implements Runnable {
     private CaptureDevice captureDevice = null;
     private String currentRecordFile = null;
     private BufferedReader in = null;
-    private OutputStreamWriter out = null;
+    private Writer out = null;
     private String lastRequest = null;
 
+    // This is the encoder the current request is for. It's used to keep latency per encoder.
+    private String requestEncoderName = null;
+
     public SageTVRequestHandler(Socket socket) {
         this.socket = socket;
     }
@@ -62,6 +67,22 @@ public class SageTVRequestHandler implements Runnable {
         this.captureDevice = captureDevice;
     }
 
+    /**
+     * Create a request handler that does not read from the socket.
+     * <p/>
+     * Requests are provided to <b>processRequest()</b> and all responses are written to the
+     * provided writer. This is used when the connection is serviced by a selector.
+     *
+     * @param socket This is the socket of the connection. It is only used for addresses.
+     * @param captureDevice This is the capture device for V1.0 encoders or <i>null</i>.
+     * @param out This is where responses will be written.
+     */
+    public SageTVRequestHandler(Socket socket, CaptureDevice captureDevice, Writer out) {
+        this.socket = socket;
+        this.captureDevice = captureDevice;
+        this.out = out;
+    }
+
     public int getRemotePort() {
         if (socket != null) {
             return socket.getPort();
@@ -123,511 +144,543 @@ public class SageTVRequestHandler implements Runnable {
             // EncodingServer.java
             lastRequest = null;
 
+            long acceptTime = System.nanoTime();
+            boolean firstRequest = true;
+
             while (!Thread.currentThread().isInterrupted()) {
 
-                lastRequest = in.readLine();
+                String request = in.readLine();
+
+                if (firstRequest) {
+                    firstRequest = false;
+                    SageTVLatencyMonitor.recordAcceptToFirstByte(System.nanoTime() - acceptTime);
+                }
 
-                if (lastRequest == null || lastRequest.equals("")) {
+                if (request == null || request.equals("")) {
                     break;
                 }
 
-                if (!lastRequest.equals("NOOP") && !lastRequest.startsWith("GET_FILE_SIZE ")) {
-                    logger.debug("SageTV sent: '{}'", lastRequest);
-                } else if (LOG_TRACE) {
-                    logger.trace("SageTV sent: '{}'", lastRequest);
+                if (!processRequest(request)) {
+                    break;
                 }
+            }
 
-                try {
-                    //=============================================================================================
-                    // VERSION
-                    //=============================================================================================
-                    if (lastRequest.equals("VERSION")) {
-                        // We are all version 3.0 capture devices. There doesn't appear to be any
-                        // value in distinguishing.
-                        sendResponse("3.0\r\n");
-                    } else if (lastRequest.startsWith("STOP")) {
-                        if (lastRequest.contains(" ")) {
-                            //It appears we can have more than one tuner on the same port.
-                            String deviceName = lastRequest.substring(lastRequest.indexOf(' ') + 1);
-
-                            //This is not a mistake.
-                            CaptureDevice captureDevice = getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
-
-                            if (captureDevice != null) {
-                                setThreadName(deviceName, captureDevice.getEncoderName());
-                                captureDevice.stopEncoding();
-                                unlockEncoder(captureDevice);
-                            } else {
-                                logger.error("SageTV requested the tuner '{}' and it does not exist at this time.", deviceName);
-                            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Closing connection to {} on port {}", socket.getInetAddress().getHostAddress(), socket.getPort());
+            }
+        } catch (Exception e) {
+            // This kind of exception appears to mostly happen when stopping the SageTV server.
+            logger.debug("An unhandled exception was created => ", e);
 
-                            removeVCaptureDeviceToPoolCaptureDevice(deviceName);
+            // Setting the interrupt or the JVM might crash when using native code.
+            Thread.currentThread().interrupt();
+        } finally {
 
-                            setThreadName(deviceName, deviceName);
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                logger.trace("Failed to close BufferedReader => ", e);
+            }
 
-                            sendResponse("OK\r\n");
-                        } else {
-                            if (captureDevice != null) {
-                                captureDevice.stopEncoding();
-                                unlockEncoder(captureDevice);
-                            }
-                        }
-                        //=============================================================================================
-                        // START
-                        //                                Device Name                                UploadID  Chn 2*Sage.time()                        Filename                            Quality
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1295665805|502|2890245964968|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 2 Digital TV Tuner|1496210288|502|2890247883508|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1723577771|502|2890248518360|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("START ")) {
-                        currentRecordFile = null;
-                        // Same for V3/V2 encoders because the input name is specified
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
-                        int uploadID = 0;
-
-                        preRecording();
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 6) {
-                            // V3 has upload file ID
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception e) {
+                logger.trace("Failed to close OutputStreamWriter => ", e);
+            }
 
-                        String channel = tokens.nextToken();
-                        // I guess this is to synchronize time with the server.
-                        String stvTimeSync = tokens.nextToken();
-                        String filename = tokens.nextToken();
-                        String encoding = tokens.nextToken();
-
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-
-                            if (captureDevice.isReady()) {
-                                boolean success = true;
-                                if (captureDevice.canEncodeUploadID() && uploadID != 0) {
-                                    logger.debug("Starting network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                    success = captureDevice.startEncoding(channel, filename, encoding, 0, uploadID, socket.getInetAddress());
-                                } else {
-                                    logger.debug("Starting network encoder to file name '{}'.", filename);
-                                    success = captureDevice.startEncoding(channel, filename, encoding, 0);
-                                }
-
-                                if (success) {
-                                    currentRecordFile = filename;
-                                    SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                    if (uploadID != 0) {
-                                        SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                    }
-
-                                    postRecording();
-                                    sendResponse("OK\r\n");
-                                } else {
-                                    sendResponse("ERROR Device Start Failed\r\n");
-                                    logger.error("Encoder device is unable to start.");
-                                }
-                            } else {
-                                sendResponse("ERROR Device Not Ready\r\n");
-                                logger.error("Encoder device is not ready.");
-                            }
-                        } else {
-                            sendResponse("ERROR Invalid Input\r\n");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // BUFFER
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("BUFFER ")) {
-                        currentRecordFile = null;
-                        // Same for V3/V2 encoders because the input name is specified
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
-                        Integer uploadID = 0;
-
-                        preRecording();
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 6) {
-                            // V3 has upload file ID
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+            try {
+                if (socket != null && socket.isConnected()) {
+                    socket.close();
+                }
+            } catch (Exception e) {
+                logger.trace("Failed to close socket => ", e);
+            }
+        }
 
-                        String channel = tokens.nextToken();
-                        long bufferSize = Long.parseLong(tokens.nextToken());
-                        String filename = tokens.nextToken();
-                        String encoding = tokens.nextToken();
-
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-
-                            if (captureDevice.isReady()) {
-                                boolean success;
-
-                                if (captureDevice.canEncodeUploadID() && uploadID != 0) {
-                                    logger.debug("Starting buffered network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                    success = captureDevice.startEncoding(channel, filename, encoding, bufferSize, uploadID, socket.getInetAddress());
-                                } else {
-                                    logger.debug("Starting buffered network encoder to file name '{}'.", filename);
-                                    success = captureDevice.startEncoding(channel, filename, encoding, bufferSize);
-                                }
-
-                                if (success) {
-                                    currentRecordFile = filename;
-                                    SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                    if (uploadID != 0) {
-                                        SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                    }
-
-                                    postRecording();
-                                    sendResponse("OK\r\n");
-                                } else {
-                                    sendResponse("ERROR Device Start Failed\r\n");
-                                    logger.error("Encoder device is unable to start.");
-                                }
-                            } else {
-                                sendResponse("ERROR Device Not Ready\r\n");
-                                logger.error("Encoder device is not ready.");
-                            }
-                        } else {
-                            sendResponse("ERROR Invalid Input\r\n");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // BUFFER_SWITCH
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("BUFFER_SWITCH ")) {
-                        currentRecordFile = null;
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
-                        Integer uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 4) {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else if (tokens.countTokens() == 3) {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                        }
+        logger.exit();
+    }
 
-                        String channel = tokens.nextToken();
-                        long bufferSize = Long.parseLong(tokens.nextToken());
-                        String filename = tokens.nextToken();
+    /**
+     * Process a single request from SageTV and send the response.
+     * <p/>
+     * Requests on the same connection must be processed one at a time and in the order they were
+     * received.
+     *
+     * @param request This is the request line without the line ending.
+     * @return <i>false</i> if the connection should be closed.
+     */
+    public boolean processRequest(String request) {
+        long startTime = System.nanoTime();
+        requestEncoderName = null;
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
+        try {
+            return handleRequest(request);
+        } finally {
+            SageTVLatencyMonitor.recordCommand(
+                    requestEncoderName, request, System.nanoTime() - startTime);
+        }
+    }
 
-                            boolean success;
+    private boolean handleRequest(String request) {
+        logger.entry(request);
+        lastRequest = request;
 
-                            if (captureDevice.canEncodeUploadID() && uploadID != 0) {
-                                logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                success = captureDevice.switchEncoding(channel, filename, bufferSize, uploadID, socket.getInetAddress());
-                            } else {
-                                logger.debug("Switching network encoder to filename '{}'.", filename);
-                                success = captureDevice.switchEncoding(channel, filename, bufferSize);
-                            }
+        if (!lastRequest.equals("NOOP") && !lastRequest.startsWith("GET_FILE_SIZE ")) {
+            logger.debug("SageTV sent: '{}'", lastRequest);
+        } else if (LOG_TRACE) {
+            logger.trace("SageTV sent: '{}'", lastRequest);
+        }
 
-                            if (success) {
-                                currentRecordFile = filename;
-                                SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
+        try {
+            //=============================================================================================
+            // VERSION
+            //=============================================================================================
+            if (lastRequest.equals("VERSION")) {
+                // We are all version 3.0 capture devices. There doesn't appear to be any
+                // value in distinguishing.
+                sendResponse("3.0\r\n");
+            } else if (lastRequest.startsWith("STOP")) {
+                if (lastRequest.contains(" ")) {
+                    //It appears we can have more than one tuner on the same port.
+                    String deviceName = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+
+                    //This is not a mistake.
+                    CaptureDevice captureDevice = getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
+
+                    if (captureDevice != null) {
+                        setThreadName(deviceName, captureDevice.getEncoderName());
+                        captureDevice.stopEncoding();
+                        unlockEncoder(captureDevice);
+                    } else {
+                        logger.error("SageTV requested the tuner '{}' and it does not exist at this time.", deviceName);
+                    }
 
-                                if (uploadID != 0) {
-                                    SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                }
+                    removeVCaptureDeviceToPoolCaptureDevice(deviceName);
 
-                                sendResponse("OK\r\n");
-                            } else {
-                                sendResponse("ERROR Device Switch Failed\r\n");
-                                logger.error("Encoder device is unable to switch.");
-                            }
+                    setThreadName(deviceName, deviceName);
+
+                    sendResponse("OK\r\n");
+                } else {
+                    if (captureDevice != null) {
+                        captureDevice.stopEncoding();
+                        unlockEncoder(captureDevice);
+                    }
+                }
+                //=============================================================================================
+                // START
+                //                                Device Name                                UploadID  Chn 2*Sage.time()                        Filename                            Quality
+                // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1295665805|502|2890245964968|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+                // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 2 Digital TV Tuner|1496210288|502|2890247883508|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+                // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1723577771|502|2890248518360|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+                //=============================================================================================
+            } else if (lastRequest.startsWith("START ")) {
+                currentRecordFile = null;
+                // Same for V3/V2 encoders because the input name is specified
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
+                int uploadID = 0;
+
+                preRecording();
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 6) {
+                    // V3 has upload file ID
+                    vCaptureDevice = tokens.nextToken();
+                    uploadID = Integer.parseInt(tokens.nextToken());
+                } else {
+                    vCaptureDevice = tokens.nextToken();
+                }
+
+                // The channel is used to select the pool capture device that can tune it fastest.
+                String channel = tokens.nextToken();
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, channel, true);
+                // I guess this is to synchronize time with the server.
+                String stvTimeSync = tokens.nextToken();
+                String filename = tokens.nextToken();
+                String encoding = tokens.nextToken();
+
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+
+                    if (captureDevice.isReady()) {
+                        boolean success = true;
+                        SageTVLatencyMonitor.startTuneTimer(filename, captureDevice.getEncoderName());
+
+                        if (captureDevice.canEncodeUploadID() && uploadID != 0) {
+                            logger.debug("Starting network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                            success = captureDevice.startEncoding(channel, filename, encoding, 0, uploadID, socket.getInetAddress());
                         } else {
-                            sendResponse("ERROR Invalid Input\r\n");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // SWITCH
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("SWITCH ")) {
-                        currentRecordFile = null;
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
-                        Integer uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 4) {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else if (tokens.countTokens() == 3) {
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                            logger.debug("Starting network encoder to file name '{}'.", filename);
+                            success = captureDevice.startEncoding(channel, filename, encoding, 0);
                         }
 
-                        String channel = tokens.nextToken();
-                        String filename = tokens.nextToken();
+                        if (success) {
+                            currentRecordFile = filename;
+                            SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-
-                            boolean success;
-                            if (captureDevice.canEncodeUploadID() && uploadID != 0) {
-                                logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                success = captureDevice.switchEncoding(channel, filename, 0, uploadID, socket.getInetAddress());
-                            } else {
-                                logger.debug("Switching network encoder to filename '{}'.", filename);
-                                success = captureDevice.switchEncoding(channel, filename, 0);
+                            if (uploadID != 0) {
+                                SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
                             }
 
-                            if (success) {
-                                currentRecordFile = filename;
-                                SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                if (uploadID != 0) {
-                                    SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                }
-
-                                sendResponse("OK\r\n");
-                            } else {
-                                sendResponse("ERROR Device Switch Failed\r\n");
-                                logger.error("Encoder device is unable to switch.");
-                            }
+                            postRecording();
+                            sendResponse("OK\r\n");
                         } else {
-                            sendResponse("ERROR Invalid Input\r\n");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // GET_START (return time in milliseconds since start of recording)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_START")) {
-
-                        String vCaptureDevice = null;
-                        if (lastRequest.indexOf(' ') != -1) {
-                            // V3 encoder
-                            vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                            SageTVLatencyMonitor.cancelTuneTimer(filename);
+                            sendResponse("ERROR Device Start Failed\r\n");
+                            logger.error("Encoder device is unable to start.");
                         }
+                    } else {
+                        sendResponse("ERROR Device Not Ready\r\n");
+                        logger.error("Encoder device is not ready.");
+                    }
+                } else {
+                    sendResponse("ERROR Invalid Input\r\n");
+                    logger.error("Encoder device does not exist.");
+                }
+                //=============================================================================================
+                // BUFFER
+                //=============================================================================================
+            } else if (lastRequest.startsWith("BUFFER ")) {
+                currentRecordFile = null;
+                // Same for V3/V2 encoders because the input name is specified
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
+                Integer uploadID = 0;
+
+                preRecording();
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 6) {
+                    // V3 has upload file ID
+                    vCaptureDevice = tokens.nextToken();
+                    uploadID = Integer.parseInt(tokens.nextToken());
+                } else {
+                    vCaptureDevice = tokens.nextToken();
+                }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            captureDevice.getRecordStart();
-                        }
+                // The channel is used to select the pool capture device that can tune it fastest.
+                String channel = tokens.nextToken();
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, channel, true);
+                long bufferSize = Long.parseLong(tokens.nextToken());
+                String filename = tokens.nextToken();
+                String encoding = tokens.nextToken();
 
-                        //=============================================================================================
-                        // GET_SIZE (return the size of a recording as the encoder sees it)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_SIZE")) {
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
 
-                        String vCaptureDevice = null;
-                        if (lastRequest.indexOf(' ') != -1) {
-                            // V3 encoder
-                            vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                        }
+                    if (captureDevice.isReady()) {
+                        boolean success;
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            sendResponse(captureDevice.getRecordedBytes() + "\r\n");
-                        }
+                        SageTVLatencyMonitor.startTuneTimer(filename, captureDevice.getEncoderName());
 
-                        //=============================================================================================
-                        // GET_FILE_SIZE (return the size of a file that might not currently be recording)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_FILE_SIZE ")) {
-                        String getFilename = lastRequest.substring("GET_FILE_SIZE ".length());
+                        if (captureDevice.canEncodeUploadID() && uploadID != 0) {
+                            logger.debug("Starting buffered network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                            success = captureDevice.startEncoding(channel, filename, encoding, bufferSize, uploadID, socket.getInetAddress());
+                        } else {
+                            logger.debug("Starting buffered network encoder to file name '{}'.", filename);
+                            success = captureDevice.startEncoding(channel, filename, encoding, bufferSize);
+                        }
 
-                        // Find the device capturing this file.
-                        captureDevice = SageTVManager.getCaptureDeviceByFilename(getFilename);
+                        if (success) {
+                            currentRecordFile = filename;
+                            SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        if (captureDevice != null) {
-                            setThreadName(null, captureDevice.getEncoderName());
+                            if (uploadID != 0) {
+                                SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
+                            }
 
-                            sendTraceResponse(captureDevice.getRecordedBytes() + "\r\n");
+                            postRecording();
+                            sendResponse("OK\r\n");
                         } else {
-                            try {
-                                sendTraceResponse(new java.io.File(getFilename).length() + "\r\n");
-                            } catch (Exception e) {
-                                logger.error("Unable to get the file size of '{}'.", getFilename);
-                                sendTraceResponse("0\r\n");
-                            }
+                            SageTVLatencyMonitor.cancelTuneTimer(filename);
+                            sendResponse("ERROR Device Start Failed\r\n");
+                            logger.error("Encoder device is unable to start.");
                         }
+                    } else {
+                        sendResponse("ERROR Device Not Ready\r\n");
+                        logger.error("Encoder device is not ready.");
+                    }
+                } else {
+                    sendResponse("ERROR Invalid Input\r\n");
+                    logger.error("Encoder device does not exist.");
+                }
+                //=============================================================================================
+                // BUFFER_SWITCH
+                //=============================================================================================
+            } else if (lastRequest.startsWith("BUFFER_SWITCH ")) {
+                currentRecordFile = null;
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
+                Integer uploadID = 0;
+
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 4) {
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                    uploadID = Integer.parseInt(tokens.nextToken());
+                } else if (tokens.countTokens() == 3) {
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                }
 
-                        //=============================================================================================
-                        // NOOP
-                        //=============================================================================================
-                    } else if (lastRequest.equals("NOOP")) {
-                        sendTraceResponse("OK\r\n");
-
-                        //=============================================================================================
-                        // TUNE (tunes a channel)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("TUNE ")) {
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(5), "|");
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+                String channel = tokens.nextToken();
+                long bufferSize = Long.parseLong(tokens.nextToken());
+                String filename = tokens.nextToken();
 
-                        String chanString = tokens.nextToken();
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            captureDevice.tuneToChannel(chanString);
-                        }
+                    boolean success;
 
-                        sendResponse("OK\r\n");
+                    if (captureDevice.canEncodeUploadID() && uploadID != 0) {
+                        logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                        success = captureDevice.switchEncoding(channel, filename, bufferSize, uploadID, socket.getInetAddress());
+                    } else {
+                        logger.debug("Switching network encoder to filename '{}'.", filename);
+                        success = captureDevice.switchEncoding(channel, filename, bufferSize);
+                    }
+
+                    if (success) {
+                        currentRecordFile = filename;
+                        SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        //=============================================================================================
-                        // AUTOTUNE (checks if channel is tunable or not)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOTUNE ")) {
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+                        if (uploadID != 0) {
+                            SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
                         }
 
-                        String chanString = tokens.nextToken();
-                        Boolean returnValue = false;
+                        sendResponse("OK\r\n");
+                    } else {
+                        sendResponse("ERROR Device Switch Failed\r\n");
+                        logger.error("Encoder device is unable to switch.");
+                    }
+                } else {
+                    sendResponse("ERROR Invalid Input\r\n");
+                    logger.error("Encoder device does not exist.");
+                }
+                //=============================================================================================
+                // SWITCH
+                //=============================================================================================
+            } else if (lastRequest.startsWith("SWITCH ")) {
+                currentRecordFile = null;
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
+                Integer uploadID = 0;
+
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 4) {
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                    uploadID = Integer.parseInt(tokens.nextToken());
+                } else if (tokens.countTokens() == 3) {
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.autoTuneChannel(chanString);
-                        }
+                String channel = tokens.nextToken();
+                String filename = tokens.nextToken();
 
-                        sendResponse((returnValue ? "OK\r\n" : "NO_SIGNAL\r\n"));
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+
+                    boolean success;
+                    if (captureDevice.canEncodeUploadID() && uploadID != 0) {
+                        logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                        success = captureDevice.switchEncoding(channel, filename, 0, uploadID, socket.getInetAddress());
+                    } else {
+                        logger.debug("Switching network encoder to filename '{}'.", filename);
+                        success = captureDevice.switchEncoding(channel, filename, 0);
+                    }
 
-                        //=============================================================================================
-                        // AUTOSCAN (checks if channel is tunable or not)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOSCAN ")) {
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
+                    if (success) {
+                        currentRecordFile = filename;
+                        SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+                        if (uploadID != 0) {
+                            SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
                         }
 
-                        String chanString = tokens.nextToken();
-                        boolean returnValue = false;
+                        sendResponse("OK\r\n");
+                    } else {
+                        sendResponse("ERROR Device Switch Failed\r\n");
+                        logger.error("Encoder device is unable to switch.");
+                    }
+                } else {
+                    sendResponse("ERROR Invalid Input\r\n");
+                    logger.error("Encoder device does not exist.");
+                }
+                //=============================================================================================
+                // GET_START (return time in milliseconds since start of recording)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("GET_START")) {
+
+                String vCaptureDevice = null;
+                if (lastRequest.indexOf(' ') != -1) {
+                    // V3 encoder
+                    vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.autoScanChannel(chanString);
-                        }
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    captureDevice.getRecordStart();
+                }
 
-                        sendResponse((returnValue ? "OK\r\n" : "NO_SIGNAL\r\n"));
+                //=============================================================================================
+                // GET_SIZE (return the size of a recording as the encoder sees it)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("GET_SIZE")) {
 
-                        //=============================================================================================
-                        // AUTOINFOSCAN
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOINFOSCAN ")) {
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring("AUTOINFOSCAN ".length()), "|");
+                String vCaptureDevice = null;
+                if (lastRequest.indexOf(' ') != -1) {
+                    // V3 encoder
+                    vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+                    captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                }
 
-                        String vCaptureDevice = tokens.nextToken();
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    sendResponse(captureDevice.getRecordedBytes() + "\r\n");
+                }
 
-                        String chanString = tokens.nextToken();
-                        String returnValue = "ERROR";
+                //=============================================================================================
+                // GET_FILE_SIZE (return the size of a file that might not currently be recording)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("GET_FILE_SIZE ")) {
+                String getFilename = lastRequest.substring("GET_FILE_SIZE ".length());
+
+                // Consumers keep this index up to date while they are recording, so this only
+                // checks the filesystem for files that are not being recorded and not cached.
+                sendTraceResponse(SageTVFileSizeIndex.getFileSize(getFilename) + "\r\n");
+
+                //=============================================================================================
+                // NOOP
+                //=============================================================================================
+            } else if (lastRequest.equals("NOOP")) {
+                sendTraceResponse("OK\r\n");
+
+                //=============================================================================================
+                // TUNE (tunes a channel)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("TUNE ")) {
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(5), "|");
+
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 2) {
+                    // V3 encoder
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+                }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.scanChannelInfo(chanString);
-                        }
+                String chanString = tokens.nextToken();
 
-                        sendResponse((returnValue + "\r\n"));
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    captureDevice.tuneToChannel(chanString);
+                }
 
-                        //=============================================================================================
-                        // PROPERTIES
-                        //=============================================================================================
-                    } else if (lastRequest.equals("PROPERTIES")) {
+                sendResponse("OK\r\n");
 
-                        ArrayList<String> properties = SageTVManager.getAllTunerProperties(this);
+                //=============================================================================================
+                // AUTOTUNE (checks if channel is tunable or not)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("AUTOTUNE ")) {
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
 
-                        out.write(properties.size() + "\r\n");
-                        for (String property : properties) {
-                            out.write(property + "\r\n");
-                        }
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 2) {
+                    // V3 encoder
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+                }
 
-                        out.flush();
+                String chanString = tokens.nextToken();
+                Boolean returnValue = false;
 
-                        logger.info("Sent PROPERTIES.");
-                    } else if (lastRequest.equals("QUIT")) {
-                        break;
-                    } else {
-                        logger.error("Unknown command: {}", lastRequest);
-                    }
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    returnValue = captureDevice.autoTuneChannel(chanString);
+                }
 
-                } catch (IOException e) {
-                    logger.error("The SageTV server has disconnected ungracefully => {}", e);
-                    break;
+                sendResponse((returnValue ? "OK\r\n" : "NO_SIGNAL\r\n"));
+
+                //=============================================================================================
+                // AUTOSCAN (checks if channel is tunable or not)
+                //=============================================================================================
+            } else if (lastRequest.startsWith("AUTOSCAN ")) {
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
+
+                String vCaptureDevice = null;
+                if (tokens.countTokens() == 2) {
+                    // V3 encoder
+                    vCaptureDevice = tokens.nextToken();
+                    captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
                 }
 
-                //out.flush();
-            }
+                String chanString = tokens.nextToken();
+                boolean returnValue = false;
 
-            if (logger.isTraceEnabled()) {
-                logger.trace("Closing connection to {} on port {}", socket.getInetAddress().getHostAddress(), socket.getPort());
-            }
-        } catch (Exception e) {
-            // This kind of exception appears to mostly happen when stopping the SageTV server.
-            logger.debug("An unhandled exception was created => ", e);
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    returnValue = captureDevice.autoScanChannel(chanString);
+                }
 
-            // Setting the interrupt or the JVM might crash when using native code.
-            Thread.currentThread().interrupt();
-        } finally {
+                sendResponse((returnValue ? "OK\r\n" : "NO_SIGNAL\r\n"));
 
-            try {
-                if (in != null) {
-                    in.close();
+                //=============================================================================================
+                // AUTOINFOSCAN
+                //=============================================================================================
+            } else if (lastRequest.startsWith("AUTOINFOSCAN ")) {
+                StringTokenizer tokens = new StringTokenizer(lastRequest.substring("AUTOINFOSCAN ".length()), "|");
+
+                String vCaptureDevice = tokens.nextToken();
+                if (tokens.countTokens() == 2) {
+                    // V3 encoder
+                    captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
                 }
-            } catch (Exception e) {
-                logger.trace("Failed to close BufferedReader => ", e);
-            }
 
-            try {
-                if (out != null) {
-                    out.close();
+                String chanString = tokens.nextToken();
+                String returnValue = "ERROR";
+
+                if (captureDevice != null) {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    returnValue = captureDevice.scanChannelInfo(chanString);
                 }
-            } catch (Exception e) {
-                logger.trace("Failed to close OutputStreamWriter => ", e);
-            }
 
-            try {
-                if (socket != null && socket.isConnected()) {
-                    socket.close();
+                sendResponse((returnValue + "\r\n"));
+
+                //=============================================================================================
+                // PROPERTIES
+                //=============================================================================================
+            } else if (lastRequest.equals("PROPERTIES")) {
+
+                ArrayList<String> properties = SageTVManager.getAllTunerProperties(this);
+
+                out.write(properties.size() + "\r\n");
+                for (String property : properties) {
+                    out.write(property + "\r\n");
                 }
-            } catch (Exception e) {
-                logger.trace("Failed to close socket => ", e);
+
+                out.flush();
+
+                logger.info("Sent PROPERTIES.");
+            } else if (lastRequest.equals("QUIT")) {
+                return logger.exit(false);
+            } else {
+                logger.error("Unknown command: {}", lastRequest);
             }
+
+        } catch (IOException e) {
+            logger.error("The SageTV server has disconnected ungracefully => {}", e);
+            return logger.exit(false);
         }
 
-        logger.exit();
+        return logger.exit(true);
     }
 
     private void setThreadName(String virtualDevice, String poolDevice) {
@@ -636,6 +689,8 @@ public class SageTVRequestHandler implements Runnable {
             return;
         }
 
+        requestEncoderName = poolDevice != null ? poolDevice : virtualDevice;
+
         if (SageTVPoolManager.isUsePools()) {
             if (Util.isNullOrEmpty(virtualDevice)) {
                 virtualDevice = SageTVPoolManager.getPoolCaptureDeviceToVCaptureDevice(poolDevice);
@@ -692,6 +747,7 @@ public class SageTVRequestHandler implements Runnable {
      */
     private void unlockEncoder(CaptureDevice captureDevice) {
         captureDevice.setLocked(false);
+        SageTVPoolManager.poolCaptureDeviceUnlocked(captureDevice.getEncoderName());
     }
 
     /**
@@ -756,6 +812,10 @@ public class SageTVRequestHandler implements Runnable {
     }
 
     private CaptureDevice getAndLockCaptureDevice(String vCaptureDevice, boolean wait) {
+        return getAndLockCaptureDevice(vCaptureDevice, null, wait);
+    }
+
+    private CaptureDevice getAndLockCaptureDevice(String vCaptureDevice, String channel, boolean wait) {
 
         if (!SageTVPoolManager.isUsePools()) {
             return SageTVManager.getSageTVCaptureDevice(vCaptureDevice, wait);
@@ -764,7 +824,7 @@ public class SageTVRequestHandler implements Runnable {
         String pCaptureDevice = SageTVPoolManager.getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice);
 
         if (pCaptureDevice == null) {
-            pCaptureDevice = SageTVPoolManager.getAndLockBestCaptureDevice(vCaptureDevice);
+            pCaptureDevice = SageTVPoolManager.getAndLockBestCaptureDevice(vCaptureDevice, channel);
         }
 
         if (pCaptureDevice == null) {
@@ -774,7 +834,7 @@ public class SageTVRequestHandler implements Runnable {
                 logger.debug("Interrupted while waiting for devices to be detected => ", e);
             }
 
-            pCaptureDevice = SageTVPoolManager.getAndLockBestCaptureDevice(vCaptureDevice);
+            pCaptureDevice = SageTVPoolManager.getAndLockBestCaptureDevice(vCaptureDevice, channel);
         }
 
         if (pCaptureDevice != null) {
@@ -17,13 +17,16 @@
 package opendct.sagetv;
 
 import opendct.capture.CaptureDevice;
+import opendct.config.Config;
 import opendct.config.ExitCode;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 public class SageTVSocketServer implements Runnable {
     private final Logger logger = LogManager.getLogger(SageTVSocketServer.class);
@@ -34,6 +37,11 @@ public class SageTVSocketServer implements Runnable {
 
     private ServerSocket serverSocket = null;
 
+    // When enabled, all ports and connections are serviced by NIOSageTVSelector instead of a
+    // thread per port and a thread per connection.
+    private final boolean nioSocketServer = Config.getBoolean("sagetv.nio_socket_server", true);
+    private ServerSocketChannel serverSocketChannel = null;
+
     // This is to support V1.0 capture devices. This will not always be the actual capture device
     // SageTV will request on this port.
     private CaptureDevice captureDevice = null;
@@ -69,19 +77,38 @@ public class SageTVSocketServer implements Runnable {
                 return logger.exit(false);
             }
 
-            socketServerThread = new Thread(this);
-
-            logger.info("Opening ServerSocket on port {}...", listenPort);
-            try {
-                serverSocket = new ServerSocket(listenPort);
-            } catch (IOException e) {
-                logger.error("Unable to open SocketServer on port {} => {}", listenPort, e);
-                error = true;
-            }
+            if (nioSocketServer) {
+                logger.info("Opening ServerSocketChannel on port {}...", listenPort);
+                try {
+                    serverSocketChannel = ServerSocketChannel.open();
+                    serverSocketChannel.socket().bind(new InetSocketAddress(listenPort));
+                    NIOSageTVSelector.registerServer(serverSocketChannel, this);
+                    listening = true;
+                    logger.info("Started listening on port {}...", listenPort);
+                } catch (IOException e) {
+                    logger.error("Unable to open ServerSocketChannel on port {} => {}", listenPort, e);
+                    error = true;
+
+                    if (serverSocketChannel != null) {
+                        NIOSageTVSelector.unregisterServer(serverSocketChannel);
+                        serverSocketChannel = null;
+                    }
+                }
+            } else {
+                socketServerThread = new Thread(this);
+
+                logger.info("Opening ServerSocket on port {}...", listenPort);
+                try {
+                    serverSocket = new ServerSocket(listenPort);
+                } catch (IOException e) {
+                    logger.error("Unable to open SocketServer on port {} => {}", listenPort, e);
+                    error = true;
+                }
 
-            if (!error) {
-                socketServerThread.setName("SageTVSocketServer-" + socketServerThread.getId() + ":" + listenPort);
-                socketServerThread.start();
+                if (!error) {
+                    socketServerThread.setName("SageTVSocketServer-" + socketServerThread.getId() + ":" + listenPort);
+                    socketServerThread.start();
+                }
             }
         }
 
@@ -110,6 +137,14 @@ public class SageTVSocketServer implements Runnable {
             }
             listening = false;
 
+            if (serverSocketChannel != null) {
+                NIOSageTVSelector.unregisterServer(serverSocketChannel);
+                serverSocketChannel = null;
+                logger.info("Stopped listening on port {}...", listenPort);
+                logger.exit();
+                return;
+            }
+
             try {
                 serverSocket.close();
             } catch (IOException e) {
@@ -153,6 +188,15 @@ public class SageTVSocketServer implements Runnable {
         return listenPort;
     }
 
+    /**
+     * Get the capture device used to support V1.0 capture devices on this port.
+     *
+     * @return The capture device or <i>null</i> if this port is not for a V1.0 capture device.
+     */
+    CaptureDevice getCaptureDevice() {
+        return captureDevice;
+    }
+
     public void run() {
         logger.entry();
         logger.info("Started listening on port {}...", listenPort);
@@ -25,30 +25,44 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class HDHomeRunControl {
-    private static final Logger logger = LogManager.getLogger(HDHomeRunManager.class);
+    private static final Logger logger = LogManager.getLogger(HDHomeRunControl.class);
 
     public final static int HDHOMERUN_CONTROL_CONNECT_TIMEOUT = 2500;
     public final static int HDHOMERUN_CONTROL_SEND_TIMEOUT = 2500;
     public final static int HDHOMERUN_CONTROL_RECV_TIMEOUT = 2500;
     public final static int HDHOMERUN_CONTROL_UPGRADE_TIMEOUT = 30000;
 
-    private HDHomeRunPacket txPacket;
-    private HDHomeRunPacket rxPacket;
-    private SocketChannel socket;
-    private volatile int returnedBytes = 0;
+    // All control connections are read by one thread that only runs when a reply arrives.
+    private static final Object selectorLock = new Object();
+    private static final ConcurrentLinkedQueue<Connection> registerQueue =
+            new ConcurrentLinkedQueue<Connection>();
+    private static Selector selector;
+
+    private volatile Connection connection;
 
     /**
      * Create a new HDHomeRun controller.
      * <p/>
      * Controllers are thread-safe and can be shared. It is recommended to only share between tuners
      * on the same device so we don't need to keep changing IP addresses.
+     * <p/>
+     * The controller keeps one TCP connection open to the device. Requests from different threads
+     * are written to the connection without waiting for the previous reply, and the replies are
+     * matched to the requests in the order they arrive since the device always replies in the
+     * order the requests were received.
      */
     public HDHomeRunControl() {
-        txPacket = new HDHomeRunPacket();
-        rxPacket = new HDHomeRunPacket();
     }
 
     /**
@@ -60,7 +74,7 @@ public class HDHomeRunControl {
      * @throws IOException     Thrown if communication with the device is not possible.
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
-    public synchronized String getVariable(InetAddress address, String key) throws GetSetException, IOException {
+    public String getVariable(InetAddress address, String key) throws GetSetException, IOException {
         return setVariable(address, key, null, 0);
     }
 
@@ -75,7 +89,7 @@ public class HDHomeRunControl {
      * @throws IOException     Thrown if communication with the device is not possible.
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
-    public synchronized String setVariable(InetAddress address, String key, String value) throws GetSetException, IOException {
+    public String setVariable(InetAddress address, String key, String value) throws GetSetException, IOException {
         return setVariable(address, key, value, 0);
     }
 
@@ -91,9 +105,12 @@ public class HDHomeRunControl {
      *                         at this time.
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
-    public synchronized String setVariable(InetAddress address, String key, String value, int lockkey) throws GetSetException, IOException {
+    public String setVariable(InetAddress address, String key, String value, int lockkey) throws GetSetException, IOException {
         logger.entry(address, key, value, lockkey);
 
+        HDHomeRunPacket txPacket = new HDHomeRunPacket(
+                ByteBuffer.allocate(HDHomeRunPacket.HDHOMERUN_MAX_PACKET_SIZE));
+
         txPacket.startPacket(HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_REQ);
         txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_NAME, key);
 
@@ -107,54 +124,47 @@ public class HDHomeRunControl {
 
         txPacket.endPacket();
 
-        connectSocket(new InetSocketAddress(address,
-                HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
-
-        try {
-            while (txPacket.BUFFER.hasRemaining()) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("key: '{}' value: '{}' lockKey: '{}' remaining: {}",
-                            key, value, lockkey, txPacket.BUFFER.remaining());
-                }
-
-                socket.write(txPacket.BUFFER);
-            }
-        } catch (IOException e) {
-            closeSocket();
-            throw e;
+        if (logger.isDebugEnabled()) {
+            logger.debug("key: '{}' value: '{}' lockKey: '{}' length: {}",
+                    key, value, lockkey, txPacket.BUFFER.remaining());
         }
 
-        rxPacket.BUFFER.clear();
-        returnedBytes = 0;
-        Thread receiveThread = new Thread(new ReceiveThread());
-        receiveThread.setName("HDHomeRunControlRecieve-" + receiveThread.getId());
-        receiveThread.start();
+        Connection currentConnection = connectSocket(new InetSocketAddress(address,
+                HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
 
-        try {
-            receiveThread.join(HDHOMERUN_CONTROL_RECV_TIMEOUT);
+        Request request = currentConnection.send(txPacket.BUFFER);
 
-            //Stop receiving.
-            receiveThread.interrupt();
+        try {
+            if (!request.LATCH.await(HDHOMERUN_CONTROL_RECV_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                // Any reply that arrives later would be matched to the wrong request.
+                currentConnection.close(new IOException("A previous request timed out."));
 
-            // Wait for the thread to actually stop.
-            receiveThread.join();
+                logger.error("HDHomeRun device did not reply within {}ms for key = '{}', value ='{}' and lockkey='{}'.", HDHOMERUN_CONTROL_RECV_TIMEOUT, key, value, lockkey);
+                return logger.exit(null);
+            }
         } catch (InterruptedException e) {
-            receiveThread.interrupt();
-            closeSocket();
+            currentConnection.close(new IOException("A previous request was interrupted."));
             throw new IOException(e.getMessage());
         }
 
-        rxPacket.BUFFER.flip();
+        if (request.error != null) {
+            throw request.error;
+        }
+
+        HDHomeRunPacket rxPacket = new HDHomeRunPacket(ByteBuffer.wrap(request.reply));
+
         if (rxPacket.BUFFER.limit() > 0) {
             if (rxPacket.getPacketType() == HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_RPY) {
                 int packetLength = rxPacket.getPacketLength();
                 rxPacket.BUFFER.limit(packetLength + 4);
 
-                while (rxPacket.BUFFER.remaining() > 4) {
+                // The limit already excludes the CRC, so only a tag and a length need to remain.
+                while (rxPacket.BUFFER.remaining() >= 2) {
                     HDHomeRunPacketTag tag = rxPacket.getTag();
                     int length = rxPacket.getVariableLength();
 
-                    if (rxPacket.BUFFER.position() + length > rxPacket.BUFFER.limit()) {
+                    // A two byte length can leave less data than the length says is there.
+                    if (length > rxPacket.BUFFER.remaining()) {
                         if (logger.isDebugEnabled()) {
                             String returnValue = rxPacket.getTLVString(rxPacket.BUFFER.limit() - rxPacket.BUFFER.position());
                             logger.debug("HDHomerun device returned a length ({}) larger than the data returned. UTF-8: '{}'", length, returnValue);
@@ -198,59 +208,278 @@ public class HDHomeRunControl {
         return logger.exit(null);
     }
 
-
-    private void connectSocket(SocketAddress address) throws IOException {
+    private synchronized Connection connectSocket(SocketAddress address) throws IOException {
         logger.entry(address);
 
+        Connection currentConnection = connection;
+
+        if (currentConnection != null) {
+            if (currentConnection.isOpen() && currentConnection.ADDRESS.equals(address)) {
+                return logger.exit(currentConnection);
+            }
+
+            currentConnection.close(new IOException("The connection was replaced."));
+        }
+
+        SocketChannel socket = SocketChannel.open();
+
         try {
-            if (socket != null && socket.isConnected() && socket.getRemoteAddress().equals(address)) {
-                return;
+            socket.socket().setTcpNoDelay(true);
+            socket.socket().connect(address, HDHOMERUN_CONTROL_CONNECT_TIMEOUT);
+            socket.configureBlocking(false);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e0) {
+                logger.debug("connectSocket created an unexpected exception => ", e0);
             }
 
-            closeSocket();
-        } catch (Exception e) {
-            logger.debug("connectSocket created an unexpected exception => ", e);
+            throw e;
         }
 
-        socket = SocketChannel.open(address);
+        currentConnection = new Connection(address, socket);
+        register(currentConnection);
+        connection = currentConnection;
 
-        logger.exit();
+        return logger.exit(currentConnection);
     }
 
     public synchronized void closeSocket() {
         logger.entry();
 
-        if (socket != null) {
+        if (connection != null) {
+            connection.close(new IOException("The connection was closed."));
+            connection = null;
+        }
+
+        logger.exit();
+    }
+
+    private static void register(Connection connection) throws IOException {
+        synchronized (selectorLock) {
+            if (selector == null) {
+                selector = Selector.open();
+
+                Thread selectorThread = new Thread(new SelectorThread(selector));
+                selectorThread.setName("HDHomeRunControl-" + selectorThread.getId());
+                selectorThread.setDaemon(true);
+                selectorThread.start();
+            }
+
+            registerQueue.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A get/set request waiting for its reply.
+     */
+    private static class Request {
+        private final CountDownLatch LATCH = new CountDownLatch(1);
+        private volatile byte reply[];
+        private volatile IOException error;
+
+        private void complete(byte reply[]) {
+            this.reply = reply;
+            LATCH.countDown();
+        }
+
+        private void fail(IOException error) {
+            this.error = error;
+            LATCH.countDown();
+        }
+    }
+
+    /**
+     * One TCP control connection to a device.
+     */
+    private static class Connection {
+        private final SocketAddress ADDRESS;
+        private final SocketChannel SOCKET;
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+        private ByteBuffer rxBuffer = ByteBuffer.allocate(3074);
+        private volatile boolean closed = false;
+
+        private Connection(SocketAddress address, SocketChannel socket) {
+            ADDRESS = address;
+            SOCKET = socket;
+        }
+
+        private boolean isOpen() {
+            return !closed && SOCKET.isOpen();
+        }
+
+        /**
+         * Write a request and queue it for the next reply.
+         * <p/>
+         * The request is queued and written while holding the same lock so the order of the
+         * queue is always the order the requests were written to the device.
+         *
+         * @param packet The complete request packet.
+         * @return The queued request.
+         * @throws IOException Thrown if the request could not be written.
+         */
+        private Request send(ByteBuffer packet) throws IOException {
+            Request request = new Request();
+
+            sendLock.lock();
             try {
-                socket.close();
-                socket.socket().close();
-            } catch (Exception e) {
-                logger.debug("closeSocket created an unexpected exception => ", e);
+                if (closed) {
+                    throw new IOException("The connection is closed.");
+                }
+
+                pending.add(request);
+
+                long timeout = System.currentTimeMillis() + HDHOMERUN_CONTROL_SEND_TIMEOUT;
+
+                while (packet.hasRemaining()) {
+                    if (SOCKET.write(packet) == 0) {
+                        if (System.currentTimeMillis() > timeout) {
+                            throw new IOException("The request could not be sent within " +
+                                    HDHOMERUN_CONTROL_SEND_TIMEOUT + "ms.");
+                        }
+
+                        // The send buffer is full. This should almost never happen with packets
+                        // this small.
+                        Thread.sleep(1);
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            } catch (InterruptedException e) {
+                IOException ioException = new IOException(e.getMessage());
+                close(ioException);
+                throw ioException;
+            } finally {
+                sendLock.unlock();
             }
+
+            return request;
         }
 
-        logger.exit();
+        /**
+         * Take complete replies out of the receive buffer and give them to the waiting requests.
+         * <p/>
+         * This is only called by the selector thread.
+         */
+        private void read() throws IOException {
+            if (!rxBuffer.hasRemaining()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(rxBuffer.capacity() * 2);
+                rxBuffer.flip();
+                newBuffer.put(rxBuffer);
+                rxBuffer = newBuffer;
+            }
+
+            if (SOCKET.read(rxBuffer) == -1) {
+                throw new IOException("The device closed the connection.");
+            }
+
+            rxBuffer.flip();
+
+            // Each packet is a 2 byte type, 2 byte length, the payload and a 4 byte CRC.
+            while (rxBuffer.remaining() >= 4) {
+                int packetLength = 4 + (rxBuffer.getShort(rxBuffer.position() + 2) & 0xffff) + 4;
+
+                if (rxBuffer.remaining() < packetLength) {
+                    break;
+                }
+
+                byte reply[] = new byte[packetLength];
+                rxBuffer.get(reply);
+
+                Request request = pending.poll();
+
+                if (request == null) {
+                    logger.warn("HDHomeRun device at {} returned a reply that was not requested.", ADDRESS);
+                    continue;
+                }
+
+                request.complete(reply);
+            }
+
+            rxBuffer.compact();
+        }
+
+        /**
+         * Close the connection and fail every request still waiting for a reply.
+         * <p/>
+         * This holds the send lock so a request can't be queued after the queue is drained and
+         * then never be completed.
+         *
+         * @param reason The error given to the waiting requests.
+         */
+        private void close(IOException reason) {
+            sendLock.lock();
+            try {
+                closed = true;
+
+                try {
+                    SOCKET.close();
+                } catch (Exception e) {
+                    logger.debug("closeSocket created an unexpected exception => ", e);
+                }
+
+                Request request;
+                while ((request = pending.poll()) != null) {
+                    request.fail(reason);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
     }
 
-    private class ReceiveThread implements Runnable {
+    private static class SelectorThread implements Runnable {
+        private final Selector selector;
+
+        private SelectorThread(Selector selector) {
+            this.selector = selector;
+        }
 
         public void run() {
             logger.entry();
 
-            if (socket != null) {
+            while (true) {
                 try {
-                    int returnBytes = 0;
-                    while (returnBytes == 0) {
-                        returnBytes = socket.read(rxPacket.BUFFER);
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("HDHomeRun control selector created an unexpected exception => ", e);
+                    continue;
+                }
+
+                Connection connection;
+                while ((connection = registerQueue.poll()) != null) {
+                    try {
+                        connection.SOCKET.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (Exception e) {
+                        connection.close(new IOException(e.getMessage()));
                     }
+                }
 
-                    returnedBytes += returnBytes;
-                } catch (IOException e) {
-                    logger.debug("ReceiveThread was unable to receive => ", e);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (Exception e) {
+                        logger.debug("HDHomeRun control connection to {} is no longer usable => {}",
+                                connection.ADDRESS, e.getMessage());
+
+                        key.cancel();
+                        connection.close(e instanceof IOException ?
+                                (IOException) e : new IOException(e.getMessage()));
+                    }
                 }
             }
-
-            logger.exit();
         }
     }
 }
@@ -25,7 +25,8 @@ import java.net.URL;
 public class HDHomeRunDevice {
     public final HDHomeRunControl CONTROL;
 
-    private InetAddress ipAddress;
+    private volatile InetAddress ipAddress;
+    private volatile long lastSeen;
     private int deviceType;
     private int deviceId;
     private int tunerCount;
@@ -76,6 +77,19 @@ public class HDHomeRunDevice {
         this.ipAddress = ipAddress;
     }
 
+    /**
+     * Get the last time this device replied to discovery.
+     *
+     * @return The time in milliseconds or 0 if the device was not discovered.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    protected void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
     public int getDeviceType() {
         return deviceType;
     }
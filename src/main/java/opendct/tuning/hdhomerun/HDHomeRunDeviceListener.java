@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import java.net.InetAddress;
+
+public interface HDHomeRunDeviceListener {
+    /**
+     * This method will be executed when a device replies to discovery for the first time or when
+     * a device that was lost replies again.
+     * <p/>
+     * A device that was lost is the same instance that was originally added.
+     *
+     * @param device The device.
+     */
+    public void deviceAdded(HDHomeRunDevice device);
+
+    /**
+     * This method will be executed when a device replies to discovery from a different IP
+     * address.
+     * <p/>
+     * The device already has the new address when this is called.
+     *
+     * @param device The device.
+     * @param oldAddress The address the device had before.
+     */
+    public void deviceAddressChanged(HDHomeRunDevice device, InetAddress oldAddress);
+
+    /**
+     * This method will be executed when a device has not replied to discovery for longer than
+     * the configured timeout.
+     *
+     * @param device The device.
+     */
+    public void deviceLost(HDHomeRunDevice device);
+}
@@ -16,6 +16,7 @@
 
 package opendct.tuning.hdhomerun;
 
+import opendct.config.Config;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketTag;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketType;
 import org.apache.logging.log4j.LogManager;
@@ -25,11 +26,30 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
-import java.util.HashSet;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Continuously discovers HDHomeRun devices and tracks if they are still available.
+ * <p/>
+ * Discovery requests are broadcast often right after something changes and then less often as
+ * long as every known device keeps replying. When a device misses a reply, requests are broadcast
+ * often again so a device that is really gone is noticed quickly. Listeners are told when a device
+ * is added, changes its IP address or is lost.
+ */
 public class HDHomeRunDiscovery implements Runnable {
     private static final Logger logger = LogManager.getLogger(HDHomeRunDiscovery.class);
 
+    private static final long minInterval =
+            Math.max(Config.getLong("hdhr.discovery.min_interval_ms", 250), 50);
+
+    private static final long maxInterval =
+            Math.max(Config.getLong("hdhr.discovery.max_interval_ms", 5000), minInterval);
+
+    // A device that hasn't replied for this long is considered lost.
+    private static final long lostTimeout =
+            Math.max(Config.getLong("hdhr.discovery.lost_timeout_ms", 15000), maxInterval);
+
     public final InetAddress BROADCAST_ADDRESS;
     public final int BROADCAST_PORT;
     public final InetSocketAddress BROADCAST_SOCKET;
@@ -40,8 +60,17 @@ public class HDHomeRunDiscovery implements Runnable {
     HDHomeRunPacket txPacket;
     HDHomeRunPacket rxPacket;
 
-    private HashSet<HDHomeRunDevice> devices;
-    private final Object devicesLock = new Object();
+    // Devices are never removed from this map, so a lost device that comes back is the same
+    // instance.
+    private final ConcurrentHashMap<Integer, HDHomeRunDevice> devices =
+            new ConcurrentHashMap<Integer, HDHomeRunDevice>();
+    private final ConcurrentHashMap<Integer, HDHomeRunDevice> lostDevices =
+            new ConcurrentHashMap<Integer, HDHomeRunDevice>();
+    private final CopyOnWriteArrayList<HDHomeRunDeviceListener> listeners =
+            new CopyOnWriteArrayList<HDHomeRunDeviceListener>();
+
+    // This is set when a device is added or changes so the next broadcast is sent right away.
+    private volatile boolean changed = false;
 
     public HDHomeRunDiscovery(InetAddress broadcastAddress) {
         this.BROADCAST_ADDRESS = broadcastAddress;
@@ -49,7 +78,6 @@ public class HDHomeRunDiscovery implements Runnable {
         BROADCAST_SOCKET = new InetSocketAddress(BROADCAST_ADDRESS, BROADCAST_PORT);
         txPacket = new HDHomeRunPacket();
         rxPacket = new HDHomeRunPacket();
-        devices = new HashSet<HDHomeRunDevice>();
     }
 
     public HDHomeRunDiscovery(InetAddress broadcastAddress, int broadcastPort) {
@@ -58,48 +86,153 @@ public class HDHomeRunDiscovery implements Runnable {
         BROADCAST_SOCKET = new InetSocketAddress(BROADCAST_ADDRESS, BROADCAST_PORT);
         txPacket = new HDHomeRunPacket();
         rxPacket = new HDHomeRunPacket();
-        devices = new HashSet<HDHomeRunDevice>();
     }
 
-    private HashSet<HDHomeRunDevice> getAndClearDevices() {
-        HashSet<HDHomeRunDevice> returnDevices = new HashSet<HDHomeRunDevice>();
+    public void addListener(HDHomeRunDeviceListener listener) {
+        listeners.addIfAbsent(listener);
+    }
 
-        synchronized (devicesLock) {
-            HashSet<HDHomeRunDevice> oldDevices = devices;
-            devices = returnDevices;
-            returnDevices = oldDevices;
-        }
+    public void removeListener(HDHomeRunDeviceListener listener) {
+        listeners.remove(listener);
+    }
 
-        return returnDevices;
+    /**
+     * Get a device that has replied to discovery.
+     *
+     * @param deviceId The ID of the device.
+     * @return The device or <i>null</i> if it has never been discovered.
+     */
+    public HDHomeRunDevice getDevice(int deviceId) {
+        return devices.get(deviceId);
     }
 
-    private void addDevice(HDHomeRunDevice device) {
-        synchronized (devicesLock) {
-            devices.add(device);
-        }
+    /**
+     * Check if a device has not replied to discovery for too long.
+     *
+     * @param deviceId The ID of the device.
+     * @return <i>true</i> if the device is lost.
+     */
+    public boolean isLost(int deviceId) {
+        return lostDevices.containsKey(deviceId);
     }
 
-    public void start() throws IOException {
-        if (sendThread != null && !sendThread.isAlive()) {
-            logger.warn("Already listening for HDHomeRun devices on port {}", BROADCAST_PORT);
+    // Called by the receive thread for every parsed discovery reply.
+    private void deviceSeen(HDHomeRunDevice seenDevice) {
+        if (seenDevice.getDeviceId() == -1) {
+            logger.debug("Ignoring a discovery reply from {} without a valid device ID.", seenDevice.getIpAddress());
             return;
         }
 
-        if (receiveThread != null && receiveThread.isAlive()) {
-            receiveThread.interrupt();
-            try {
-                receiveThread.join();
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted while waiting for receive thread to stop => ", e);
-                return;
+        long now = System.currentTimeMillis();
+        HDHomeRunDevice device = devices.putIfAbsent(seenDevice.getDeviceId(), seenDevice);
+
+        if (device == null) {
+            seenDevice.setLastSeen(now);
+            changed = true;
+
+            logger.info("Discovered the HDHomeRun device {} at {}.",
+                    Integer.toHexString(seenDevice.getDeviceId()).toUpperCase(), seenDevice.getIpAddress());
+
+            for (HDHomeRunDeviceListener listener : listeners) {
+                try {
+                    listener.deviceAdded(seenDevice);
+                } catch (Exception e) {
+                    logger.error("Device listener created an unexpected exception => ", e);
+                }
+            }
+
+            return;
+        }
+
+        device.setLastSeen(now);
+        InetAddress oldAddress = device.getIpAddress();
+
+        if (!oldAddress.equals(seenDevice.getIpAddress())) {
+            device.setIpAddress(seenDevice.getIpAddress());
+            changed = true;
+
+            logger.info("The HDHomeRun device {} changed its address from {} to {}.",
+                    Integer.toHexString(device.getDeviceId()).toUpperCase(), oldAddress, device.getIpAddress());
+
+            for (HDHomeRunDeviceListener listener : listeners) {
+                try {
+                    listener.deviceAddressChanged(device, oldAddress);
+                } catch (Exception e) {
+                    logger.error("Device listener created an unexpected exception => ", e);
+                }
+            }
+        }
+
+        if (lostDevices.remove(device.getDeviceId()) != null) {
+            changed = true;
+
+            logger.info("The HDHomeRun device {} is available again at {}.",
+                    Integer.toHexString(device.getDeviceId()).toUpperCase(), device.getIpAddress());
+
+            for (HDHomeRunDeviceListener listener : listeners) {
+                try {
+                    listener.deviceAdded(device);
+                } catch (Exception e) {
+                    logger.error("Device listener created an unexpected exception => ", e);
+                }
             }
         }
+    }
+
+    /**
+     * Count the devices that did not reply to the last broadcast and tell listeners about devices
+     * that have not replied for too long.
+     *
+     * @param lastBroadcast The time the last broadcast was sent.
+     * @return The number of devices that are not lost and did not reply to the last broadcast.
+     */
+    private int checkDevices(long lastBroadcast) {
+        long now = System.currentTimeMillis();
+        int missing = 0;
+
+        for (HDHomeRunDevice device : devices.values()) {
+            if (lostDevices.containsKey(device.getDeviceId()) || device.getLastSeen() >= lastBroadcast) {
+                continue;
+            }
+
+            if (now - device.getLastSeen() < lostTimeout) {
+                missing += 1;
+                continue;
+            }
+
+            if (lostDevices.putIfAbsent(device.getDeviceId(), device) != null) {
+                continue;
+            }
+
+            logger.warn("The HDHomeRun device {} at {} has not replied for {}ms.",
+                    Integer.toHexString(device.getDeviceId()).toUpperCase(), device.getIpAddress(),
+                    now - device.getLastSeen());
+
+            for (HDHomeRunDeviceListener listener : listeners) {
+                try {
+                    listener.deviceLost(device);
+                } catch (Exception e) {
+                    logger.error("Device listener created an unexpected exception => ", e);
+                }
+            }
+        }
+
+        return missing;
+    }
+
+    public synchronized void start() throws IOException {
+        if (sendThread != null && sendThread.isAlive()) {
+            logger.warn("Already listening for HDHomeRun devices on port {}", BROADCAST_PORT);
+            return;
+        }
 
         sendThread = new Thread(this);
         sendThread.setName("HDHomeRunDiscoverySend-" + sendThread.getId());
 
         datagramChannel = DatagramChannel.open();
-        datagramChannel.socket().bind(new InetSocketAddress(BROADCAST_PORT));
+        // Devices reply to the port the request came from, so any available port will work and
+        // this won't conflict with anything else on this computer using the discovery port.
+        datagramChannel.socket().bind(new InetSocketAddress(0));
         datagramChannel.socket().setBroadcast(true);
         datagramChannel.socket().setReceiveBufferSize(10000);
 
@@ -110,13 +243,17 @@ public class HDHomeRunDiscovery implements Runnable {
         receiveThread.start();
     }
 
-    public void stop() throws InterruptedException {
-        sendThread.interrupt();
-        receiveThread.join();
-    }
+    public synchronized void stop() throws InterruptedException {
+        if (sendThread == null) {
+            return;
+        }
 
-    public void waitForDiscovery() throws InterruptedException {
+        sendThread.interrupt();
         sendThread.join();
+
+        // Interrupting a blocking receive closes the channel, which stops the receive thread.
+        receiveThread.interrupt();
+        receiveThread.join();
     }
 
     public void run() {
@@ -134,52 +271,58 @@ public class HDHomeRunDiscovery implements Runnable {
 
         txPacket.endPacket();
 
-        int retry = 3;
         txPacket.BUFFER.mark();
 
-        while (!Thread.currentThread().isInterrupted() && retry-- > 0) {
+        long interval = minInterval;
+        long lastBroadcast = 0;
+        int lastMissing = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            if (lastBroadcast > 0) {
+                int missing = checkDevices(lastBroadcast);
+
+                if (changed || missing > lastMissing) {
+                    // Something changed, so check again soon.
+                    changed = false;
+                    interval = minInterval;
+                } else {
+                    interval = Math.min(interval * 2, maxInterval);
+                }
+
+                lastMissing = missing;
+            }
+
+            lastBroadcast = System.currentTimeMillis();
 
-            boolean failed = false;
             while (txPacket.BUFFER.hasRemaining()) {
                 try {
-                    logger.info("Sending HDHomeRun discovery packet length {}...", txPacket.BUFFER.limit());
+                    logger.trace("Sending HDHomeRun discovery packet length {}...", txPacket.BUFFER.limit());
                     datagramChannel.send(txPacket.BUFFER, BROADCAST_SOCKET);
+                } catch (ClosedChannelException e) {
+                    logger.debug("Channel was closed while sending HDHomeRun discovery packets to {} => ", BROADCAST_SOCKET, e);
+                    Thread.currentThread().interrupt();
+                    break;
                 } catch (IOException e) {
                     logger.error("Error while sending HDHomeRun discovery packets to {} => ", BROADCAST_SOCKET, e);
-                    failed = true;
                     break;
                 }
             }
 
             txPacket.BUFFER.reset();
 
-            if (failed) {
-                continue;
-            }
-
             try {
-                Thread.sleep(200);
+                Thread.sleep(interval);
             } catch (InterruptedException e) {
                 logger.debug("Interrupted while waiting for packets to be received => ", e);
                 break;
             }
-
         }
 
-        if (datagramChannel != null && datagramChannel.isConnected()) {
-            try {
-                datagramChannel.close();
-                datagramChannel.socket().close();
-            } catch (IOException e0) {
-                logger.debug("Created an exception while closing the datagram channel => {}", e0);
-            }
-        }
-
-        if (receiveThread != null && receiveThread.isAlive()) {
-            receiveThread.interrupt();
+        try {
+            datagramChannel.close();
+        } catch (IOException e0) {
+            logger.debug("Created an exception while closing the datagram channel => {}", e0);
         }
-
-        HDHomeRunManager.addDevices(getAndClearDevices());
     }
 
     private class ReceiveThread implements Runnable {
@@ -187,7 +330,7 @@ public class HDHomeRunDiscovery implements Runnable {
         public void run() {
             final char recvBase64EncodeTable[] = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
-            while (sendThread.isAlive()) {
+            while (!Thread.currentThread().isInterrupted()) {
                 rxPacket.BUFFER.clear();
 
                 InetSocketAddress socketAddress;
@@ -209,14 +352,24 @@ public class HDHomeRunDiscovery implements Runnable {
 
                         HDHomeRunDevice device = new HDHomeRunDevice(socketAddress.getAddress());
 
-                        while (rxPacket.BUFFER.remaining() > 4) {
+                        // The limit already excludes the CRC, so only a tag and a length need to remain.
+                        while (rxPacket.BUFFER.remaining() >= 2) {
                             HDHomeRunPacketTag tag = rxPacket.getTag();
                             int length = rxPacket.getVariableLength();
 
+                            // A two byte length can leave less data than the length says is there.
+                            if (length > rxPacket.BUFFER.remaining()) {
+                                logger.debug("HDHomerun device returned a length ({}) larger than the data returned.", length);
+                                break;
+                            }
+
+                            // Values with an unexpected length are skipped without being read.
+                            int nextPosition = rxPacket.BUFFER.position() + length;
+
                             if (tag == null) {
                                 // Silicondust says to just ignore these.
                                 logger.debug("HDHomerun device returned an unknown tag with the length {}", length);
-                                rxPacket.BUFFER.position(rxPacket.BUFFER.position() + length);
+                                rxPacket.BUFFER.position(nextPosition);
                                 continue;
                             }
 
@@ -284,9 +437,10 @@ public class HDHomeRunDiscovery implements Runnable {
                                 default:
                                     // Silicondust says to just ignore these.
                                     logger.debug("HDHomerun device returned an unexpected tag {} with the length {}", tag, length);
-                                    rxPacket.BUFFER.position(rxPacket.BUFFER.position() + length);
                                     break;
                             }
+
+                            rxPacket.BUFFER.position(nextPosition);
                         }
 
                         // Silicondust fixes for old firmware.
@@ -308,8 +462,8 @@ public class HDHomeRunDiscovery implements Runnable {
                         }
 
 
-                        addDevice(device);
-                        logger.debug("Parsed discovery packet: {}", device);
+                        logger.trace("Parsed discovery packet: {}", device);
+                        deviceSeen(device);
                     }
                 }
             }
@@ -16,37 +16,216 @@
 
 package opendct.tuning.hdhomerun;
 
+import opendct.capture.CaptureDeviceIgnoredException;
+import opendct.capture.HDHomeRunCaptureDevice;
+import opendct.config.Config;
+import opendct.power.NetworkPowerEventManger;
 import opendct.power.PowerEventListener;
+import opendct.sagetv.SageTVManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class HDHomeRunManager implements PowerEventListener {
     private static final Logger logger = LogManager.getLogger(HDHomeRunManager.class);
     public static PowerEventListener POWER_EVENT_LISTENER = new HDHomeRunManager();
 
-    private static HDHomeRunDiscovery discovery = new HDHomeRunDiscovery(HDHomeRunDiscovery.getBroadcast());
+    // This can be changed to a specific address to only discover devices at that address.
+    private static HDHomeRunDiscovery discovery = new HDHomeRunDiscovery(
+            Config.getInetAddress("hdhr.discovery.broadcast_address", HDHomeRunDiscovery.getBroadcast()));
 
     private static ConcurrentHashMap<Integer, HDHomeRunDevice> devicesById =
             new ConcurrentHashMap<Integer, HDHomeRunDevice>();
 
+    // When this is enabled, an HDHomeRun device only gets capture devices from the first of UPnP
+    // or the native protocol to find it.
+    private static boolean skipUpnpDevices = Config.getBoolean("hdhr.skip_upnp_devices", true);
+
+    // These are the device IDs that have capture devices from UPnP or the native protocol. A UPnP
+    // device is only known by its address until native discovery reports the ID for that address.
+    private static final Object claimLock = new Object();
+    private static final Set<Integer> upnpDeviceIds = new HashSet<Integer>();
+    private static final Set<Integer> nativeDeviceIds = new HashSet<Integer>();
+    private static final Set<InetAddress> upnpAddresses = new HashSet<InetAddress>();
+
+    // Capture devices are created on this thread so discovery replies can still be received while
+    // a new device is being queried.
+    private static final ExecutorService deviceExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("HDHomeRunDevices-" + thread.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        discovery.addListener(new HDHomeRunDeviceListener() {
+            @Override
+            public void deviceAdded(HDHomeRunDevice device) {
+                addDevice(device);
+            }
+
+            @Override
+            public void deviceAddressChanged(HDHomeRunDevice device, InetAddress oldAddress) {
+                updateDevice(device);
+            }
+
+            @Override
+            public void deviceLost(HDHomeRunDevice device) {
+                // Capture devices listen for this themselves.
+            }
+        });
+    }
+
     public static void startDeviceDetection() throws IOException {
         discovery.start();
     }
 
-    public static synchronized void addDevices(HashSet<HDHomeRunDevice> devices) {
-        for (HDHomeRunDevice device : devices) {
-            if (devicesById.get(device.getDeviceId()) == null) {
-                updateDevice(device);
-                devicesById.put(device.getDeviceId(), device);
+    /**
+     * Be notified when an HDHomeRun device is added, changes its IP address or is lost.
+     *
+     * @param listener The listener.
+     */
+    public static void addDeviceListener(HDHomeRunDeviceListener listener) {
+        discovery.addListener(listener);
+    }
+
+    public static void removeDeviceListener(HDHomeRunDeviceListener listener) {
+        discovery.removeListener(listener);
+    }
+
+    /**
+     * Check if a device has stopped replying to discovery.
+     *
+     * @param deviceId The ID of the device.
+     * @return <i>true</i> if the device is lost.
+     */
+    public static boolean isDeviceLost(int deviceId) {
+        return discovery.isLost(deviceId);
+    }
+
+    public static void addDevice(final HDHomeRunDevice device) {
+        if (devicesById.putIfAbsent(device.getDeviceId(), device) != null) {
+            return;
+        }
+
+        updateDevice(device);
+
+        deviceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addCaptureDevices(device);
+            }
+        });
+    }
 
-                //TODO: Create HDHR capture device and register new devices with SageTV.
-                //SageTVManager.addCaptureDevice();
+    /**
+     * Create a capture device for every tuner on an HDHomeRun device and register them with
+     * SageTV.
+     *
+     * @param device The newly discovered device.
+     */
+    private static void addCaptureDevices(HDHomeRunDevice device) {
+        logger.entry(device);
+
+        if (!claimNativeDevice(device)) {
+            logger.info("Skipping the HDHomeRun device at {} because it is already in use by a UPnP capture device.", device.getIpAddress());
+            logger.exit();
+            return;
+        }
+
+        for (int i = 0; i < device.getTunerCount(); i++) {
+            try {
+                HDHomeRunCaptureDevice captureDevice = new HDHomeRunCaptureDevice(device, i);
+
+                // This adds the capture device to the SageTV manager and starts the SageTV socket
+                // server for the port assigned to this capture device if it is not already
+                // running.
+                SageTVManager.addCaptureDevice(captureDevice);
+
+                try {
+                    NetworkPowerEventManger.POWER_EVENT_LISTENER.addDependentInterface(captureDevice.getEncoderIpAddress());
+                } catch (Exception e) {
+                    logger.error("Unable to register device with a valid network interface => ", e);
+                }
+            } catch (CaptureDeviceIgnoredException e) {
+                logger.debug("The capture device was was not permitted to initialize => {}", e.toString());
+            } catch (Exception e) {
+                logger.error("There was a problem creating a capture device for tuner {} on the HDHomeRun device at {} => ", i, device.getIpAddress(), e);
             }
         }
+
+        logger.exit();
+    }
+
+    /**
+     * Claim an HDHomeRun device for capture devices using the native protocol.
+     *
+     * @param device The discovered device.
+     * @return <i>false</i> if the device already has UPnP capture devices.
+     */
+    private static boolean claimNativeDevice(HDHomeRunDevice device) {
+        if (!skipUpnpDevices) {
+            return true;
+        }
+
+        synchronized (claimLock) {
+            int deviceId = device.getDeviceId();
+
+            if (upnpDeviceIds.contains(deviceId) || upnpAddresses.contains(device.getIpAddress())) {
+                // Remember the ID so the device is still recognized if its address changes.
+                upnpDeviceIds.add(deviceId);
+                return false;
+            }
+
+            nativeDeviceIds.add(deviceId);
+            return true;
+        }
+    }
+
+    /**
+     * Claim an HDHomeRun device for a UPnP capture device.
+     * <p/>
+     * UPnP doesn't report the device ID, so the ID is looked up from the devices found by native
+     * discovery at the same address. If native discovery hasn't found the device yet, the address
+     * is remembered and the native protocol will skip the device when it is found.
+     *
+     * @param address The address of the HDHomeRun device.
+     * @return <i>false</i> if the device already has capture devices using the native protocol.
+     */
+    public static boolean claimUpnpDevice(InetAddress address) {
+        if (!skipUpnpDevices || address == null) {
+            return true;
+        }
+
+        synchronized (claimLock) {
+            for (HDHomeRunDevice device : devicesById.values()) {
+                if (!address.equals(device.getIpAddress())) {
+                    continue;
+                }
+
+                if (nativeDeviceIds.contains(device.getDeviceId())) {
+                    return false;
+                }
+
+                upnpDeviceIds.add(device.getDeviceId());
+                return true;
+            }
+
+            upnpAddresses.add(address);
+            return true;
+        }
     }
 
     public static void updateDevice(HDHomeRunDevice device) {
@@ -55,6 +234,7 @@ public class HDHomeRunManager implements PowerEventListener {
 
     public static synchronized void removeAllDevices() {
         devicesById.clear();
+        HDHomeRunStatusPoller.removeAllPollers();
     }
 
     public void onSuspendEvent() {
@@ -222,6 +222,11 @@ public class HDHomeRunPacket {
             return null;
         }
 
+        // The length includes the terminating null.
+        if (length < 1) {
+            return "";
+        }
+
         byte stringBytes[] = new byte[length - 1];
         for (int i = 0; i < stringBytes.length; i++) {
             stringBytes[i] = BUFFER.get();
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the status values of the tuners on an HDHomeRun device.
+ * <p/>
+ * Values that have been requested recently are refreshed in the background on a fixed interval,
+ * so readers usually get a cached value without any communication with the device. If a value is
+ * older than the allowed age, the reader fetches it. Readers that need the same value at the same
+ * time share one request, so the number of requests sent to a device doesn't increase with the
+ * number of readers.
+ * <p/>
+ * Each device is refreshed by its own task that only runs while its values are being read. A
+ * device that stops replying only delays its own refresh and the rest of that refresh is skipped.
+ * <p/>
+ * Anything that sets a value on a tuner must call <b>invalidate()</b> so the next read doesn't
+ * return a value from before the change.
+ */
+public class HDHomeRunStatusPoller {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunStatusPoller.class);
+
+    private static final long pollInterval =
+            Math.max(Config.getLong("hdhr.status.poll_interval_ms", 1000), 100);
+
+    private static final long defaultMaxAge =
+            Math.max(Config.getLong("hdhr.status.max_age_ms", 2000), 0);
+
+    // Values that haven't been read for this long are no longer refreshed in the background.
+    private static final long idleTimeout =
+            Math.max(Config.getLong("hdhr.status.idle_ms", pollInterval * 3), 0);
+
+    // This is the longest one refresh of all of the values on a device can take.
+    private static final long pollTimeout =
+            Math.max(Config.getLong("hdhr.status.poll_timeout_ms", 2500), 100);
+
+    // Devices found by discovery are cached by device ID so the cache follows a device that
+    // changes its address. Devices created from only an address use the address.
+    private static final ConcurrentHashMap<Integer, HDHomeRunStatusPoller> pollersById =
+            new ConcurrentHashMap<Integer, HDHomeRunStatusPoller>();
+    private static final ConcurrentHashMap<InetAddress, HDHomeRunStatusPoller> pollersByAddress =
+            new ConcurrentHashMap<InetAddress, HDHomeRunStatusPoller>();
+
+    private static final ScheduledExecutorService pollExecutor =
+            Executors.newScheduledThreadPool(
+                    Math.max(Config.getInteger("hdhr.status.poll_threads", 2), 1), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("HDHomeRunStatusPoller-" + thread.getId());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final HDHomeRunDevice device;
+    private final HDHomeRunControl control;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicBoolean pollScheduled = new AtomicBoolean(false);
+    private volatile boolean removed = false;
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!removed && poll()) {
+                pollExecutor.schedule(this, pollInterval, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            pollScheduled.set(false);
+
+            // A value could have been read after the check and before polling was unscheduled.
+            if (!removed && isActive()) {
+                schedulePoll();
+            }
+        }
+    };
+
+    private HDHomeRunStatusPoller(HDHomeRunDevice device) {
+        this.device = device;
+        this.control = device.CONTROL;
+    }
+
+    /**
+     * Get the status cache for a device.
+     * <p/>
+     * There is only one cache per device ID, so every tuner instance for a device shares the same
+     * values. A device without an ID has one cache per IP address.
+     *
+     * @param device The device.
+     * @return The status cache for the device.
+     */
+    public static HDHomeRunStatusPoller getPoller(HDHomeRunDevice device) {
+        // 0xFFFFFFFF is the wildcard ID. It's used when the device was not found by discovery.
+        if (device.getDeviceId() == -1) {
+            return getPoller(pollersByAddress, device.getIpAddress(), device);
+        }
+
+        return getPoller(pollersById, device.getDeviceId(), device);
+    }
+
+    private static <T> HDHomeRunStatusPoller getPoller(ConcurrentHashMap<T, HDHomeRunStatusPoller> pollers, T key, HDHomeRunDevice device) {
+        HDHomeRunStatusPoller poller = pollers.get(key);
+
+        if (poller == null) {
+            poller = new HDHomeRunStatusPoller(device);
+            HDHomeRunStatusPoller existing = pollers.putIfAbsent(key, poller);
+
+            if (existing != null) {
+                poller = existing;
+            }
+        }
+
+        return poller;
+    }
+
+    /**
+     * Stop refreshing values for all devices and forget all cached values.
+     */
+    public static void removeAllPollers() {
+        for (HDHomeRunStatusPoller poller : pollersById.values()) {
+            poller.removed = true;
+        }
+
+        for (HDHomeRunStatusPoller poller : pollersByAddress.values()) {
+            poller.removed = true;
+        }
+
+        pollersById.clear();
+        pollersByAddress.clear();
+    }
+
+    /**
+     * Get a tuner value that is no older than the configured maximum age.
+     *
+     * @param tuner The tuner number.
+     * @param key   The key to get.
+     * @return A value from the device. If the reply was invalid, this will be <i>null</i>.
+     * @throws IOException     Thrown if communication with the device was incomplete or is not possible
+     *                         at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    public String get(int tuner, String key) throws IOException, GetSetException {
+        return get(tuner, key, defaultMaxAge);
+    }
+
+    /**
+     * Get a tuner value that is no older than the provided age.
+     *
+     * @param tuner  The tuner number.
+     * @param key    The key to get.
+     * @param maxAge The maximum age of the value in milliseconds. 0 will always wait for a new
+     *               value.
+     * @return A value from the device. If the reply was invalid, this will be <i>null</i>.
+     * @throws IOException     Thrown if communication with the device was incomplete or is not possible
+     *                         at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    public String get(int tuner, String key, long maxAge) throws IOException, GetSetException {
+        String variable = "/tuner" + tuner + "/" + key;
+        Entry entry = entries.get(variable);
+
+        if (entry == null) {
+            entry = new Entry(tuner, variable);
+            Entry existing = entries.putIfAbsent(variable, entry);
+
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        entry.requested = now;
+        schedulePoll();
+
+        synchronized (entry) {
+            if (entry.updated > 0 && now - entry.updated <= maxAge) {
+                return entry.value;
+            }
+        }
+
+        return fetch(entry);
+    }
+
+    /**
+     * Forget all cached values for a tuner.
+     * <p/>
+     * A request that is already in progress will not update the cache and will not be shared with
+     * any new readers.
+     *
+     * @param tuner The tuner number.
+     */
+    public void invalidate(int tuner) {
+        for (Entry entry : entries.values()) {
+            if (entry.TUNER != tuner) {
+                continue;
+            }
+
+            synchronized (entry) {
+                entry.generation += 1;
+                entry.updated = 0;
+                entry.fetch = null;
+            }
+        }
+    }
+
+    private String fetch(final Entry entry) throws IOException, GetSetException {
+        FutureTask<String> fetch;
+        boolean owner = false;
+
+        synchronized (entry) {
+            fetch = entry.fetch;
+
+            if (fetch == null) {
+                final long generation = entry.generation;
+
+                fetch = new FutureTask<String>(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String value = control.getVariable(device.getIpAddress(), entry.VARIABLE);
+
+                        synchronized (entry) {
+                            if (entry.generation == generation) {
+                                entry.value = value;
+                                entry.updated = System.currentTimeMillis();
+                            }
+                        }
+
+                        return value;
+                    }
+                });
+
+                entry.fetch = fetch;
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                fetch.run();
+            } finally {
+                synchronized (entry) {
+                    if (entry.fetch == fetch) {
+                        entry.fetch = null;
+                    }
+                }
+            }
+        }
+
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof GetSetException) {
+                throw (GetSetException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private void schedulePoll() {
+        if (!removed && pollScheduled.compareAndSet(false, true)) {
+            pollExecutor.schedule(pollTask, pollInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean isActive() {
+        long now = System.currentTimeMillis();
+
+        for (Entry entry : entries.values()) {
+            if (now - entry.requested <= idleTimeout) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Refresh the values on this device that have been read recently.
+     *
+     * @return <i>false</i> if no values have been read recently and polling can stop.
+     */
+    private boolean poll() {
+        long now = System.currentTimeMillis();
+        long deadline = now + pollTimeout;
+        boolean active = false;
+
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+
+            if (now - entry.requested > idleTimeout) {
+                continue;
+            }
+
+            active = true;
+
+            if (System.currentTimeMillis() > deadline) {
+                logger.debug("Refreshing the HDHomeRun device at {} took more than {}ms." +
+                        " Skipping the remaining values.", device.getIpAddress(), pollTimeout);
+                break;
+            }
+
+            try {
+                fetch(entry);
+            } catch (IOException e) {
+                // Readers will fetch the values themselves if the device starts replying again.
+                logger.debug("Unable to refresh '{}' on the HDHomeRun device at {}." +
+                        " Skipping the remaining values => {}",
+                        entry.VARIABLE, device.getIpAddress(), e.getMessage());
+                break;
+            } catch (Exception e) {
+                logger.debug("Unable to refresh '{}' on the HDHomeRun device at {} => {}",
+                        entry.VARIABLE, device.getIpAddress(), e.getMessage());
+            }
+        }
+
+        return active;
+    }
+
+    private static class Entry {
+        private final int TUNER;
+        private final String VARIABLE;
+        private volatile long requested;
+        private String value;
+        private long updated;
+        private long generation;
+        private FutureTask<String> fetch;
+
+        private Entry(int tuner, String variable) {
+            TUNER = tuner;
+            VARIABLE = variable;
+        }
+    }
+}
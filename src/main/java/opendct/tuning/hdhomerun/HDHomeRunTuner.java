@@ -48,7 +48,7 @@ public class HDHomeRunTuner {
     private int currentLockkey;
 
     public HDHomeRunTuner(HDHomeRunDevice device, int tuner) {
-        this(device, tuner, new HDHomeRunControl());
+        this(device, tuner, device.CONTROL);
     }
 
     public HDHomeRunTuner(HDHomeRunDevice device, int tuner, HDHomeRunControl control) {
@@ -111,6 +111,20 @@ public class HDHomeRunTuner {
         return CONTROL.getVariable(DEVICE.getIpAddress(), getTunerGetString(key));
     }
 
+    /**
+     * Get a tuner value from the shared status cache for the device.
+     *
+     * @param key The key to get.
+     * @return A value from the device that is no older than the configured maximum age. If the
+     *         reply was invalid, this will be <i>null</i>.
+     * @throws IOException     Thrown if communication with the device was incomplete or is not possible
+     *                         at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    private String getCached(String key) throws IOException, GetSetException {
+        return HDHomeRunStatusPoller.getPoller(DEVICE).get(TUNER_NUMBER, key);
+    }
+
     /**
      * Custom set for a tuner on the device.
      *
@@ -122,11 +136,16 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public String set(String key, String value) throws IOException, GetSetException {
-        if (currentLockkey > -1) {
-            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, currentLockkey);
-        }
+        try {
+            if (currentLockkey > -1) {
+                return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, currentLockkey);
+            }
 
-        return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value);
+            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value);
+        } finally {
+            // Cached status values from before this change are no longer valid.
+            HDHomeRunStatusPoller.getPoller(DEVICE).invalidate(TUNER_NUMBER);
+        }
     }
 
     /**
@@ -141,7 +160,11 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public String set(String key, String value, int lockkey) throws IOException, GetSetException {
-        return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, lockkey);
+        try {
+            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, lockkey);
+        } finally {
+            HDHomeRunStatusPoller.getPoller(DEVICE).invalidate(TUNER_NUMBER);
+        }
     }
 
     /**
@@ -187,7 +210,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunStreamInfo getStreamInfo() throws IOException, GetSetException {
-        streamInfo = get("streaminfo");
+        streamInfo = getCached("streaminfo");
 
         return (new HDHomeRunStreamInfo(streamInfo));
     }
@@ -242,7 +265,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public String getLockkey() throws IOException, GetSetException {
-        lockkey = get("lockkey");
+        lockkey = getCached("lockkey");
 
         if (lockkey == null) {
             lockkey = "none";
@@ -404,7 +427,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunStatus getStatus() throws IOException, GetSetException {
-        status = CONTROL.getVariable(DEVICE.getIpAddress(), getTunerGetString("status"));
+        status = getCached("status");
 
         return new HDHomeRunStatus(status);
     }
@@ -418,7 +441,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunVStatus getVirtualChannelStatus() throws IOException, GetSetException {
-        vstatus = CONTROL.getVariable(DEVICE.getIpAddress(), getTunerGetString("vstatus"));
+        vstatus = getCached("vstatus");
 
         return new HDHomeRunVStatus(vstatus);
     }
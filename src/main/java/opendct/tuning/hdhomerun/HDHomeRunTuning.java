@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.channel.BroadcastStandard;
+import opendct.channel.TVChannel;
+import opendct.tuning.hdhomerun.returns.HDHomeRunStatus;
+import opendct.tuning.hdhomerun.returns.HDHomeRunVStatus;
+import opendct.util.ReadinessPoller;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tuning steps shared by every capture device that controls an HDHomeRun tuner.
+ */
+public class HDHomeRunTuning {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunTuning.class);
+
+    /**
+     * Tune a frequency and then select a program.
+     * <p/>
+     * The program can't be selected until the tuner has found it on the frequency, so this keeps
+     * trying for up to a second.
+     *
+     * @param tuner The tuner to use.
+     * @param modulation The modulation of the frequency.
+     * @param frequency The frequency in Hz.
+     * @param program The program to select.
+     * @return <i>true</i> if the program was selected on the frequency.
+     */
+    public static boolean tuneFrequencyProgram(final HDHomeRunTuner tuner, String modulation, String frequency, final String program) {
+        try {
+            tuner.setChannel(modulation, frequency, false);
+
+            new ReadinessPoller<Boolean>(1000) {
+                @Override
+                protected Boolean poll() throws Exception {
+                    try {
+                        tuner.setProgram(program);
+                        return true;
+                    } catch (GetSetException e) {
+                        logger.debug("HDHomeRun device returned an error => ", e);
+                        return null;
+                    }
+                }
+            }.call();
+        } catch (TimeoutException e) {
+            logger.debug("The frequency '{}' does not have the program '{}'.", frequency, program);
+            return false;
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while trying to tune into channel => ", e);
+            return false;
+        } catch (Exception e) {
+            logger.error("Unable to tune into channel => ", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Update a channel with the modulation, frequency and program the tuner is currently on.
+     *
+     * @param tuner The tuner that has the channel tuned.
+     * @param tvChannel The channel to update.
+     */
+    public static void updateChannelInfo(HDHomeRunTuner tuner, TVChannel tvChannel) {
+        try {
+            // This is returned as modulation:frequency.
+            String frequency = tuner.getChannel();
+            if (frequency != null) {
+                String split[] = frequency.split(":");
+                if (split.length > 1 && split[split.length - 1].length() > 3) {
+                    tvChannel.setModulation(split[0].toUpperCase());
+                    tvChannel.setFrequency(split[split.length - 1]);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to get frequency from HDHomeRun => ", e);
+        }
+
+        try {
+            tvChannel.setProgram(String.valueOf(tuner.getProgram()));
+        } catch (Exception e) {
+            logger.error("Unable to get program from HDHomeRun => ", e);
+        }
+    }
+
+    /**
+     * Check if the virtual channel tuned on a CableCARD tuner can be recorded.
+     *
+     * @param tuner The tuner that has the virtual channel tuned.
+     * @return <i>true</i> if the channel is available, subscribed and not copy protected or
+     *         <i>null</i> if the status could not be read.
+     */
+    public static Boolean isVirtualChannelTunable(HDHomeRunTuner tuner) {
+        try {
+            HDHomeRunVStatus status = tuner.getVirtualChannelStatus();
+            return !status.NOT_AVAILABLE && !status.COPY_PROTECTED && !status.NOT_SUBSCRIBED;
+        } catch (Exception e) {
+            logger.error("Unable to get status from HDHomeRun => ", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the broadcast standard a tuner is receiving.
+     * <p/>
+     * The modulation the tuner is locked on is used when it's tuned. Otherwise the channel map of
+     * the tuner is used.
+     *
+     * @param tuner The tuner to check.
+     * @param channelmap The channel map of the tuner or <i>null</i> if it is not known.
+     * @return The broadcast standard or <i>UNKNOWN</i> if it can't be determined.
+     */
+    public static BroadcastStandard getBroadcastStandard(HDHomeRunTuner tuner, String channelmap) {
+        try {
+            HDHomeRunStatus status = tuner.getStatus();
+            BroadcastStandard standard = getModulationStandard(status.LOCK_STR);
+
+            if (standard != BroadcastStandard.UNKNOWN) {
+                return standard;
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to get status from HDHomeRun => {}", e.getMessage());
+        }
+
+        if (channelmap == null) {
+            return BroadcastStandard.UNKNOWN;
+        }
+
+        // Cable channel maps are us-cable, us-hrc, us-irc, eu-cable and kr-cable. Cable in
+        // these regions is almost always QAM256.
+        if (channelmap.endsWith("-cable") || channelmap.endsWith("-hrc") || channelmap.endsWith("-irc")) {
+            return BroadcastStandard.QAM256;
+        } else if (channelmap.startsWith("us-") || channelmap.startsWith("kr-")) {
+            return BroadcastStandard.ATSC;
+        }
+
+        return BroadcastStandard.UNKNOWN;
+    }
+
+    // The lock status is the modulation such as 8vsb, qam256 or t8qam64 when a signal is locked.
+    private static BroadcastStandard getModulationStandard(String lock) {
+        if (lock == null) {
+            return BroadcastStandard.UNKNOWN;
+        }
+
+        lock = lock.toLowerCase();
+
+        if (lock.contains("8vsb")) {
+            return BroadcastStandard.ATSC;
+        } else if (lock.contains("qam256")) {
+            return BroadcastStandard.QAM256;
+        } else if (lock.contains("qam64")) {
+            return BroadcastStandard.QAM64;
+        }
+
+        return BroadcastStandard.UNKNOWN;
+    }
+}
@@ -49,47 +49,67 @@ public class InfiniTVTuning {
                 return logger.exit(false);
             }
 
-            try {
-                // Check if the frequency is already correct.
-                boolean frequencyTuned = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency").equals(tvChannel.getFrequency());
+            returnValue = tuneFrequencyProgram(tvChannel, deviceAddress, tunerNumber, retry);
+        }
 
-                if (!frequencyTuned) {
-                    tuneFrequency(tvChannel, deviceAddress, tunerNumber, retry);
-                }
+        return logger.exit(returnValue);
+    }
 
-                int attempts = 10;
-                boolean programSelected = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber").equals(tvChannel.getProgram());
+    /**
+     * Tune the frequency and select the program of a channel without using the virtual channel.
+     *
+     * @param tvChannel The channel with the frequency, modulation and program to tune.
+     * @param deviceAddress The address of the InfiniTV device.
+     * @param tunerNumber The tuner number starting at 1.
+     * @param retry The number of times to retry each request.
+     * @return <i>true</i> if the program was selected on the frequency.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public static boolean tuneFrequencyProgram(TVChannel tvChannel, String deviceAddress, int tunerNumber, int retry) throws InterruptedException {
+        logger.entry(tvChannel, deviceAddress, tunerNumber);
 
-                while (!programSelected) {
-                    // If we are not already on the correct frequency, it takes the tuner a moment
-                    // to detect the available programs. If you try to set a program before the list
-                    // is available, it will fail. Normally this happens so fast, a sleep method
-                    // isn't appropriate. We have a while loop to retry a few times if it fails.
+        boolean returnValue = false;
 
-                    tuneProgram(tvChannel, deviceAddress, tunerNumber, retry);
+        try {
+            // Check if the frequency is already correct.
+            boolean frequencyTuned = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency").equals(tvChannel.getFrequency());
 
-                    programSelected = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber").equals(tvChannel.getProgram());
-                    if (attempts-- == 0 && !programSelected) {
-                        logger.error("The requested program cannot be selected.");
+            if (!frequencyTuned && !tuneFrequency(tvChannel, deviceAddress, tunerNumber, retry)) {
+                return logger.exit(false);
+            }
+
+            int attempts = 10;
+            boolean programSelected = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber").equals(tvChannel.getProgram());
+
+            while (!programSelected) {
+                // If we are not already on the correct frequency, it takes the tuner a moment
+                // to detect the available programs. If you try to set a program before the list
+                // is available, it will fail. Normally this happens so fast, a sleep method
+                // isn't appropriate. We have a while loop to retry a few times if it fails.
+
+                tuneProgram(tvChannel, deviceAddress, tunerNumber, retry);
+
+                programSelected = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "mux", "ProgramNumber").equals(tvChannel.getProgram());
+                if (attempts-- == 0 && !programSelected) {
+                    logger.error("The requested program cannot be selected.");
+                    return logger.exit(false);
+                } else if (!programSelected) {
+                    try {
+                        // Sleep if the first request fails so we don't overwhelm the device
+                        // with requests. Remember up to 6 of these kinds of request could
+                        // happen at the exact same time.
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        logger.error("tuneChannel was interrupted while selecting a program.");
                         return logger.exit(false);
-                    } else if (!programSelected) {
-                        try {
-                            // Sleep if the first request fails so we don't overwhelm the device
-                            // with requests. Remember up to 6 of these kinds of request could
-                            // happen at the exact same time.
-                            Thread.sleep(10);
-                        } catch (InterruptedException e) {
-                            logger.error("tuneChannel was interrupted while selecting a program.");
-                            return logger.exit(false);
-                        }
                     }
                 }
-                returnValue = true;
-            /*} catch (InterruptedException e) {
-                logger.debug("tuneChannel was interrupted while waiting setting the program.");*/
-            } catch (IOException e) {
-                logger.debug("tuneChannel was unable to get the current program value.");
             }
+            returnValue = true;
+        /*} catch (InterruptedException e) {
+            logger.debug("tuneChannel was interrupted while waiting setting the program.");*/
+        } catch (IOException e) {
+            logger.debug("tuneChannel was unable to get the current program value.");
         }
 
         return logger.exit(returnValue);
@@ -17,10 +17,12 @@
 package opendct.tuning.upnp.services.avtransport;
 
 import opendct.tuning.upnp.services.shared.ServiceSubscription;
+import opendct.tuning.upnp.services.shared.UpnpDeviceState;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.fourthline.cling.UpnpService;
 import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -32,6 +34,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Map;
 
 public class AVTransportSubscription extends ServiceSubscription {
     private final Logger logger = LogManager.getLogger(AVTransportSubscription.class);
@@ -47,6 +50,10 @@ public class AVTransportSubscription extends ServiceSubscription {
         super(upnpService, service);
     }
 
+    public AVTransportSubscription(UpnpService upnpService, Service<?, ?> service, UpnpDeviceState deviceState) {
+        super(upnpService, service, deviceState);
+    }
+
     public String getAVTransportLastChange() {
         String status;
         if ((status = getStateVariableValue("LastChange")) != null) {
@@ -55,9 +62,28 @@ public class AVTransportSubscription extends ServiceSubscription {
         return avTransportLastChange;
     }
 
-    private void setAVTransportLastChange(String message) {
+    @Override
+    protected void eventValuesReceived(Map<String, StateVariableValue<?>> changedValues) {
+        StateVariableValue<?> lastChange = changedValues.get("LastChange");
+
+        if (lastChange == null || lastChange.getValue() == null) {
+            return;
+        }
+
+        // TransportState is only evented inside of LastChange.
+        String transportState = setAVTransportLastChange(lastChange.toString());
+
+        if (transportState != null && getDeviceState() != null) {
+            getDeviceState().eventReceived(getServiceName(), "TransportState", transportState);
+        }
+    }
+
+    // Returns the TransportState for the tracked InstanceID if it is in the message.
+    private String setAVTransportLastChange(String message) {
         logger.entry();
 
+        String transportState = null;
+
         synchronized (lastChangeLock) {
             try {
                 avTransportLastChange = message;
@@ -94,6 +120,7 @@ public class AVTransportSubscription extends ServiceSubscription {
                                     try {
                                         String val = transportStateChild.getAttributes().getNamedItem("val").getTextContent();
                                         avTransportTransportState = (Boolean) (val.equalsIgnoreCase("PLAYING"));
+                                        transportState = val;
                                     } catch (Exception e) {
                                         logger.warn("Unable to find 'val' attribute under AVTransport/LastChange/InstanceID/TransportState => " + e.getStackTrace().toString());
                                     }
@@ -108,7 +135,7 @@ public class AVTransportSubscription extends ServiceSubscription {
             }
         }
 
-        logger.exit();
+        return logger.exit(transportState);
     }
 
     //This value is used to select what to store from the LastChange state variable.
@@ -17,6 +17,7 @@
 package opendct.tuning.upnp.services.connectionmanager;
 
 import opendct.tuning.upnp.services.shared.ServiceSubscription;
+import opendct.tuning.upnp.services.shared.UpnpDeviceState;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.fourthline.cling.UpnpService;
@@ -34,6 +35,10 @@ public class ConnectionManagerSubscription extends ServiceSubscription {
         super(upnpService, service);
     }
 
+    public ConnectionManagerSubscription(UpnpService upnpService, Service<?, ?> service, UpnpDeviceState deviceState) {
+        super(upnpService, service, deviceState);
+    }
+
     public String getConnectionManagerSinkProtocolInfo() {
         connectionManagerSinkProtocolInfo = getReturnedEventValue("SinkProtocolInfo", connectionManagerSinkProtocolInfo);
         return connectionManagerSinkProtocolInfo;
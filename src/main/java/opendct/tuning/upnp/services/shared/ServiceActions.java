@@ -38,6 +38,10 @@ public class ServiceActions {
         this.actionService = actionService;
     }
 
+    public String getServiceName() {
+        return actionService.getServiceType().getType();
+    }
+
     // This method is used to query individual action variables available in the service.
     public String queryActionVariable(String varName) throws InvalidValueException {
         logger.entry();
@@ -23,6 +23,7 @@ import org.fourthline.cling.model.gena.GENASubscription;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.state.StateVariableValue;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -31,17 +32,60 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public abstract class ServiceSubscription {
     private final Logger logger = LogManager.getLogger(ServiceSubscription.class);
     private static final ReentrantReadWriteLock serviceSubscriptionLock = new ReentrantReadWriteLock();
-    public volatile Map<String, StateVariableValue> returnedEventValues = null;
+    public volatile Map<String, StateVariableValue<?>> returnedEventValues = null;
     private final String serviceName;
     private final UpnpService upnpService;
     private final Service service;
-    private ServiceSubscriptionCallback subscriptionCallback;
+    private final UpnpDeviceState deviceState;
+    private volatile ServiceSubscriptionCallback subscriptionCallback;
     private CountDownLatch eventLatch = new CountDownLatch(1);
+    private volatile boolean active = false;
 
     public ServiceSubscription(UpnpService upnpService, Service service) {
+        this(upnpService, service, null);
+    }
+
+    /**
+     * Create a subscription that also stores every value it receives.
+     *
+     * @param upnpService This is the UPnP service used to subscribe.
+     * @param service This is the service to subscribe to.
+     * @param deviceState This is where received values are stored or <i>null</i> to not store
+     *                    them anywhere else.
+     */
+    public ServiceSubscription(UpnpService upnpService, Service<?, ?> service, UpnpDeviceState deviceState) {
         this.upnpService = upnpService;
         this.service = service;
         this.serviceName = service.getServiceType().getType();
+        this.deviceState = deviceState;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    protected UpnpDeviceState getDeviceState() {
+        return deviceState;
+    }
+
+    /**
+     * Is this subscription established and not ended?
+     *
+     * @return <i>true</i> if the device should be sending events for this subscription.
+     */
+    public boolean isActive() {
+        return active && subscriptionCallback != null;
+    }
+
+    /**
+     * Called after the values in an event have been stored.
+     * <p/>
+     * Override this to handle values that contain other values.
+     *
+     * @param changedValues These are only the values that were in the event.
+     */
+    protected void eventValuesReceived(Map<String, StateVariableValue<?>> changedValues) {
+
     }
 
     public void start() {
@@ -54,17 +98,49 @@ public abstract class ServiceSubscription {
 
         subscriptionCallback = new ServiceSubscriptionCallback(service, 1800) {
 
+            @Override
+            protected void subscriptionEstablished() {
+                if (subscriptionCallback == this) {
+                    active = true;
+                }
+            }
+
+            @Override
+            protected void subscriptionLost() {
+                // A subscription that was replaced can end after the new one is established.
+                if (subscriptionCallback == this) {
+                    ServiceSubscription.this.subscriptionLost();
+                }
+            }
+
             @Override
             public void eventReceived(GENASubscription sub) {
                 logger.entry();
                 logger.debug("The '{}' subscription received an event => {}", serviceName, sub.getCurrentSequence().getValue());
 
+                Map<String, StateVariableValue<?>> changedValues = new HashMap<String, StateVariableValue<?>>();
+
                 serviceSubscriptionLock.writeLock().lock();
 
                 try {
                     logger.trace("Attempting to get values returned from event...");
 
-                    Map<String, StateVariableValue> values = sub.getCurrentValues();
+                    // The subscription keeps updating the same map, so a copy is needed to be able
+                    // to read it safely and to know which values were in this event.
+                    Map<?, ?> currentValues = sub.getCurrentValues();
+                    Map<String, StateVariableValue<?>> values =
+                            new HashMap<String, StateVariableValue<?>>(currentValues.size());
+
+                    for (Map.Entry<?, ?> entry : currentValues.entrySet()) {
+                        String name = (String) entry.getKey();
+                        StateVariableValue<?> value = (StateVariableValue<?>) entry.getValue();
+
+                        values.put(name, value);
+
+                        if (returnedEventValues == null || returnedEventValues.get(name) != value) {
+                            changedValues.put(name, value);
+                        }
+                    }
 
                     returnedEventValues = values;
 
@@ -79,6 +155,21 @@ public abstract class ServiceSubscription {
                     serviceSubscriptionLock.writeLock().unlock();
                 }
 
+                if (deviceState != null && subscriptionCallback == this) {
+                    deviceState.setSubscribed(serviceName, true);
+
+                    for (Map.Entry<String, StateVariableValue<?>> entry : changedValues.entrySet()) {
+                        deviceState.eventReceived(serviceName, entry.getKey(),
+                                entry.getValue() == null ? null : String.valueOf(entry.getValue()));
+                    }
+                }
+
+                try {
+                    eventValuesReceived(changedValues);
+                } catch (Exception e) {
+                    logger.error("Unable to process the values returned from event => ", e);
+                }
+
                 logger.exit();
             }
         };
@@ -89,9 +180,19 @@ public abstract class ServiceSubscription {
         logger.exit();
     }
 
+    private void subscriptionLost() {
+        active = false;
+
+        if (deviceState != null) {
+            deviceState.setSubscribed(serviceName, false);
+        }
+    }
+
     public void stop() {
         logger.entry();
 
+        subscriptionLost();
+
         // This needs to called outside of the lock to free up blocked read locks.
         eventLatch.countDown();
 
@@ -176,7 +277,13 @@ public abstract class ServiceSubscription {
                 logger.trace("'{}' does not have a value yet.", value, returnValue);
                 return logger.exit(returnValue);
             }
-            StateVariableValue status = returnedEventValues.get(value);
+            StateVariableValue<?> status = returnedEventValues.get(value);
+
+            if (status == null) {
+                logger.trace("'{}' was not in any event.", value);
+                return logger.exit(null);
+            }
+
             returnValue = status.toString();
 
             logger.debug("'{}' value is now '{}'", value, returnValue);
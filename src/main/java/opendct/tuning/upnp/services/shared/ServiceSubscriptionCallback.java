@@ -37,6 +37,7 @@ public class ServiceSubscriptionCallback extends SubscriptionCallback {
     public void established(GENASubscription sub) {
         logger.entry();
         logger.debug("Subscription established: {}", sub.getSubscriptionId());
+        subscriptionEstablished();
         logger.exit();
     }
 
@@ -44,6 +45,7 @@ public class ServiceSubscriptionCallback extends SubscriptionCallback {
     protected void failed(GENASubscription subscription, UpnpResponse responseStatus, Exception exception, String defaultMsg) {
         logger.entry();
         logger.debug("Subscription failed => {}", defaultMsg);
+        subscriptionLost();
         logger.exit();
     }
 
@@ -56,9 +58,24 @@ public class ServiceSubscriptionCallback extends SubscriptionCallback {
         } else {
             logger.debug("Subscription ended normally.");
         }
+        subscriptionLost();
         logger.exit();
     }
 
+    /**
+     * Called when the device accepts the subscription.
+     */
+    protected void subscriptionEstablished() {
+
+    }
+
+    /**
+     * Called when the subscription fails or ends.
+     */
+    protected void subscriptionLost() {
+
+    }
+
     @Override
     public void eventReceived(GENASubscription sub) {
         //You need to override this subroutine to do anything useful with this class.
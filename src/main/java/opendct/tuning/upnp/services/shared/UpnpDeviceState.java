@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.upnp.services.shared;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last known values of the state variables of every service on a UPnP device.
+ * <p/>
+ * Values are stored by the GENA subscriptions of the device as events are received. While a
+ * service is subscribed, the device sends an event every time an evented value changes, so those
+ * values are current without asking the device. Values that are not evented or that were stored
+ * while the service was not subscribed are only current for a short time. When a value is not
+ * current, it is queried from the device and stored.
+ * <p/>
+ * Anything that changes the state of the device must call <b>invalidate()</b>, so values from
+ * before the change are not used until the device reports them again.
+ */
+public class UpnpDeviceState {
+    private final Logger logger = LogManager.getLogger(UpnpDeviceState.class);
+
+    private static final long defaultMaxAge =
+            Math.max(Config.getLong("upnp.state.max_age_ms", 2000), 0);
+
+    // This orders updates and invalidations without depending on the resolution of the clock.
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private final String deviceName;
+    private final ConcurrentHashMap<String, Value> values = new ConcurrentHashMap<String, Value>();
+    private final ConcurrentHashMap<String, Long> invalidated = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, Boolean> subscribed = new ConcurrentHashMap<String, Boolean>();
+
+    private static class Value {
+        private final String value;
+        private final long updated;
+        private final long sequence;
+        private final boolean evented;
+
+        private Value(String value, long sequence, boolean evented) {
+            this.value = value;
+            this.updated = System.currentTimeMillis();
+            this.sequence = sequence;
+            this.evented = evented;
+        }
+    }
+
+    public UpnpDeviceState(String deviceName) {
+        this.deviceName = deviceName;
+    }
+
+    /**
+     * Store a value that was received in an event.
+     *
+     * @param serviceName This is the name of the service.
+     * @param variable This is the name of the state variable.
+     * @param value This is the new value.
+     */
+    public void eventReceived(String serviceName, String variable, String value) {
+        if (value == null) {
+            return;
+        }
+
+        values.put(getKey(serviceName, variable), new Value(value, sequence.incrementAndGet(), true));
+    }
+
+    /**
+     * Set if a service is currently subscribed.
+     * <p/>
+     * Evented values are only trusted without a query while the service is subscribed.
+     *
+     * @param serviceName This is the name of the service.
+     * @param isSubscribed <i>true</i> if the service is subscribed.
+     */
+    public void setSubscribed(String serviceName, boolean isSubscribed) {
+        if (isSubscribed) {
+            subscribed.put(serviceName, true);
+        } else if (subscribed.remove(serviceName) != null) {
+            logger.debug("{}: Values from the '{}' service are no longer evented.", deviceName, serviceName);
+        }
+    }
+
+    /**
+     * Forget the values of a service that were stored before now.
+     *
+     * @param serviceName This is the name of the service.
+     */
+    public void invalidate(String serviceName) {
+        invalidated.put(serviceName, sequence.incrementAndGet());
+    }
+
+    /**
+     * Get a value only if it is current.
+     *
+     * @param serviceName This is the name of the service.
+     * @param variable This is the name of the state variable.
+     * @return The value or <i>null</i> if there isn't a current value.
+     */
+    public String getValue(String serviceName, String variable) {
+        return getValue(serviceName, variable, defaultMaxAge);
+    }
+
+    /**
+     * Get a value only if it is current.
+     *
+     * @param serviceName This is the name of the service.
+     * @param variable This is the name of the state variable.
+     * @param maxAge This is the maximum age in milliseconds of a value that isn't evented.
+     * @return The value or <i>null</i> if there isn't a current value.
+     */
+    public String getValue(String serviceName, String variable, long maxAge) {
+        Value value = values.get(getKey(serviceName, variable));
+
+        if (value == null) {
+            return null;
+        }
+
+        Long invalidatedSequence = invalidated.get(serviceName);
+
+        if (invalidatedSequence != null && value.sequence <= invalidatedSequence) {
+            return null;
+        }
+
+        if (value.evented && subscribed.containsKey(serviceName)) {
+            return value.value;
+        }
+
+        if (System.currentTimeMillis() - value.updated <= maxAge) {
+            return value.value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get a value, querying the device only if there isn't a current value.
+     *
+     * @param serviceActions These are the actions of the service the value belongs to.
+     * @param variable This is the name of the state variable.
+     * @return The value or <i>null</i> if the device could not be queried.
+     */
+    public String getValue(ServiceActions serviceActions, String variable) {
+        return getValue(serviceActions, variable, defaultMaxAge);
+    }
+
+    /**
+     * Get a value, querying the device only if there isn't a current value.
+     *
+     * @param serviceActions These are the actions of the service the value belongs to.
+     * @param variable This is the name of the state variable.
+     * @param maxAge This is the maximum age in milliseconds of a value that isn't evented.
+     * @return The value or <i>null</i> if the device could not be queried.
+     */
+    public String getValue(ServiceActions serviceActions, String variable, long maxAge) {
+        logger.entry(variable, maxAge);
+
+        String serviceName = serviceActions.getServiceName();
+        String value = getValue(serviceName, variable, maxAge);
+
+        if (value != null) {
+            logger.trace("{}: Using the stored value '{}' for '{}/{}'.", deviceName, value, serviceName, variable);
+            return logger.exit(value);
+        }
+
+        // Anything that happens after the query is started is newer than the queried value.
+        long querySequence = sequence.incrementAndGet();
+
+        try {
+            value = serviceActions.queryActionVariable(variable);
+        } catch (Exception e) {
+            logger.error("{}: Unable to query '{}/{}' => ", deviceName, serviceName, variable, e);
+            return logger.exit(null);
+        }
+
+        if (value != null) {
+            String key = getKey(serviceName, variable);
+            Value newValue = new Value(value, querySequence, false);
+
+            // Don't replace an event that arrived while the query was running.
+            while (true) {
+                Value oldValue = values.get(key);
+
+                if (oldValue == null) {
+                    if (values.putIfAbsent(key, newValue) == null) {
+                        break;
+                    }
+                } else if (oldValue.sequence >= querySequence || values.replace(key, oldValue, newValue)) {
+                    break;
+                }
+            }
+        }
+
+        return logger.exit(value);
+    }
+
+    private static String getKey(String serviceName, String variable) {
+        return serviceName + "/" + variable;
+    }
+}
@@ -17,6 +17,7 @@
 package opendct.tuning.upnp.services.tuner;
 
 import opendct.tuning.upnp.services.shared.ServiceSubscription;
+import opendct.tuning.upnp.services.shared.UpnpDeviceState;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.fourthline.cling.UpnpService;
@@ -33,6 +34,10 @@ public class TunerSubscription extends ServiceSubscription {
         super(upnpService, service);
     }
 
+    public TunerSubscription(UpnpService upnpService, Service<?, ?> service, UpnpDeviceState deviceState) {
+        super(upnpService, service, deviceState);
+    }
+
     public Boolean getTunerPCRLock() {
         tunerPCRLock = getReturnedEventValue("PCRLock", "1", tunerPCRLock);
         return tunerPCRLock;
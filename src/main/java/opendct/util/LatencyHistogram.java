@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size log-linear histogram of latencies in microseconds.
+ * <p/>
+ * Every power of two is split into 16 linear buckets, so any recorded value is reported within
+ * about 6% of what was recorded. Recording is lock-free and never allocates, so it can be used on
+ * every request. Values larger than about 19 hours are counted in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong totalMicros = new AtomicLong(0);
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds. Negative values are recorded as 0.
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param micros The latency in microseconds. Negative values are recorded as 0.
+     */
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+
+        counts.incrementAndGet(getIndex(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long currentMax;
+
+        while (micros > (currentMax = maxMicros.get())) {
+            if (maxMicros.compareAndSet(currentMax, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the number of recorded latencies.
+     *
+     * @return The number of values recorded since creation or the last reset.
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Get the largest recorded latency.
+     *
+     * @return The latency in microseconds.
+     */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Get the average of all recorded latencies.
+     *
+     * @return The latency in microseconds or 0 if nothing has been recorded.
+     */
+    public long getMeanMicros() {
+        long count = totalCount.get();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        return totalMicros.get() / count;
+    }
+
+    /**
+     * Get the latency at or below which the provided percentage of recorded latencies fall.
+     *
+     * @param percentile The percentile from 0 to 100.
+     * @return The latency in microseconds or 0 if nothing has been recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max((long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0), 1);
+        long runningCount = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            runningCount += counts.get(i);
+
+            if (runningCount >= target) {
+                // Report the highest value this bucket could contain, but never more than the
+                // largest value actually recorded.
+                long highestValue = i + 1 < BUCKETS ? getLowestValue(i + 1) - 1 : MAX_VALUE;
+                return Math.min(highestValue, maxMicros.get());
+            }
+        }
+
+        return maxMicros.get();
+    }
+
+    /**
+     * Clear all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        totalCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Get a one line summary of this histogram in milliseconds.
+     *
+     * @return The summary.
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+                getCount(),
+                getMeanMicros() / 1000.0,
+                getPercentileMicros(50) / 1000.0,
+                getPercentileMicros(90) / 1000.0,
+                getPercentileMicros(99) / 1000.0,
+                getMaxMicros() / 1000.0);
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getLowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
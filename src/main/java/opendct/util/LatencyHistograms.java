@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named set of latency histograms that are created the first time they are used.
+ */
+public class LatencyHistograms {
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Get a histogram.
+     *
+     * @param key The name of the histogram.
+     * @return The histogram or <i>null</i> if it has not been created.
+     */
+    public LatencyHistogram get(String key) {
+        return histograms.get(key);
+    }
+
+    /**
+     * Get a histogram and create it if it doesn't exist.
+     *
+     * @param key The name of the histogram.
+     * @return The histogram.
+     */
+    public LatencyHistogram getOrCreate(String key) {
+        LatencyHistogram histogram = histograms.get(key);
+
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Get all of the histograms currently being kept.
+     *
+     * @return A map of all histograms sorted by name.
+     */
+    public Map<String, LatencyHistogram> getAll() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    /**
+     * Get a summary of every histogram.
+     *
+     * @return One line per histogram.
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+
+        for (Map.Entry<String, LatencyHistogram> entry : getAll().entrySet()) {
+            if (report.length() > 0) {
+                report.append(System.lineSeparator());
+            }
+
+            report.append(entry.getKey()).append(": ").append(entry.getValue().toString());
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Clear all histograms.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for a value that a device only provides once it's ready.
+ * <p/>
+ * Devices that don't notify us when something becomes available need to be asked repeatedly. The
+ * first checks are made only a few milliseconds apart and the delay doubles up to a maximum, so a
+ * value that's available quickly is returned quickly without asking a slow device constantly.
+ * Submit this to an executor to wait for more than one value at the same time.
+ *
+ * @param <T> The type of the value.
+ */
+public abstract class ReadinessPoller<T> implements Callable<T> {
+    private static final long MIN_DELAY = 10;
+    private static final long MAX_DELAY = 100;
+
+    private final long timeout;
+
+    /**
+     * Create a new poller.
+     *
+     * @param timeout This is the maximum amount of time in milliseconds to wait for the value.
+     */
+    public ReadinessPoller(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Check if the value is ready.
+     *
+     * @return The value or <i>null</i> if it is not ready yet.
+     * @throws Exception If the value cannot be retrieved. Polling stops.
+     */
+    protected abstract T poll() throws Exception;
+
+    /**
+     * Check if the value is still wanted.
+     * <p/>
+     * This is checked every time the value is not ready.
+     *
+     * @return <i>true</i> to stop polling.
+     */
+    protected boolean isAbandoned() {
+        return false;
+    }
+
+    /**
+     * Poll until the value is ready.
+     *
+     * @return The value.
+     * @throws TimeoutException If the value was not ready before the timeout.
+     * @throws CancellationException If <b>isAbandoned()</b> returned <i>true</i>.
+     * @throws InterruptedException If the thread was interrupted.
+     * @throws Exception Anything thrown by <b>poll()</b>.
+     */
+    @Override
+    public T call() throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = MIN_DELAY;
+
+        while (true) {
+            T value = poll();
+
+            if (value != null) {
+                return value;
+            }
+
+            if (isAbandoned()) {
+                throw new CancellationException("The value is no longer wanted.");
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                throw new TimeoutException("The value was not ready after " + timeout + "ms.");
+            }
+
+            Thread.sleep(Math.min(delay, remaining));
+            delay = Math.min(delay * 2, MAX_DELAY);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LineupJournalTest {
+    @Rule
+    public TemporaryFolder configDirectory = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        assertTrue(Config.setConfigDirectory(configDirectory.getRoot().getAbsolutePath()));
+
+        // The journal is only started over after the properties file is written to this
+        // directory.
+        configDirectory.newFolder("lineup");
+    }
+
+    @Test
+    public void replayRestoresAppendedChanges() {
+        ChannelLineup saved = newLineup();
+        LineupJournal journal = new LineupJournal("test");
+        assertTrue(journal.reset(saved, 1));
+
+        saved.addChannel(new TVChannelImpl("5-1", "WAAA"));
+        saved.addChannel(new TVChannelImpl("7-1", "WBBB"));
+        assertTrue(journal.append(saved, Arrays.asList("5-1", "7-1")));
+
+        saved.removeChannel("5-1");
+        saved.setFriendlyName("Renamed");
+        assertTrue(journal.append(saved, Collections.singletonList("5-1")));
+
+        ChannelLineup loaded = newLineup();
+        LineupJournal loadedJournal = new LineupJournal("test");
+
+        // Two channels, the settings and the removal.
+        assertEquals(4, loadedJournal.replay(loaded, 1));
+        assertEquals(1, loadedJournal.getGeneration());
+        assertFalse(loadedJournal.needsCompaction(100));
+        assertTrue(loadedJournal.needsCompaction(4));
+
+        assertNull(loaded.getOriginalChannel("5-1"));
+        assertNotNull(loaded.getOriginalChannel("7-1"));
+        assertEquals("WBBB", loaded.getOriginalChannel("7-1").getName());
+        assertEquals("Renamed", loaded.getFriendlyName());
+        assertFalse(loadedJournal.isSettingsChanged(loaded));
+    }
+
+    @Test
+    public void replayWithoutJournalIsEmpty() {
+        LineupJournal journal = new LineupJournal("test");
+
+        assertEquals(0, journal.replay(newLineup(), 3));
+        assertEquals(3, journal.getGeneration());
+        assertFalse(journal.needsCompaction(100));
+    }
+
+    @Test
+    public void journalFromAnotherGenerationIsIgnored() {
+        ChannelLineup saved = newLineup();
+        LineupJournal journal = new LineupJournal("test");
+        assertTrue(journal.reset(saved, 1));
+
+        saved.addChannel(new TVChannelImpl("5-1", "WAAA"));
+        assertTrue(journal.append(saved, Collections.singletonList("5-1")));
+
+        // The properties file was written again, but the journal was not started over.
+        ChannelLineup loaded = newLineup();
+        LineupJournal loadedJournal = new LineupJournal("test");
+
+        assertEquals(0, loadedJournal.replay(loaded, 2));
+        assertNull(loaded.getOriginalChannel("5-1"));
+        assertTrue(loadedJournal.needsCompaction(100));
+        assertFalse(loadedJournal.append(loaded, Collections.singletonList("5-1")));
+
+        // Starting over with the new generation makes the journal usable again.
+        assertTrue(loadedJournal.reset(loaded, 2));
+        assertFalse(loadedJournal.needsCompaction(100));
+        assertEquals(0, new LineupJournal("test").replay(newLineup(), 2));
+    }
+
+    @Test
+    public void corruptRecordIsRejected() throws IOException {
+        ChannelLineup saved = newLineup();
+        LineupJournal journal = new LineupJournal("test");
+        assertTrue(journal.reset(saved, 1));
+
+        saved.addChannel(new TVChannelImpl("5-1", "WAAA"));
+        assertTrue(journal.append(saved, Collections.singletonList("5-1")));
+        long goodLength = new File(journal.FILE_NAME).length();
+
+        saved.addChannel(new TVChannelImpl("7-1", "WBBB"));
+        assertTrue(journal.append(saved, Collections.singletonList("7-1")));
+        long fullLength = new File(journal.FILE_NAME).length();
+
+        // Change the last byte of the last record so its checksum no longer matches.
+        try (RandomAccessFile file = new RandomAccessFile(journal.FILE_NAME, "rw")) {
+            file.seek(fullLength - 1);
+            int value = file.read();
+            file.seek(fullLength - 1);
+            file.write(value ^ 0xff);
+        }
+
+        ChannelLineup loaded = newLineup();
+
+        assertEquals(1, new LineupJournal("test").replay(loaded, 1));
+        assertNotNull(loaded.getOriginalChannel("5-1"));
+        assertNull(loaded.getOriginalChannel("7-1"));
+        assertEquals(goodLength, new File(journal.FILE_NAME).length());
+    }
+
+    @Test
+    public void partialRecordIsRemoved() throws IOException {
+        ChannelLineup saved = newLineup();
+        LineupJournal journal = new LineupJournal("test");
+        assertTrue(journal.reset(saved, 1));
+
+        saved.addChannel(new TVChannelImpl("5-1", "WAAA"));
+        assertTrue(journal.append(saved, Collections.singletonList("5-1")));
+        long goodLength = new File(journal.FILE_NAME).length();
+
+        saved.addChannel(new TVChannelImpl("7-1", "WBBB"));
+        assertTrue(journal.append(saved, Collections.singletonList("7-1")));
+
+        // Simulate a crash part of the way through writing the last record.
+        try (RandomAccessFile file = new RandomAccessFile(journal.FILE_NAME, "rw")) {
+            file.setLength(goodLength + 6);
+        }
+
+        ChannelLineup loaded = newLineup();
+        LineupJournal loadedJournal = new LineupJournal("test");
+
+        assertEquals(1, loadedJournal.replay(loaded, 1));
+        assertEquals(goodLength, new File(journal.FILE_NAME).length());
+
+        // New records follow the last good record.
+        loaded.addChannel(new TVChannelImpl("9-1", "WCCC"));
+        assertTrue(loadedJournal.append(loaded, Collections.singletonList("9-1")));
+
+        ChannelLineup reloaded = newLineup();
+
+        assertEquals(2, new LineupJournal("test").replay(reloaded, 1));
+        assertNotNull(reloaded.getOriginalChannel("5-1"));
+        assertNotNull(reloaded.getOriginalChannel("9-1"));
+    }
+
+    private static ChannelLineup newLineup() {
+        return new ChannelLineup("test", "Test", ChannelSourceType.STATIC, "127.0.0.1");
+    }
+}
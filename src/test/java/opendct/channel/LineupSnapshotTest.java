@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LineupSnapshotTest {
+    @Rule
+    public TemporaryFolder configDirectory = new TemporaryFolder();
+
+    private File propertiesFile;
+
+    @Before
+    public void setUp() throws IOException {
+        assertTrue(Config.setConfigDirectory(configDirectory.getRoot().getAbsolutePath()));
+
+        File lineupDirectory = configDirectory.newFolder("lineup");
+
+        // The snapshot is only used while it matches the properties file it was written with.
+        propertiesFile = new File(lineupDirectory, "test.properties");
+
+        try (FileOutputStream outputStream = new FileOutputStream(propertiesFile)) {
+            outputStream.write("lineup.friendly_name=Test\n".getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        ChannelLineup lineup = new ChannelLineup("test", "Test", ChannelSourceType.STATIC,
+                "127.0.0.1", 3600000, 7200000);
+
+        // Enough channels that the write buffer has to grow.
+        List<TVChannel> channels = new ArrayList<>();
+        for (int i = 1; i <= 2000; i++) {
+            channels.add(new TVChannelImpl(i + "-1", "Channel " + i, "QAM256",
+                    String.valueOf(57000000 + i * 6000000), String.valueOf(i), null, i % 2 == 0));
+        }
+
+        List<ChannelScanRecord> scanRecords = Collections.singletonList(
+                new ChannelScanRecord("5-1", 1234567890L, 42, true));
+
+        assertTrue(LineupSnapshot.write(lineup, channels, scanRecords, 7, propertiesFile, 99));
+
+        LineupSnapshot snapshot = LineupSnapshot.read("test");
+
+        assertNotNull(snapshot);
+        assertEquals(7, snapshot.GENERATION);
+        assertEquals(99, snapshot.PROPERTIES_CHECKSUM);
+
+        ChannelLineup loaded = snapshot.LINEUP;
+
+        assertEquals("test", loaded.LINEUP_NAME);
+        assertEquals("Test", loaded.getFriendlyName());
+        assertEquals("127.0.0.1", loaded.getAddress());
+        assertEquals(ChannelSourceType.STATIC, loaded.SOURCE);
+        assertEquals(3600000, loaded.getUpdateInterval());
+        assertEquals(7200000, loaded.getOfflineUpdateInterval());
+        assertEquals(2000, loaded.getAllChannels(true, true).size());
+
+        for (TVChannel tvChannel : channels) {
+            TVChannel loadedChannel = loaded.getOriginalChannel(tvChannel.getChannel());
+
+            assertNotNull(loadedChannel);
+            assertEquals(tvChannel.getName(), loadedChannel.getName());
+            assertEquals(tvChannel.getFrequency(), loadedChannel.getFrequency());
+            assertEquals(tvChannel.getProgram(), loadedChannel.getProgram());
+            assertEquals(tvChannel.isIgnore(), loadedChannel.isIgnore());
+        }
+
+        ChannelScanRecord scanRecord = loaded.getScanRecord("5-1");
+
+        assertNotNull(scanRecord);
+        assertEquals(1234567890L, scanRecord.LAST_SCANNED);
+        assertEquals(42, scanRecord.CHANNEL_HASH);
+        assertTrue(scanRecord.FAILED);
+    }
+
+    @Test
+    public void missingSnapshotIsNotRead() {
+        assertNull(LineupSnapshot.read("test"));
+        assertTrue(LineupSnapshot.delete("test"));
+    }
+
+    @Test
+    public void truncatedSnapshotIsNotRead() throws IOException {
+        writeSnapshot();
+        File file = new File(LineupSnapshot.getFileName("test"));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() / 2);
+        }
+
+        assertNull(LineupSnapshot.read("test"));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(20);
+        }
+
+        assertNull(LineupSnapshot.read("test"));
+    }
+
+    @Test
+    public void corruptSnapshotIsNotRead() throws IOException {
+        writeSnapshot();
+        File file = new File(LineupSnapshot.getFileName("test"));
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            long position = randomAccessFile.length() / 2;
+            randomAccessFile.seek(position);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(value ^ 0xff);
+        }
+
+        assertNull(LineupSnapshot.read("test"));
+    }
+
+    @Test
+    public void changedPropertiesFileIsNotRead() throws IOException {
+        writeSnapshot();
+        assertNotNull(LineupSnapshot.read("test"));
+
+        try (FileOutputStream outputStream = new FileOutputStream(propertiesFile, true)) {
+            outputStream.write("channel.5-1=changed\n".getBytes("UTF-8"));
+        }
+
+        assertNull(LineupSnapshot.read("test"));
+    }
+
+    @Test
+    public void deletedSnapshotIsNotRead() {
+        writeSnapshot();
+
+        assertTrue(LineupSnapshot.delete("test"));
+        assertFalse(new File(LineupSnapshot.getFileName("test")).exists());
+        assertNull(LineupSnapshot.read("test"));
+    }
+
+    @Test
+    public void propertiesChecksumIgnoresOrder() {
+        Map<String, String> channels = new HashMap<>();
+        Map<String, String> reversed = new HashMap<>();
+
+        for (int i = 0; i < 100; i++) {
+            channels.put(String.valueOf(i), "value" + i);
+        }
+
+        for (int i = 99; i >= 0; i--) {
+            reversed.put(String.valueOf(i), "value" + i);
+        }
+
+        Map<String, String> scans = Collections.emptyMap();
+        long checksum = LineupSnapshot.getPropertiesChecksum(channels, scans);
+
+        assertEquals(checksum, LineupSnapshot.getPropertiesChecksum(reversed, scans));
+
+        reversed.put("50", "changed");
+
+        assertFalse(checksum == LineupSnapshot.getPropertiesChecksum(reversed, scans));
+    }
+
+    private void writeSnapshot() {
+        ChannelLineup lineup = new ChannelLineup("test", "Test", ChannelSourceType.STATIC, "127.0.0.1");
+        List<TVChannel> channels = new ArrayList<>();
+
+        for (int i = 1; i <= 10; i++) {
+            channels.add(new TVChannelImpl(i + "-1", "Channel " + i));
+        }
+
+        assertTrue(LineupSnapshot.write(lineup, channels, new ArrayList<ChannelScanRecord>(),
+                1, propertiesFile, 0));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.channel;
+
+import opendct.config.Config;
+import opendct.config.ConfigBag;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TuningCacheTest {
+    // The cache is shared by everything in the JVM, so every test uses its own lineup.
+    private static int nextLineup = 0;
+
+    @Rule
+    public TemporaryFolder configDirectory = new TemporaryFolder();
+
+    private String lineup;
+
+    @Before
+    public void setUp() {
+        assertTrue(Config.setConfigDirectory(configDirectory.getRoot().getAbsolutePath()));
+        lineup = "test" + nextLineup++;
+    }
+
+    @Test
+    public void storedValuesAreReturned() {
+        TuningCache.put(lineup, "5-1", "qam256", "591000000", 3, new int[] { 0x31, 0x32, 0x34 });
+
+        TuningCache.TuningInfo tuningInfo = TuningCache.getFresh(lineup, "5-1");
+
+        assertNotNull(tuningInfo);
+        assertEquals("qam256", tuningInfo.MODULATION);
+        assertEquals("591000000", tuningInfo.FREQUENCY);
+        assertEquals(3, tuningInfo.PROGRAM);
+        assertArrayEquals(new int[] { 0x31, 0x32, 0x34 }, tuningInfo.PIDS);
+        assertTrue(tuningInfo.isDirectTunable());
+
+        assertNull(TuningCache.getFresh(lineup, "7-1"));
+        assertNull(TuningCache.getFresh(lineup + "other", "5-1"));
+    }
+
+    @Test
+    public void incompleteValuesAreNotStored() {
+        TuningCache.put(lineup, "5-1", "qam256", "591000000", 0, new int[] { 0x31, 0x32 });
+        TuningCache.put(lineup, "6-1", "qam256", "591000000", 3, null);
+        TuningCache.put(lineup, "7-1", "qam256", "591000000", 3, new int[] { 0x31 });
+
+        assertNull(TuningCache.getFresh(lineup, "5-1"));
+        assertNull(TuningCache.getFresh(lineup, "6-1"));
+        assertNull(TuningCache.getFresh(lineup, "7-1"));
+
+        // Without a frequency, the values are still useful, but the channel can't be tuned
+        // directly.
+        TuningCache.put(lineup, "8-1", null, null, 3, new int[] { 0x31, 0x32 });
+
+        assertFalse(TuningCache.getFresh(lineup, "8-1").isDirectTunable());
+    }
+
+    @Test
+    public void matchingValuesAreVerified() {
+        TuningCache.put(lineup, "5-1", "qam256", "591000000", 3, new int[] { 0x31, 0x32 });
+        TuningCache.TuningInfo tuningInfo = TuningCache.getFresh(lineup, "5-1");
+
+        assertTrue(TuningCache.verify(lineup, "5-1", tuningInfo, 3, new int[] { 0x31, 0x32 }));
+        assertNotNull(TuningCache.getFresh(lineup, "5-1"));
+    }
+
+    @Test
+    public void mismatchedValuesAreInvalidated() {
+        TuningCache.put(lineup, "5-1", "qam256", "591000000", 3, new int[] { 0x31, 0x32 });
+        TuningCache.put(lineup, "7-1", "qam256", "591000000", 4, new int[] { 0x41, 0x42 });
+
+        TuningCache.TuningInfo tuningInfo = TuningCache.getFresh(lineup, "5-1");
+
+        assertFalse(TuningCache.verify(lineup, "5-1", tuningInfo, 3, new int[] { 0x31, 0x33 }));
+        assertNull(TuningCache.getFresh(lineup, "5-1"));
+
+        tuningInfo = TuningCache.getFresh(lineup, "7-1");
+
+        assertFalse(TuningCache.verify(lineup, "7-1", tuningInfo, 5, new int[] { 0x41, 0x42 }));
+        assertNull(TuningCache.getFresh(lineup, "7-1"));
+    }
+
+    @Test
+    public void invalidatedValuesAreRemoved() {
+        TuningCache.put(lineup, "5-1", "qam256", "591000000", 3, new int[] { 0x31, 0x32 });
+        TuningCache.put(lineup, "7-1", "qam256", "597000000", 4, new int[] { 0x41, 0x42 });
+
+        TuningCache.invalidate(lineup, "5-1");
+
+        assertNull(TuningCache.getFresh(lineup, "5-1"));
+        assertNotNull(TuningCache.getFresh(lineup, "7-1"));
+
+        // Nothing happens for unknown channels.
+        TuningCache.invalidate(lineup, "9-1");
+        TuningCache.invalidate(null, "7-1");
+
+        assertNotNull(TuningCache.getFresh(lineup, "7-1"));
+    }
+
+    @Test
+    public void expiredValuesAreNotReturned() {
+        ConfigBag configBag = new ConfigBag("tuning_cache", false);
+        configBag.setStringArray("channel." + lineup + "|5-1", "qam256", "591000000", "3", "1000", "49", "50");
+        configBag.setStringArray("channel." + lineup + "|7-1", "qam256", "597000000", "4",
+                String.valueOf(System.currentTimeMillis()), "65", "66");
+        assertTrue(configBag.saveConfig());
+
+        TuningCache.load();
+
+        assertNull(TuningCache.getFresh(lineup, "5-1"));
+        assertNotNull(TuningCache.getFresh(lineup, "7-1"));
+
+        // Expired values are dropped the next time the cache is saved.
+        TuningCache.put(lineup, "9-1", "qam256", "603000000", 5, new int[] { 0x51, 0x52 });
+        assertTrue(TuningCache.save());
+
+        configBag = new ConfigBag("tuning_cache", false);
+        assertTrue(configBag.loadConfig());
+
+        assertNull(configBag.getString("channel." + lineup + "|5-1", null));
+        assertNotNull(configBag.getString("channel." + lineup + "|7-1", null));
+        assertNotNull(configBag.getString("channel." + lineup + "|9-1", null));
+    }
+
+    @Test
+    public void savedValuesAreLoaded() {
+        TuningCache.put(lineup, "5-1", null, "591000000", 3, new int[] { 0x31, 0x32, 0x34 });
+        assertTrue(TuningCache.save());
+
+        TuningCache.invalidate(lineup, "5-1");
+        assertNull(TuningCache.getFresh(lineup, "5-1"));
+
+        TuningCache.load();
+        TuningCache.TuningInfo tuningInfo = TuningCache.getFresh(lineup, "5-1");
+
+        assertNotNull(tuningInfo);
+        assertNull(tuningInfo.MODULATION);
+        assertEquals("591000000", tuningInfo.FREQUENCY);
+        assertEquals(3, tuningInfo.PROGRAM);
+        assertArrayEquals(new int[] { 0x31, 0x32, 0x34 }, tuningInfo.PIDS);
+    }
+
+    @Test
+    public void lineupValuesAreCompared() {
+        TuningCache.TuningInfo tuningInfo =
+                new TuningCache.TuningInfo("QAM256", "591000000", 3, new int[] { 0x31, 0x32 }, 0);
+
+        assertTrue(tuningInfo.isConsistent(null));
+        assertTrue(tuningInfo.isConsistent(new TVChannelImpl("5-1", "WAAA")));
+        assertTrue(tuningInfo.isConsistent(
+                new TVChannelImpl("5-1", "WAAA", "QAM256", "591000000", "3", null, false)));
+        assertTrue(tuningInfo.isConsistent(
+                new TVChannelImpl("5-1", "WAAA", "QAM256", "591000000", "-1", null, false)));
+        assertFalse(tuningInfo.isConsistent(
+                new TVChannelImpl("5-1", "WAAA", "QAM256", "597000000", "3", null, false)));
+        assertFalse(tuningInfo.isConsistent(
+                new TVChannelImpl("5-1", "WAAA", "QAM256", "591000000", "4", null, false)));
+    }
+}
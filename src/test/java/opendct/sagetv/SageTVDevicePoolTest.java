@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SageTVDevicePoolTest {
+
+    @Test
+    public void claimsInOrderOfMerit() {
+        TestPool pool = new TestPool();
+        FakeDevice low = pool.add("low", 1);
+        FakeDevice high = pool.add("high", 5);
+
+        assertSame(high.device, pool.claimBestCaptureDevice());
+        assertSame(low.device, pool.claimBestCaptureDevice());
+        assertNull(pool.claimBestCaptureDevice());
+
+        assertTrue(high.locked.get());
+        assertTrue(low.locked.get());
+    }
+
+    @Test
+    public void releasedDeviceIsClaimedLast() {
+        TestPool pool = new TestPool();
+        FakeDevice first = pool.add("first", 0);
+        FakeDevice second = pool.add("second", 0);
+
+        assertSame(first.device, pool.claimBestCaptureDevice());
+        first.release(pool);
+
+        // The least recently used capture device with the same merit is preferred.
+        assertSame(second.device, pool.claimBestCaptureDevice());
+        assertSame(first.device, pool.claimBestCaptureDevice());
+        assertNull(pool.claimBestCaptureDevice());
+    }
+
+    @Test
+    public void deviceUnlockedWithoutReleaseIsFound() {
+        TestPool pool = new TestPool();
+        FakeDevice device = pool.add("device", 0);
+
+        assertSame(device.device, pool.claimBestCaptureDevice());
+        assertNull(pool.claimBestCaptureDevice());
+
+        device.locked.set(false);
+
+        assertSame(device.device, pool.claimBestCaptureDevice());
+    }
+
+    @Test
+    public void lockedDevicesAreSkipped() {
+        TestPool pool = new TestPool();
+        FakeDevice busy = pool.add("busy", 5);
+        FakeDevice free = pool.add("free", 1);
+        busy.locked.set(true);
+
+        assertSame(free.device, pool.claimBestCaptureDevice());
+        assertNull(pool.claimBestCaptureDevice());
+    }
+
+    @Test
+    public void externallyLockedDevicesAreUsedLast() {
+        TestPool pool = new TestPool();
+        FakeDevice external = pool.add("external", 5);
+        FakeDevice free = pool.add("free", 1);
+        external.externalLocked = true;
+
+        assertSame(free.device, pool.claimBestCaptureDevice());
+        assertSame(external.device, pool.claimBestCaptureDevice());
+        assertFalse(external.externalLocked);
+        assertNull(pool.claimBestCaptureDevice());
+    }
+
+    @Test
+    public void channelAffinityIsPreferredOverMerit() {
+        TestPool pool = new TestPool();
+        pool.add("high", 5);
+        FakeDevice tuned = pool.add("tuned", 1);
+        tuned.lastChannel = "5-1";
+
+        assertSame(tuned.device, pool.claimBestCaptureDevice("5-1"));
+    }
+
+    @Test
+    public void removedDeviceIsNotClaimed() {
+        TestPool pool = new TestPool();
+        pool.add("removed", 5);
+        FakeDevice kept = pool.add("kept", 1);
+
+        assertTrue(pool.removeCaptureDevice("removed"));
+        assertFalse(pool.removeCaptureDevice("removed"));
+        assertFalse(pool.addCaptureDevice("kept"));
+
+        assertSame(kept.device, pool.claimBestCaptureDevice());
+        assertNull(pool.claimBestCaptureDevice());
+    }
+
+    @Test(timeout = 30000)
+    public void contendedClaimsNeverShareADevice() throws Exception {
+        final int deviceCount = 8;
+        final int threadCount = 16;
+        final TestPool pool = new TestPool();
+        final Map<CaptureDevice, FakeDevice> devices = new HashMap<>();
+
+        for (int i = 0; i < deviceCount; i++) {
+            FakeDevice device = pool.add("device" + i, i % 3);
+            devices.put(device.device, device);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        try {
+            for (int round = 0; round < 200; round++) {
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<CaptureDevice>> futures = new ArrayList<>();
+
+                for (int i = 0; i < threadCount; i++) {
+                    futures.add(executor.submit(new Callable<CaptureDevice>() {
+                        @Override
+                        public CaptureDevice call() throws Exception {
+                            start.await();
+                            return pool.claimBestCaptureDevice();
+                        }
+                    }));
+                }
+
+                start.countDown();
+
+                Set<CaptureDevice> claimed = new HashSet<>();
+                int misses = 0;
+
+                for (Future<CaptureDevice> future : futures) {
+                    CaptureDevice captureDevice = future.get(10, TimeUnit.SECONDS);
+
+                    if (captureDevice == null) {
+                        misses += 1;
+                    } else {
+                        assertTrue("Claimed twice in round " + round, claimed.add(captureDevice));
+                    }
+                }
+
+                assertEquals(deviceCount, claimed.size());
+                assertEquals(threadCount - deviceCount, misses);
+
+                for (CaptureDevice captureDevice : claimed) {
+                    devices.get(captureDevice).release(pool);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class TestPool extends SageTVDevicePool {
+        private final Map<String, FakeDevice> devices = new HashMap<>();
+
+        private TestPool() {
+            super("test");
+        }
+
+        private FakeDevice add(String name, int merit) {
+            FakeDevice device = new FakeDevice(name, merit);
+            devices.put(name, device);
+            addCaptureDevice(name);
+            return device;
+        }
+
+        @Override
+        CaptureDevice getCaptureDevice(String captureDevice) {
+            FakeDevice device = devices.get(captureDevice);
+            return device == null ? null : device.device;
+        }
+    }
+
+    private static class FakeDevice implements InvocationHandler {
+        private final String name;
+        private final int merit;
+        private final AtomicBoolean locked = new AtomicBoolean(false);
+        private volatile boolean externalLocked = false;
+        private volatile String lastChannel = null;
+        private final CaptureDevice device;
+
+        private FakeDevice(String name, int merit) {
+            this.name = name;
+            this.merit = merit;
+
+            device = (CaptureDevice) Proxy.newProxyInstance(CaptureDevice.class.getClassLoader(),
+                    new Class<?>[] { CaptureDevice.class }, this);
+        }
+
+        private void release(SageTVDevicePool pool) {
+            locked.set(false);
+            pool.released(name);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getEncoderName":
+                case "toString":
+                    return name;
+                case "getMerit":
+                    return merit;
+                case "isLocked":
+                    return locked.get();
+                case "setLocked":
+                    boolean lock = (Boolean) args[0];
+                    return locked.compareAndSet(!lock, lock) || !lock;
+                case "isExternalLocked":
+                    return externalLocked;
+                case "setExternalLock":
+                    externalLocked = (Boolean) args[0];
+                    return true;
+                case "getLastChannel":
+                    return lastChannel;
+                case "getChannelLineup":
+                    return "test";
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+            }
+
+            Class<?> returnType = method.getReturnType();
+
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.tuning.hdhomerun.returns.HDHomeRunStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HDHomeRunControlTest {
+    private HDHomeRunSimulator simulator;
+    private HDHomeRunSimulator.SimulatedDevice simulated;
+    private HDHomeRunDevice device;
+    private HDHomeRunControl control;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HDHomeRunSimulator(InetAddress.getByName("127.0.0.1"), 0);
+        simulator.setTuneDelay(0);
+        simulated = simulator.addDevice(InetAddress.getByName("127.0.2.2"), 4, false);
+        simulator.start();
+
+        device = new HDHomeRunDevice(simulated.ADDRESS, HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER,
+                simulated.DEVICE_ID, simulated.getTunerCount(), false, null, null);
+        control = new HDHomeRunControl();
+    }
+
+    @After
+    public void tearDown() {
+        control.closeSocket();
+        device.CONTROL.closeSocket();
+        HDHomeRunStatusPoller.removeAllPollers();
+        simulator.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void systemVariables() throws Exception {
+        assertEquals("HDHR4-2US", device.getSysHwModel());
+        assertEquals("hdhomerun4_atsc", device.getSysModel());
+        assertEquals("20150826", device.getSysVersion());
+        assertFalse(device.isCableCardTuner());
+
+        HDHomeRunSimulator.SimulatedDevice cableCard =
+                simulator.addDevice(InetAddress.getByName("127.0.2.3"), 2, true);
+        HDHomeRunDevice cableCardDevice = new HDHomeRunDevice(cableCard.ADDRESS);
+
+        try {
+            assertEquals("HDHR3-CC", cableCardDevice.getSysHwModel());
+            assertTrue(cableCardDevice.isCableCardTuner());
+            assertTrue(cableCardDevice.getCardStatus().startsWith("card=ready"));
+        } finally {
+            cableCardDevice.CONTROL.closeSocket();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void tuningUpdatesStatus() throws Exception {
+        HDHomeRunTuner tuner = new HDHomeRunTuner(device, 1);
+
+        tuner.setChannel("QAM256", "615000000", false);
+        assertEquals("qam256:615000000", tuner.getChannel());
+
+        HDHomeRunStatus status = tuner.getStatus();
+
+        assertEquals("qam256:615000000", status.CHANNEL);
+        assertEquals("qam256", status.LOCK_STR);
+        assertEquals(98, status.SIGNAL_STRENGTH);
+        assertTrue(status.SIGNAL_PRESENT);
+
+        tuner.setProgram("3");
+        assertEquals(3, tuner.getProgram());
+
+        tuner.clearChannel();
+        assertEquals("none", tuner.getStatus().CHANNEL);
+        assertEquals(0, tuner.getProgram());
+
+        // Only the tuner that was changed is tuned.
+        assertEquals("none", new HDHomeRunTuner(device, 0).getChannel());
+    }
+
+    @Test(timeout = 10000)
+    public void errorsAreThrown() throws Exception {
+        try {
+            control.getVariable(simulated.ADDRESS, "/tuner0/unknown");
+            fail("An unknown variable was returned.");
+        } catch (GetSetException e) {
+            assertEquals("ERROR: unknown getset variable", e.getMessage());
+        }
+
+        try {
+            control.setVariable(simulated.ADDRESS, "/tuner0/program", "3");
+            fail("A program was set without a channel.");
+        } catch (GetSetException e) {
+            assertEquals("ERROR: program not found", e.getMessage());
+        }
+
+        simulator.setErrorRate(1);
+
+        try {
+            control.getVariable(simulated.ADDRESS, "/sys/model");
+            fail("A value was returned instead of an error.");
+        } catch (GetSetException e) {
+            assertEquals("ERROR: simulated failure", e.getMessage());
+        }
+
+        // An error reply doesn't affect the connection.
+        simulator.setErrorRate(0);
+        assertEquals("hdhomerun4_atsc", control.getVariable(simulated.ADDRESS, "/sys/model"));
+    }
+
+    @Test(timeout = 10000)
+    public void lockkeyProtectsTuner() throws Exception {
+        HDHomeRunTuner owner = new HDHomeRunTuner(device, 0);
+        HDHomeRunTuner other = new HDHomeRunTuner(device, 0, control);
+
+        owner.setLockkey(1234);
+        assertTrue(owner.isLocked());
+
+        // The owner sends the lockkey with every change.
+        owner.setChannel("qam256", "615000000", false);
+
+        try {
+            other.setChannel("qam256", "621000000", false);
+            fail("A locked tuner was changed without the lockkey.");
+        } catch (GetSetException e) {
+            assertTrue(e.getMessage().startsWith("ERROR: resource locked by"));
+        }
+
+        assertEquals("qam256:615000000", owner.getChannel());
+
+        other.forceClearLockkey();
+        assertFalse(owner.isLocked());
+
+        other.setChannel("qam256", "621000000", false);
+        assertEquals("qam256:621000000", owner.getChannel());
+    }
+
+    @Test(timeout = 20000)
+    public void concurrentRequestsGetTheirOwnReplies() throws Exception {
+        final int tunerCount = simulated.getTunerCount();
+
+        for (int i = 0; i < tunerCount; i++) {
+            control.setVariable(simulated.ADDRESS, "/tuner" + i + "/channel",
+                    "qam256:" + (57000000 + i * 6000000));
+        }
+
+        // Replies are matched to requests by their order on the connection, so uneven latency
+        // will expose any reply that is given to the wrong request.
+        simulator.setLatency(0, 5);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        try {
+            for (int i = 0; i < 8; i++) {
+                final int tuner = i % tunerCount;
+
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        String expected = "qam256:" + (57000000 + tuner * 6000000);
+
+                        for (int j = 0; j < 20; j++) {
+                            if (!expected.equals(control.getVariable(
+                                    simulated.ADDRESS, "/tuner" + tuner + "/channel"))) {
+
+                                return false;
+                            }
+                        }
+
+                        return true;
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void droppedReplyClosesConnection() throws Exception {
+        assertEquals("hdhomerun4_atsc", control.getVariable(simulated.ADDRESS, "/sys/model"));
+
+        simulator.setDropRate(1);
+        assertNull(control.getVariable(simulated.ADDRESS, "/sys/model"));
+
+        // The late reply would be matched to the wrong request, so a new connection is used.
+        simulator.setDropRate(0);
+        assertEquals("HDHR4-2US", control.getVariable(simulated.ADDRESS, "/sys/hwmodel"));
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectsAfterDeviceIsOffline() throws Exception {
+        assertEquals("hdhomerun4_atsc", control.getVariable(simulated.ADDRESS, "/sys/model"));
+
+        simulated.setOnline(false);
+
+        try {
+            control.getVariable(simulated.ADDRESS, "/sys/model");
+            fail("A value was returned by an offline device.");
+        } catch (IOException e) {
+            // The device closed the connection.
+        }
+
+        simulated.setOnline(true);
+        assertEquals("hdhomerun4_atsc", control.getVariable(simulated.ADDRESS, "/sys/model"));
+    }
+
+    @Test(timeout = 10000)
+    public void streamsToUdpTarget() throws Exception {
+        HDHomeRunTuner tuner = new HDHomeRunTuner(device, 0);
+
+        try (DatagramSocket receiver = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0))) {
+
+            receiver.setSoTimeout(5000);
+
+            String target = "udp://127.0.0.1:" + receiver.getLocalPort();
+            tuner.setChannel("qam256", "615000000", false);
+            tuner.setTarget(new URI(target));
+            assertEquals(target, tuner.getTarget());
+
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            receiver.receive(packet);
+
+            // The stream comes from the device, seven transport stream packets at a time.
+            assertEquals(simulated.ADDRESS, packet.getAddress());
+            assertEquals(188 * 7, packet.getLength());
+
+            for (int i = 0; i < 7; i++) {
+                assertEquals(0x47, packet.getData()[i * 188] & 0xff);
+            }
+
+            assertTrue(tuner.getStatus().PACKETS_PER_SECOND > 0);
+
+            tuner.clearTarget();
+            assertEquals("none", tuner.getTarget());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void streamsToRtpTarget() throws Exception {
+        HDHomeRunTuner tuner = new HDHomeRunTuner(device, 2);
+
+        try (DatagramSocket receiver = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0))) {
+
+            receiver.setSoTimeout(5000);
+
+            tuner.setChannel("qam256", "615000000", false);
+            tuner.setTarget("rtp://127.0.0.1:" + receiver.getLocalPort());
+
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            receiver.receive(packet);
+
+            byte data[] = packet.getData();
+            int sequence = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+
+            // RTP version 2 with the MPEG-2 transport stream payload type.
+            assertEquals(12 + 188 * 7, packet.getLength());
+            assertEquals(0x80, data[0] & 0xff);
+            assertEquals(33, data[1] & 0xff);
+            assertEquals(0x47, data[12] & 0xff);
+
+            receiver.receive(packet);
+            assertEquals((sequence + 1) & 0xffff, ((data[2] & 0xff) << 8) | (data[3] & 0xff));
+
+            tuner.clearTarget();
+        }
+    }
+}
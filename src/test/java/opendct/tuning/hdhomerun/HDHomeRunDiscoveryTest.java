@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HDHomeRunDiscoveryTest {
+    private final BlockingQueue<HDHomeRunDevice> addedDevices =
+            new LinkedBlockingQueue<HDHomeRunDevice>();
+
+    private HDHomeRunSimulator simulator;
+    private HDHomeRunDiscovery discovery;
+
+    @Before
+    public void setUp() throws IOException {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+
+        simulator = new HDHomeRunSimulator(localhost, 0);
+        simulator.start();
+
+        discovery = new HDHomeRunDiscovery(localhost, simulator.getDiscoveryPort());
+        discovery.addListener(new HDHomeRunDeviceListener() {
+            @Override
+            public void deviceAdded(HDHomeRunDevice device) {
+                addedDevices.add(device);
+            }
+
+            @Override
+            public void deviceAddressChanged(HDHomeRunDevice device, InetAddress oldAddress) {
+            }
+
+            @Override
+            public void deviceLost(HDHomeRunDevice device) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        discovery.stop();
+        simulator.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void discoversEveryDevice() throws Exception {
+        HDHomeRunSimulator.SimulatedDevice first =
+                simulator.addDevice(InetAddress.getByName("127.0.1.2"), 2, false);
+        HDHomeRunSimulator.SimulatedDevice second =
+                simulator.addDevice(InetAddress.getByName("127.0.1.3"), 4, true);
+
+        discovery.start();
+
+        addedDevices.take();
+        addedDevices.take();
+
+        for (HDHomeRunSimulator.SimulatedDevice simulated : simulator.getDevices()) {
+            HDHomeRunDevice device = discovery.getDevice(simulated.DEVICE_ID);
+
+            assertNotNull(device);
+            assertEquals(simulated.ADDRESS, device.getIpAddress());
+            assertEquals(simulated.getTunerCount(), device.getTunerCount());
+            assertEquals(HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER, device.getDeviceType());
+            assertEquals("http://" + simulated.ADDRESS.getHostAddress() + ":80",
+                    device.getBaseUrl().toString());
+            assertFalse(discovery.isLost(simulated.DEVICE_ID));
+        }
+
+        assertFalse(first.DEVICE_ID == second.DEVICE_ID);
+
+        // Every later broadcast is answered by the same devices, so they are not added again.
+        Thread.sleep(1000);
+        assertTrue(addedDevices.isEmpty());
+    }
+
+    @Test(timeout = 15000)
+    public void offlineDeviceIsAddedWhenItComesOnline() throws Exception {
+        HDHomeRunSimulator.SimulatedDevice online =
+                simulator.addDevice(InetAddress.getByName("127.0.1.2"), 2, false);
+        HDHomeRunSimulator.SimulatedDevice offline =
+                simulator.addDevice(InetAddress.getByName("127.0.1.3"), 2, false);
+        offline.setOnline(false);
+
+        discovery.start();
+
+        assertEquals(online.DEVICE_ID, addedDevices.take().getDeviceId());
+
+        Thread.sleep(1000);
+        assertNull(discovery.getDevice(offline.DEVICE_ID));
+
+        offline.setOnline(true);
+
+        assertEquals(offline.DEVICE_ID, addedDevices.take().getDeviceId());
+        assertTrue(addedDevices.isEmpty());
+    }
+}
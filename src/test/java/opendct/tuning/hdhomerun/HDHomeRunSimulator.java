@@ -0,0 +1,1237 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.config.Config;
+import opendct.tuning.hdhomerun.types.HDHomeRunPacketTag;
+import opendct.tuning.hdhomerun.types.HDHomeRunPacketType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates HDHomeRun devices so discovery, control and streaming can be tested without any
+ * SiliconDust hardware.
+ * <p/>
+ * Every simulated device answers discovery requests and get/set requests using the same packets
+ * as a real device and sends a synthetic transport stream to the target of each tuner once a
+ * channel and target are set. Each device needs its own IP address so it can listen on the
+ * control port. On Linux every address in 127.0.0.0/8 is already on the loopback interface, so
+ * devices are given the addresses 127.0.0.2, 127.0.0.3 and so on by default.
+ * <p/>
+ * Discovery requests are received on one address shared by all of the simulated devices. To
+ * discover the simulated devices, set <b>hdhr.discovery.broadcast_address</b> to that address.
+ * <p/>
+ * Latency can be added to every reply and a percentage of requests can be dropped or answered
+ * with an error so the behavior of the control connection can be tested under poor conditions.
+ * Devices can also be taken offline and brought back online.
+ * <p/>
+ * This is only used for testing. Tests create it directly and it can also be run on its own with
+ * <b>main()</b> so a normal instance of OpenDCT on the same computer can discover it.
+ */
+public class HDHomeRunSimulator {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunSimulator.class);
+
+    // Every simulated device ID starts with this value. The last digit is the checksum.
+    private static final int DEVICE_ID_BASE = 0x13D00000;
+    private static final AtomicInteger nextDeviceId = new AtomicInteger(1);
+
+    // Streams are sent in bursts on this interval to keep the number of scheduled tasks down when
+    // there are a lot of tuners.
+    private static final long STREAM_INTERVAL_MS = 5;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PACKETS_PER_DATAGRAM = 7;
+    private static final int RTP_HEADER_SIZE = 12;
+
+    private static final int PMT_PID = 0x30;
+    private static final int VIDEO_PID = 0x31;
+    private static final int AUDIO_PID = 0x34;
+
+    private static final ScheduledExecutorService simulatorExecutor =
+            Executors.newScheduledThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable);
+                            thread.setName("HDHomeRunSimulator-" + thread.getId());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+    public final InetSocketAddress DISCOVERY_SOCKET;
+
+    private final CopyOnWriteArrayList<SimulatedDevice> devices =
+            new CopyOnWriteArrayList<SimulatedDevice>();
+
+    private volatile long minLatency = 0;
+    private volatile long maxLatency = 0;
+    private volatile double dropRate = 0;
+    private volatile double errorRate = 0;
+    private volatile long tuneDelay = 200;
+    private volatile long bitrate = 19390000;
+
+    private DatagramChannel discoveryChannel;
+    private Thread discoveryThread;
+
+    /**
+     * Create a new simulator.
+     *
+     * @param discoveryAddress This is the address that will receive discovery requests.
+     * @param discoveryPort This is the port that will receive discovery requests.
+     */
+    public HDHomeRunSimulator(InetAddress discoveryAddress, int discoveryPort) {
+        DISCOVERY_SOCKET = new InetSocketAddress(discoveryAddress, discoveryPort);
+    }
+
+    /**
+     * Run simulated devices until this process is stopped.
+     * <p/>
+     * The first argument is the number of devices and the second argument is the number of tuners
+     * on each device. Both default to 2. Everything else is read from the <b>hdhr.simulator.*</b>
+     * properties.
+     *
+     * @param args The number of devices and the number of tuners on each device.
+     * @throws Exception Thrown if the simulator could not be started.
+     */
+    public static void main(String args[]) throws Exception {
+        int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int tunerCount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        final HDHomeRunSimulator simulator = start(deviceCount, tunerCount);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("HDHomeRunSimulatorShutdown") {
+            @Override
+            public void run() {
+                logger.info("Stopping simulated HDHomeRun devices...");
+                simulator.stop();
+            }
+        });
+
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Create and start simulated devices using the configuration.
+     *
+     * @param deviceCount This is the number of devices to start.
+     * @param tunerCount This is the number of tuners on each device.
+     * @return The running simulator.
+     * @throws IOException Thrown if a device could not listen on its address.
+     */
+    public static HDHomeRunSimulator start(int deviceCount, int tunerCount) throws IOException {
+        deviceCount = Math.max(deviceCount, 1);
+        tunerCount = Math.max(tunerCount, 1);
+        boolean cableCard = Config.getBoolean("hdhr.simulator.cablecard", false);
+
+        InetAddress firstAddress;
+        InetAddress discoveryAddress;
+
+        try {
+            firstAddress = Config.getInetAddress("hdhr.simulator.first_address",
+                    InetAddress.getByName("127.0.0.2"));
+
+            discoveryAddress = Config.getInetAddress("hdhr.simulator.discovery_address",
+                    InetAddress.getByName("127.0.0.1"));
+        } catch (UnknownHostException e) {
+            throw new IOException(e);
+        }
+
+        HDHomeRunSimulator simulator = new HDHomeRunSimulator(discoveryAddress,
+                HDHomeRunPacket.HDHOMERUN_DISCOVER_UDP_PORT);
+
+        simulator.setLatency(Config.getLong("hdhr.simulator.min_latency_ms", 0),
+                Config.getLong("hdhr.simulator.max_latency_ms", 0));
+        simulator.setDropRate(Config.getDouble("hdhr.simulator.drop_rate", 0));
+        simulator.setErrorRate(Config.getDouble("hdhr.simulator.error_rate", 0));
+        simulator.setTuneDelay(Config.getLong("hdhr.simulator.tune_delay_ms", 200));
+        simulator.setBitrate(Config.getLong("hdhr.simulator.bitrate", 19390000));
+
+        byte address[] = firstAddress.getAddress();
+
+        try {
+            for (int i = 0; i < deviceCount; i++) {
+                simulator.addDevice(InetAddress.getByAddress(address), tunerCount, cableCard);
+                incrementAddress(address);
+            }
+
+            simulator.start();
+        } catch (IOException e) {
+            simulator.stop();
+            throw e;
+        }
+
+        return simulator;
+    }
+
+    private static void incrementAddress(byte address[]) {
+        for (int i = address.length - 1; i >= 0; i--) {
+            address[i] += 1;
+
+            if (address[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add a simulated device.
+     * <p/>
+     * If the simulator is already running, the device is started immediately.
+     *
+     * @param address This is the address the device will use. It must be available on this
+     *                computer and can't be used by any other device.
+     * @param tunerCount This is the number of tuners on the device.
+     * @param cableCard <i>true</i> if the device should present itself as a CableCARD device.
+     * @return The new device.
+     * @throws IOException Thrown if the device could not listen on its address.
+     */
+    public synchronized SimulatedDevice addDevice(InetAddress address, int tunerCount, boolean cableCard) throws IOException {
+        SimulatedDevice device = new SimulatedDevice(getNextDeviceId(), address, tunerCount, cableCard);
+
+        if (discoveryThread != null) {
+            device.start();
+        }
+
+        devices.add(device);
+
+        return device;
+    }
+
+    private static int getNextDeviceId() {
+        int deviceId = DEVICE_ID_BASE | ((nextDeviceId.getAndIncrement() & 0xFFFF) << 4);
+
+        for (int checksum = 0; checksum < 16; checksum++) {
+            if (HDHomeRunDiscovery.validateDeviceId(deviceId | checksum)) {
+                return deviceId | checksum;
+            }
+        }
+
+        return deviceId;
+    }
+
+    public List<SimulatedDevice> getDevices() {
+        return new ArrayList<SimulatedDevice>(devices);
+    }
+
+    /**
+     * Get the port that is receiving discovery requests.
+     * <p/>
+     * If the simulator was created with the port 0, this is the port that was picked when the
+     * simulator was started.
+     *
+     * @return The port or -1 if the simulator is not running.
+     */
+    public synchronized int getDiscoveryPort() {
+        if (discoveryChannel == null) {
+            return -1;
+        }
+
+        return discoveryChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Set the range of the delay added before every reply.
+     * <p/>
+     * A random delay within the range is used for each reply.
+     *
+     * @param minLatency This is the minimum delay in milliseconds.
+     * @param maxLatency This is the maximum delay in milliseconds.
+     */
+    public void setLatency(long minLatency, long maxLatency) {
+        this.minLatency = Math.max(minLatency, 0);
+        this.maxLatency = Math.max(maxLatency, this.minLatency);
+    }
+
+    /**
+     * Set the fraction of requests that will not get a reply.
+     *
+     * @param dropRate This is a value from 0 to 1.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = Math.min(Math.max(dropRate, 0), 1);
+    }
+
+    /**
+     * Set the fraction of get/set requests that will get an error instead of a value.
+     *
+     * @param errorRate This is a value from 0 to 1.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = Math.min(Math.max(errorRate, 0), 1);
+    }
+
+    /**
+     * Set how long a tuner takes to lock onto a channel.
+     * <p/>
+     * Like a real device, the program can't be set until the tuner has locked.
+     *
+     * @param tuneDelay This is the delay in milliseconds.
+     */
+    public void setTuneDelay(long tuneDelay) {
+        this.tuneDelay = Math.max(tuneDelay, 0);
+    }
+
+    /**
+     * Set the rate of the synthetic stream sent by each tuner.
+     *
+     * @param bitrate This is the rate in bits per second.
+     */
+    public void setBitrate(long bitrate) {
+        this.bitrate = Math.max(bitrate, TS_PACKET_SIZE * TS_PACKETS_PER_DATAGRAM * 8);
+    }
+
+    /**
+     * Start answering discovery requests and start all of the devices.
+     *
+     * @throws IOException Thrown if the discovery address or a device address is not available.
+     */
+    public synchronized void start() throws IOException {
+        if (discoveryThread != null) {
+            logger.warn("The HDHomeRun simulator is already running on {}.", DISCOVERY_SOCKET);
+            return;
+        }
+
+        for (SimulatedDevice device : devices) {
+            device.start();
+        }
+
+        discoveryChannel = DatagramChannel.open();
+        discoveryChannel.socket().setReuseAddress(true);
+        discoveryChannel.socket().bind(DISCOVERY_SOCKET);
+
+        discoveryThread = new Thread(new DiscoveryThread());
+        discoveryThread.setName("HDHomeRunSimulatorDiscovery-" + discoveryThread.getId());
+        discoveryThread.setDaemon(true);
+        discoveryThread.start();
+
+        logger.info("Started {} simulated HDHomeRun devices answering discovery on {}.",
+                devices.size(), DISCOVERY_SOCKET);
+    }
+
+    /**
+     * Stop answering discovery requests and stop all of the devices.
+     */
+    public synchronized void stop() {
+        if (discoveryThread != null) {
+            // Interrupting a blocking receive closes the channel, which stops the thread.
+            discoveryThread.interrupt();
+
+            try {
+                discoveryThread.join();
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted while waiting for the discovery thread to stop => ", e);
+            }
+
+            discoveryThread = null;
+        }
+
+        if (discoveryChannel != null) {
+            try {
+                discoveryChannel.close();
+            } catch (IOException e) {
+                logger.debug("Created an exception while closing the discovery channel => ", e);
+            }
+
+            discoveryChannel = null;
+        }
+
+        for (SimulatedDevice device : devices) {
+            device.stop();
+        }
+    }
+
+    private long getLatency() {
+        long min = minLatency;
+        long max = maxLatency;
+
+        if (max <= min) {
+            return min;
+        }
+
+        return min + ThreadLocalRandom.current().nextLong(max - min + 1);
+    }
+
+    private boolean isDropped() {
+        return dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate;
+    }
+
+    private boolean isError() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    private class DiscoveryThread implements Runnable {
+
+        public void run() {
+            HDHomeRunPacket rxPacket = new HDHomeRunPacket();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                rxPacket.BUFFER.clear();
+
+                final SocketAddress requester;
+                try {
+                    requester = discoveryChannel.receive(rxPacket.BUFFER);
+                } catch (ClosedChannelException e) {
+                    logger.debug("Channel was closed while receiving discovery requests => ", e);
+                    return;
+                } catch (IOException e) {
+                    logger.error("Error while receiving discovery requests => ", e);
+                    return;
+                }
+
+                rxPacket.BUFFER.flip();
+
+                if (rxPacket.BUFFER.remaining() < 8 ||
+                        rxPacket.getPacketType() != HDHomeRunPacketType.HDHOMERUN_TYPE_DISCOVER_REQ) {
+                    continue;
+                }
+
+                int packetLength = rxPacket.getPacketLength();
+
+                if (packetLength + 4 > rxPacket.BUFFER.limit()) {
+                    continue;
+                }
+
+                rxPacket.BUFFER.limit(packetLength + 4);
+
+                int deviceType = HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_WILDCARD;
+                int deviceId = HDHomeRunPacket.HDHOMERUN_DEVICE_ID_WILDCARD;
+
+                while (rxPacket.BUFFER.hasRemaining()) {
+                    HDHomeRunPacketTag tag = rxPacket.getTag();
+                    int length = rxPacket.getVariableLength();
+
+                    if (length > rxPacket.BUFFER.remaining()) {
+                        break;
+                    }
+
+                    if (tag == HDHomeRunPacketTag.HDHOMERUN_TAG_DEVICE_TYPE && length == 4) {
+                        deviceType = rxPacket.BUFFER.getInt();
+                    } else if (tag == HDHomeRunPacketTag.HDHOMERUN_TAG_DEVICE_ID && length == 4) {
+                        deviceId = rxPacket.BUFFER.getInt();
+                    } else {
+                        rxPacket.BUFFER.position(rxPacket.BUFFER.position() + length);
+                    }
+                }
+
+                if (deviceType != HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_WILDCARD &&
+                        deviceType != HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER) {
+                    continue;
+                }
+
+                for (final SimulatedDevice device : devices) {
+                    if (!device.isOnline() || isDropped() ||
+                            (deviceId != HDHomeRunPacket.HDHOMERUN_DEVICE_ID_WILDCARD &&
+                                    deviceId != device.DEVICE_ID)) {
+                        continue;
+                    }
+
+                    simulatorExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            device.sendDiscoveryReply(requester);
+                        }
+                    }, getLatency(), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * A simulated device.
+     */
+    public class SimulatedDevice {
+        public final int DEVICE_ID;
+        public final InetAddress ADDRESS;
+        public final boolean CABLECARD;
+
+        private final SimulatedTuner tuners[];
+        private final Set<Socket> clients =
+                Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+        private volatile boolean online = true;
+        private ServerSocket serverSocket;
+        private DatagramChannel replyChannel;
+        private Thread acceptThread;
+
+        private SimulatedDevice(int deviceId, InetAddress address, int tunerCount, boolean cableCard) {
+            DEVICE_ID = deviceId;
+            ADDRESS = address;
+            CABLECARD = cableCard;
+
+            tuners = new SimulatedTuner[tunerCount];
+
+            for (int i = 0; i < tuners.length; i++) {
+                tuners[i] = new SimulatedTuner(this, i);
+            }
+        }
+
+        public int getTunerCount() {
+            return tuners.length;
+        }
+
+        public boolean isOnline() {
+            return online;
+        }
+
+        /**
+         * Take the device offline or bring it back online.
+         * <p/>
+         * An offline device doesn't answer discovery requests, drops all of its control
+         * connections and stops streaming.
+         *
+         * @param online <i>false</i> to take the device offline.
+         */
+        public void setOnline(boolean online) {
+            this.online = online;
+
+            if (!online) {
+                closeClients();
+            }
+
+            logger.info("Simulated HDHomeRun device {} is now {}.",
+                    Integer.toHexString(DEVICE_ID).toUpperCase(), online ? "online" : "offline");
+        }
+
+        private synchronized void start() throws IOException {
+            if (acceptThread != null) {
+                return;
+            }
+
+            replyChannel = DatagramChannel.open();
+            replyChannel.socket().bind(new InetSocketAddress(ADDRESS, 0));
+
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(ADDRESS, HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
+
+            acceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptClients();
+                }
+            });
+            acceptThread.setName("HDHomeRunSimulatorAccept-" + acceptThread.getId());
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private synchronized void stop() {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    logger.debug("Created an exception while closing the control socket => ", e);
+                }
+            }
+
+            if (replyChannel != null) {
+                try {
+                    replyChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Created an exception while closing the reply channel => ", e);
+                }
+            }
+
+            closeClients();
+
+            for (SimulatedTuner tuner : tuners) {
+                tuner.stopStream();
+            }
+
+            if (acceptThread != null) {
+                // The control port isn't released until the thread blocked on accept() returns,
+                // so the device could not be started again right away without waiting.
+                try {
+                    acceptThread.join();
+                } catch (InterruptedException e) {
+                    logger.debug("Interrupted while waiting for the accept thread to stop => ", e);
+                }
+
+                acceptThread = null;
+            }
+        }
+
+        private void closeClients() {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    logger.debug("Created an exception while closing a control connection => ", e);
+                }
+            }
+        }
+
+        private void acceptClients() {
+            while (!serverSocket.isClosed()) {
+                final Socket client;
+
+                try {
+                    client = serverSocket.accept();
+                } catch (IOException e) {
+                    logger.debug("Stopped accepting control connections on {} => {}",
+                            ADDRESS, e.getMessage());
+                    return;
+                }
+
+                if (!online) {
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        logger.debug("Created an exception while refusing a connection => ", e);
+                    }
+                    continue;
+                }
+
+                clients.add(client);
+
+                // Requests on one connection are processed in order, just like a real device.
+                Thread clientThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serveClient(client);
+                        } finally {
+                            clients.remove(client);
+
+                            try {
+                                client.close();
+                            } catch (IOException e) {
+                                logger.debug("Created an exception while closing a control connection => ", e);
+                            }
+                        }
+                    }
+                });
+                clientThread.setName("HDHomeRunSimulatorControl-" + clientThread.getId());
+                clientThread.setDaemon(true);
+                clientThread.start();
+            }
+        }
+
+        private void serveClient(Socket client) {
+            InetAddress requester = client.getInetAddress();
+            byte request[] = new byte[HDHomeRunPacket.HDHOMERUN_MAX_PACKET_SIZE + 8];
+
+            try {
+                client.setTcpNoDelay(true);
+                DataInputStream inputStream = new DataInputStream(client.getInputStream());
+                OutputStream outputStream = client.getOutputStream();
+
+                while (online) {
+                    inputStream.readFully(request, 0, 4);
+
+                    int length = ((request[2] & 0xff) << 8) | (request[3] & 0xff);
+
+                    if (length > HDHomeRunPacket.HDHOMERUN_MAX_PAYLOAD_SIZE) {
+                        logger.warn("Simulated device {} received a request that is too long ({}).",
+                                Integer.toHexString(DEVICE_ID).toUpperCase(), length);
+                        return;
+                    }
+
+                    inputStream.readFully(request, 4, length + 4);
+
+                    int crc = ByteBuffer.wrap(request, length + 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+                    if (crc != HDHomeRunPacket.calculateCRC(ByteBuffer.wrap(request, 0, length + 4))) {
+                        logger.warn("Simulated device {} received a request with a bad CRC.",
+                                Integer.toHexString(DEVICE_ID).toUpperCase());
+                        return;
+                    }
+
+                    ByteBuffer reply = processRequest(requester, ByteBuffer.wrap(request, 0, length + 4));
+
+                    long latency = getLatency();
+                    if (latency > 0) {
+                        Thread.sleep(latency);
+                    }
+
+                    if (reply == null || isDropped()) {
+                        continue;
+                    }
+
+                    outputStream.write(reply.array(), reply.position(), reply.remaining());
+                    outputStream.flush();
+                }
+            } catch (EOFException e) {
+                logger.debug("Control connection from {} was closed.", requester);
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted while delaying a reply => ", e);
+            } catch (IOException e) {
+                logger.debug("Control connection from {} was closed => {}", requester, e.getMessage());
+            }
+        }
+
+        private ByteBuffer processRequest(InetAddress requester, ByteBuffer buffer) {
+            HDHomeRunPacket rxPacket = new HDHomeRunPacket(buffer);
+
+            if (rxPacket.getPacketType() != HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_REQ) {
+                return null;
+            }
+
+            rxPacket.getPacketLength();
+
+            String name = null;
+            String value = null;
+            int lockkey = 0;
+
+            while (rxPacket.BUFFER.hasRemaining()) {
+                HDHomeRunPacketTag tag = rxPacket.getTag();
+                int length = rxPacket.getVariableLength();
+
+                if (length > rxPacket.BUFFER.remaining()) {
+                    return null;
+                }
+
+                if (tag == HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_NAME && length > 0) {
+                    name = rxPacket.getTLVString(length);
+                } else if (tag == HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_VALUE && length > 0) {
+                    value = rxPacket.getTLVString(length);
+                } else if (tag == HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_LOCKKEY && length == 4) {
+                    lockkey = rxPacket.getTLVInteger();
+                } else {
+                    rxPacket.BUFFER.position(rxPacket.BUFFER.position() + length);
+                }
+            }
+
+            if (name == null) {
+                return null;
+            }
+
+            String result;
+            boolean error = false;
+
+            if (isError()) {
+                result = "ERROR: simulated failure";
+                error = true;
+            } else {
+                try {
+                    result = getSet(requester, name, value, lockkey);
+                } catch (GetSetException e) {
+                    result = e.getMessage();
+                    error = true;
+                }
+            }
+
+            HDHomeRunPacket txPacket = new HDHomeRunPacket(
+                    ByteBuffer.allocate(HDHomeRunPacket.HDHOMERUN_MAX_PACKET_SIZE));
+
+            txPacket.startPacket(HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_RPY);
+            txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_NAME, name);
+            txPacket.putTagLengthValue(error ?
+                    HDHomeRunPacketTag.HDHOMERUN_TAG_ERROR_MESSAGE :
+                    HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_VALUE, result);
+            txPacket.endPacket();
+
+            return txPacket.BUFFER;
+        }
+
+        private String getSet(InetAddress requester, String name, String value, int lockkey) throws GetSetException {
+            if (name.startsWith("/tuner")) {
+                int separator = name.indexOf('/', 6);
+
+                if (separator > 6) {
+                    try {
+                        int tuner = Integer.parseInt(name.substring(6, separator));
+
+                        if (tuner >= 0 && tuner < tuners.length) {
+                            return tuners[tuner].getSet(requester, name.substring(separator + 1), value, lockkey);
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.debug("Simulated device received an invalid tuner in '{}'.", name);
+                    }
+                }
+            } else if (value == null) {
+                if (name.equals("/sys/hwmodel")) {
+                    return CABLECARD ? "HDHR3-CC" : "HDHR4-2US";
+                } else if (name.equals("/sys/model")) {
+                    return CABLECARD ? "hdhomerun3_cablecard" : "hdhomerun4_atsc";
+                } else if (name.equals("/sys/version")) {
+                    return "20150826";
+                } else if (name.equals("/sys/copyright")) {
+                    return "Simulated HDHomeRun device";
+                } else if (name.equals("/sys/debug")) {
+                    return "mem: ddr=256 nbk=1 dmk=1 fet=0\n";
+                } else if (name.equals("/sys/features")) {
+                    return CABLECARD ?
+                            "channelmap: us-cable\nmodulation: qam256 qam64\n" :
+                            "channelmap: us-bcast us-cable us-hrc us-irc\n" +
+                                    "modulation: 8vsb qam256 qam64\nauto-modulation: auto auto6c\n";
+                } else if (name.equals("/card/status") && CABLECARD) {
+                    return "card=ready auth=success oob=success act=success";
+                }
+            }
+
+            throw new GetSetException("ERROR: unknown getset variable");
+        }
+
+        private void sendDiscoveryReply(SocketAddress requester) {
+            HDHomeRunPacket txPacket = new HDHomeRunPacket(
+                    ByteBuffer.allocate(HDHomeRunPacket.HDHOMERUN_MAX_PACKET_SIZE));
+
+            txPacket.startPacket(HDHomeRunPacketType.HDHOMERUN_TYPE_DISCOVER_RPY);
+            txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_DEVICE_TYPE,
+                    HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER);
+            txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_DEVICE_ID, DEVICE_ID);
+
+            // The tuner count is only one byte.
+            txPacket.BUFFER.put(HDHomeRunPacketTag.HDHOMERUN_TAG_TUNER_COUNT.MASK);
+            txPacket.BUFFER.put((byte) 1);
+            txPacket.BUFFER.put((byte) tuners.length);
+
+            txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_BASE_URL,
+                    "http://" + ADDRESS.getHostAddress() + ":80");
+            txPacket.endPacket();
+
+            try {
+                // The reply must come from the address of the device since that's how the
+                // address of the device is found.
+                replyChannel.send(txPacket.BUFFER, requester);
+            } catch (IOException e) {
+                logger.debug("Unable to send a discovery reply to {} => {}", requester, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The state of a tuner on a simulated device.
+     */
+    private class SimulatedTuner implements Runnable {
+        private final SimulatedDevice device;
+        private final int tunerNumber;
+
+        private String modulation;
+        private String frequency;
+        private String vchannel;
+        private int program;
+        private long lockedTime;
+        private String target;
+        private String filter = "0x0000-0x1fff";
+        private String channelmap = "us-cable";
+        private int lockkey;
+        private InetAddress lockHolder;
+
+        private ScheduledFuture<?> streamFuture;
+        private DatagramChannel streamChannel;
+        private InetSocketAddress streamTarget;
+        private boolean streamRtp;
+        private long streamStart;
+        private long streamBytes;
+        private int packetsPerSecond;
+        private int rtpSequence;
+        private int datagrams;
+        private final int continuity[] = new int[0x2000];
+        private final ByteBuffer streamBuffer =
+                ByteBuffer.allocate(RTP_HEADER_SIZE + TS_PACKET_SIZE * TS_PACKETS_PER_DATAGRAM);
+
+        private SimulatedTuner(SimulatedDevice device, int tunerNumber) {
+            this.device = device;
+            this.tunerNumber = tunerNumber;
+        }
+
+        private synchronized String getSet(InetAddress requester, String key, String value, int requestLockkey) throws GetSetException {
+            if (value != null) {
+                if (key.equals("lockkey")) {
+                    return setLockkey(requester, value, requestLockkey);
+                }
+
+                if (lockHolder != null && requestLockkey != lockkey) {
+                    throw new GetSetException("ERROR: resource locked by " + lockHolder.getHostAddress());
+                }
+
+                set(key, value);
+            }
+
+            return get(key);
+        }
+
+        private String setLockkey(InetAddress requester, String value, int requestLockkey) throws GetSetException {
+            if (value.equals("force")) {
+                lockHolder = null;
+                lockkey = 0;
+                return "none";
+            }
+
+            if (lockHolder != null && requestLockkey != lockkey) {
+                throw new GetSetException("ERROR: resource locked by " + lockHolder.getHostAddress());
+            }
+
+            if (value.equals("none")) {
+                lockHolder = null;
+                lockkey = 0;
+                return "none";
+            }
+
+            try {
+                lockkey = (int) Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new GetSetException("ERROR: invalid lockkey");
+            }
+
+            lockHolder = requester;
+            return requester.getHostAddress();
+        }
+
+        private void set(String key, String value) throws GetSetException {
+            if (key.equals("channel")) {
+                if (value.equals("none")) {
+                    clearChannel();
+                    return;
+                }
+
+                int separator = value.indexOf(':');
+
+                if (separator < 1 || separator == value.length() - 1) {
+                    throw new GetSetException("ERROR: invalid channel");
+                }
+
+                tune(value.substring(0, separator), value.substring(separator + 1), null, 0);
+            } else if (key.equals("vchannel")) {
+                if (value.equals("none")) {
+                    clearChannel();
+                    return;
+                }
+
+                // Every virtual channel gets its own frequency so changing channels looks like
+                // a real retune.
+                long frequency = 57000000L + (Math.abs(value.hashCode()) % 130) * 6000000L;
+                tune("qam256", String.valueOf(frequency), value, 1);
+            } else if (key.equals("program")) {
+                int newProgram;
+
+                try {
+                    newProgram = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new GetSetException("ERROR: invalid program");
+                }
+
+                if (newProgram != 0 && !isLocked()) {
+                    throw new GetSetException("ERROR: program not found");
+                }
+
+                program = newProgram;
+            } else if (key.equals("target")) {
+                setTarget(value);
+            } else if (key.equals("filter")) {
+                filter = value;
+            } else if (key.equals("channelmap")) {
+                channelmap = value;
+            } else {
+                throw new GetSetException("ERROR: unknown getset variable");
+            }
+        }
+
+        private String get(String key) throws GetSetException {
+            if (key.equals("channel")) {
+                return modulation == null ? "none" : modulation + ":" + frequency;
+            } else if (key.equals("vchannel")) {
+                return vchannel == null ? "none" : vchannel;
+            } else if (key.equals("program")) {
+                return isLocked() ? String.valueOf(program) : "0";
+            } else if (key.equals("target")) {
+                return target == null ? "none" : target;
+            } else if (key.equals("filter")) {
+                return filter;
+            } else if (key.equals("channelmap")) {
+                return channelmap;
+            } else if (key.equals("lockkey")) {
+                return lockHolder == null ? "none" : lockHolder.getHostAddress();
+            } else if (key.equals("debug")) {
+                return "tun: ch=" + get("channel") + " lock=" + getLock() + "\n";
+            } else if (key.equals("status")) {
+                if (modulation == null) {
+                    return "ch=none lock=none ss=0 snq=0 seq=0 bps=0 pps=0";
+                }
+
+                if (!isLocked()) {
+                    return "ch=" + get("channel") + " lock=none ss=0 snq=0 seq=0 bps=0 pps=0";
+                }
+
+                return "ch=" + get("channel") + " lock=" + getLock() + " ss=98 snq=90 seq=100" +
+                        " bps=38807712 pps=" + (streamFuture != null ? packetsPerSecond : 0);
+            } else if (key.equals("vstatus") && device.CABLECARD) {
+                if (vchannel == null) {
+                    return "vch=none";
+                }
+
+                return "vch=" + vchannel + " name=SIM auth=subscribed cci=unrestricted";
+            } else if (key.equals("streaminfo")) {
+                if (!isLocked()) {
+                    return "none\n";
+                }
+
+                int currentProgram = program > 0 ? program : 1;
+                return currentProgram + ": " + (vchannel == null ? "0" : vchannel) + " SIM\n" +
+                        "tsid=0x" + String.format("%04x", tunerNumber + 1) + "\n";
+            }
+
+            throw new GetSetException("ERROR: unknown getset variable");
+        }
+
+        private String getLock() {
+            return modulation.equals("auto") ? "qam256" : modulation;
+        }
+
+        private boolean isLocked() {
+            return modulation != null && System.currentTimeMillis() >= lockedTime;
+        }
+
+        private void tune(String modulation, String frequency, String vchannel, int program) {
+            this.modulation = modulation;
+            this.frequency = frequency;
+            this.vchannel = vchannel;
+            this.program = program;
+            lockedTime = System.currentTimeMillis() + tuneDelay;
+        }
+
+        private void clearChannel() {
+            modulation = null;
+            frequency = null;
+            vchannel = null;
+            program = 0;
+        }
+
+        private void setTarget(String value) throws GetSetException {
+            stopStream();
+
+            if (value.equals("none")) {
+                target = null;
+                return;
+            }
+
+            try {
+                URI uri = new URI(value);
+
+                if (uri.getHost() == null || uri.getPort() < 1 ||
+                        !(uri.getScheme().equals("rtp") || uri.getScheme().equals("udp"))) {
+
+                    throw new GetSetException("ERROR: invalid target");
+                }
+
+                streamTarget = new InetSocketAddress(InetAddress.getByName(uri.getHost()), uri.getPort());
+                streamRtp = uri.getScheme().equals("rtp");
+                streamChannel = DatagramChannel.open();
+                streamChannel.socket().bind(new InetSocketAddress(device.ADDRESS, 0));
+            } catch (GetSetException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new GetSetException("ERROR: invalid target");
+            }
+
+            target = value;
+            streamStart = System.nanoTime();
+            streamBytes = 0;
+            streamFuture = simulatorExecutor.scheduleAtFixedRate(
+                    this, 0, STREAM_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void stopStream() {
+            if (streamFuture != null) {
+                streamFuture.cancel(false);
+                streamFuture = null;
+            }
+
+            if (streamChannel != null) {
+                try {
+                    streamChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Created an exception while closing the stream channel => ", e);
+                }
+
+                streamChannel = null;
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (streamChannel == null) {
+                return;
+            }
+
+            long elapsed = System.nanoTime() - streamStart;
+            long expectedBytes = elapsed / 1000000 * (bitrate / 8) / 1000;
+            int payloadSize = TS_PACKET_SIZE * TS_PACKETS_PER_DATAGRAM;
+
+            if (!device.isOnline() || !isLocked()) {
+                // Nothing is owed for the time the tuner was not streaming.
+                streamBytes = expectedBytes;
+                packetsPerSecond = 0;
+                return;
+            }
+
+            // Don't try to catch up on more than one second of stream after a stall.
+            if (expectedBytes - streamBytes > bitrate / 8) {
+                streamBytes = expectedBytes - bitrate / 8;
+            }
+
+            packetsPerSecond = (int) (bitrate / 8 / TS_PACKET_SIZE);
+
+            try {
+                while (streamBytes + payloadSize <= expectedBytes) {
+                    fillDatagram();
+                    streamChannel.send(streamBuffer, streamTarget);
+                    streamBytes += payloadSize;
+                }
+            } catch (IOException e) {
+                logger.debug("Unable to send the stream to {} => {}", streamTarget, e.getMessage());
+            }
+        }
+
+        private void fillDatagram() {
+            streamBuffer.clear();
+
+            if (streamRtp) {
+                streamBuffer.put((byte) 0x80);
+                // MPEG-2 transport stream payload type.
+                streamBuffer.put((byte) 33);
+                streamBuffer.putShort((short) rtpSequence++);
+                streamBuffer.putInt((int) ((System.nanoTime() - streamStart) / 100000 * 9));
+                streamBuffer.putInt(device.DEVICE_ID + tunerNumber);
+            }
+
+            int currentProgram = program > 0 ? program : 1;
+
+            for (int i = 0; i < TS_PACKETS_PER_DATAGRAM; i++) {
+                // The tables are repeated about every 40ms at the default bitrate.
+                if (datagrams % 70 == 0 && i == 0) {
+                    putSection(0, getPat(currentProgram));
+                } else if (datagrams % 70 == 0 && i == 1) {
+                    putSection(PMT_PID, getPmt(currentProgram));
+                } else {
+                    putPayload(i == TS_PACKETS_PER_DATAGRAM - 1 ? AUDIO_PID : VIDEO_PID);
+                }
+            }
+
+            datagrams += 1;
+            streamBuffer.flip();
+        }
+
+        private void putHeader(int pid, boolean payloadStart) {
+            streamBuffer.put((byte) 0x47);
+            streamBuffer.put((byte) ((payloadStart ? 0x40 : 0x00) | ((pid >> 8) & 0x1f)));
+            streamBuffer.put((byte) pid);
+            streamBuffer.put((byte) (0x10 | continuity[pid]));
+            continuity[pid] = (continuity[pid] + 1) & 0x0f;
+        }
+
+        private void putSection(int pid, byte section[]) {
+            putHeader(pid, true);
+            // Pointer field.
+            streamBuffer.put((byte) 0);
+            streamBuffer.put(section);
+
+            for (int i = 5 + section.length; i < TS_PACKET_SIZE; i++) {
+                streamBuffer.put((byte) 0xff);
+            }
+        }
+
+        private void putPayload(int pid) {
+            putHeader(pid, false);
+
+            for (int i = 4; i < TS_PACKET_SIZE; i++) {
+                streamBuffer.put((byte) 0xff);
+            }
+        }
+    }
+
+    private static byte[] getPat(int program) {
+        ByteBuffer section = ByteBuffer.allocate(16);
+
+        section.put((byte) 0x00);
+        section.putShort((short) (0xb000 | 13));
+        section.putShort((short) 1);
+        section.put((byte) 0xc1);
+        section.put((byte) 0);
+        section.put((byte) 0);
+        section.putShort((short) program);
+        section.putShort((short) (0xe000 | PMT_PID));
+        section.putInt(getMpegCrc(section.array(), section.position()));
+
+        return section.array();
+    }
+
+    private static byte[] getPmt(int program) {
+        ByteBuffer section = ByteBuffer.allocate(26);
+
+        section.put((byte) 0x02);
+        section.putShort((short) (0xb000 | 23));
+        section.putShort((short) program);
+        section.put((byte) 0xc1);
+        section.put((byte) 0);
+        section.put((byte) 0);
+        section.putShort((short) (0xe000 | VIDEO_PID));
+        section.putShort((short) 0xf000);
+
+        // MPEG-2 video.
+        section.put((byte) 0x02);
+        section.putShort((short) (0xe000 | VIDEO_PID));
+        section.putShort((short) 0xf000);
+
+        // AC-3 audio.
+        section.put((byte) 0x81);
+        section.putShort((short) (0xe000 | AUDIO_PID));
+        section.putShort((short) 0xf000);
+
+        section.putInt(getMpegCrc(section.array(), section.position()));
+
+        return section.array();
+    }
+
+    // PSI sections use a CRC32 that is not reflected, so java.util.zip.CRC32 can't be used.
+    private static int getMpegCrc(byte data[], int length) {
+        int crc = 0xffffffff;
+
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xff) << 24;
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+
+        return crc;
+    }
+}
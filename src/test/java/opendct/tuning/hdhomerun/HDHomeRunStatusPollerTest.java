@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class HDHomeRunStatusPollerTest {
+    private HDHomeRunSimulator simulator;
+    private HDHomeRunSimulator.SimulatedDevice simulated;
+    private HDHomeRunDevice device;
+    private HDHomeRunStatusPoller poller;
+
+    // Changes made with this controller don't invalidate the cache like a tuner would.
+    private HDHomeRunControl control;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HDHomeRunSimulator(InetAddress.getByName("127.0.0.1"), 0);
+        simulator.setTuneDelay(0);
+        simulated = simulator.addDevice(InetAddress.getByName("127.0.3.2"), 2, false);
+        simulator.start();
+
+        device = new HDHomeRunDevice(simulated.ADDRESS, HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER,
+                simulated.DEVICE_ID, simulated.getTunerCount(), false, null, null);
+        poller = HDHomeRunStatusPoller.getPoller(device);
+        control = new HDHomeRunControl();
+    }
+
+    @After
+    public void tearDown() {
+        control.closeSocket();
+        device.CONTROL.closeSocket();
+        HDHomeRunStatusPoller.removeAllPollers();
+        simulator.stop();
+    }
+
+    @Test
+    public void onePollerPerDevice() throws Exception {
+        // A device found at a new address is still the same device.
+        HDHomeRunDevice moved = new HDHomeRunDevice(InetAddress.getByName("127.0.3.3"),
+                HDHomeRunPacket.HDHOMERUN_DEVICE_TYPE_TUNER, simulated.DEVICE_ID, 2, false, null, null);
+
+        assertSame(poller, HDHomeRunStatusPoller.getPoller(moved));
+
+        // Devices that were not discovered are only known by their address.
+        HDHomeRunDevice first = new HDHomeRunDevice(InetAddress.getByName("127.0.3.4"));
+        HDHomeRunDevice second = new HDHomeRunDevice(InetAddress.getByName("127.0.3.4"));
+        HDHomeRunDevice third = new HDHomeRunDevice(InetAddress.getByName("127.0.3.5"));
+
+        assertSame(HDHomeRunStatusPoller.getPoller(first), HDHomeRunStatusPoller.getPoller(second));
+        assertNotSame(HDHomeRunStatusPoller.getPoller(first), HDHomeRunStatusPoller.getPoller(third));
+    }
+
+    @Test(timeout = 10000)
+    public void cachedValueIsReturnedUntilTooOld() throws Exception {
+        assertEquals("none", poller.get(0, "channel", 60000));
+
+        control.setVariable(simulated.ADDRESS, "/tuner0/channel", "qam256:615000000");
+
+        assertEquals("none", poller.get(0, "channel", 60000));
+        assertEquals("qam256:615000000", poller.get(0, "channel", 0));
+        assertEquals("qam256:615000000", poller.get(0, "channel", 60000));
+    }
+
+    @Test(timeout = 10000)
+    public void invalidateOnlyForgetsOneTuner() throws Exception {
+        assertEquals("none", poller.get(0, "channel", 60000));
+        assertEquals("none", poller.get(1, "channel", 60000));
+
+        control.setVariable(simulated.ADDRESS, "/tuner0/channel", "qam256:615000000");
+        control.setVariable(simulated.ADDRESS, "/tuner1/channel", "qam256:621000000");
+
+        poller.invalidate(0);
+
+        assertEquals("qam256:615000000", poller.get(0, "channel", 60000));
+        assertEquals("none", poller.get(1, "channel", 60000));
+    }
+
+    @Test(timeout = 10000)
+    public void tunerChangesInvalidateCache() throws Exception {
+        HDHomeRunTuner tuner = new HDHomeRunTuner(device, 0);
+
+        assertEquals("none", tuner.getStatus().CHANNEL);
+
+        tuner.setChannel("qam256", "615000000", false);
+
+        assertEquals("qam256:615000000", tuner.getStatus().CHANNEL);
+    }
+
+    @Test(timeout = 10000)
+    public void valuesAreRefreshedWhileRead() throws Exception {
+        assertEquals("none", poller.get(0, "channel"));
+
+        control.setVariable(simulated.ADDRESS, "/tuner0/channel", "qam256:615000000");
+
+        // The value is still being read, so it's refreshed in the background.
+        Thread.sleep(2500);
+        assertEquals("qam256:615000000", poller.get(0, "channel", 60000));
+    }
+
+    @Test(timeout = 10000)
+    public void errorsArePassedToReaders() throws Exception {
+        try {
+            poller.get(0, "unknown");
+            fail("An unknown variable was returned.");
+        } catch (GetSetException e) {
+            assertEquals("ERROR: unknown getset variable", e.getMessage());
+        }
+
+        simulated.setOnline(false);
+
+        try {
+            poller.get(1, "status", 0);
+            fail("A value was returned by an offline device.");
+        } catch (IOException e) {
+            // The device closed the connection.
+        }
+
+        simulated.setOnline(true);
+        assertEquals("none", poller.get(1, "channel", 0));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(0, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 16; i++) {
+            histogram.recordMicros(i);
+        }
+
+        assertEquals(16, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(0));
+        assertEquals(7, histogram.getPercentileMicros(50));
+        assertEquals(15, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void bucketsAreWithinRelativeError() {
+        long values[] = new long[] { 16, 17, 31, 32, 100, 999, 1000, 1024, 65535, 1000000, 123456789L };
+
+        for (long value : values) {
+            LatencyHistogram histogram = new LatencyHistogram();
+
+            // The larger value keeps the result from being capped at the largest recorded value.
+            histogram.recordMicros(value);
+            histogram.recordMicros(value * 100);
+
+            long reported = histogram.getPercentileMicros(50);
+
+            assertTrue("Reported " + reported + " for " + value, reported >= value);
+            assertTrue("Reported " + reported + " for " + value, reported <= value + value / 16);
+        }
+    }
+
+    @Test
+    public void percentilesFollowRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordMicros(i * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMeanMicros());
+        assertEquals(1000000, histogram.getMaxMicros());
+
+        assertWithin(500000, histogram.getPercentileMicros(50));
+        assertWithin(900000, histogram.getPercentileMicros(90));
+        assertWithin(990000, histogram.getPercentileMicros(99));
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+        assertEquals(1000000, histogram.getPercentileMicros(150));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1000);
+
+        assertEquals(1000, histogram.getPercentileMicros(50));
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(-5);
+
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(100));
+
+        histogram.recordMicros(Long.MAX_VALUE);
+
+        assertEquals(2, histogram.getCount());
+        assertTrue(histogram.getMaxMicros() < Long.MAX_VALUE);
+        assertEquals(histogram.getMaxMicros(), histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void nanosAreRecordedAsMicros() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(5000);
+
+        assertEquals(5, histogram.getMaxMicros());
+        assertEquals(5, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1000);
+        histogram.recordMicros(2000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but got " + actual,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}